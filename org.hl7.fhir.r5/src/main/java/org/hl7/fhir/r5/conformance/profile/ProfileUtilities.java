@@ -43,6 +43,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.hl7.fhir.exceptions.DefinitionException;
 import org.hl7.fhir.exceptions.FHIRException;
@@ -432,7 +433,8 @@ public class ProfileUtilities extends TranslatingUtilities {
   private boolean wantFixDifferentialFirstElementType;
   private Set<String> masterSourceFileNames;
   private Set<String> localFileNames;
-  private Map<ElementDefinition, SourcedChildDefinitions> childMapCache = new HashMap<>();
+  // the validator may call getChildMap from more than one thread
+  private Map<ElementDefinition, SourcedChildDefinitions> childMapCache = new ConcurrentHashMap<>();
   private AllowUnknownProfile allowUnknownProfile = AllowUnknownProfile.ALL_TYPES;
   private MappingMergeModeOption mappingMergeMode = MappingMergeModeOption.APPEND;
   private boolean forPublication;
@@ -478,8 +480,9 @@ public class ProfileUtilities extends TranslatingUtilities {
   }
 
   public SourcedChildDefinitions getChildMap(StructureDefinition profile, ElementDefinition element) throws DefinitionException {
-    if (childMapCache.containsKey(element)) {
-      return childMapCache.get(element);
+    SourcedChildDefinitions cached = childMapCache.get(element);
+    if (cached != null) {
+      return cached;
     }
     StructureDefinition src = profile;
     if (element.getContentReference() != null) {
@@ -523,8 +526,9 @@ public class ProfileUtilities extends TranslatingUtilities {
           break;
       }
       SourcedChildDefinitions result  = new SourcedChildDefinitions(src, res);
-      childMapCache.put(element, result);
-      return result;
+      // not computeIfAbsent, since a content reference calls back in for another element
+      cached = childMapCache.putIfAbsent(element, result);
+      return cached == null ? result : cached;
     }
   }
 
@@ -45,6 +45,7 @@ import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -2289,6 +2290,40 @@ public abstract class BaseWorkerContext extends I18nBase implements IWorkerConte
     return res;
   }
 
+  /**
+   * @return the conformance resources that weren't loaded from a package (e.g. from a folder, or the content being validated)
+   */
+  public List<CanonicalResource> fetchLocalResources() {
+    Set<CanonicalResource> res = Collections.newSetFromMap(new IdentityHashMap<>());
+    synchronized (lock) {
+      listLocalResources(structures, res);
+      listLocalResources(guides, res);
+      listLocalResources(capstmts, res);
+      listLocalResources(measures, res);
+      listLocalResources(libraries, res);
+      listLocalResources(valueSets, res);
+      listLocalResources(codeSystems, res);
+      listLocalResources(operations, res);
+      listLocalResources(searchParameters, res);
+      listLocalResources(plans, res);
+      listLocalResources(maps, res);
+      listLocalResources(transforms, res);
+      listLocalResources(questionnaires, res);
+      listLocalResources(systems, res);
+      listLocalResources(actors, res);
+      listLocalResources(requirements, res);
+    }
+    return new ArrayList<>(res);
+  }
+
+  private <T extends CanonicalResource> void listLocalResources(CanonicalResourceManager<T> manager, Set<CanonicalResource> res) {
+    for (CanonicalResourceManager<T>.CachedCanonicalResource<T> t : manager.getCachedList()) {
+      if (t.getPackageInfo() == null) {
+        res.add(t.getResource());
+      }
+    }
+  }
+
   private Set<String> notCanonical = new HashSet<String>();
 
   protected IWorkerContextManager.IPackageLoadingTracker packageTracker;
@@ -61,7 +61,7 @@ public class ContextUtilities implements ProfileKnowledgeProvider {
     this.suppressDebugMessages = suppressDebugMessages;
   }
   
-  public String oid2Uri(String oid) {
+  public synchronized String oid2Uri(String oid) {
     if (oid != null && oid.startsWith("urn:oid:")) {
       oid = oid.substring(8);
     }
@@ -195,7 +195,7 @@ public class ContextUtilities implements ProfileKnowledgeProvider {
   /**
    * @return a list of the resource names that are canonical resources defined for this version
    */
-  public List<String> getCanonicalResourceNames() {
+  public synchronized List<String> getCanonicalResourceNames() {
     if (canonicalResourceNames == null) {
       canonicalResourceNames =  new ArrayList<>();
       Set<String> names = new HashSet<>();
@@ -212,7 +212,7 @@ public class ContextUtilities implements ProfileKnowledgeProvider {
   /**
    * @return a list of all structure definitions, with snapshots generated (if possible)
    */
-  public List<StructureDefinition> allStructures(){
+  public synchronized List<StructureDefinition> allStructures(){
     if (allStructuresList.isEmpty()) {
       Set<StructureDefinition> set = new HashSet<StructureDefinition>();
       for (StructureDefinition sd : getStructures()) {
@@ -370,7 +370,7 @@ public class ContextUtilities implements ProfileKnowledgeProvider {
     return null;
   }
 
-  public List<String>  getConcreteResources() {
+  public synchronized List<String>  getConcreteResources() {
     if (concreteResourceNames == null) {
       concreteResourceNames =  new ArrayList<>();
       Set<String> names = new HashSet<>();
@@ -541,7 +541,7 @@ public abstract class Base implements Serializable, IBase, IElement {
     return validationInfo;
   }
 
-  public ValidationInfo addDefinition(StructureDefinition structure, ElementDefinition defn, ValidationMode mode) {
+  public synchronized ValidationInfo addDefinition(StructureDefinition structure, ElementDefinition defn, ValidationMode mode) {
     if (validationInfo == null) {
       validationInfo = new ArrayList<>();
     }
@@ -0,0 +1,203 @@
+package org.hl7.fhir.r5.terminologies;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import org.hl7.fhir.r5.model.CodeSystem;
+import org.hl7.fhir.r5.model.CodeSystem.ConceptDefinitionComponent;
+import org.hl7.fhir.r5.model.CodeSystem.ConceptDefinitionDesignationComponent;
+import org.hl7.fhir.r5.model.CodeSystem.ConceptPropertyComponent;
+import org.hl7.fhir.r5.model.CodeSystem.PropertyComponent;
+import org.hl7.fhir.r5.model.DataType;
+
+/**
+ * An index of the concepts in a code system, so that concepts can be found without walking
+ * the concept hierarchy every time.
+ *
+ * Use CodeSystemUtilities.getIndex(cs), which builds the index the first time it's needed, and
+ * keeps it with the code system. The index is not updated if the code system is changed: use
+ * CodeSystemUtilities.clearIndex(cs) if that happens
+ *
+ * Where more than one concept matches, the index returns the first one in the code system, as
+ * walking the hierarchy does
+ */
+public class CodeSystemIndex {
+
+  private static final String PARENT_PROPERTY = "http://hl7.org/fhir/concept-properties#parent";
+
+  private class ConceptNode {
+    private int order;
+    private List<ConceptDefinitionComponent> parents = new ArrayList<>();
+    private List<ConceptDefinitionComponent> children = new ArrayList<>();
+  }
+
+  private class AlternateCode {
+    private ConceptDefinitionComponent concept;
+    private ConceptPropertyComponent property;
+  }
+
+  private CodeSystem cs;
+  private Map<ConceptDefinitionComponent, ConceptNode> nodes = new IdentityHashMap<>();
+  private Map<String, ConceptDefinitionComponent> codes = new HashMap<>();
+  private Map<String, List<AlternateCode>> alternateCodes = new HashMap<>();
+  private Map<String, List<ConceptDefinitionComponent>> displays = new HashMap<>(); // display and designations, lower case
+
+  public CodeSystemIndex(CodeSystem cs) {
+    this.cs = cs;
+    index(cs.getConcept(), null);
+    String parent = getPropertyByUrl(PARENT_PROPERTY);
+    if (parent != null) {
+      for (Map.Entry<ConceptDefinitionComponent, ConceptNode> t : nodes.entrySet()) {
+        for (ConceptPropertyComponent p : CodeSystemUtilities.getPropertyValues(t.getKey(), parent)) {
+          ConceptDefinitionComponent tgt = p.hasValue() && p.getValue().isPrimitive() ? codes.get(p.getValue().primitiveValue()) : null;
+          if (tgt != null) {
+            link(tgt, t.getKey());
+          }
+        }
+      }
+    }
+  }
+
+  private void index(List<ConceptDefinitionComponent> list, ConceptDefinitionComponent parent) {
+    for (ConceptDefinitionComponent c : list) {
+      ConceptNode node = new ConceptNode();
+      node.order = nodes.size();
+      nodes.put(c, node);
+      if (parent != null) {
+        node.parents.add(parent);
+        nodes.get(parent).children.add(c);
+      }
+      if (c.hasCode()) {
+        codes.putIfAbsent(c.getCode(), c);
+      }
+      for (ConceptPropertyComponent p : c.getProperty()) {
+        if ("alternateCode".equals(p.getCode()) && p.hasValue() && p.getValue().isPrimitive()) {
+          AlternateCode ac = new AlternateCode();
+          ac.concept = c;
+          ac.property = p;
+          alternateCodes.computeIfAbsent(p.getValue().primitiveValue(), k -> new ArrayList<>()).add(ac);
+        }
+      }
+      if (c.hasDisplay()) {
+        seeDisplay(c.getDisplay(), c);
+      }
+      for (ConceptDefinitionDesignationComponent d : c.getDesignation()) {
+        if (d.hasValue()) {
+          seeDisplay(d.getValue(), c);
+        }
+      }
+      index(c.getConcept(), c);
+    }
+  }
+
+  private void seeDisplay(String display, ConceptDefinitionComponent c) {
+    List<ConceptDefinitionComponent> list = displays.computeIfAbsent(display.toLowerCase(), k -> new ArrayList<>());
+    if (!list.contains(c)) {
+      list.add(c);
+    }
+  }
+
+  private void link(ConceptDefinitionComponent parent, ConceptDefinitionComponent child) {
+    ConceptNode node = nodes.get(child);
+    if (!node.parents.contains(parent)) {
+      node.parents.add(parent);
+      nodes.get(parent).children.add(child);
+    }
+  }
+
+  private String getPropertyByUrl(String url) {
+    for (PropertyComponent pc : cs.getProperty()) {
+      if (url.equals(pc.getUri())) {
+        return pc.getCode();
+      }
+    }
+    return null;
+  }
+
+  public CodeSystem getCodeSystem() {
+    return cs;
+  }
+
+  public int getConceptCount() {
+    return nodes.size();
+  }
+
+  public ConceptDefinitionComponent findCode(String code) {
+    return code == null ? null : codes.get(code);
+  }
+
+  /**
+   * find the concept with the code, or that has it as an alternate code
+   *
+   * @param altCodeFilter which alternate codes count (null: none of them)
+   */
+  public ConceptDefinitionComponent findCodeOrAltCode(String code, Predicate<ConceptPropertyComponent> altCodeFilter) {
+    if (code == null) {
+      return null;
+    }
+    ConceptDefinitionComponent res = codes.get(code);
+    if (altCodeFilter != null && alternateCodes.containsKey(code)) {
+      for (AlternateCode ac : alternateCodes.get(code)) {
+        if (res != null && nodes.get(res).order <= nodes.get(ac.concept).order) {
+          break;
+        }
+        if (altCodeFilter.test(ac.property)) {
+          res = ac.concept;
+          break;
+        }
+      }
+    }
+    return res;
+  }
+
+  /**
+   * @return the concepts that have this display or designation (ignoring case)
+   */
+  public List<ConceptDefinitionComponent> findByDisplay(String display) {
+    List<ConceptDefinitionComponent> res = display == null ? null : displays.get(display.toLowerCase());
+    return res == null ? new ArrayList<>() : res;
+  }
+
+  public DataType getProperty(String code, String property) {
+    ConceptDefinitionComponent c = findCode(code);
+    ConceptPropertyComponent p = c == null ? null : CodeSystemUtilities.getProperty(c, property);
+    return p == null ? null : p.getValue();
+  }
+
+  /**
+   * @return the parents of the concept - the concept it is nested in, and any named by the parent property
+   */
+  public List<ConceptDefinitionComponent> getParents(ConceptDefinitionComponent concept) {
+    ConceptNode node = nodes.get(concept);
+    return node == null ? new ArrayList<>() : node.parents;
+  }
+
+  public List<ConceptDefinitionComponent> getChildren(ConceptDefinitionComponent concept) {
+    ConceptNode node = nodes.get(concept);
+    return node == null ? new ArrayList<>() : node.children;
+  }
+
+  /**
+   * @return true if ancestor is a parent of the concept, or a parent of a parent etc (but not if they're the same concept)
+   */
+  public boolean isDescendant(ConceptDefinitionComponent concept, ConceptDefinitionComponent ancestor) {
+    Set<ConceptDefinitionComponent> seen = new HashSet<>();
+    List<ConceptDefinitionComponent> todo = new ArrayList<>(getParents(concept));
+    while (!todo.isEmpty()) {
+      ConceptDefinitionComponent c = todo.remove(todo.size() - 1);
+      if (c == ancestor) {
+        return true;
+      }
+      if (seen.add(c)) {
+        todo.addAll(getParents(c));
+      }
+    }
+    return false;
+  }
+}
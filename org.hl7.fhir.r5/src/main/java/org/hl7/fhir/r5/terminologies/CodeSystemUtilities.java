@@ -111,6 +111,7 @@ public class CodeSystemUtilities extends TerminologyUtilities {
   }
 
   public static final String USER_DATA_CROSS_LINK = "cs.utils.cross.link";
+  public static final String USER_DATA_INDEX = "cs.utils.index";
 
   public static class CodeSystemNavigator {
 
@@ -475,6 +476,46 @@ public class CodeSystemUtilities extends TerminologyUtilities {
     return null;
   }
 
+  /**
+   * find the code using the index for the code system (see getIndex)
+   */
+  public static ConceptDefinitionComponent findCode(CodeSystem cs, String code) {
+    return getIndex(cs).findCode(code);
+  }
+
+  /**
+   * find the code (or alternate code) using the index for the code system (see getIndex)
+   */
+  public static ConceptDefinitionComponent findCodeOrAltCode(CodeSystem cs, String code, String use) {
+    return getIndex(cs).findCodeOrAltCode(code, p -> use == null || hasUse(p, use));
+  }
+
+  /**
+   * get the index of the concepts in the code system, building it if it hasn't been built yet. 
+   * The index is kept with the code system (in the user data), so it's rebuilt when the code system
+   * is replaced
+   */
+  public static CodeSystemIndex getIndex(CodeSystem cs) {
+    synchronized (cs) {
+      CodeSystemIndex index = (CodeSystemIndex) cs.getUserData(USER_DATA_INDEX);
+      // user data is copied with the code system, so check that the index is for this one 
+      if (index == null || index.getCodeSystem() != cs) {
+        index = new CodeSystemIndex(cs);
+        cs.setUserData(USER_DATA_INDEX, index);
+      }
+      return index;
+    }
+  }
+
+  /**
+   * drop the index of the concepts in the code system, after the concepts have been changed
+   */
+  public static void clearIndex(CodeSystem cs) {
+    synchronized (cs) {
+      cs.clearUserData(USER_DATA_INDEX);
+    }
+  }
+
   public static ConceptDefinitionComponent findCodeOrAltCode(List<ConceptDefinitionComponent> list, String code, String use) {
     for (ConceptDefinitionComponent c : list) {
       if (c.hasCode() && c.getCode().equals(code))
@@ -491,7 +532,7 @@ public class CodeSystemUtilities extends TerminologyUtilities {
     return null;
   }
 
-  private static boolean hasUse(ConceptPropertyComponent p, String use) {
+  static boolean hasUse(ConceptPropertyComponent p, String use) {
     for (Extension ext : p.getExtensionsByUrl(ToolingExtensions.EXT_CS_ALTERNATE_USE)) {
       if (ext.hasValueCoding() && use.equals(ext.getValueCoding().getCode())) {
         return true;
@@ -636,6 +677,7 @@ public class CodeSystemUtilities extends TerminologyUtilities {
   }
 
   public static void crossLinkCodeSystem(CodeSystem cs) {
+    clearIndex(cs);
     String parent = getPropertyByUrl(cs, "http://hl7.org/fhir/concept-properties#parent");
     if ((parent != null)) {
       crossLinkConcepts(cs.getConcept(), cs.getConcept(), parent);
@@ -774,7 +816,7 @@ public class CodeSystemUtilities extends TerminologyUtilities {
 
   private static void mergeSupplements(CodeSystem ret, ConceptDefinitionComponent fdef, List<CodeSystem> supplements) {
     for (CodeSystem cs : supplements) {
-      ConceptDefinitionComponent def = CodeSystemUtilities.findCode(cs.getConcept(), fdef.getCode());
+      ConceptDefinitionComponent def = CodeSystemUtilities.findCode(cs, fdef.getCode());
       if (def != null) {
         for (Extension ext : def.getExtension()) {
           fdef.addExtension(ext.copy());
@@ -890,7 +932,7 @@ public class CodeSystemUtilities extends TerminologyUtilities {
   }
 
   public static DataType getProperty(CodeSystem cs, String code, String property) {
-    ConceptDefinitionComponent def = getCode(cs, code);
+    ConceptDefinitionComponent def = findCode(cs, code);
     return getProperty(cs, def, property);
   }
   
@@ -728,17 +728,6 @@ public class ValueSetExpander extends ValueSetProcessBase {
     return res;
   }
 
-  private ConceptDefinitionComponent getConceptForCode(List<ConceptDefinitionComponent> clist, String code) {
-    for (ConceptDefinitionComponent c : clist) {
-      if (code.equals(c.getCode()))
-        return c;
-      ConceptDefinitionComponent v = getConceptForCode(c.getConcept(), code);
-      if (v != null)
-        return v;
-    }
-    return null;
-  }
-
   private void handleCompose(ValueSetComposeComponent compose, ValueSetExpansionComponent exp, Parameters expParams, String ctxt, List<Extension> extensions, ValueSet valueSet)
       throws ETooCostly, FileNotFoundException, IOException, FHIRException, CodeSystemProviderExtension {
     compose.checkNoModifiers("ValueSet.compose", "expanding");
@@ -976,7 +965,7 @@ public class ValueSetExpander extends ValueSetProcessBase {
       dwc.setCanBeHeirarchy(false);
       for (ConceptReferenceComponent c : inc.getConcept()) {
         c.checkNoModifiers("Code in Value Set", "expanding");
-        ConceptDefinitionComponent def = CodeSystemUtilities.findCodeOrAltCode(cs.getConcept(), c.getCode(), null);
+        ConceptDefinitionComponent def = CodeSystemUtilities.findCodeOrAltCode(cs, c.getCode(), null);
         boolean inactive = false; // default is true if we're a fragment and  
         boolean isAbstract = false;
         if (def == null) {
@@ -1023,13 +1012,13 @@ public class ValueSetExpander extends ValueSetProcessBase {
     opContext.deadCheck();
     if ("concept".equals(fc.getProperty()) && fc.getOp() == FilterOperator.ISA) {
       // special: all codes in the target code system under the value
-      ConceptDefinitionComponent def = getConceptForCode(cs.getConcept(), fc.getValue());
+      ConceptDefinitionComponent def = CodeSystemUtilities.findCode(cs, fc.getValue());
       if (def == null)
         throw failTSE("Code '" + fc.getValue() + "' not found in system '" + inc.getSystem() + "'");
       addCodeAndDescendents(wc, cs, inc.getSystem(), def, null, expParams, imports, null, new AllConceptsFilter(allErrors), noInactive, exp.getProperty(), filters, exp);
     } else if ("concept".equals(fc.getProperty()) && fc.getOp() == FilterOperator.ISNOTA) {
       // special: all codes in the target code system that are not under the value
-      ConceptDefinitionComponent defEx = getConceptForCode(cs.getConcept(), fc.getValue());
+      ConceptDefinitionComponent defEx = CodeSystemUtilities.findCode(cs, fc.getValue());
       if (defEx == null)
         throw failTSE("Code '" + fc.getValue() + "' not found in system '" + inc.getSystem() + "'");
       for (ConceptDefinitionComponent def : cs.getConcept()) {
@@ -1037,7 +1026,7 @@ public class ValueSetExpander extends ValueSetProcessBase {
       }
     } else if ("concept".equals(fc.getProperty()) && fc.getOp() == FilterOperator.DESCENDENTOF) {
       // special: all codes in the target code system under the value
-      ConceptDefinitionComponent def = getConceptForCode(cs.getConcept(), fc.getValue());
+      ConceptDefinitionComponent def = CodeSystemUtilities.findCode(cs, fc.getValue());
       if (def == null)
         throw failTSE("Code '" + fc.getValue() + "' not found in system '" + inc.getSystem() + "'");
       for (ConceptDefinitionComponent c : def.getConcept())
@@ -1051,7 +1040,7 @@ public class ValueSetExpander extends ValueSetProcessBase {
     } else if ("display".equals(fc.getProperty()) && fc.getOp() == FilterOperator.EQUAL) {
       // gg; note: wtf is this: if the filter is display=v, look up the code 'v', and see if it's display is 'v'?
       dwc.setCanBeHeirarchy(false);
-      ConceptDefinitionComponent def = getConceptForCode(cs.getConcept(), fc.getValue());
+      ConceptDefinitionComponent def = CodeSystemUtilities.findCode(cs, fc.getValue());
       if (def != null) {
         if (isNotBlank(def.getDisplay()) && isNotBlank(fc.getValue())) {
           if (def.getDisplay().contains(fc.getValue()) && passesOtherFilters(filters, cs, def.getCode())) {
@@ -31,12 +31,27 @@ package org.hl7.fhir.r5.terminologies.utilities;
 
 
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
 
 import lombok.Getter;
 import lombok.Setter;
@@ -80,8 +95,14 @@ public class TerminologyCache {
   private static final String ENTRY_MARKER = "-------------------------------------------------------------------------------------";
   private static final String BREAK = "####";
   private static final String CACHE_FILE_EXTENSION = ".cache";
+  private static final String INDEX_FILE_EXTENSION = ".idx";
+  private static final int INDEX_MAGIC = 0x46544349; // FTCI
+  private static final int INDEX_VERSION = 1;
+  private static final int KEY_LENGTH = 16;
   private static final String CAPABILITY_STATEMENT_TITLE = ".capabilityStatement";
   private static final String TERMINOLOGY_CAPABILITIES_TITLE = ".terminologyCapabilities";
+  // don't rewrite a cache file until it has at least this many replaced entries (and more of them than current ones)
+  private static final int MIN_STALE_FOR_COMPACTION = 100;
 
 
   private SystemNameKeyGenerator systemNameKeyGenerator = new SystemNameKeyGenerator();
@@ -171,40 +192,57 @@ public class TerminologyCache {
 
 
   private class CacheEntry {
+    private String key;
     private String request;
     private boolean persistent;
     private ValidationResult v;
     private ValueSetExpansionOutcome e;
+    // where the entry is in the cache file, if it's there. Entries in the file aren't read until they're used
+    private long offset = -1;
+    private int length;
+    private volatile boolean loaded = true; // written after request, v and e, so readers that see it can use them without a lock
+    private long created = System.currentTimeMillis();
+    private int weight; // see setMemoryBudget
   }
 
+  // the map can be read and written without locking. The list, the counts, and the cache file are guarded by the named cache itself 
   private class NamedCache {
     private String name; 
     private List<CacheEntry> list = new ArrayList<CacheEntry>(); // persistent entries
-    private Map<String, CacheEntry> map = new HashMap<String, CacheEntry>();
+    private Map<String, CacheEntry> map = new ConcurrentHashMap<String, CacheEntry>();
+    private int stale; // entries in the file that have been replaced (or can't be read)
+    private boolean indexed; // whether the index covers all of the file
   }
 
 
-  private Object lock;
   private String folder;
-  @Getter private int requestCount;
-  @Getter private int hitCount;
-  @Getter private int networkCount;
-  private CapabilityStatement capabilityStatementCache = null;
-  private TerminologyCapabilities terminologyCapabilitiesCache = null;
-  private Map<String, NamedCache> caches = new HashMap<String, NamedCache>();
+  private AtomicInteger requestCount = new AtomicInteger();
+  private AtomicInteger hitCount = new AtomicInteger();
+  private AtomicInteger networkCount = new AtomicInteger();
+  private AtomicInteger evictionCount = new AtomicInteger(); // entries dropped (or put back on disk) to stay within the memory budget
+  private AtomicInteger reloadCount = new AtomicInteger(); // entries read from the cache files
+  private AtomicInteger expiredCount = new AtomicInteger(); // transient entries dropped because they were too old
+  // the entries that are in memory, least recently used first. Guarded by memoryLock, which is never held while taking a named cache's lock
+  private final Object memoryLock = new Object();
+  private LinkedHashMap<CacheEntry, NamedCache> inMemory = new LinkedHashMap<>(16, 0.75f, true);
+  private int memoryWeight;
+  @Getter private volatile int memoryBudget;
+  /**
+   * how long (in milliseconds) a transient entry can be used for. 0 = for ever. Persistent entries don't expire
+   */
+  @Getter @Setter private volatile long transientTimeToLive;
+  private volatile CapabilityStatement capabilityStatementCache = null;
+  private volatile TerminologyCapabilities terminologyCapabilitiesCache = null;
+  private Map<String, NamedCache> caches = new ConcurrentHashMap<String, NamedCache>();
   @Getter @Setter private static boolean noCaching;
 
   @Getter @Setter private static boolean cacheErrors;
 
 
-  // use lock from the context
+  // the cache does its own locking, so that using it doesn't wait for (or hold up) other users of the context lock 
   public TerminologyCache(Object lock, String folder) throws FileNotFoundException, IOException, FHIRException {
     super();
-    this.lock = lock;
     this.folder = folder;
-    requestCount = 0;
-    hitCount = 0;
-    networkCount = 0;
 
     if (folder != null) {
       load();
@@ -247,6 +285,63 @@ public class TerminologyCache {
 
   public void clear() {
     caches.clear();
+    synchronized (memoryLock) {
+      inMemory.clear();
+      memoryWeight = 0;
+    }
+  }
+
+  public int getRequestCount() {
+    return requestCount.get();
+  }
+
+  public int getHitCount() {
+    return hitCount.get();
+  }
+
+  public int getNetworkCount() {
+    return networkCount.get();
+  }
+
+  public int getEvictionCount() {
+    return evictionCount.get();
+  }
+
+  public int getReloadCount() {
+    return reloadCount.get();
+  }
+
+  public int getExpiredCount() {
+    return expiredCount.get();
+  }
+
+  public int getMemoryWeight() {
+    synchronized (memoryLock) {
+      return memoryWeight;
+    }
+  }
+
+  /**
+   * Limit the amount of cached content that is kept in memory. The budget is (roughly) in codes: 
+   * a validation result weighs 1, and an expansion weighs 1 + the number of codes in it. 0 = no limit.
+   * 
+   * When the budget is exceeded, the least recently used entries are dropped. Persistent entries 
+   * that are in the cache file are only dropped from memory, and are read again when they're needed
+   */
+  public void setMemoryBudget(int memoryBudget) {
+    this.memoryBudget = memoryBudget;
+    List<Map.Entry<CacheEntry, NamedCache>> victims;
+    synchronized (memoryLock) {
+      victims = overBudget(null);
+    }
+    evict(victims);
+  }
+
+  public String statsSummary() {
+    synchronized (memoryLock) {
+      return "Terminology cache: "+requestCount.get()+" requests, "+hitCount.get()+" hits, "+networkCount.get()+" misses, "+inMemory.size()+" entries in memory (weight "+memoryWeight+
+          (memoryBudget > 0 ? "/"+memoryBudget : "")+"), "+evictionCount.get()+" evicted, "+expiredCount.get()+" expired, "+reloadCount.get()+" read from disk";
+    }
   }
 
   public CacheToken generateValidationToken(ValidationOptions options, Coding code, ValueSet vs, Parameters expParameters) {
@@ -402,36 +497,33 @@ public class TerminologyCache {
 
     final String cacheName = cacheToken.name == null ? "null" : cacheToken.name;
 
-    NamedCache nc = caches.get(cacheName);
-
-    if (nc == null) {
-      nc = new NamedCache();
-      nc.name = cacheName;
-      caches.put(nc.name, nc);
-    }
-    return nc;
+    return caches.computeIfAbsent(cacheName, n -> {
+      NamedCache nc = new NamedCache();
+      nc.name = n;
+      return nc;
+    });
   }
 
   public ValueSetExpansionOutcome getExpansion(CacheToken cacheToken) {
-    synchronized (lock) {
-      NamedCache nc = getNamedCache(cacheToken);
-      CacheEntry e = nc.map.get(cacheToken.key);
-      if (e == null)
-        return null;
-      else
-        return e.e;
+    NamedCache nc = getNamedCache(cacheToken);
+    CacheEntry e = nc.map.get(cacheToken.key);
+    if (e == null || expired(nc, e) || !loadEntry(nc, e)) {
+      return null;
+    } else {
+      // if it was dropped from memory since it was loaded, this is null, and it's treated as a miss
+      ValueSetExpansionOutcome res = e.e;
+      touch(e);
+      return res;
     }
   }
 
   public void cacheExpansion(CacheToken cacheToken, ValueSetExpansionOutcome res, boolean persistent) {
-    synchronized (lock) {      
-      NamedCache nc = getNamedCache(cacheToken);
-      CacheEntry e = new CacheEntry();
-      e.request = cacheToken.request;
-      e.persistent = persistent;
-      e.e = res;
-      store(cacheToken, persistent, nc, e);
-    }    
+    NamedCache nc = getNamedCache(cacheToken);
+    CacheEntry e = new CacheEntry();
+    e.request = cacheToken.request;
+    e.persistent = persistent;
+    e.e = res;
+    store(cacheToken, persistent, nc, e);
   }
 
   public void store(CacheToken cacheToken, boolean persistent, NamedCache nc, CacheEntry e) {
@@ -446,57 +538,80 @@ public class TerminologyCache {
       return;
     }
 
-    boolean n = nc.map.containsKey(cacheToken.key);
-    nc.map.put(cacheToken.key, e);
-    if (persistent) {
-      if (n) {
-        for (int i = nc.list.size()- 1; i>= 0; i--) {
-          if (nc.list.get(i).request.equals(e.request)) {
-            nc.list.remove(i);
+    e.key = cacheToken.key;
+    CacheEntry existing;
+    // the map and the cache file are updated together, so that when two threads store the same 
+    // key, the one that ends up in the map is also the last one in the file
+    synchronized (nc) {
+      existing = nc.map.put(cacheToken.key, e);
+      if (persistent) {
+        if (existing != null) {
+          for (int i = nc.list.size()- 1; i>= 0; i--) {
+            if (nc.list.get(i).key.equals(e.key)) {
+              nc.list.remove(i);
+              nc.stale++;
+            }
           }
         }
+        nc.list.add(e);
+        append(nc, e);
+        if (nc.stale > MIN_STALE_FOR_COMPACTION && nc.stale > nc.list.size()) {
+          compact(nc);
+        }
       }
-      nc.list.add(e);
-      save(nc);  
     }
+    if (existing != null) {
+      untrack(existing);
+    }
+    // outside the lock, since this can evict entries from other named caches
+    track(nc, e);
   }
 
   public ValidationResult getValidation(CacheToken cacheToken) {
     if (cacheToken.key == null) {
       return null;
     }
-    synchronized (lock) {
-      requestCount++;
-      NamedCache nc = getNamedCache(cacheToken);
-      CacheEntry e = nc.map.get(cacheToken.key);
-      if (e == null) {
-        networkCount++;
-        return null;
-      } else {
-        hitCount++;
-        return e.v;
-      }
+    requestCount.incrementAndGet();
+    NamedCache nc = getNamedCache(cacheToken);
+    CacheEntry e = nc.map.get(cacheToken.key);
+    // if it was dropped from memory since it was loaded, v is null, and it's treated as a miss
+    ValidationResult res = e == null || expired(nc, e) || !loadEntry(nc, e) ? null : e.v;
+    if (res == null) {
+      networkCount.incrementAndGet();
+    } else {
+      hitCount.incrementAndGet();
+      touch(e);
     }
+    return res;
   }
 
   public void cacheValidation(CacheToken cacheToken, ValidationResult res, boolean persistent) {
     if (cacheToken.key != null) {
-      synchronized (lock) {      
-        NamedCache nc = getNamedCache(cacheToken);
-        CacheEntry e = new CacheEntry();
-        e.request = cacheToken.request;
-        e.persistent = persistent;
-        e.v = res;
-        store(cacheToken, persistent, nc, e);
-      }    
+      NamedCache nc = getNamedCache(cacheToken);
+      CacheEntry e = new CacheEntry();
+      e.request = cacheToken.request;
+      e.persistent = persistent;
+      e.v = res;
+      store(cacheToken, persistent, nc, e);
     }
   }
 
 
   // persistence
 
+  /**
+   * rewrite any cache files that have replaced entries in them, and bring the indexes up to date
+   */
   public void save() {
-
+    for (NamedCache nc : caches.values()) {
+      synchronized (nc) {
+        if (nc.stale > 0) {
+          compact(nc);
+        } else if (!nc.indexed) {
+          saveIndex(nc);
+        }
+      }
+    }
   }
 
   private <K extends Resource> void save(K resource, String title) {
@@ -516,80 +631,145 @@ public class TerminologyCache {
     }
   }
 
-  private void save(NamedCache nc) {
+  /**
+   * Add the entry to the end of the cache file. This is all that's needed when an entry is
+   * added; when an entry is replaced, the old one stays in the file (loading the file
+   * takes the last one) until the file is compacted
+   */
+  private void append(NamedCache nc, CacheEntry ce) {
     if (folder == null)
       return;
 
     try {
-      OutputStreamWriter sw = new OutputStreamWriter(new FileOutputStream(Utilities.path(folder, nc.name+CACHE_FILE_EXTENSION)), "UTF-8");
-      sw.write(ENTRY_MARKER+"\r\n");
+      File f = cacheFile(nc);
+      long start = f.exists() ? f.length() : 0;
+      byte[] header = f.exists() ? new byte[0] : (ENTRY_MARKER+"\r\n").getBytes(StandardCharsets.UTF_8);
+      StringBuilder b = new StringBuilder();
       JsonParser json = new JsonParser();
       json.setOutputStyle(OutputStyle.PRETTY);
-      for (CacheEntry ce : nc.list) {
-        sw.write(ce.request.trim());
-        sw.write(BREAK+"\r\n");
-        if (ce.e != null) {
-          sw.write("e: {\r\n");
-          if (ce.e.isFromServer())
-            sw.write("  \"from-server\" : true,\r\n");
-          if (ce.e.getValueset() != null)
-            sw.write("  \"valueSet\" : "+json.composeString(ce.e.getValueset()).trim()+",\r\n");
-          sw.write("  \"error\" : \""+Utilities.escapeJson(ce.e.getError()).trim()+"\"\r\n}\r\n");
-        } else {
-          sw.write("v: {\r\n");
-          boolean first = true;
-          if (ce.v.getDisplay() != null) {            
-            if (first) first = false; else sw.write(",\r\n");
-            sw.write("  \"display\" : \""+Utilities.escapeJson(ce.v.getDisplay()).trim()+"\"");
-          }
-          if (ce.v.getCode() != null) {
-            if (first) first = false; else sw.write(",\r\n");
-            sw.write("  \"code\" : \""+Utilities.escapeJson(ce.v.getCode()).trim()+"\"");
-          }
-          if (ce.v.getSystem() != null) {
-            if (first) first = false; else sw.write(",\r\n");
-            sw.write("  \"system\" : \""+Utilities.escapeJson(ce.v.getSystem()).trim()+"\"");
-          }
-          if (ce.v.getVersion() != null) {
-            if (first) first = false; else sw.write(",\r\n");
-            sw.write("  \"version\" : \""+Utilities.escapeJson(ce.v.getVersion()).trim()+"\"");
-          }
-          if (ce.v.getSeverity() != null) {
-            if (first) first = false; else sw.write(",\r\n");
-            sw.write("  \"severity\" : "+"\""+ce.v.getSeverity().toCode().trim()+"\""+"");
-          }
-          if (ce.v.getMessage() != null) {
-            if (first) first = false; else sw.write(",\r\n");
-            sw.write("  \"error\" : \""+Utilities.escapeJson(ce.v.getMessage()).trim()+"\"");
-          }
-          if (ce.v.getErrorClass() != null) {
-            if (first) first = false; else sw.write(",\r\n");
-            sw.write("  \"class\" : \""+Utilities.escapeJson(ce.v.getErrorClass().toString())+"\"");
-          }
-          if (ce.v.getDefinition() != null) {
-            if (first) first = false; else sw.write(",\r\n");
-            sw.write("  \"definition\" : \""+Utilities.escapeJson(ce.v.getDefinition()).trim()+"\"");
-          }
-          if (ce.v.getUnknownSystems() != null) {
-            if (first) first = false; else sw.write(",\r\n");
-            sw.write("  \"unknown-systems\" : \""+Utilities.escapeJson(CommaSeparatedStringBuilder.join(",", ce.v.getUnknownSystems())).trim()+"\"");
-          }
-          if (ce.v.getIssues() != null) {
-            if (first) first = false; else sw.write(",\r\n");
-            OperationOutcome oo = new OperationOutcome();
-            oo.setIssue(ce.v.getIssues());
-            sw.write("  \"issues\" : "+json.composeString(oo).trim()+"\r\n");
+      writeEntry(b, json, ce);
+      byte[] entry = b.toString().getBytes(StandardCharsets.UTF_8);
+      // one write, so that a crash leaves at most one partial entry at the end (see loadNamedCache)
+      try (FileOutputStream fs = new FileOutputStream(f, true)) {
+        fs.write(concat(header, entry, (ENTRY_MARKER+"\r\n").getBytes(StandardCharsets.UTF_8)));
+      }
+      ce.offset = start + header.length;
+      ce.length = entry.length;
+      // the index still covers the start of the file; the rest is scanned when the file is loaded 
+      nc.indexed = false;
+    } catch (Exception e) {
+      System.out.println("error saving "+nc.name+": "+e.getMessage());
+    }
+  }
+
+  /**
+   * Rewrite the cache file with just the current entries. The file is written alongside and then 
+   * renamed, so that there's always a complete cache file. Entries that haven't been read from the
+   * file are copied across as they are
+   */
+  private void compact(NamedCache nc) {
+    if (folder == null)
+      return;
+
+    try {
+      File f = cacheFile(nc);
+      File tmp = new File(Utilities.path(folder, nc.name+CACHE_FILE_EXTENSION+".tmp"));
+      ByteArrayOutputStream b = new ByteArrayOutputStream();
+      byte[] marker = (ENTRY_MARKER+"\r\n").getBytes(StandardCharsets.UTF_8);
+      b.write(marker);
+      JsonParser json = new JsonParser();
+      json.setOutputStyle(OutputStyle.PRETTY);
+      long[] offsets = new long[nc.list.size()];
+      int[] lengths = new int[nc.list.size()];
+      try (RandomAccessFile raf = f.exists() ? new RandomAccessFile(f, "r") : null) {
+        for (int i = 0; i < nc.list.size(); i++) {
+          CacheEntry ce = nc.list.get(i);
+          byte[] entry;
+          if (ce.loaded) {
+            StringBuilder sb = new StringBuilder();
+            writeEntry(sb, json, ce);
+            entry = sb.toString().getBytes(StandardCharsets.UTF_8);
+          } else {
+            entry = readEntry(raf, ce);
           }
-          sw.write("\r\n}\r\n");
+          offsets[i] = b.size();
+          lengths[i] = entry.length;
+          b.write(entry);
+          b.write(marker);
         }
-        sw.write(ENTRY_MARKER+"\r\n");
-      }      
-      sw.close();
+      }
+      TextFile.bytesToFile(b.toByteArray(), tmp);
+      replaceFile(tmp, f);
+      for (int i = 0; i < nc.list.size(); i++) {
+        nc.list.get(i).offset = offsets[i];
+        nc.list.get(i).length = lengths[i];
+      }
+      nc.stale = 0;
+      saveIndex(nc);
     } catch (Exception e) {
       System.out.println("error saving "+nc.name+": "+e.getMessage());
     }
   }
 
+  private void writeEntry(StringBuilder sw, JsonParser json, CacheEntry ce) throws IOException {
+    sw.append(ce.request.trim());
+    sw.append(BREAK+"\r\n");
+    if (ce.e != null) {
+      sw.append("e: {\r\n");
+      if (ce.e.isFromServer())
+        sw.append("  \"from-server\" : true,\r\n");
+      if (ce.e.getValueset() != null)
+        sw.append("  \"valueSet\" : "+json.composeString(ce.e.getValueset()).trim()+",\r\n");
+      sw.append("  \"error\" : \""+Utilities.escapeJson(ce.e.getError()).trim()+"\"\r\n}\r\n");
+    } else {
+      sw.append("v: {\r\n");
+      boolean first = true;
+      if (ce.v.getDisplay() != null) {            
+        if (first) first = false; else sw.append(",\r\n");
+        sw.append("  \"display\" : \""+Utilities.escapeJson(ce.v.getDisplay()).trim()+"\"");
+      }
+      if (ce.v.getCode() != null) {
+        if (first) first = false; else sw.append(",\r\n");
+        sw.append("  \"code\" : \""+Utilities.escapeJson(ce.v.getCode()).trim()+"\"");
+      }
+      if (ce.v.getSystem() != null) {
+        if (first) first = false; else sw.append(",\r\n");
+        sw.append("  \"system\" : \""+Utilities.escapeJson(ce.v.getSystem()).trim()+"\"");
+      }
+      if (ce.v.getVersion() != null) {
+        if (first) first = false; else sw.append(",\r\n");
+        sw.append("  \"version\" : \""+Utilities.escapeJson(ce.v.getVersion()).trim()+"\"");
+      }
+      if (ce.v.getSeverity() != null) {
+        if (first) first = false; else sw.append(",\r\n");
+        sw.append("  \"severity\" : "+"\""+ce.v.getSeverity().toCode().trim()+"\""+"");
+      }
+      if (ce.v.getMessage() != null) {
+        if (first) first = false; else sw.append(",\r\n");
+        sw.append("  \"error\" : \""+Utilities.escapeJson(ce.v.getMessage()).trim()+"\"");
+      }
+      if (ce.v.getErrorClass() != null) {
+        if (first) first = false; else sw.append(",\r\n");
+        sw.append("  \"class\" : \""+Utilities.escapeJson(ce.v.getErrorClass().toString())+"\"");
+      }
+      if (ce.v.getDefinition() != null) {
+        if (first) first = false; else sw.append(",\r\n");
+        sw.append("  \"definition\" : \""+Utilities.escapeJson(ce.v.getDefinition()).trim()+"\"");
+      }
+      if (ce.v.getUnknownSystems() != null) {
+        if (first) first = false; else sw.append(",\r\n");
+        sw.append("  \"unknown-systems\" : \""+Utilities.escapeJson(CommaSeparatedStringBuilder.join(",", ce.v.getUnknownSystems())).trim()+"\"");
+      }
+      if (ce.v.getIssues() != null) {
+        if (first) first = false; else sw.append(",\r\n");
+        OperationOutcome oo = new OperationOutcome();
+        oo.setIssue(ce.v.getIssues());
+        sw.append("  \"issues\" : "+json.composeString(oo).trim()+"\r\n");
+      }
+      sw.append("\r\n}\r\n");
+    }
+  }
+
   private boolean isCapabilityCache(String fn) {
     if (fn == null) {
       return false;
@@ -649,41 +829,390 @@ public class TerminologyCache {
     return ce;
   }
 
+  /**
+   * The entries in the cache file are indexed, but not read until they're used. When the cache 
+   * is changed, the index is saved alongside the cache file, so that next time, only the part of 
+   * the file after what the index covers (entries that have been added since) needs to be scanned.
+   * Loading a cache doesn't write an index, so that caches that are only read (e.g. the ones in 
+   * the test resources) are left as they are
+   */
   private void loadNamedCache(String fn) {
     int c = 0;
     try {
-      String src = TextFile.fileToString(Utilities.path(folder, fn));
       String title = fn.substring(0, fn.lastIndexOf("."));
 
       NamedCache nc = new NamedCache();
       nc.name = title;
-
-      if (src.startsWith("?"))
-        src = src.substring(1);
-      int i = src.indexOf(ENTRY_MARKER);
-      while (i > -1) {
-        c++;
-        String s = src.substring(0, i);
-        src = src.substring(i + ENTRY_MARKER.length() + 1);
-        i = src.indexOf(ENTRY_MARKER);
-        if (!Utilities.noString(s)) {
-          int j = s.indexOf(BREAK);
-          String request = s.substring(0, j);
-          String p = s.substring(j + BREAK.length() + 1).trim();
-
-          CacheEntry cacheEntry = getCacheEntry(request, p);
-
-          nc.map.put(String.valueOf(hashJson(cacheEntry.request)), cacheEntry);
-          nc.list.add(cacheEntry);
+      caches.put(nc.name, nc);
+      File f = cacheFile(nc);
+
+      long start = loadIndex(nc, f);
+      long pos = start;
+      long chunkStart = pos;
+      ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+      FileInputStream fs = new FileInputStream(f);
+      fs.getChannel().position(start);
+      try (InputStream stream = new BufferedInputStream(fs)) {
+        byte[] line;
+        while ((line = readLine(stream)) != null) {
+          if (isEntryMarker(line)) {
+            c++;
+            if (!isBlank(chunk.toByteArray())) {
+              addEntry(nc, chunk.toByteArray(), chunkStart, fn, c);
+            }
+            chunk.reset();
+            pos += line.length;
+            chunkStart = pos;
+          } else {
+            chunk.write(line);
+            pos += line.length;
+          }
         }
-        caches.put(nc.name, nc);
-      }        
+      }
+      if (!isBlank(chunk.toByteArray())) {
+        // an entry that was only partly written (the process stopped while it was being added). 
+        // It has to go before anything else is appended to the file
+        System.out.println("Incomplete last entry in "+fn+" - dropping it");
+        compact(nc);
+      } else {
+        nc.indexed = true;
+      }
     } catch (Exception e) {
       System.out.println("Error loading "+fn+": "+e.getMessage()+" entry "+c+" - ignoring it");
       e.printStackTrace();
     }
   }
 
+  private void addEntry(NamedCache nc, byte[] chunk, long offset, String fn, int c) {
+    String s = new String(chunk, StandardCharsets.UTF_8);
+    int j = s.indexOf(BREAK);
+    if (j == -1) {
+      System.out.println("Error loading "+fn+": no request in entry "+c+" - ignoring it");
+      nc.stale++;
+    } else {
+      CacheEntry ce = new CacheEntry();
+      ce.key = hashJson(s.substring(0, j));
+      ce.persistent = true;
+      ce.offset = offset;
+      ce.length = chunk.length;
+      ce.loaded = false;
+      addEntry(nc, ce);
+    }
+  }
+
+  private void addEntry(NamedCache nc, CacheEntry ce) {
+    // entries are appended when they're replaced, so the last one wins 
+    CacheEntry existing = nc.map.put(ce.key, ce);
+    if (existing != null) {
+      nc.list.remove(existing);
+      nc.stale++;
+    }
+    nc.list.add(ce);
+  }
+
+  /**
+   * read an entry that was indexed when the cache was loaded
+   * 
+   * @return false if it can't be read (in which case it's dropped)
+   */
+  private boolean loadEntry(NamedCache nc, CacheEntry ce) {
+    if (ce.loaded) {
+      return true;
+    }
+    synchronized (nc) {
+      if (ce.loaded) { // another thread got here first
+        return true;
+      }
+      try {
+        String s;
+        try (RandomAccessFile raf = new RandomAccessFile(cacheFile(nc), "r")) {
+          s = new String(readEntry(raf, ce), StandardCharsets.UTF_8);
+        }
+        int j = s.indexOf(BREAK);
+        String request = s.substring(0, j);
+        String p = s.substring(j + BREAK.length() + 1).trim();
+        CacheEntry t = getCacheEntry(request, p);
+        ce.request = t.request;
+        ce.v = t.v;
+        ce.e = t.e;
+        ce.loaded = true;
+        reloadCount.incrementAndGet();
+      } catch (Exception e) {
+        System.out.println("Error loading an entry from "+nc.name+": "+e.getMessage()+" - ignoring it");
+        nc.map.remove(ce.key, ce);
+        nc.list.remove(ce);
+        nc.stale++;
+        return false;
+      }
+    }
+    track(nc, ce);
+    return true;
+  }
+
+  // memory management 
+
+  private boolean expired(NamedCache nc, CacheEntry ce) {
+    if (ce.persistent || transientTimeToLive <= 0 || System.currentTimeMillis() - ce.created <= transientTimeToLive) {
+      return false;
+    }
+    if (nc.map.remove(ce.key, ce)) {
+      untrack(ce);
+      expiredCount.incrementAndGet();
+    }
+    return true;
+  }
+
+  /**
+   * note that the entry is in memory, and drop other entries if that takes the cache over budget. 
+   * Callers mustn't hold a named cache lock, since evicting entries takes their named cache's lock
+   */
+  private void track(NamedCache nc, CacheEntry ce) {
+    int weight = 1;
+    ValueSetExpansionOutcome exp = ce.e;
+    if (exp != null && exp.getValueset() != null) {
+      weight += countCodes(exp.getValueset().getExpansion().getContains());
+    }
+    List<Map.Entry<CacheEntry, NamedCache>> victims;
+    synchronized (memoryLock) {
+      if (inMemory.put(ce, nc) == null) {
+        ce.weight = weight;
+        memoryWeight += ce.weight;
+      }
+      victims = overBudget(ce);
+    }
+    evict(victims);
+  }
+
+  // the order only matters when there's a budget, so reads don't touch memoryLock otherwise 
+  private void touch(CacheEntry ce) {
+    if (memoryBudget > 0) {
+      synchronized (memoryLock) {
+        inMemory.get(ce);
+      }
+    }
+  }
+
+  private int countCodes(List<ValueSetExpansionContainsComponent> list) {
+    int c = list.size();
+    for (ValueSetExpansionContainsComponent cc : list) {
+      c += countCodes(cc.getContains());
+    }
+    return c;
+  }
+
+  private void untrack(CacheEntry ce) {
+    synchronized (memoryLock) {
+      if (inMemory.remove(ce) != null) {
+        memoryWeight -= ce.weight;
+      }
+    }
+  }
+
+  /**
+   * take the least recently used entries out of the memory list until the cache is within the budget. 
+   * The entry that is being used (keep) stays, even if it's bigger than the budget on its own.
+   * Must be called holding memoryLock; the entries are dropped by evict(), after it's released
+   */
+  private List<Map.Entry<CacheEntry, NamedCache>> overBudget(CacheEntry keep) {
+    List<Map.Entry<CacheEntry, NamedCache>> victims = new ArrayList<>();
+    if (memoryBudget <= 0) {
+      return victims;
+    }
+    Iterator<Map.Entry<CacheEntry, NamedCache>> it = inMemory.entrySet().iterator();
+    while (memoryWeight > memoryBudget && it.hasNext()) {
+      Map.Entry<CacheEntry, NamedCache> t = it.next();
+      CacheEntry ce = t.getKey();
+      if (ce == keep) {
+        continue;
+      }
+      victims.add(new AbstractMap.SimpleEntry<>(ce, t.getValue()));
+      it.remove();
+      memoryWeight -= ce.weight;
+    }
+    return victims;
+  }
+
+  private void evict(List<Map.Entry<CacheEntry, NamedCache>> victims) {
+    for (Map.Entry<CacheEntry, NamedCache> t : victims) {
+      CacheEntry ce = t.getKey();
+      NamedCache nc = t.getValue();
+      evictionCount.incrementAndGet();
+      synchronized (nc) {
+        if (ce.persistent && ce.offset >= 0) {
+          // it's in the cache file - read it again when it's next used (see loadEntry)
+          ce.loaded = false;
+          ce.request = null;
+          ce.v = null;
+          ce.e = null;
+        } else {
+          nc.map.remove(ce.key, ce);
+          nc.list.remove(ce);
+        }
+      }
+    }
+  }
+
+  private byte[] readEntry(RandomAccessFile raf, CacheEntry ce) throws IOException {
+    byte[] b = new byte[ce.length];
+    raf.seek(ce.offset);
+    raf.readFully(b);
+    return b;
+  }
+
+  /**
+   * The index is binary: a header (magic number, version, the length of the cache file that it
+   * covers, and a checksum of the end of that part of the file), then for each entry: the key
+   * (16 bytes), and where the entry is in the cache file (offset: 8 bytes, length: 4 bytes). 
+   * 
+   * The index is read in one go, rather than memory mapped, since a mapped file can't be
+   * replaced on some platforms until it's been garbage collected
+   * 
+   * @return how much of the cache file the index covers (0 if there's no usable index)
+   */
+  private long loadIndex(NamedCache nc, File f) {
+    File idx = indexFile(nc);
+    if (!idx.exists()) {
+      return 0;
+    }
+    try {
+      ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(idx.toPath()));
+      if (buf.getInt() != INDEX_MAGIC || buf.getInt() != INDEX_VERSION) {
+        return 0;
+      }
+      long covered = buf.getLong();
+      long check = buf.getLong();
+      if (covered > f.length() || check != tailChecksum(f, covered)) {
+        return 0;
+      }
+      int count = buf.getInt();
+      List<CacheEntry> entries = new ArrayList<>(count);
+      byte[] key = new byte[KEY_LENGTH];
+      for (int i = 0; i < count; i++) {
+        CacheEntry ce = new CacheEntry();
+        buf.get(key);
+        ce.key = toHex(key);
+        ce.offset = buf.getLong();
+        ce.length = buf.getInt();
+        ce.persistent = true;
+        ce.loaded = false;
+        entries.add(ce);
+      }
+      for (CacheEntry ce : entries) {
+        addEntry(nc, ce);
+      }
+      return covered;
+    } catch (Exception e) {
+      // the cache file will be scanned instead
+      return 0;
+    }
+  }
+
+  private void saveIndex(NamedCache nc) {
+    try {
+      File f = cacheFile(nc);
+      if (!f.exists()) {
+        return;
+      }
+      List<CacheEntry> entries = new ArrayList<>();
+      for (CacheEntry ce : nc.list) {
+        if (ce.offset >= 0) {
+          entries.add(ce);
+        }
+      }
+      ByteBuffer buf = ByteBuffer.allocate(4 + 4 + 8 + 8 + 4 + entries.size() * (KEY_LENGTH + 8 + 4));
+      buf.putInt(INDEX_MAGIC);
+      buf.putInt(INDEX_VERSION);
+      buf.putLong(f.length());
+      buf.putLong(tailChecksum(f, f.length()));
+      buf.putInt(entries.size());
+      for (CacheEntry ce : entries) {
+        buf.put(fromHex(ce.key));
+        buf.putLong(ce.offset);
+        buf.putInt(ce.length);
+      }
+      File tmp = new File(indexFile(nc).getAbsolutePath()+".tmp");
+      TextFile.bytesToFile(buf.array(), tmp);
+      replaceFile(tmp, indexFile(nc));
+      nc.indexed = true;
+    } catch (Exception e) {
+      // not a problem - the cache file will be scanned next time 
+      System.out.println("error saving the index for "+nc.name+": "+e.getMessage());
+    }
+  }
+
+  /**
+   * a checksum of the end of the part of the cache file that an index covers, to check that the file
+   * is the one that was indexed (the index stays valid when entries are appended to the file)
+   */
+  private long tailChecksum(File f, long length) throws IOException {
+    int n = (int) Math.min(length, 4096);
+    byte[] b = new byte[n];
+    try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+      raf.seek(length - n);
+      raf.readFully(b);
+    }
+    CRC32 crc = new CRC32();
+    crc.update(b);
+    return crc.getValue();
+  }
+
+  private byte[] readLine(InputStream stream) throws IOException {
+    ByteArrayOutputStream b = new ByteArrayOutputStream();
+    int c = stream.read();
+    if (c == -1) {
+      return null;
+    }
+    while (c != -1) {
+      b.write(c);
+      if (c == '\n') {
+        break;
+      }
+      c = stream.read();
+    }
+    return b.toByteArray();
+  }
+
+  private boolean isEntryMarker(byte[] line) {
+    String s = new String(line, StandardCharsets.UTF_8).trim();
+    if (s.startsWith("\uFEFF") || s.startsWith("?")) {
+      s = s.substring(1);
+    }
+    return s.equals(ENTRY_MARKER);
+  }
+
+  private boolean isBlank(byte[] chunk) {
+    for (byte b : chunk) {
+      if (!Character.isWhitespace(b)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private File cacheFile(NamedCache nc) throws IOException {
+    return new File(Utilities.path(folder, nc.name+CACHE_FILE_EXTENSION));
+  }
+
+  private File indexFile(NamedCache nc) throws IOException {
+    return new File(Utilities.path(folder, nc.name+INDEX_FILE_EXTENSION));
+  }
+
+  private void replaceFile(File src, File dst) throws IOException {
+    try {
+      Files.move(src.toPath(), dst.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(src.toPath(), dst.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  private byte[] concat(byte[]... parts) {
+    ByteArrayOutputStream b = new ByteArrayOutputStream();
+    for (byte[] p : parts) {
+      b.write(p, 0, p.length);
+    }
+    return b.toByteArray();
+  }
+
   private void load() throws FHIRException {
     for (String fn : new File(folder).list()) {
       if (fn.endsWith(CACHE_FILE_EXTENSION) && !fn.equals("validation" + CACHE_FILE_EXTENSION)) {
@@ -711,8 +1240,33 @@ public class TerminologyCache {
     return s;
   }
 
+  /**
+   * @return the key for a request: the first 128 bits of the SHA-256 digest of it (as hex)
+   */
   public String hashJson(String s) {
-    return String.valueOf(s.trim().hashCode());
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(s.trim().getBytes(StandardCharsets.UTF_8));
+      return toHex(Arrays.copyOf(digest, KEY_LENGTH));
+    } catch (NoSuchAlgorithmException e) {
+      throw new FHIRException(e);
+    }
+  }
+
+  private String toHex(byte[] bytes) {
+    StringBuilder b = new StringBuilder();
+    for (byte v : bytes) {
+      b.append(Character.forDigit((v >> 4) & 0xF, 16));
+      b.append(Character.forDigit(v & 0xF, 16));
+    }
+    return b.toString();
+  }
+
+  private byte[] fromHex(String s) {
+    byte[] b = new byte[s.length() / 2];
+    for (int i = 0; i < b.length; i++) {
+      b[i] = (byte) Integer.parseInt(s.substring(i * 2, i * 2 + 2), 16);
+    }
+    return b;
   }
 
   // management
@@ -768,12 +1322,13 @@ public class TerminologyCache {
   }
 
   public void removeCS(String url) {
-    synchronized (lock) {
-      String name = getSystemNameKeyGenerator().getNameForSystem(url);
-      if (caches.containsKey(name)) {
-        caches.remove(name);
+    String name = getSystemNameKeyGenerator().getNameForSystem(url);
+    NamedCache nc = caches.remove(name);
+    if (nc != null) {
+      for (CacheEntry ce : nc.map.values()) {
+        untrack(ce);
       }
-    }   
+    }
   }
 
   public String getFolder() {
@@ -327,7 +327,7 @@ public class ValueSetValidator extends ValueSetProcessBase {
   private String lookupDisplay(Coding c) {
     CodeSystem cs = resolveCodeSystem(c.getSystem(), c.getVersion());
     if (cs != null) {
-      ConceptDefinitionComponent cd = CodeSystemUtilities.findCodeOrAltCode(cs.getConcept(), c.getCode(), null);
+      ConceptDefinitionComponent cd = CodeSystemUtilities.findCodeOrAltCode(cs, c.getCode(), null);
       if (cd != null) {
         return getPreferredDisplay(cd, cs); 
       }
@@ -686,7 +686,7 @@ public class ValueSetValidator extends ValueSetProcessBase {
   }
 
   private ValidationResult validateCode(String path, Coding code, CodeSystem cs, CodeableConcept vcc, ValidationProcessInfo info) {
-    ConceptDefinitionComponent cc = cs.hasUserData("tx.cs.special") ? ((SpecialCodeSystem) cs.getUserData("tx.cs.special")).findConcept(code) : findCodeInConcept(cs.getConcept(), code.getCode(), allAltCodes);
+    ConceptDefinitionComponent cc = cs.hasUserData("tx.cs.special") ? ((SpecialCodeSystem) cs.getUserData("tx.cs.special")).findConcept(code) : findCodeInCodeSystem(cs, code.getCode(), allAltCodes);
     if (cc == null) {
       cc = findSpecialConcept(code, cs);
     }
@@ -880,44 +880,11 @@ public class ValueSetValidator extends ValueSetProcessBase {
     return true;
   }
 
-  private ConceptDefinitionComponent findCodeInConcept(ConceptDefinitionComponent concept, String code, AlternateCodesProcessingRules altCodeRules) {
+  private ConceptDefinitionComponent findCodeInCodeSystem(CodeSystem cs, String code, AlternateCodesProcessingRules altCodeRules) {
     opContext.deadCheck();
-    if (code.equals(concept.getCode())) {
-      return concept;
-    }
-    ConceptDefinitionComponent cc = findCodeInConcept(concept.getConcept(), code, altCodeRules);
-    if (cc != null) {
-      return cc;
-    }
-    if (concept.hasUserData(CodeSystemUtilities.USER_DATA_CROSS_LINK)) {
-      List<ConceptDefinitionComponent> children = (List<ConceptDefinitionComponent>) concept.getUserData(CodeSystemUtilities.USER_DATA_CROSS_LINK);
-      for (ConceptDefinitionComponent c : children) {
-        cc = findCodeInConcept(c, code, altCodeRules);
-        if (cc != null) {
-          return cc;
-        }
-      }
-    }
-    return null;
-  }
-  
-  private ConceptDefinitionComponent findCodeInConcept(List<ConceptDefinitionComponent> concept, String code, AlternateCodesProcessingRules altCodeRules) {
-    for (ConceptDefinitionComponent cc : concept) {
-      if (code.equals(cc.getCode())) {
-        return cc;
-      }
-      if (Utilities.existsInList(code, alternateCodes(cc, altCodeRules))) {
-        return cc;
-      }
-      ConceptDefinitionComponent c = findCodeInConcept(cc, code, altCodeRules);
-      if (c != null) {
-        return c;
-      }
-    }
-    return null;
+    return CodeSystemUtilities.getIndex(cs).findCodeOrAltCode(code, p -> altCodeRules.passes(p.getExtension()));
   }
 
-
   private List<String> alternateCodes(ConceptDefinitionComponent focus, AlternateCodesProcessingRules altCodeRules) {
     List<String> codes = new ArrayList<>();
     for (ConceptPropertyComponent p : focus.getProperty()) {
@@ -988,7 +955,7 @@ public class ValueSetValidator extends ValueSetProcessBase {
                   }
                 }
               } else {
-                ConceptDefinitionComponent cc = findCodeInConcept(cs.getConcept(), code, allAltCodes);
+                ConceptDefinitionComponent cc = findCodeInCodeSystem(cs, code, allAltCodes);
                 if (cc != null) {
                   sys.add(vsi.getSystem());
                 }
@@ -1256,12 +1223,12 @@ public class ValueSetValidator extends ValueSetProcessBase {
     if (!excludeRoot && code.equals(f.getValue())) {
       return true;
     }
-    ConceptDefinitionComponent cc = findCodeInConcept(cs.getConcept(), f.getValue(), altCodeParams);
+    ConceptDefinitionComponent cc = findCodeInCodeSystem(cs, f.getValue(), altCodeParams);
     if (cc == null) {
       return false;
     }
-    ConceptDefinitionComponent cc2 = findCodeInConcept(cc, code, altCodeParams);
-    return cc2 != null && cc2 != cc;
+    ConceptDefinitionComponent cc2 = findCodeInCodeSystem(cs, code, altCodeParams);
+    return cc2 != null && cc2 != cc && CodeSystemUtilities.getIndex(cs).isDescendant(cc2, cc);
   }
 
   public boolean validateCodeInConceptList(String code, CodeSystem def, List<ConceptDefinitionComponent> list, AlternateCodesProcessingRules altCodeRules) {
@@ -1269,6 +1236,9 @@ public class ValueSetValidator extends ValueSetProcessBase {
     if (def.hasUserData("tx.cs.special")) {
       return ((SpecialCodeSystem) def.getUserData("tx.cs.special")).findConcept(new Coding().setCode(code)) != null; 
     } else if (def.getCaseSensitive()) {
+      if (list == def.getConcept()) {
+        return findCodeInCodeSystem(def, code, altCodeRules) != null;
+      }
       for (ConceptDefinitionComponent cc : list) {
         if (cc.getCode().equals(code)) { 
           return true;
@@ -1,20 +1,34 @@
 package org.hl7.fhir.r5.utils;
 
+import java.lang.ref.WeakReference;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.EnumMap;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.apache.commons.lang3.StringUtils;
 import org.fhir.ucum.Decimal;
@@ -22,6 +36,8 @@ import org.fhir.ucum.Pair;
 import org.fhir.ucum.UcumException;
 import org.hl7.fhir.exceptions.DefinitionException;
 import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.exceptions.PathEngineBudgetException;
+import org.hl7.fhir.exceptions.PathEngineBudgetException.BudgetKind;
 import org.hl7.fhir.exceptions.PathEngineException;
 import org.hl7.fhir.instance.model.api.IIdType;
 import org.hl7.fhir.r5.conformance.profile.ProfileUtilities;
@@ -34,6 +50,7 @@ import org.hl7.fhir.r5.model.BooleanType;
 import org.hl7.fhir.r5.model.CanonicalType;
 import org.hl7.fhir.r5.model.CodeType;
 import org.hl7.fhir.r5.model.CodeableConcept;
+import org.hl7.fhir.r5.model.Coding;
 import org.hl7.fhir.r5.model.Constants;
 import org.hl7.fhir.r5.model.DateTimeType;
 import org.hl7.fhir.r5.model.DateType;
@@ -146,21 +163,37 @@ public class FHIRPathEngine {
   
   private IWorkerContext worker;
   private IEvaluationContext hostServices;
-  private StringBuilder log = new StringBuilder();
+  private ThreadLocal<StringBuilder> log = ThreadLocal.withInitial(StringBuilder::new); // the log of the last evaluation on this thread
   private Set<String> primitiveTypes = new HashSet<String>();
   private Map<String, StructureDefinition> allTypes = new HashMap<String, StructureDefinition>();
   private boolean legacyMode; // some R2 and R3 constraints assume that != is valid for emptty sets, so when running for R2/R3, this is set ot true  
   private ValidationOptions terminologyServiceOptions = new ValidationOptions(FhirPublication.R5);
   private ProfileUtilities profileUtilities;
-  private String location; // for error messages
+  private ThreadLocal<String> location = new ThreadLocal<>(); // for error messages
   private boolean allowPolymorphicNames;
   private boolean doImplicitStringConversion;
   private boolean liquidMode; // in liquid mode, || terminates the expression and hands the parser back to the host
   private boolean doNotEnforceAsSingletonRule;
   private boolean doNotEnforceAsCaseSensitive;
   private boolean allowDoubleQuotes;
-  private List<IssueMessage> typeWarnings = new ArrayList<>();
+  private ThreadLocal<List<IssueMessage>> typeWarnings = ThreadLocal.withInitial(ArrayList::new);
   private boolean emitSQLonFHIRWarning;
+  private FHIRPathExpressionCache expressionCache = new FHIRPathExpressionCache(FHIRPathExpressionCache.DEFAULT_MAX_SIZE);
+  private Map<Function, FunctionHandler> functions = new EnumMap<>(Function.class);
+  private boolean lazyEvaluation;
+  private FHIRPathProfiler profiler;
+  private boolean memoiseLookups;
+  private ThreadLocal<EvaluationMemo> memos = new ThreadLocal<>();
+  private int maxNodes;
+  private int maxCollectionSize;
+  private long maxTime;
+  private boolean budgeted;
+  private final Map<BudgetKind, AtomicLong> budgetExceeded = new EnumMap<>(BudgetKind.class);
+  private final LookupStatistics lookupStatistics = new LookupStatistics();
+
+  private interface FunctionHandler {
+    List<Base> execute(ExecutionContext context, List<Base> focus, ExpressionNode exp) throws FHIRException;
+  }
 
   // if the fhir path expressions are allowed to use constants beyond those defined in the specification
   // the application can implement them by providing a constant resolver 
@@ -257,9 +290,118 @@ public class FHIRPathEngine {
       }
     }
     initFlags();
+    registerFunctions();
+    for (BudgetKind kind : BudgetKind.values()) {
+      budgetExceeded.put(kind, new AtomicLong());
+    }
     cu = new ContextUtilities(worker);
   }
 
+  /**
+   * the function table is resolved once, so that both the interpreter and compiled expressions 
+   * dispatch directly to the implementation
+   */
+  private void registerFunctions() {
+    functions.put(Function.Empty, this::funcEmpty);
+    functions.put(Function.Not, this::funcNot);
+    functions.put(Function.Exists, this::funcExists);
+    functions.put(Function.SubsetOf, this::funcSubsetOf);
+    functions.put(Function.SupersetOf, this::funcSupersetOf);
+    functions.put(Function.IsDistinct, this::funcIsDistinct);
+    functions.put(Function.Distinct, this::funcDistinct);
+    functions.put(Function.Count, this::funcCount);
+    functions.put(Function.Where, this::funcWhere);
+    functions.put(Function.Select, this::funcSelect);
+    functions.put(Function.All, this::funcAll);
+    functions.put(Function.Repeat, this::funcRepeat);
+    functions.put(Function.Aggregate, this::funcAggregate);
+    functions.put(Function.Item, this::funcItem);
+    functions.put(Function.As, this::funcAs);
+    functions.put(Function.OfType, this::funcOfType);
+    functions.put(Function.Type, this::funcType);
+    functions.put(Function.Is, this::funcIs);
+    functions.put(Function.Single, this::funcSingle);
+    functions.put(Function.First, this::funcFirst);
+    functions.put(Function.Last, this::funcLast);
+    functions.put(Function.Tail, this::funcTail);
+    functions.put(Function.Skip, this::funcSkip);
+    functions.put(Function.Take, this::funcTake);
+    functions.put(Function.Union, this::funcUnion);
+    functions.put(Function.Combine, this::funcCombine);
+    functions.put(Function.Intersect, this::funcIntersect);
+    functions.put(Function.Exclude, this::funcExclude);
+    functions.put(Function.Iif, this::funcIif);
+    functions.put(Function.Lower, this::funcLower);
+    functions.put(Function.Upper, this::funcUpper);
+    functions.put(Function.ToChars, this::funcToChars);
+    functions.put(Function.IndexOf, this::funcIndexOf);
+    functions.put(Function.Substring, this::funcSubstring);
+    functions.put(Function.StartsWith, this::funcStartsWith);
+    functions.put(Function.EndsWith, this::funcEndsWith);
+    functions.put(Function.Matches, this::funcMatches);
+    functions.put(Function.MatchesFull, this::funcMatchesFull);
+    functions.put(Function.ReplaceMatches, this::funcReplaceMatches);
+    functions.put(Function.Contains, this::funcContains);
+    functions.put(Function.Replace, this::funcReplace);
+    functions.put(Function.Length, this::funcLength);
+    functions.put(Function.Children, this::funcChildren);
+    functions.put(Function.Descendants, this::funcDescendants);
+    functions.put(Function.MemberOf, this::funcMemberOf);
+    functions.put(Function.Trace, this::funcTrace);
+    functions.put(Function.Check, this::funcCheck);
+    functions.put(Function.Today, this::funcToday);
+    functions.put(Function.Now, this::funcNow);
+    functions.put(Function.Resolve, this::funcResolve);
+    functions.put(Function.Extension, this::funcExtension);
+    functions.put(Function.AnyFalse, this::funcAnyFalse);
+    functions.put(Function.AllFalse, this::funcAllFalse);
+    functions.put(Function.AnyTrue, this::funcAnyTrue);
+    functions.put(Function.AllTrue, this::funcAllTrue);
+    functions.put(Function.HasValue, this::funcHasValue);
+    functions.put(Function.AliasAs, this::funcAliasAs);
+    functions.put(Function.Encode, this::funcEncode);
+    functions.put(Function.Decode, this::funcDecode);
+    functions.put(Function.Escape, this::funcEscape);
+    functions.put(Function.Unescape, this::funcUnescape);
+    functions.put(Function.Trim, this::funcTrim);
+    functions.put(Function.Split, this::funcSplit);
+    functions.put(Function.Join, this::funcJoin);
+    functions.put(Function.Alias, this::funcAlias);
+    functions.put(Function.HtmlChecks1, this::funcHtmlChecks1);
+    functions.put(Function.HtmlChecks2, this::funcHtmlChecks2);
+    functions.put(Function.Comparable, this::funcComparable);
+    functions.put(Function.ToInteger, this::funcToInteger);
+    functions.put(Function.ToDecimal, this::funcToDecimal);
+    functions.put(Function.ToString, this::funcToString);
+    functions.put(Function.ToBoolean, this::funcToBoolean);
+    functions.put(Function.ToQuantity, this::funcToQuantity);
+    functions.put(Function.ToDateTime, this::funcToDateTime);
+    functions.put(Function.ToTime, this::funcToTime);
+    functions.put(Function.ConvertsToInteger, this::funcIsInteger);
+    functions.put(Function.ConvertsToDecimal, this::funcIsDecimal);
+    functions.put(Function.ConvertsToString, this::funcIsString);
+    functions.put(Function.ConvertsToBoolean, this::funcIsBoolean);
+    functions.put(Function.ConvertsToQuantity, this::funcIsQuantity);
+    functions.put(Function.ConvertsToDateTime, this::funcIsDateTime);
+    functions.put(Function.ConvertsToDate, this::funcIsDate);
+    functions.put(Function.ConvertsToTime, this::funcIsTime);
+    functions.put(Function.ConformsTo, this::funcConformsTo);
+    functions.put(Function.Round, this::funcRound);
+    functions.put(Function.Sqrt, this::funcSqrt);
+    functions.put(Function.Abs, this::funcAbs);
+    functions.put(Function.Ceiling, this::funcCeiling);
+    functions.put(Function.Exp, this::funcExp);
+    functions.put(Function.Floor, this::funcFloor);
+    functions.put(Function.Ln, this::funcLn);
+    functions.put(Function.Log, this::funcLog);
+    functions.put(Function.Power, this::funcPower);
+    functions.put(Function.Truncate, this::funcTruncate);
+    functions.put(Function.LowBoundary, this::funcLowBoundary);
+    functions.put(Function.HighBoundary, this::funcHighBoundary);
+    functions.put(Function.Precision, this::funcPrecision);
+    functions.put(Function.hasTemplateIdOf, this::funcHasTemplateIdOf);
+  }
+
   private void initFlags() {
     if (!VersionUtilities.isR5VerOrLater(worker.getVersion())) {
       doNotEnforceAsCaseSensitive = true;
@@ -281,12 +423,17 @@ public class FHIRPathEngine {
   }
 
   public String getLocation() {
-    return location;
+    return location.get();
   }
 
 
+  /**
+   * The location is used in error messages. It is held per thread, so a single engine can be shared
+   * 
+   * @param location
+   */
   public void setLocation(String location) {
-    this.location = location;
+    this.location.set(location);
   }
 
 
@@ -395,6 +542,44 @@ public class FHIRPathEngine {
     return result;    
   }
 
+  /**
+   * Parse a path, or return the previously parsed expression for the same path.
+   * 
+   * Use this when the same expressions are evaluated repeatedly (e.g. in a loop). 
+   * The returned node is shared, so the caller must not modify it
+   * 
+   * @param path
+   * @return
+   * @throws FHIRLexerException
+   */
+  public ExpressionNode parseCached(String path) throws FHIRLexerException {
+    String key = expressionCacheKey(path);
+    ExpressionNode result = expressionCache.get(key);
+    if (result == null) {
+      result = parse(path);
+      expressionCache.put(key, result);
+    }
+    return result;
+  }
+
+  /**
+   * What a path parses to depends on the parse options, the host services (which can define 
+   * functions and constants) and the version of FHIR, so all of these go in the key
+   */
+  private String expressionCacheKey(String path) {
+    StringBuilder b = new StringBuilder();
+    b.append(allowDoubleQuotes ? "\"" : "'");
+    b.append(liquidMode ? "L" : "");
+    b.append(legacyMode ? "X" : "");
+    b.append("|");
+    b.append(hostServices == null ? "" : hostServices.getClass().getName()+"@"+Integer.toHexString(System.identityHashCode(hostServices)));
+    b.append("|");
+    b.append(worker == null ? "" : worker.getVersion());
+    b.append("|");
+    b.append(path);
+    return b.toString();
+  }
+
   public static class ExpressionNodeWithOffset {
     private int offset;
     private ExpressionNode node;
@@ -523,7 +708,7 @@ public class FHIRPathEngine {
    * @if the path is not valid
    */
   public TypeDetails checkOnTypes(Object appContext, String resourceType, List<String> typeList, ExpressionNode expr, List<IssueMessage> warnings) throws FHIRLexerException, PathEngineException, DefinitionException {
-    typeWarnings.clear();
+    typeWarnings.get().clear();
 
     // if context is a path that refers to a type, do that conversion now 
     TypeDetails types = new TypeDetails(CollectionStatus.SINGLETON);
@@ -569,14 +754,14 @@ public class FHIRPathEngine {
       }
     }
     TypeDetails res = executeType(new ExecutionTypeContext(appContext, resourceType, types, types), types, expr, null, true, false, expr);
-    warnings.addAll(typeWarnings);
+    warnings.addAll(typeWarnings.get());
     return res;
   }
   
   public TypeDetails checkOnTypes(Object appContext, String resourceType, TypeDetails types, ExpressionNode expr, List<IssueMessage> warnings) throws FHIRLexerException, PathEngineException, DefinitionException {
-    typeWarnings.clear();
+    typeWarnings.get().clear();
     TypeDetails res = executeType(new ExecutionTypeContext(appContext, resourceType, types, types), types, expr, null, true, false, expr);
-    warnings.addAll(typeWarnings);
+    warnings.addAll(typeWarnings.get());
     return res;
   }
   
@@ -608,8 +793,8 @@ public class FHIRPathEngine {
 
   private FHIRException makeExceptionPlural(Integer num, ExpressionNode holder, String constName, Object... args) {
     String fmt = worker.formatMessagePlural(num, constName, args);
-    if (location != null) {
-      fmt = fmt + " "+worker.formatMessagePlural(num, I18nConstants.FHIRPATH_LOCATION, location);
+    if (location.get() != null) {
+      fmt = fmt + " "+worker.formatMessagePlural(num, I18nConstants.FHIRPATH_LOCATION, location.get());
     }
     if (holder != null) {      
        return new PathEngineException(fmt, constName, holder.getStart(), holder.toString());
@@ -620,8 +805,8 @@ public class FHIRPathEngine {
   
   private FHIRException makeException(ExpressionNode holder, String constName, Object... args) {
     String fmt = worker.formatMessage(constName, args);
-    if (location != null) {
-      fmt = fmt + " "+worker.formatMessage(I18nConstants.FHIRPATH_LOCATION, location);
+    if (location.get() != null) {
+      fmt = fmt + " "+worker.formatMessage(I18nConstants.FHIRPATH_LOCATION, location.get());
     }
     if (holder != null) {      
        return new PathEngineException(fmt, constName, holder.getStart(), holder.toString());
@@ -732,8 +917,7 @@ public class FHIRPathEngine {
     if (base != null) {
       list.add(base);
     }
-    log = new StringBuilder();
-    return execute(new ExecutionContext(null, base != null && base.isResource() ? base : null, base != null && base.isResource() ? base : null, base, null, base), list, ExpressionNode, true);
+    return execute(new ExecutionContext(null, base != null && base.isResource() ? base : null, base != null && base.isResource() ? base : null, base, null, base, startLog()), list, ExpressionNode, true);
   }
 
   /**
@@ -746,13 +930,12 @@ public class FHIRPathEngine {
    * @
    */
   public List<Base> evaluate(Base base, String path) throws FHIRException {
-    ExpressionNode exp = parse(path);
+    ExpressionNode exp = parseCached(path);
     List<Base> list = new ArrayList<Base>();
     if (base != null) {
       list.add(base);
     }
-    log = new StringBuilder();
-    return execute(new ExecutionContext(null, base.isResource() ? base : null, base.isResource() ? base : null, base, null, base), list, exp, true);
+    return execute(new ExecutionContext(null, base.isResource() ? base : null, base.isResource() ? base : null, base, null, base, startLog()), list, exp, true);
   }
 
   /**
@@ -769,8 +952,7 @@ public class FHIRPathEngine {
     if (base != null) {
       list.add(base);
     }
-    log = new StringBuilder();
-    return execute(new ExecutionContext(appContext, focusResource, rootResource, base, null, base), list, ExpressionNode, true);
+    return execute(new ExecutionContext(appContext, focusResource, rootResource, base, null, base, startLog()), list, ExpressionNode, true);
   }
 
   /**
@@ -787,8 +969,7 @@ public class FHIRPathEngine {
     if (base != null) {
       list.add(base);
     }
-    log = new StringBuilder();
-    return execute(new ExecutionContext(appContext, focusResource, rootResource, base, null, base), list, expressionNode, true);
+    return execute(new ExecutionContext(appContext, focusResource, rootResource, base, null, base, startLog()), list, expressionNode, true);
   }
 
   /**
@@ -801,13 +982,12 @@ public class FHIRPathEngine {
    * @
    */
   public List<Base> evaluate(Object appContext, Resource focusResource, Resource rootResource, Base base, String path) throws FHIRException {
-    ExpressionNode exp = parse(path);
+    ExpressionNode exp = parseCached(path);
     List<Base> list = new ArrayList<Base>();
     if (base != null) {
       list.add(base);
     }
-    log = new StringBuilder();
-    return execute(new ExecutionContext(appContext, focusResource, rootResource, base, null, base), list, exp, true);
+    return execute(new ExecutionContext(appContext, focusResource, rootResource, base, null, base, startLog()), list, exp, true);
   }
 
   /**
@@ -938,7 +1118,18 @@ public class FHIRPathEngine {
   }
 
 
-  private void log(String name, List<Base> contents) {
+  /**
+   * start a new log for an evaluation. The log is owned by the execution context, but 
+   * also remembered for the current thread so that forLog() / takeLog() can report it
+   */
+  private StringBuilder startLog() {
+    StringBuilder b = new StringBuilder();
+    log.set(b);
+    return b;
+  }
+
+  private void log(ExecutionContext context, String name, List<Base> contents) {
+    StringBuilder log = context.log;
     if (hostServices == null || !hostServices.log(name, contents)) {
       if (log.length() > 0) {
         log.append("; ");
@@ -958,6 +1149,7 @@ public class FHIRPathEngine {
   }
 
   public String forLog() {
+    StringBuilder log = this.log.get();
     if (log.length() > 0) {
       return " ("+log.toString()+")";
     } else {
@@ -965,6 +1157,10 @@ public class FHIRPathEngine {
     }
   }
 
+  /**
+   * All the state for a single evaluation lives here, not on the engine, so that 
+   * one engine can be used concurrently from multiple threads
+   */
   private class ExecutionContext {
     private Object appInfo;
     private Base focusResource;
@@ -974,8 +1170,12 @@ public class FHIRPathEngine {
     private List<Base> total;
     private Map<String, Base> aliases;
     private int index;
+    private StringBuilder log;
+    private CompiledExpression compiled;
+    private EvaluationBudget budget;
+    private EvaluationMemo memo;
 
-    public ExecutionContext(Object appInfo, Base resource, Base rootResource, Base context, Map<String, Base> aliases, Base thisItem) {
+    public ExecutionContext(Object appInfo, Base resource, Base rootResource, Base context, Map<String, Base> aliases, Base thisItem, StringBuilder log) {
       this.appInfo = appInfo;
       this.context = context;
       this.focusResource = resource; 
@@ -983,6 +1183,7 @@ public class FHIRPathEngine {
       this.aliases = aliases;
       this.thisItem = thisItem;
       this.index = 0;
+      this.log = log;
     }
     public Base getFocusResource() {
       return focusResource;
@@ -1022,6 +1223,23 @@ public class FHIRPathEngine {
       index = i;
       return this;
     }
+
+    /**
+     * make the context ready to evaluate against a new item (batch evaluation)
+     */
+    private void reset(Base item) {
+      focusResource = item;
+      rootResource = item;
+      context = item;
+      thisItem = item;
+      total = null;
+      aliases = null;
+      index = 0;
+      budget = null;
+      memo = null;
+      this.log.setLength(0);
+      FHIRPathEngine.this.log.set(this.log);
+    }
   }
 
   private static class ExecutionTypeContext {
@@ -1445,7 +1663,67 @@ public class FHIRPathEngine {
   }
 
   private List<Base> execute(ExecutionContext context, List<Base> focus, ExpressionNode exp, boolean atEntry) throws FHIRException {
+    if (budgeted) {
+      chargeBudget(context, exp);
+    }
+    List<Base> work = null;
+    if (profiler == null) {
+      work = executeNode(context, focus, exp, atEntry);
+    } else {
+      long start = profiler.start();
+      try {
+        work = executeNode(context, focus, exp, atEntry);
+      } finally {
+        profiler.end(exp, start, focus.size(), work == null ? 0 : work.size());
+      }
+    }
+    if (budgeted) {
+      checkBudget(context, exp, work.size());
+    }
+    return work;
+  }
+
+  private List<Base> executeNode(ExecutionContext context, List<Base> focus, ExpressionNode exp, boolean atEntry) throws FHIRException {
     //    System.out.println("Evaluate {'"+exp.toString()+"'} on "+focus.toString());
+    if (context.compiled != null) {
+      CompiledNode node = context.compiled.nodes.get(exp);
+      if (node != null && node.atEntry == atEntry) {
+        return node.execute(context, focus);
+      }
+    }
+    List<Base> work = lazyEvaluation ? executeLazy(context, focus, exp, atEntry) : null;
+    if (work == null) {
+      work = executeKind(context, focus, exp, atEntry);
+      if (exp.getInner() != null) {
+        work = execute(context, work, exp.getInner(), false);
+      }
+    }
+
+    if (exp.isProximal() && exp.getOperation() != null) {
+      ExpressionNode next = exp.getOpNext();
+      ExpressionNode last = exp;
+      while (next != null) {
+        List<Base> work2 = preOperate(work, last.getOperation(), exp);
+        if (work2 != null) {
+          work = work2;
+        }
+        else if (last.getOperation() == Operation.Is || last.getOperation() == Operation.As) {
+          work2 = executeTypeName(context, focus, next, false);
+          work = operate(context, work, last.getOperation(), work2, last);
+        } else {
+          work2 = execute(context, focus, next, true);
+          work = operate(context, work, last.getOperation(), work2, last);
+          //          System.out.println("Result of {'"+last.toString()+" "+last.getOperation().toCode()+" "+next.toString()+"'}: "+focus.toString());
+        }
+        last = next;
+        next = next.getOpNext();
+      }
+    }
+    //    System.out.println("Result of {'"+exp.toString()+"'}: "+work.toString());
+    return work;
+  }
+
+  private List<Base> executeKind(ExecutionContext context, List<Base> focus, ExpressionNode exp, boolean atEntry) throws FHIRException {
     List<Base> work = new ArrayList<Base>();
     switch (exp.getKind()) {
     case Unary:
@@ -1480,32 +1758,6 @@ public class FHIRPathEngine {
       work2 = execute(context, focus, exp.getGroup(), atEntry);
       work.addAll(work2);
     }
-
-    if (exp.getInner() != null) {
-      work = execute(context, work, exp.getInner(), false);
-    }
-
-    if (exp.isProximal() && exp.getOperation() != null) {
-      ExpressionNode next = exp.getOpNext();
-      ExpressionNode last = exp;
-      while (next != null) {
-        List<Base> work2 = preOperate(work, last.getOperation(), exp);
-        if (work2 != null) {
-          work = work2;
-        }
-        else if (last.getOperation() == Operation.Is || last.getOperation() == Operation.As) {
-          work2 = executeTypeName(context, focus, next, false);
-          work = operate(context, work, last.getOperation(), work2, last);
-        } else {
-          work2 = execute(context, focus, next, true);
-          work = operate(context, work, last.getOperation(), work2, last);
-          //          System.out.println("Result of {'"+last.toString()+" "+last.getOperation().toCode()+" "+next.toString()+"'}: "+focus.toString());
-        }
-        last = next;
-        next = next.getOpNext();
-      }
-    }
-    //    System.out.println("Result of {'"+exp.toString()+"'}: "+work.toString());
     return work;
   }
 
@@ -1623,10 +1875,10 @@ public class FHIRPathEngine {
       // special Logic for SQL-on-FHIR:
       if (focus.isChoice()) {
         if (expr.getInner() == null || expr.getInner().getFunction() != Function.OfType) {
-          typeWarnings.add(new IssueMessage(worker.formatMessage(I18nConstants.FHIRPATH_CHOICE_NO_TYPE_SPECIFIER, expr.toString()), I18nConstants.FHIRPATH_CHOICE_NO_TYPE_SPECIFIER));
+          typeWarnings.get().add(new IssueMessage(worker.formatMessage(I18nConstants.FHIRPATH_CHOICE_NO_TYPE_SPECIFIER, expr.toString()), I18nConstants.FHIRPATH_CHOICE_NO_TYPE_SPECIFIER));
         }
       } else if (expr.getInner() != null && expr.getInner().getFunction() == Function.OfType) {
-        typeWarnings.add(new IssueMessage(worker.formatMessage(I18nConstants.FHIRPATH_CHOICE_SPURIOUS_TYPE_SPECIFIER, expr.toString()), I18nConstants.FHIRPATH_CHOICE_SPURIOUS_TYPE_SPECIFIER));
+        typeWarnings.get().add(new IssueMessage(worker.formatMessage(I18nConstants.FHIRPATH_CHOICE_SPURIOUS_TYPE_SPECIFIER, expr.toString()), I18nConstants.FHIRPATH_CHOICE_SPURIOUS_TYPE_SPECIFIER));
       }
     }
   }
@@ -1927,18 +2179,18 @@ public class FHIRPathEngine {
 
   private void checkCardinalityForComparabilitySame(TypeDetails left, Operation operation, TypeDetails right, ExpressionNode expr) {
     if (left.isList() && !right.isList()) {
-      typeWarnings.add(new IssueMessage(worker.formatMessage(I18nConstants.FHIRPATH_COLLECTION_STATUS_OPERATION_LEFT, expr.toString()), I18nConstants.FHIRPATH_COLLECTION_STATUS_OPERATION_LEFT));
+      typeWarnings.get().add(new IssueMessage(worker.formatMessage(I18nConstants.FHIRPATH_COLLECTION_STATUS_OPERATION_LEFT, expr.toString()), I18nConstants.FHIRPATH_COLLECTION_STATUS_OPERATION_LEFT));
     } else if (!left.isList() && right.isList()) {
-      typeWarnings.add(new IssueMessage(worker.formatMessage(I18nConstants.FHIRPATH_COLLECTION_STATUS_OPERATION_RIGHT, expr.toString()), I18nConstants.FHIRPATH_COLLECTION_STATUS_OPERATION_RIGHT));
+      typeWarnings.get().add(new IssueMessage(worker.formatMessage(I18nConstants.FHIRPATH_COLLECTION_STATUS_OPERATION_RIGHT, expr.toString()), I18nConstants.FHIRPATH_COLLECTION_STATUS_OPERATION_RIGHT));
     }
   }
 
   private void checkCardinalityForSingle(TypeDetails left, Operation operation, TypeDetails right, ExpressionNode expr) {
     if (left.isList()) {
-      typeWarnings.add(new IssueMessage(worker.formatMessage(I18nConstants.FHIRPATH_COLLECTION_STATUS_OPERATION_LEFT, expr.toString()), I18nConstants.FHIRPATH_COLLECTION_STATUS_OPERATION_LEFT));
+      typeWarnings.get().add(new IssueMessage(worker.formatMessage(I18nConstants.FHIRPATH_COLLECTION_STATUS_OPERATION_LEFT, expr.toString()), I18nConstants.FHIRPATH_COLLECTION_STATUS_OPERATION_LEFT));
     } 
     if (right.isList()) {
-      typeWarnings.add(new IssueMessage(worker.formatMessage(I18nConstants.FHIRPATH_COLLECTION_STATUS_OPERATION_RIGHT, expr.toString()), I18nConstants.FHIRPATH_COLLECTION_STATUS_OPERATION_RIGHT));
+      typeWarnings.get().add(new IssueMessage(worker.formatMessage(I18nConstants.FHIRPATH_COLLECTION_STATUS_OPERATION_RIGHT, expr.toString()), I18nConstants.FHIRPATH_COLLECTION_STATUS_OPERATION_RIGHT));
     }
   }
   
@@ -3244,7 +3496,7 @@ public class FHIRPathEngine {
     }
     if (exp.getFunction() == Function.First || exp.getFunction() == Function.Last || exp.getFunction() == Function.Tail || exp.getFunction() == Function.Skip || exp.getFunction() == Function.Take) {
       if (focus.getCollectionStatus() == CollectionStatus.SINGLETON) {
-        typeWarnings.add(new IssueMessage(worker.formatMessage(I18nConstants.FHIRPATH_NOT_A_COLLECTION, container.toString()), I18nConstants.FHIRPATH_NOT_A_COLLECTION));
+        typeWarnings.get().add(new IssueMessage(worker.formatMessage(I18nConstants.FHIRPATH_NOT_A_COLLECTION, container.toString()), I18nConstants.FHIRPATH_NOT_A_COLLECTION));
 
       }
     }
@@ -3662,7 +3914,7 @@ public class FHIRPathEngine {
     }
     
     if (typeCastIsImpossible(focus, tn)) {
-      typeWarnings.add(new IssueMessage(worker.formatMessage(I18nConstants.FHIRPATH_OFTYPE_IMPOSSIBLE, focus.describeMin(), tn, exp.toString()), I18nConstants.FHIRPATH_OFTYPE_IMPOSSIBLE));
+      typeWarnings.get().add(new IssueMessage(worker.formatMessage(I18nConstants.FHIRPATH_OFTYPE_IMPOSSIBLE, focus.describeMin(), tn, exp.toString()), I18nConstants.FHIRPATH_OFTYPE_IMPOSSIBLE));
     }
     return tn;
   }
@@ -3697,14 +3949,14 @@ public class FHIRPathEngine {
         }
       }
       if (actual.getCollectionStatus() != CollectionStatus.SINGLETON && pt.getCollectionStatus() == CollectionStatus.SINGLETON) {
-        typeWarnings.add(new IssueMessage(worker.formatMessage(I18nConstants.FHIRPATH_COLLECTION_STATUS_PARAMETER, funcName, i, expr.toString()), I18nConstants.FHIRPATH_COLLECTION_STATUS_PARAMETER));
+        typeWarnings.get().add(new IssueMessage(worker.formatMessage(I18nConstants.FHIRPATH_COLLECTION_STATUS_PARAMETER, funcName, i, expr.toString()), I18nConstants.FHIRPATH_COLLECTION_STATUS_PARAMETER));
       }
     }
   }
 
   private void checkSingleton(TypeDetails focus, String name, ExpressionNode expr) throws PathEngineException {
     if (focus.getCollectionStatus() != CollectionStatus.SINGLETON) {
-      typeWarnings.add(new IssueMessage(worker.formatMessage(I18nConstants.FHIRPATH_COLLECTION_STATUS_CONTEXT, name, expr.toString()), I18nConstants.FHIRPATH_COLLECTION_STATUS_CONTEXT));
+      typeWarnings.get().add(new IssueMessage(worker.formatMessage(I18nConstants.FHIRPATH_COLLECTION_STATUS_CONTEXT, name, expr.toString()), I18nConstants.FHIRPATH_COLLECTION_STATUS_CONTEXT));
     }
   }
 
@@ -3782,131 +4034,36 @@ public class FHIRPathEngine {
   //	}
 
   private List<Base> evaluateFunction(ExecutionContext context, List<Base> focus, ExpressionNode exp) throws FHIRException {
-    switch (exp.getFunction()) {
-    case Empty : return funcEmpty(context, focus, exp);
-    case Not : return funcNot(context, focus, exp);
-    case Exists : return funcExists(context, focus, exp);
-    case SubsetOf : return funcSubsetOf(context, focus, exp);
-    case SupersetOf : return funcSupersetOf(context, focus, exp);
-    case IsDistinct : return funcIsDistinct(context, focus, exp);
-    case Distinct : return funcDistinct(context, focus, exp);
-    case Count : return funcCount(context, focus, exp);
-    case Where : return funcWhere(context, focus, exp);
-    case Select : return funcSelect(context, focus, exp);
-    case All : return funcAll(context, focus, exp);
-    case Repeat : return funcRepeat(context, focus, exp);
-    case Aggregate : return funcAggregate(context, focus, exp);
-    case Item : return funcItem(context, focus, exp);
-    case As : return funcAs(context, focus, exp);
-    case OfType : return funcOfType(context, focus, exp);
-    case Type : return funcType(context, focus, exp);
-    case Is : return funcIs(context, focus, exp);
-    case Single : return funcSingle(context, focus, exp);
-    case First : return funcFirst(context, focus, exp);
-    case Last : return funcLast(context, focus, exp);
-    case Tail : return funcTail(context, focus, exp);
-    case Skip : return funcSkip(context, focus, exp);
-    case Take : return funcTake(context, focus, exp);
-    case Union : return funcUnion(context, focus, exp);
-    case Combine : return funcCombine(context, focus, exp);
-    case Intersect : return funcIntersect(context, focus, exp);
-    case Exclude : return funcExclude(context, focus, exp);
-    case Iif : return funcIif(context, focus, exp);
-    case Lower : return funcLower(context, focus, exp);
-    case Upper : return funcUpper(context, focus, exp);
-    case ToChars : return funcToChars(context, focus, exp);
-    case IndexOf : return funcIndexOf(context, focus, exp);
-    case Substring : return funcSubstring(context, focus, exp);
-    case StartsWith : return funcStartsWith(context, focus, exp);
-    case EndsWith : return funcEndsWith(context, focus, exp);
-    case Matches : return funcMatches(context, focus, exp);
-    case MatchesFull : return funcMatchesFull(context, focus, exp);
-    case ReplaceMatches : return funcReplaceMatches(context, focus, exp);
-    case Contains : return funcContains(context, focus, exp);
-    case Replace : return funcReplace(context, focus, exp);
-    case Length : return funcLength(context, focus, exp);
-    case Children : return funcChildren(context, focus, exp);
-    case Descendants : return funcDescendants(context, focus, exp);
-    case MemberOf : return funcMemberOf(context, focus, exp);
-    case Trace : return funcTrace(context, focus, exp);
-    case Check : return funcCheck(context, focus, exp);
-    case Today : return funcToday(context, focus, exp);
-    case Now : return funcNow(context, focus, exp);
-    case Resolve : return funcResolve(context, focus, exp);
-    case Extension : return funcExtension(context, focus, exp);
-    case AnyFalse: return funcAnyFalse(context, focus, exp);
-    case AllFalse: return funcAllFalse(context, focus, exp);
-    case AnyTrue: return funcAnyTrue(context, focus, exp);
-    case AllTrue: return funcAllTrue(context, focus, exp);
-    case HasValue : return funcHasValue(context, focus, exp);
-    case AliasAs : return funcAliasAs(context, focus, exp);
-    case Encode : return funcEncode(context, focus, exp);
-    case Decode : return funcDecode(context, focus, exp);
-    case Escape : return funcEscape(context, focus, exp);
-    case Unescape : return funcUnescape(context, focus, exp);
-    case Trim : return funcTrim(context, focus, exp);
-    case Split : return funcSplit(context, focus, exp);
-    case Join : return funcJoin(context, focus, exp); 
-    case Alias : return funcAlias(context, focus, exp);
-    case HtmlChecks1 : return funcHtmlChecks1(context, focus, exp);
-    case HtmlChecks2 : return funcHtmlChecks2(context, focus, exp);
-    case Comparable : return funcComparable(context, focus, exp);
-    case ToInteger : return funcToInteger(context, focus, exp);
-    case ToDecimal : return funcToDecimal(context, focus, exp);
-    case ToString : return funcToString(context, focus, exp);
-    case ToBoolean : return funcToBoolean(context, focus, exp);
-    case ToQuantity : return funcToQuantity(context, focus, exp);
-    case ToDateTime : return funcToDateTime(context, focus, exp);
-    case ToTime : return funcToTime(context, focus, exp);
-    case ConvertsToInteger : return funcIsInteger(context, focus, exp);
-    case ConvertsToDecimal : return funcIsDecimal(context, focus, exp);
-    case ConvertsToString : return funcIsString(context, focus, exp);
-    case ConvertsToBoolean : return funcIsBoolean(context, focus, exp);
-    case ConvertsToQuantity : return funcIsQuantity(context, focus, exp);
-    case ConvertsToDateTime : return funcIsDateTime(context, focus, exp);
-    case ConvertsToDate : return funcIsDate(context, focus, exp);
-    case ConvertsToTime : return funcIsTime(context, focus, exp);
-    case ConformsTo : return funcConformsTo(context, focus, exp);
-    case Round : return funcRound(context, focus, exp); 
-    case Sqrt : return funcSqrt(context, focus, exp); 
-    case Abs : return funcAbs(context, focus, exp); 
-    case Ceiling : return funcCeiling(context, focus, exp); 
-    case Exp : return funcExp(context, focus, exp); 
-    case Floor : return funcFloor(context, focus, exp); 
-    case Ln : return funcLn(context, focus, exp); 
-    case Log : return funcLog(context, focus, exp); 
-    case Power : return funcPower(context, focus, exp); 
-    case Truncate : return funcTruncate(context, focus, exp);
-    case LowBoundary : return funcLowBoundary(context, focus, exp);
-    case HighBoundary : return funcHighBoundary(context, focus, exp);
-    case Precision : return funcPrecision(context, focus, exp);
-    case hasTemplateIdOf: return funcHasTemplateIdOf(context, focus, exp);
-
-
-    case Custom: { 
-      List<List<Base>> params = new ArrayList<List<Base>>();
-      if (hostServices.paramIsType( exp.getName(), 0)) {
-        if (exp.getParameters().size() > 0) {
-          String tn;
-          if (exp.getParameters().get(0).getInner() != null) {
-            tn = exp.getParameters().get(0).getName()+"."+exp.getParameters().get(0).getInner().getName();
-          } else {
-            tn = "FHIR."+exp.getParameters().get(0).getName();
-          }
-          List<Base> p = new ArrayList<>();
-          p.add(new CodeType(tn));
-          params.add(p);
-        }
-      } else {
-        for (ExpressionNode p : exp.getParameters()) {
-          params.add(execute(context, focus, p, true));
+    FunctionHandler handler = functions.get(exp.getFunction());
+    if (handler != null) {
+      return handler.execute(context, focus, exp);
+    } else if (exp.getFunction() == Function.Custom) {
+      return funcCustom(context, focus, exp);
+    } else {
+      throw new Error("not Implemented yet");
+    }
+  }
+
+  private List<Base> funcCustom(ExecutionContext context, List<Base> focus, ExpressionNode exp) throws FHIRException {
+    List<List<Base>> params = new ArrayList<List<Base>>();
+    if (hostServices.paramIsType( exp.getName(), 0)) {
+      if (exp.getParameters().size() > 0) {
+        String tn;
+        if (exp.getParameters().get(0).getInner() != null) {
+          tn = exp.getParameters().get(0).getName()+"."+exp.getParameters().get(0).getInner().getName();
+        } else {
+          tn = "FHIR."+exp.getParameters().get(0).getName();
         }
+        List<Base> p = new ArrayList<>();
+        p.add(new CodeType(tn));
+        params.add(p);
+      }
+    } else {
+      for (ExpressionNode p : exp.getParameters()) {
+        params.add(execute(context, focus, p, true));
       }
-      return hostServices.executeFunction(this, context.appInfo, focus, exp.getName(), params);
-    }
-    default:
-      throw new Error("not Implemented yet");
     }
+    return hostServices.executeFunction(this, context.appInfo, focus, exp.getName(), params);
   }
 
   private List<Base> funcHasTemplateIdOf(ExecutionContext context, List<Base> focus, ExpressionNode exp) {
@@ -4594,7 +4751,11 @@ public class FHIRPathEngine {
 
 
   private ExecutionContext changeThis(ExecutionContext context, Base newThis) {
-    return new ExecutionContext(context.appInfo, context.focusResource, context.rootResource, context.context, context.aliases, newThis);
+    ExecutionContext res = new ExecutionContext(context.appInfo, context.focusResource, context.rootResource, context.context, context.aliases, newThis, context.log);
+    res.compiled = context.compiled;
+    res.budget = context.budget;
+    res.memo = getMemo(context);
+    return res;
   }
 
   private ExecutionTypeContext changeThis(ExecutionTypeContext context, TypeDetails newThis) {
@@ -4623,21 +4784,76 @@ public class FHIRPathEngine {
     }
 
     String url = nl.get(0).primitiveValue();
+    Base l = focus.get(0);
+    EvaluationMemo memo = getMemo(context);
+    String key = memo == null ? null : memberOfKey(url, l);
+    Boolean ok;
+    if (key == null) {
+      ok = checkMemberOf(context, url, l);
+    } else if (memo.memberOf.containsKey(key)) {
+      lookupStatistics.hit(Function.MemberOf);
+      ok = memo.memberOf.get(key);
+    } else {
+      lookupStatistics.miss(Function.MemberOf);
+      ok = checkMemberOf(context, url, l);
+      memo.memberOf.put(key, ok);
+    }
+    return ok == null ? new ArrayList<Base>() : makeBoolean(ok);
+  }
+
+  /**
+   * @return null if the value set isn't known, or the type can't be checked
+   */
+  private Boolean checkMemberOf(ExecutionContext context, String url, Base l) {
     ValueSet vs = hostServices != null ? hostServices.resolveValueSet(this, context.appInfo, url) : worker.fetchResource(ValueSet.class, url);
     if (vs == null) {
-      return new ArrayList<Base>();
+      return null;
     }
-    Base l = focus.get(0);
     if (Utilities.existsInList(l.fhirType(), "code", "string", "uri")) {
-      return makeBoolean(worker.validateCode(terminologyServiceOptions.withGuessSystem(), TypeConvertor.castToCoding(l), vs).isOk());
+      return worker.validateCode(terminologyServiceOptions.withGuessSystem(), TypeConvertor.castToCoding(l), vs).isOk();
     } else if (l.fhirType().equals("Coding")) {
-      return makeBoolean(worker.validateCode(terminologyServiceOptions, TypeConvertor.castToCoding(l), vs).isOk());
+      return worker.validateCode(terminologyServiceOptions, TypeConvertor.castToCoding(l), vs).isOk();
     } else if (l.fhirType().equals("CodeableConcept")) {
-      return makeBoolean(worker.validateCode(terminologyServiceOptions, TypeConvertor.castToCodeableConcept(l), vs).isOk());
+      return worker.validateCode(terminologyServiceOptions, TypeConvertor.castToCodeableConcept(l), vs).isOk();
     } else {
       //      System.out.println("unknown type in funcMemberOf: "+l.fhirType());
-      return new ArrayList<Base>();
+      return null;
+    }
+  }
+
+  /**
+   * @return a key for the code + value set, or null if the type isn't one that's memoised
+   */
+  private String memberOfKey(String url, Base l) {
+    StringBuilder b = new StringBuilder();
+    b.append(url);
+    if (Utilities.existsInList(l.fhirType(), "code", "string", "uri")) {
+      b.append("|c|");
+      b.append(l.primitiveValue());
+    } else if (l.fhirType().equals("Coding")) {
+      appendCodingKey(b, TypeConvertor.castToCoding(l));
+    } else if (l.fhirType().equals("CodeableConcept")) {
+      CodeableConcept cc = TypeConvertor.castToCodeableConcept(l);
+      for (Coding c : cc.getCoding()) {
+        appendCodingKey(b, c);
+      }
+      b.append("|t|");
+      b.append(cc.getText());
+    } else {
+      return null;
     }
+    return b.toString();
+  }
+
+  private void appendCodingKey(StringBuilder b, Coding c) {
+    b.append("|s|");
+    b.append(c.getSystem());
+    b.append("|v|");
+    b.append(c.getVersion());
+    b.append("|c|");
+    b.append(c.getCode());
+    b.append("|d|");
+    b.append(c.getDisplay());
   }
 
 
@@ -4654,6 +4870,7 @@ public class FHIRPathEngine {
       }
       more = !added.isEmpty();
       result.addAll(added);
+      checkBudget(context, exp, result.size());
       current.clear();
       current.addAll(added);
     }
@@ -5106,6 +5323,7 @@ public class FHIRPathEngine {
           more = true;
         }
       }
+      checkBudget(context, exp, result.size());
     }
     return result;
   }
@@ -5214,6 +5432,9 @@ public class FHIRPathEngine {
       } else if (!f.isEmpty()) {
         empty = false;
       }
+      if (!empty) {
+        break;
+      }
     }
     result.add(new BooleanType(!empty).noExtensions());
     return result;
@@ -5252,10 +5473,20 @@ public class FHIRPathEngine {
             }
           }
         } else if (hostServices != null) {
-          try {
-            res = hostServices.resolveReference(this, context.appInfo, s, refContext);
-          } catch (Exception e) {
-            res = null;
+          EvaluationMemo memo = getMemo(context);
+          if (memo != null && memo.resolved.containsKey(s)) {
+            lookupStatistics.hit(Function.Resolve);
+            res = memo.resolved.get(s);
+          } else {
+            try {
+              res = hostServices.resolveReference(this, context.appInfo, s, refContext);
+            } catch (Exception e) {
+              res = null;
+            }
+            if (memo != null) {
+              lookupStatistics.miss(Function.Resolve);
+              memo.resolved.put(s, res);
+            }
           }
         }
         if (res != null) {
@@ -5431,9 +5662,9 @@ public class FHIRPathEngine {
     String name = nl.get(0).primitiveValue();
     if (exp.getParameters().size() == 2) {
       List<Base> n2 = execute(context, focus, exp.getParameters().get(1), true);
-      log(name, n2);
+      log(context, name, n2);
     } else { 
-      log(name, focus);
+      log(context, name, focus);
     }
     return focus;
   }
@@ -5761,7 +5992,23 @@ public class FHIRPathEngine {
       result.add(new BooleanType(false).noExtensions());
     } else {
       String url = convertToString(execute(context, focus, expr.getParameters().get(0), true));
-      result.add(new BooleanType(hostServices.conformsToProfile(this, context.appInfo,  focus.get(0), url)).noExtensions());
+      EvaluationMemo memo = getMemo(context);
+      Map<String, Boolean> done = memo == null ? null : memo.conformsTo.get(focus.get(0));
+      Boolean ok = done == null ? null : done.get(url);
+      if (ok != null) {
+        lookupStatistics.hit(Function.ConformsTo);
+      } else {
+        ok = hostServices.conformsToProfile(this, context.appInfo,  focus.get(0), url);
+        if (memo != null) {
+          lookupStatistics.miss(Function.ConformsTo);
+          if (done == null) {
+            done = new HashMap<>();
+            memo.conformsTo.put(focus.get(0), done);
+          }
+          done.put(url, ok);
+        }
+      }
+      result.add(new BooleanType(ok).noExtensions());
     }
     return result;
   }
@@ -6323,8 +6570,761 @@ public class FHIRPathEngine {
   }
 
 
+  // --- evaluation budgets -------------------------------------------------------
+
+  /**
+   * the resources used so far by one evaluation (shared by all the execution contexts for it)
+   */
+  private static class EvaluationBudget {
+    private long nodes;
+    private long deadline;
+  }
+
+  /**
+   * count a node visit, and check the node and time budgets
+   */
+  private void chargeBudget(ExecutionContext context, ExpressionNode exp) {
+    if (context.budget == null) {
+      context.budget = new EvaluationBudget();
+      if (maxTime > 0) {
+        context.budget.deadline = System.nanoTime() + maxTime * 1000000;
+      }
+    }
+    context.budget.nodes++;
+    if (maxNodes > 0 && context.budget.nodes > maxNodes) {
+      throw budgetExceeded(BudgetKind.NODES, "node count", maxNodes, exp);
+    }
+    if (context.budget.deadline > 0 && System.nanoTime() > context.budget.deadline) {
+      throw budgetExceeded(BudgetKind.TIME, "time (ms)", maxTime, exp);
+    }
+  }
+
+  /**
+   * check the collection size and time budgets; this is also called from inside the functions 
+   * (repeat(), descendants()) that can build large collections in a single node 
+   */
+  private void checkBudget(ExecutionContext context, ExpressionNode exp, int size) {
+    if (!budgeted) {
+      return;
+    }
+    if (maxCollectionSize > 0 && size > maxCollectionSize) {
+      throw budgetExceeded(BudgetKind.COLLECTION_SIZE, "collection size", maxCollectionSize, exp);
+    }
+    if (context.budget != null && context.budget.deadline > 0 && System.nanoTime() > context.budget.deadline) {
+      throw budgetExceeded(BudgetKind.TIME, "time (ms)", maxTime, exp);
+    }
+  }
+
+  private PathEngineBudgetException budgetExceeded(BudgetKind kind, String name, long limit, ExpressionNode exp) {
+    budgetExceeded.get(kind).incrementAndGet();
+    String msg = worker.formatMessage(I18nConstants.FHIRPATH_BUDGET_EXCEEDED, name, limit, exp.toString());
+    if (location.get() != null) {
+      msg = msg + " "+worker.formatMessage(I18nConstants.FHIRPATH_LOCATION, location.get());
+    }
+    return new PathEngineBudgetException(msg, I18nConstants.FHIRPATH_BUDGET_EXCEEDED, kind, limit);
+  }
+
+  private void updateBudgeted() {
+    budgeted = maxNodes > 0 || maxCollectionSize > 0 || maxTime > 0;
+  }
+
+  /**
+   * @return the number of evaluations that have been abandoned because they went over the nominated budget
+   */
+  public long getBudgetExceededCount(BudgetKind kind) {
+    return budgetExceeded.get(kind).get();
+  }
+
+  // --- memoised lookups -------------------------------------------------------
+
+  /**
+   * memberOf(), resolve() and conformsTo() call out to the host and the terminology 
+   * services. When the same expression is evaluated across many repeating elements of 
+   * the same resource, these calls get repeated with the same arguments. If memoisation 
+   * is on, the answers are remembered for as long as evaluations keep using the same root 
+   * resource. Each thread keeps the memo for the last root it saw, and only holds the root 
+   * weakly, so the memo is started again when the root changes, and doesn't keep the root alive
+   */
+  private static class EvaluationMemo {
+    private WeakReference<Base> root;
+    private Map<String, Boolean> memberOf = new HashMap<>();
+    private Map<String, Base> resolved = new HashMap<>();
+    private Map<Base, Map<String, Boolean>> conformsTo = new IdentityHashMap<>();
+
+    private EvaluationMemo(Base root) {
+      super();
+      this.root = new WeakReference<>(root);
+    }
+  }
+
+  /**
+   * How often memoised lookups were answered from the memo (hits) or had to be 
+   * looked up (misses), since the engine was created
+   */
+  public static class LookupStatistics {
+    private Map<Function, AtomicLong> hits = new EnumMap<>(Function.class);
+    private Map<Function, AtomicLong> misses = new EnumMap<>(Function.class);
+
+    private LookupStatistics() {
+      super();
+      for (Function f : new Function[] { Function.MemberOf, Function.Resolve, Function.ConformsTo }) {
+        hits.put(f, new AtomicLong());
+        misses.put(f, new AtomicLong());
+      }
+    }
+
+    private void hit(Function f) {
+      hits.get(f).incrementAndGet();
+    }
+
+    private void miss(Function f) {
+      misses.get(f).incrementAndGet();
+    }
+
+    /**
+     * @param f one of MemberOf, Resolve, ConformsTo
+     */
+    public long getHits(Function f) {
+      return hits.containsKey(f) ? hits.get(f).get() : 0;
+    }
+
+    /**
+     * @param f one of MemberOf, Resolve, ConformsTo
+     */
+    public long getMisses(Function f) {
+      return misses.containsKey(f) ? misses.get(f).get() : 0;
+    }
+
+    public void reset() {
+      for (Function f : hits.keySet()) {
+        hits.get(f).set(0);
+        misses.get(f).set(0);
+      }
+    }
+
+    public String summary() {
+      StringBuilder b = new StringBuilder();
+      b.append("FHIRPath lookups:");
+      for (Function f : hits.keySet()) {
+        long h = getHits(f);
+        long t = h + getMisses(f);
+        b.append(" "+f.toCode()+" "+h+"/"+t+" from memo"+(t == 0 ? "" : " ("+(h * 100 / t)+"%)"));
+      }
+      return b.toString();
+    }
+  }
+
+  /**
+   * @return the memo for the root resource of this evaluation, or null if memoisation isn't 
+   * in effect. Evaluations with no root resource are not memoised
+   */
+  private EvaluationMemo getMemo(ExecutionContext context) {
+    if (!memoiseLookups || context.rootResource == null) {
+      return null;
+    }
+    if (context.memo == null) {
+      EvaluationMemo memo = memos.get();
+      if (memo == null || memo.root.get() != context.rootResource) {
+        memo = new EvaluationMemo(context.rootResource);
+        memos.set(memo);
+      }
+      context.memo = memo;
+    }
+    return context.memo;
+  }
+
+  // --- lazy evaluation -------------------------------------------------------
+
+  /**
+   * In lazy mode, a path like descendants().where(...).exists() is evaluated by pulling 
+   * items through the chain one at a time, so that the terminal function (exists(), empty(), 
+   * first()) can stop as soon as it knows the answer, instead of building every intermediate 
+   * collection in full. 
+   * 
+   * The outcome is the same as eager evaluation, except that items after the deciding one are 
+   * never visited (so trace() output is shorter, and errors they might raise are not raised)
+   */
+  private abstract class LazyIterator implements Iterator<Base> {
+    private Base nextItem;
+    private boolean done;
+
+    /**
+     * @return the next item, or null if there's no more
+     */
+    protected abstract Base computeNext() throws FHIRException;
+
+    @Override
+    public boolean hasNext() {
+      if (nextItem == null && !done) {
+        nextItem = computeNext();
+        done = nextItem == null;
+      }
+      return nextItem != null;
+    }
+
+    @Override
+    public Base next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      Base result = nextItem;
+      nextItem = null;
+      return result;
+    }
+  }
+
+  private interface LazyExpander {
+    void expand(Base item, List<Base> into) throws FHIRException;
+  }
+
+  private class LazyExpansion extends LazyIterator {
+    private Iterator<Base> source;
+    private LazyExpander expander;
+    private List<Base> buffer = new ArrayList<>();
+    private int cursor;
+
+    private LazyExpansion(Iterator<Base> source, LazyExpander expander) {
+      super();
+      this.source = source;
+      this.expander = expander;
+    }
+
+    @Override
+    protected Base computeNext() throws FHIRException {
+      while (true) {
+        while (cursor < buffer.size()) {
+          Base b = buffer.get(cursor++);
+          if (b != null) {
+            return b;
+          }
+        }
+        if (!source.hasNext()) {
+          return null;
+        }
+        buffer.clear();
+        cursor = 0;
+        expander.expand(source.next(), buffer);
+      }
+    }
+  }
+
+  private boolean isLazyStep(ExpressionNode node) {
+    if (node.getKind() == Kind.Name) {
+      return !node.getName().startsWith("$");
+    } else if (node.getKind() == Kind.Function) {
+      switch (node.getFunction()) {
+      case Where: 
+      case Select: 
+      case Children: 
+      case Descendants: 
+      case Repeat: 
+        return true;
+      default:
+        return false;
+      }
+    } else {
+      return false;
+    }
+  }
+
+  private boolean isLazyTerminal(ExpressionNode node) {
+    return node.getKind() == Kind.Function && (node.getFunction() == Function.Exists || node.getFunction() == Function.Empty || node.getFunction() == Function.First);
+  }
+
+  /**
+   * @return the exists()/empty()/first() that ends the lazy steps in the inner chain of the node, or null if there isn't one 
+   */
+  private ExpressionNode lazyTerminal(ExpressionNode exp) {
+    ExpressionNode terminal = exp.getInner();
+    while (terminal != null && isLazyStep(terminal)) {
+      terminal = terminal.getInner();
+    }
+    return terminal == null || !isLazyTerminal(terminal) ? null : terminal;
+  }
+
+  /**
+   * @return the outcome of the node and it's inner chain, or null if the chain can't be evaluated lazily
+   */
+  private List<Base> executeLazy(ExecutionContext context, List<Base> focus, ExpressionNode exp, boolean atEntry) throws FHIRException {
+    ExpressionNode terminal = lazyTerminal(exp);
+    if (terminal == null) {
+      return null;
+    }
+    Iterator<Base> items;
+    if (isLazyStep(exp) && (exp.getKind() == Kind.Function || !atEntry)) {
+      items = lazyStep(context, focus.iterator(), exp);
+    } else {
+      items = executeKind(context, focus, exp, atEntry).iterator();
+    }
+    for (ExpressionNode step = exp.getInner(); step != terminal; step = step.getInner()) {
+      items = lazyStep(context, items, step);
+    }
+
+    List<Base> work = new ArrayList<Base>();
+    switch (terminal.getFunction()) {
+    case Exists:
+      work.add(new BooleanType(lazyExists(context, items, terminal)).noExtensions());
+      break;
+    case Empty:
+      work.add(new BooleanType(!lazyExists(context, items, terminal)).noExtensions());
+      break;
+    default: // First
+      if (items.hasNext()) {
+        work.add(items.next());
+      }
+    }
+    if (terminal.getInner() != null) {
+      work = execute(context, work, terminal.getInner(), false);
+    }
+    return work;
+  }
+
+  private boolean lazyExists(ExecutionContext context, Iterator<Base> items, ExpressionNode exp) throws FHIRException {
+    List<Base> pc = new ArrayList<Base>();
+    while (items.hasNext()) {
+      Base f = items.next();
+      if (exp.getParameters().size() == 1) {
+        pc.clear();
+        pc.add(f);
+        if (asBool(execute(changeThis(context, f), pc, exp.getParameters().get(0), true), exp) == Equality.True) {
+          return true;
+        }
+      } else if (!f.isEmpty()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private Iterator<Base> lazyStep(ExecutionContext context, Iterator<Base> items, ExpressionNode exp) throws FHIRException {
+    if (exp.getKind() == Kind.Name) {
+      final String name = exp.getName();
+      return new LazyExpansion(items, (item, into) -> getChildrenByName(item, name, into));
+    }
+    switch (exp.getFunction()) {
+    case Where:
+      return new LazyExpansion(items, (item, into) -> {
+        List<Base> pc = new ArrayList<Base>();
+        pc.add(item);
+        if (asBool(execute(changeThis(context, item), pc, exp.getParameters().get(0), true), exp) == Equality.True) {
+          into.add(item);
+        }
+      });
+    case Select:
+      final int[] index = new int[1];
+      return new LazyExpansion(items, (item, into) -> {
+        List<Base> pc = new ArrayList<Base>();
+        pc.add(item);
+        into.addAll(execute(changeThis(context, item).setIndex(index[0]), pc, exp.getParameters().get(0), true));
+        index[0]++;
+      });
+    case Children:
+      return new LazyExpansion(items, (item, into) -> getChildrenByName(item, "*", into));
+    case Descendants: {
+      // breadth first, the same order as funcDescendants
+      ArrayDeque<Base> queue = new ArrayDeque<>();
+      final int[] count = new int[1];
+      return new LazyExpansion(pending(items, queue), (item, into) -> {
+        int start = into.size();
+        getChildrenByName(item, "*", into);
+        for (int i = start; i < into.size(); i++) {
+          queue.add(into.get(i));
+        }
+        count[0] += into.size() - start;
+        checkBudget(context, exp, count[0]);
+      });
+    }
+    case Repeat: {
+      // the same order and de-duplication as funcRepeat 
+      ArrayDeque<Base> queue = new ArrayDeque<>();
+      List<Base> seen = new ArrayList<>();
+      return new LazyExpansion(pending(items, queue), (item, into) -> {
+        List<Base> pc = new ArrayList<Base>();
+        pc.add(item);
+        for (Base b : execute(changeThis(context, item), pc, exp.getParameters().get(0), false)) {
+          boolean isnew = true;
+          for (Base t : seen) {
+            if (b.equalsDeep(t)) {
+              isnew = false;
+              break;
+            }
+          }
+          if (isnew) {
+            seen.add(b);
+            into.add(b);
+            queue.add(b);
+          }
+        }
+        checkBudget(context, exp, seen.size());
+      });
+    }
+    default:
+      throw new Error("not a lazy step: "+exp.getFunction());
+    }
+  }
+
+  /**
+   * the items from the source, then whatever's been added to the queue in the meantime 
+   */
+  private Iterator<Base> pending(Iterator<Base> source, ArrayDeque<Base> queue) {
+    return new Iterator<Base>() {
+      @Override
+      public boolean hasNext() {
+        return source.hasNext() || !queue.isEmpty();
+      }
+
+      @Override
+      public Base next() {
+        return source.hasNext() ? source.next() : queue.poll();
+      }
+    };
+  }
+
+  // --- compiled expressions -------------------------------------------------------
+
+  /**
+   * A compiled expression is an ExpressionNode tree where each node has been turned into a 
+   * specialised evaluator: the function implementation, constant values, property names
+   * and operator chains are all resolved once, when the expression is compiled, instead of 
+   * being worked out again each time the node is executed.
+   * 
+   * A compiled expression is immutable and can be shared across threads. It can only be 
+   * executed by the engine that compiled it
+   */
+  public static class CompiledExpression {
+    private FHIRPathEngine engine;
+    private ExpressionNode expression;
+    private Map<ExpressionNode, CompiledNode> nodes = new IdentityHashMap<>();
+
+    private CompiledExpression(FHIRPathEngine engine, ExpressionNode expression) {
+      super();
+      this.engine = engine;
+      this.expression = expression;
+    }
+
+    public ExpressionNode getExpression() {
+      return expression;
+    }
+
+    public int getNodeCount() {
+      return nodes.size();
+    }
+
+    public boolean isCompiledBy(FHIRPathEngine engine) {
+      return this.engine == engine;
+    }
+
+    @Override
+    public String toString() {
+      return expression.toString();
+    }
+  }
+
+  private interface NodeKindEvaluator {
+    List<Base> execute(ExecutionContext context, List<Base> focus) throws FHIRException;
+  }
+
+  private class CompiledNode {
+    private ExpressionNode exp;
+    private boolean atEntry;
+    private NodeKindEvaluator kind;
+    private ExpressionNode inner;
+    private boolean lazyChain; // whether the inner chain can be evaluated lazily (see executeLazy)
+    private Operation[] operations;
+    private ExpressionNode[] operands;
+
+    private List<Base> execute(ExecutionContext context, List<Base> focus) throws FHIRException {
+      List<Base> work = lazyChain && lazyEvaluation ? executeLazy(context, focus, exp, atEntry) : null;
+      if (work == null) {
+        work = kind.execute(context, focus);
+        if (inner != null) {
+          work = FHIRPathEngine.this.execute(context, work, inner, false);
+        }
+      }
+      if (operations != null) {
+        for (int i = 0; i < operations.length; i++) {
+          Operation op = operations[i];
+          List<Base> work2 = preOperate(work, op, exp);
+          if (work2 != null) {
+            work = work2;
+          } else if (op == Operation.Is || op == Operation.As) {
+            work2 = executeTypeName(context, focus, operands[i], false);
+            work = operate(context, work, op, work2, i == 0 ? exp : operands[i-1]);
+          } else {
+            work2 = FHIRPathEngine.this.execute(context, focus, operands[i], true);
+            work = operate(context, work, op, work2, i == 0 ? exp : operands[i-1]);
+          }
+        }
+      }
+      return work;
+    }
+  }
+
+  /**
+   * Compile a parsed (and preferably checked) expression for repeated execution
+   *  
+   * @param expr
+   * @return
+   * @throws FHIRException
+   */
+  public CompiledExpression compile(ExpressionNode expr) throws FHIRException {
+    CompiledExpression result = new CompiledExpression(this, expr);
+    compileNode(result, expr, true);
+    return result;
+  }
+
+  private void compileNode(CompiledExpression ce, ExpressionNode exp, boolean atEntry) {
+    if (exp == null || ce.nodes.containsKey(exp)) {
+      return;
+    }
+    CompiledNode node = new CompiledNode();
+    node.exp = exp;
+    node.atEntry = atEntry;
+    node.kind = compileKind(ce, exp, atEntry);
+    node.lazyChain = lazyTerminal(exp) != null;
+    ce.nodes.put(exp, node);
+    if (exp.getInner() != null) {
+      node.inner = exp.getInner();
+      compileNode(ce, exp.getInner(), false);
+    }
+    if (exp.isProximal() && exp.getOperation() != null) {
+      List<Operation> ops = new ArrayList<>();
+      List<ExpressionNode> operands = new ArrayList<>();
+      ExpressionNode last = exp;
+      ExpressionNode next = exp.getOpNext();
+      while (next != null) {
+        ops.add(last.getOperation());
+        operands.add(next);
+        if (last.getOperation() != Operation.Is && last.getOperation() != Operation.As) {
+          compileNode(ce, next, true);
+        }
+        last = next;
+        next = next.getOpNext();
+      }
+      node.operations = ops.toArray(new Operation[ops.size()]);
+      node.operands = operands.toArray(new ExpressionNode[operands.size()]);
+    }
+  }
+
+  private NodeKindEvaluator compileKind(CompiledExpression ce, ExpressionNode exp, boolean atEntry) {
+    switch (exp.getKind()) {
+    case Unary:
+      return (context, focus) -> makeList(new IntegerType(0));
+    case Name:
+      final String name = exp.getName();
+      if (atEntry && name.equals("$this")) {
+        return (context, focus) -> makeList(context.getThisItem());
+      } else if (atEntry && name.equals("$total")) {
+        return (context, focus) -> new ArrayList<Base>(context.getTotal());
+      } else if (atEntry && name.equals("$index")) {
+        return (context, focus) -> makeList(context.getIndex());
+      } else if (atEntry) {
+        // constants and type names are only possible at entry 
+        return (context, focus) -> {
+          List<Base> work = new ArrayList<Base>();
+          for (Base item : focus) {
+            for (Base base : execute(context, item, exp, true)) {
+              if (base != null) {
+                work.add(base);
+              }
+            }
+          }
+          return work;
+        };
+      } else {
+        return (context, focus) -> {
+          List<Base> work = new ArrayList<Base>();
+          for (Base item : focus) {
+            getChildrenByName(item, name, work);
+          }
+          return work;
+        };
+      }
+    case Function:
+      for (ExpressionNode p : exp.getParameters()) {
+        compileNode(ce, p, true);
+      }
+      final FunctionHandler handler = functions.containsKey(exp.getFunction()) ? functions.get(exp.getFunction()) : this::evaluateFunction;
+      return (context, focus) -> new ArrayList<Base>(handler.execute(context, focus, exp));
+    case Constant:
+      final Base constant = exp.getConstant();
+      if (constant != null && !(constant instanceof FHIRConstant)) {
+        return (context, focus) -> makeList(constant);
+      } else {
+        return (context, focus) -> new ArrayList<Base>(resolveConstant(context, constant, false, exp));
+      }
+    case Group:
+      compileNode(ce, exp.getGroup(), atEntry);
+      return (context, focus) -> new ArrayList<Base>(execute(context, focus, exp.getGroup(), atEntry));
+    default:
+      return (context, focus) -> new ArrayList<Base>();
+    }
+  }
+
+  private List<Base> makeList(Base b) {
+    List<Base> res = new ArrayList<Base>();
+    res.add(b);
+    return res;
+  }
+
+  /**
+   * evaluate a compiled expression and return the matching elements
+   * 
+   * @param base - the object against which the path is being evaluated
+   * @param expr - the compiled expression to use
+   * @return
+   * @throws FHIRException 
+   */
+  public List<Base> evaluate(Object appContext, Base focusResource, Base rootResource, Base base, CompiledExpression expr) throws FHIRException {
+    if (expr.engine != this) {
+      throw new FHIRException("This expression was compiled by a different engine");
+    }
+    List<Base> list = new ArrayList<Base>();
+    if (base != null) {
+      list.add(base);
+    }
+    ExecutionContext context = new ExecutionContext(appContext, focusResource, rootResource, base, null, base, startLog());
+    context.compiled = expr;
+    return execute(context, list, expr.expression, true);
+  }
+
+  /**
+   * evaluate a compiled expression and return true or false (e.g. for an invariant)
+   * 
+   * @param base - the object against which the path is being evaluated
+   * @return
+   * @throws FHIRException 
+   */
+  public boolean evaluateToBoolean(Object appInfo, Base focusResource, Base rootResource, Base base, CompiledExpression expr) throws FHIRException {
+    return convertToBoolean(evaluate(appInfo, focusResource, rootResource, base, expr));
+  }
+
+  // --- batch evaluation -------------------------------------------------------
+
+  private class BatchIterator implements Iterator<List<Base>> {
+    private Object appContext;
+    private CompiledExpression expr;
+    private Iterator<? extends Base> items;
+    private ExecutionContext context;
+    private ExecutorService executor;
+    private int window;
+    private ArrayDeque<Future<List<Base>>> pending = new ArrayDeque<>();
+
+    private BatchIterator(Object appContext, CompiledExpression expr, Iterator<? extends Base> items, ExecutorService executor, int window) {
+      super();
+      if (expr.engine != FHIRPathEngine.this) {
+        throw new FHIRException("This expression was compiled by a different engine");
+      }
+      this.appContext = appContext;
+      this.expr = expr;
+      this.items = items;
+      this.executor = executor;
+      this.window = Math.max(1, window);
+      if (executor == null) {
+        context = makeBatchContext();
+      }
+    }
+
+    private ExecutionContext makeBatchContext() {
+      ExecutionContext ctxt = new ExecutionContext(appContext, null, null, null, null, null, new StringBuilder());
+      ctxt.compiled = expr;
+      return ctxt;
+    }
+
+    private List<Base> evaluateItem(ExecutionContext ctxt, Base item) throws FHIRException {
+      ctxt.reset(item);
+      List<Base> list = new ArrayList<Base>();
+      if (item != null) {
+        list.add(item);
+      }
+      return execute(ctxt, list, expr.expression, true);
+    }
+
+    private void fill() {
+      while (pending.size() < window && items.hasNext()) {
+        Base item = items.next();
+        pending.add(executor.submit(() -> evaluateItem(makeBatchContext(), item)));
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (executor == null) {
+        return items.hasNext();
+      }
+      fill();
+      return !pending.isEmpty();
+    }
+
+    @Override
+    public List<Base> next() {
+      if (executor == null) {
+        return evaluateItem(context, items.next());
+      }
+      fill();
+      if (pending.isEmpty()) {
+        throw new NoSuchElementException();
+      }
+      Future<List<Base>> f = pending.poll();
+      try {
+        return f.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new FHIRException(e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        } else if (e.getCause() instanceof Error) {
+          throw (Error) e.getCause();
+        } else {
+          throw new FHIRException(e.getCause());
+        }
+      }
+    }
+  }
+
+  /**
+   * evaluate a compiled expression against each item in turn, as evaluate(appContext, item, item, item, expr) 
+   * would. Items are read and evaluated as the 
+   * results are iterated, and the results are not kept, so this works for large sets of items
+   * 
+   * @return the outcome for each item, in the same order as the items
+   */
+  public Iterable<List<Base>> evaluateBatch(Object appContext, CompiledExpression expr, Iterable<? extends Base> items) throws FHIRException {
+    return () -> new BatchIterator(appContext, expr, items.iterator(), null, 1);
+  }
+
+  /**
+   * as for evaluateBatch(Iterable) but as a (sequential) stream
+   */
+  public Stream<List<Base>> evaluateBatch(Object appContext, CompiledExpression expr, Stream<? extends Base> items) throws FHIRException {
+    return batchStream(new BatchIterator(appContext, expr, items.iterator(), null, 1));
+  }
+
+  /**
+   * as for evaluateBatch(Stream), but the items are evaluated on the executor, with up to [window] items 
+   * in progress at once. The results are still returned in the order of the items. 
+   * 
+   * Note that the IEvaluationContext must be thread safe to use this
+   */
+  public Stream<List<Base>> evaluateBatch(Object appContext, CompiledExpression expr, Stream<? extends Base> items, ExecutorService executor, int window) throws FHIRException {
+    return batchStream(new BatchIterator(appContext, expr, items.iterator(), executor, window));
+  }
+
+  public Stream<Boolean> evaluateToBooleanBatch(Object appContext, CompiledExpression expr, Stream<? extends Base> items) throws FHIRException {
+    return evaluateBatch(appContext, expr, items).map(this::convertToBoolean);
+  }
+
+  public Stream<Boolean> evaluateToBooleanBatch(Object appContext, CompiledExpression expr, Stream<? extends Base> items, ExecutorService executor, int window) throws FHIRException {
+    return evaluateBatch(appContext, expr, items, executor, window).map(this::convertToBoolean);
+  }
+
+  private Stream<List<Base>> batchStream(BatchIterator iterator) {
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false);
+  }
+
   public boolean hasLog() {
-    return log != null && log.length() > 0;
+    return log.get().length() > 0;
   }
 
 
@@ -6332,8 +7332,8 @@ public class FHIRPathEngine {
     if (!hasLog()) {
       return "";
     }
-    String s = log.toString();
-    log = new StringBuilder();
+    String s = log.get().toString();
+    log.set(new StringBuilder());
     return s;
   }
 
@@ -6636,6 +7636,94 @@ public class FHIRPathEngine {
     this.allowDoubleQuotes = allowDoubleQuotes;    
   }
 
+  /**
+   * the cache used by parseCached() and the string based evaluate routines. 
+   * Use this to get hit/miss statistics or change the size (0 turns caching off)
+   */
+  public FHIRPathExpressionCache getExpressionCache() {
+    return expressionCache;
+  }
+
+  public boolean isLazyEvaluation() {
+    return lazyEvaluation;
+  }
+
+  /**
+   * if lazy evaluation is on, navigation, where(), select(), children(), descendants() and repeat() 
+   * feeding into exists(), empty() or first() stop as soon as the outcome is known
+   */
+  public void setLazyEvaluation(boolean lazyEvaluation) {
+    this.lazyEvaluation = lazyEvaluation;
+  }
+
+  public int getMaxNodes() {
+    return maxNodes;
+  }
+
+  /**
+   * the maximum number of expression nodes that a single evaluation can visit (0 = no limit). 
+   * Evaluations that go over budget throw a PathEngineBudgetException
+   */
+  public void setMaxNodes(int maxNodes) {
+    this.maxNodes = maxNodes;
+    updateBudgeted();
+  }
+
+  public int getMaxCollectionSize() {
+    return maxCollectionSize;
+  }
+
+  /**
+   * the largest collection that a single evaluation can produce at any step (0 = no limit)
+   */
+  public void setMaxCollectionSize(int maxCollectionSize) {
+    this.maxCollectionSize = maxCollectionSize;
+    updateBudgeted();
+  }
+
+  public long getMaxTime() {
+    return maxTime;
+  }
+
+  /**
+   * the longest a single evaluation can run, in milliseconds (0 = no limit). Time spent 
+   * in the host services and terminology services counts
+   */
+  public void setMaxTime(long maxTime) {
+    this.maxTime = maxTime;
+    updateBudgeted();
+  }
+
+  public boolean isMemoiseLookups() {
+    return memoiseLookups;
+  }
+
+  /**
+   * if this is true, the outcomes of memberOf(), resolve() and conformsTo() are remembered 
+   * across evaluations on the same root resource, and resolve() is remembered by the reference 
+   * string alone. Don't use this if the host services can give different answers for the same 
+   * arguments within a root resource, or if the root resource is changed between evaluations
+   */
+  public void setMemoiseLookups(boolean memoiseLookups) {
+    this.memoiseLookups = memoiseLookups;
+    memos.remove();
+  }
+
+  public LookupStatistics getLookupStatistics() {
+    return lookupStatistics;
+  }
+
+  public FHIRPathProfiler getProfiler() {
+    return profiler;
+  }
+
+  /**
+   * if a profiler is set, every node evaluation is timed and recorded (this has a cost; don't leave it on in production)
+   */
+  public void setProfiler(FHIRPathProfiler profiler) {
+    this.profiler = profiler;
+  }
+
   public boolean isEmitSQLonFHIRWarning() {
     return emitSQLonFHIRWarning;
   }
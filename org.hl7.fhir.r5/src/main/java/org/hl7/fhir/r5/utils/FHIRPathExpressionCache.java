@@ -0,0 +1,110 @@
+package org.hl7.fhir.r5.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hl7.fhir.r5.model.ExpressionNode;
+
+/**
+ * A size bounded, least-recently-used cache of parsed FHIRPath expressions, keyed
+ * by the expression text (and the parse options, host services and FHIR version that 
+ * were in force - see FHIRPathEngine.parseCached()). Each engine has its own cache.
+ *
+ * Parsed expressions are not modified by evaluation, so a cached node can be
+ * handed out to many threads at once.
+ *
+ * A max size of 0 disables caching
+ */
+public class FHIRPathExpressionCache {
+
+  public static final int DEFAULT_MAX_SIZE = 2000;
+
+  private int maxSize;
+  private final Map<String, ExpressionNode> cache;
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+
+  public FHIRPathExpressionCache(int maxSize) {
+    super();
+    this.maxSize = maxSize;
+    this.cache = new LinkedHashMap<String, ExpressionNode>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, ExpressionNode> eldest) {
+        return size() > FHIRPathExpressionCache.this.maxSize;
+      }
+    };
+  }
+
+  /**
+   * @return the parsed expression, or null if it's not in the cache
+   */
+  public ExpressionNode get(String key) {
+    if (maxSize == 0) {
+      return null;
+    }
+    ExpressionNode node;
+    synchronized (cache) {
+      node = cache.get(key);
+    }
+    if (node == null) {
+      missCount.incrementAndGet();
+    } else {
+      hitCount.incrementAndGet();
+    }
+    return node;
+  }
+
+  public void put(String key, ExpressionNode node) {
+    if (maxSize > 0) {
+      synchronized (cache) {
+        cache.put(key, node);
+      }
+    }
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  public void setMaxSize(int maxSize) {
+    synchronized (cache) {
+      this.maxSize = maxSize;
+      if (maxSize == 0) {
+        cache.clear();
+      } else {
+        while (cache.size() > maxSize) {
+          cache.remove(cache.keySet().iterator().next());
+        }
+      }
+    }
+  }
+
+  public int size() {
+    synchronized (cache) {
+      return cache.size();
+    }
+  }
+
+  public void clear() {
+    synchronized (cache) {
+      cache.clear();
+    }
+    hitCount.set(0);
+    missCount.set(0);
+  }
+
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  public String summary() {
+    return "FHIRPath expression cache: "+size()+"/"+maxSize+" entries, "+getHitCount()+" hits, "+getMissCount()+" misses";
+  }
+}
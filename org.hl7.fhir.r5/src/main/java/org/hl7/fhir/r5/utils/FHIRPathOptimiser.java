@@ -0,0 +1,385 @@
+package org.hl7.fhir.r5.utils;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r5.model.Base;
+import org.hl7.fhir.r5.model.BooleanType;
+import org.hl7.fhir.r5.model.DecimalType;
+import org.hl7.fhir.r5.model.ExpressionNode;
+import org.hl7.fhir.r5.model.ExpressionNode.CollectionStatus;
+import org.hl7.fhir.r5.model.ExpressionNode.Function;
+import org.hl7.fhir.r5.model.ExpressionNode.Kind;
+import org.hl7.fhir.r5.model.ExpressionNode.Operation;
+import org.hl7.fhir.r5.model.IntegerType;
+import org.hl7.fhir.r5.model.StringType;
+import org.hl7.fhir.r5.model.TypeDetails;
+import org.hl7.fhir.r5.utils.FHIRPathUtilityClasses.FHIRConstant;
+import org.hl7.fhir.utilities.Utilities;
+
+/**
+ * A static optimisation pass over a parsed FHIRPath expression. Best run after FHIRPathEngine.check(),
+ * since some of the rewrites depend on knowing that an operand is a single boolean.
+ *
+ * The optimiser:
+ *   - folds sub-expressions that don't depend on the focus into constants (e.g. 1 + 2, 'abc'.length(), %loinc)
+ *   - removes redundant operands from and / or chains (true and X -> X, false and X -> false)
+ *   - rewrites where(cond).exists() to exists(cond), which stops at the first match
+ *
+ * The expression is modified in place, though the root node may be replaced, so always use the returned node.
+ */
+public class FHIRPathOptimiser {
+
+  private static final EnumSet<Function> PURE_FUNCTIONS = EnumSet.of(Function.Empty, Function.Not, Function.Exists, Function.Count,
+      Function.IsDistinct, Function.Distinct, Function.Single, Function.First, Function.Last, Function.Tail, Function.Skip, Function.Take,
+      Function.Union, Function.Combine, Function.Intersect, Function.Exclude, Function.Iif, Function.Lower, Function.Upper, Function.ToChars,
+      Function.IndexOf, Function.Substring, Function.StartsWith, Function.EndsWith, Function.Matches, Function.MatchesFull, Function.ReplaceMatches,
+      Function.Contains, Function.Replace, Function.Length, Function.AllFalse, Function.AnyFalse, Function.AllTrue, Function.AnyTrue,
+      Function.Encode, Function.Decode, Function.Escape, Function.Unescape, Function.Trim, Function.Split, Function.Join,
+      Function.ToInteger, Function.ToDecimal, Function.ToString, Function.ToBoolean, Function.ConvertsToInteger, Function.ConvertsToDecimal,
+      Function.ConvertsToString, Function.ConvertsToBoolean, Function.Round, Function.Sqrt, Function.Abs, Function.Ceiling, Function.Exp,
+      Function.Floor, Function.Ln, Function.Log, Function.Power, Function.Truncate);
+
+  private FHIRPathEngine engine;
+  // the validator shares one optimiser between the threads checking bundle entries
+  private AtomicLong expressionCount = new AtomicLong();
+  private AtomicLong nodesRemoved = new AtomicLong();
+  private ThreadLocal<Integer> lastNodesRemoved = ThreadLocal.withInitial(() -> 0);
+
+  public FHIRPathOptimiser(FHIRPathEngine engine) {
+    super();
+    this.engine = engine;
+  }
+
+  /**
+   * optimise the expression.
+   *
+   * @param expr - the parsed (and checked) expression
+   * @return the root of the optimised expression (which may not be the same node)
+   */
+  public ExpressionNode optimise(ExpressionNode expr) {
+    int before = countNodes(expr);
+    ExpressionNode result = optimiseChain(expr);
+    int removed = before - countNodes(result);
+    lastNodesRemoved.set(removed);
+    nodesRemoved.addAndGet(removed);
+    expressionCount.incrementAndGet();
+    return result;
+  }
+
+  /**
+   * @return the number of nodes removed from the last expression optimised on this thread
+   */
+  public int getLastNodesRemoved() {
+    return lastNodesRemoved.get();
+  }
+
+  /**
+   * @return the number of nodes removed from all the expressions optimised by this optimiser
+   */
+  public long getNodesRemoved() {
+    return nodesRemoved.get();
+  }
+
+  public long getExpressionCount() {
+    return expressionCount.get();
+  }
+
+  public static int countNodes(ExpressionNode node) {
+    if (node == null) {
+      return 0;
+    }
+    int result = 1 + countNodes(node.getGroup()) + countNodes(node.getInner()) + countNodes(node.getOpNext());
+    if (node.getKind() == Kind.Function) {
+      for (ExpressionNode p : node.getParameters()) {
+        result = result + countNodes(p);
+      }
+    }
+    return result;
+  }
+
+  // --- chains: a term, followed by a series of operations and terms ----------------------
+
+  private ExpressionNode optimiseChain(ExpressionNode head) {
+    boolean proximal = head.isProximal();
+    List<ExpressionNode> terms = new ArrayList<>();
+    List<Operation> ops = new ArrayList<>();
+    ExpressionNode focus = head;
+    while (focus != null) {
+      terms.add(focus);
+      if (focus.getOpNext() != null) {
+        ops.add(focus.getOperation());
+      }
+      focus = focus.getOpNext();
+    }
+    if (!proximal && terms.size() > 1) {
+      // operations on a non-proximal node are never executed - leave them alone
+      terms.set(0, optimiseTerm(head));
+      return terms.get(0);
+    }
+    for (int i = 0; i < terms.size(); i++) {
+      if (i == 0 || (ops.get(i-1) != Operation.Is && ops.get(i-1) != Operation.As)) {
+        terms.set(i, optimiseTerm(terms.get(i)));
+      }
+    }
+    if (terms.size() > 1 && allOps(ops, Operation.And)) {
+      simplifyBoolean(terms, ops, false);
+    } else if (terms.size() > 1 && allOps(ops, Operation.Or)) {
+      simplifyBoolean(terms, ops, true);
+    }
+    ExpressionNode result = link(terms, ops, proximal);
+    if (terms.size() > 1 && allConstant(terms)) {
+      result = fold(result, result.getOpTypes());
+    }
+    return result;
+  }
+
+  private ExpressionNode link(List<ExpressionNode> terms, List<Operation> ops, boolean proximal) {
+    for (int i = 0; i < terms.size(); i++) {
+      ExpressionNode t = terms.get(i);
+      t.setProximal(i == 0 ? proximal : false);
+      if (i < terms.size() - 1) {
+        t.setOperation(ops.get(i));
+        t.setOpNext(terms.get(i+1));
+      } else {
+        t.setOperation(null);
+        t.setOpNext(null);
+      }
+    }
+    return terms.get(0);
+  }
+
+  private boolean allOps(List<Operation> ops, Operation op) {
+    for (Operation o : ops) {
+      if (o != op) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean allConstant(List<ExpressionNode> terms) {
+    for (ExpressionNode t : terms) {
+      boolean unary = t.getKind() == Kind.Unary && t.getInner() == null;
+      if (!unary && (!isSimpleConstant(t) || (t.getConstant() instanceof FHIRConstant))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * in an and chain, 'false' decides the outcome, and 'true' makes no difference.
+   * in an or chain, it's the other way around
+   */
+  private void simplifyBoolean(List<ExpressionNode> terms, List<Operation> ops, boolean deciding) {
+    for (ExpressionNode t : terms) {
+      if (isBooleanConstant(t, deciding)) {
+        ExpressionNode c = makeConstant(t, new BooleanType(deciding).noExtensions(), t.getTypes());
+        terms.clear();
+        ops.clear();
+        terms.add(c);
+        return;
+      }
+    }
+    List<ExpressionNode> remaining = new ArrayList<>();
+    for (ExpressionNode t : terms) {
+      if (!isBooleanConstant(t, !deciding)) {
+        remaining.add(t);
+      }
+    }
+    if (remaining.size() == terms.size()) {
+      return;
+    }
+    if (remaining.isEmpty()) {
+      remaining.add(makeConstant(terms.get(0), new BooleanType(!deciding).noExtensions(), terms.get(0).getTypes()));
+    } else if (remaining.size() == 1 && !isSingleBoolean(remaining.get(0))) {
+      // the operation converts the operand to a boolean, so we can't remove it
+      return;
+    }
+    Operation op = ops.get(0);
+    terms.clear();
+    terms.addAll(remaining);
+    ops.clear();
+    for (int i = 1; i < terms.size(); i++) {
+      ops.add(op);
+    }
+  }
+
+  private boolean isBooleanConstant(ExpressionNode t, boolean value) {
+    return isSimpleConstant(t) && t.getConstant() instanceof BooleanType && ((BooleanType) t.getConstant()).getValue() == value;
+  }
+
+  private boolean isSingleBoolean(ExpressionNode t) {
+    if (isSimpleConstant(t)) {
+      return t.getConstant() instanceof BooleanType;
+    }
+    while (t.getInner() != null) {
+      t = t.getInner();
+    }
+    TypeDetails td = t.getTypes();
+    return td != null && td.getCollectionStatus() == CollectionStatus.SINGLETON && td.getTypes().size() == 1 && td.hasType("boolean");
+  }
+
+  private boolean isSimpleConstant(ExpressionNode t) {
+    return t.getKind() == Kind.Constant && t.getInner() == null && t.getConstant() != null;
+  }
+
+  // --- terms: a node, it's group or parameters, and the chain of inner nodes -------------
+
+  private ExpressionNode optimiseTerm(ExpressionNode term) {
+    ExpressionNode focus = term;
+    while (focus != null) {
+      if (focus.getKind() == Kind.Group && focus.getGroup() != null) {
+        focus.setGroup(optimiseChain(focus.getGroup()));
+      } else if (focus.getKind() == Kind.Function) {
+        List<ExpressionNode> params = focus.getParameters();
+        for (int i = 0; i < params.size(); i++) {
+          params.set(i, optimiseChain(params.get(i)));
+        }
+        rewriteWhereExists(focus);
+      }
+      focus = focus.getInner();
+    }
+    if (term.getKind() == Kind.Group && term.getInner() == null && isSimpleConstant(term.getGroup()) && term.getGroup().getOpNext() == null) {
+      // (constant)
+      ExpressionNode c = term.getGroup();
+      c.setOperation(term.getOperation());
+      c.setOpNext(term.getOpNext());
+      c.setOpStart(term.getOpStart());
+      c.setOpEnd(term.getOpEnd());
+      c.setProximal(term.isProximal());
+      return c;
+    }
+    if (!isSimpleConstant(term) && term.getKind() != Kind.Unary && isFoldable(term)) {
+      ExpressionNode last = term;
+      while (last.getInner() != null) {
+        last = last.getInner();
+      }
+      // evaluate the term on it's own, without the operations that follow it
+      boolean proximal = term.isProximal();
+      term.setProximal(false);
+      try {
+        ExpressionNode c = fold(term, last.getTypes());
+        if (c != term) {
+          c.setOperation(term.getOperation());
+          c.setOpNext(term.getOpNext());
+          c.setOpStart(term.getOpStart());
+          c.setOpEnd(term.getOpEnd());
+        }
+        c.setProximal(proximal);
+        return c;
+      } finally {
+        term.setProximal(proximal);
+      }
+    }
+    return term;
+  }
+
+  /**
+   * where(cond).exists() --> exists(cond)
+   */
+  private void rewriteWhereExists(ExpressionNode node) {
+    ExpressionNode next = node.getInner();
+    if (node.getFunction() == Function.Where && next != null && next.getKind() == Kind.Function && next.getFunction() == Function.Exists && next.getParameters().isEmpty()) {
+      node.setFunction(Function.Exists);
+      node.setName("exists");
+      node.setInner(next.getInner());
+      node.setTypes(next.getTypes());
+      node.setEnd(next.getEnd());
+    }
+  }
+
+  private boolean isFoldable(ExpressionNode term) {
+    if (term.getKind() == Kind.Function) {
+      // a function at the start of a term operates on the focus
+      return false;
+    }
+    ExpressionNode focus = term;
+    while (focus != null) {
+      switch (focus.getKind()) {
+      case Name:
+        return false;
+      case Constant:
+        if (focus.getConstant() instanceof FHIRConstant && !isFixedConstant(((FHIRConstant) focus.getConstant()).getValue())) {
+          return false;
+        }
+        break;
+      case Group:
+        if (!isFoldableChain(focus.getGroup())) {
+          return false;
+        }
+        break;
+      case Function:
+        if (!PURE_FUNCTIONS.contains(focus.getFunction())) {
+          return false;
+        }
+        for (ExpressionNode p : focus.getParameters()) {
+          if (!isFoldableChain(p)) {
+            return false;
+          }
+        }
+        break;
+      case Unary:
+        break;
+      }
+      focus = focus.getInner();
+    }
+    return true;
+  }
+
+  private boolean isFoldableChain(ExpressionNode node) {
+    while (node != null) {
+      if (!isFoldable(node)) {
+        return false;
+      }
+      node = node.getOpNext();
+    }
+    return true;
+  }
+
+  /**
+   * these constants are resolved by the engine without reference to the host or the focus
+   */
+  private boolean isFixedConstant(String s) {
+    return s.startsWith("@") || Utilities.existsInList(s, "%sct", "%loinc", "%ucum", "%us-zip") || s.startsWith("%`vs-") || s.startsWith("%`cs-") || s.startsWith("%`ext-");
+  }
+
+  /**
+   * evaluate the node, and if the outcome is a single value that can be represented as a constant,
+   * return a constant node instead. Otherwise return the node unchanged. An empty outcome isn't
+   * folded, since a constant node always has a value
+   */
+  private ExpressionNode fold(ExpressionNode node, TypeDetails types) {
+    List<Base> outcome;
+    try {
+      outcome = engine.evaluate((Base) null, node);
+    } catch (FHIRException e) {
+      // leave it to fail at run time
+      return node;
+    }
+    if (outcome.size() == 1 && outcome.get(0) != null && isLiteral(outcome.get(0))) {
+      return makeConstant(node, outcome.get(0), types);
+    } else {
+      return node;
+    }
+  }
+
+  private boolean isLiteral(Base b) {
+    return b.getClass() == BooleanType.class || b.getClass() == IntegerType.class || b.getClass() == DecimalType.class || b.getClass() == StringType.class;
+  }
+
+  private ExpressionNode makeConstant(ExpressionNode node, Base value, TypeDetails types) {
+    ExpressionNode result = new ExpressionNode(Integer.parseInt(node.getUniqueId()));
+    result.setKind(Kind.Constant);
+    result.setConstant(value);
+    result.setStart(node.getStart());
+    result.setEnd(node.getEnd());
+    result.setProximal(node.isProximal());
+    result.setTypes(types);
+    return result;
+  }
+}
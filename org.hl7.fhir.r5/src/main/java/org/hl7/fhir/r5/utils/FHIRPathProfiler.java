@@ -0,0 +1,411 @@
+package org.hl7.fhir.r5.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+
+import org.hl7.fhir.r5.model.ExpressionNode;
+import org.hl7.fhir.utilities.Utilities;
+import org.hl7.fhir.utilities.json.model.JsonArray;
+import org.hl7.fhir.utilities.json.model.JsonObject;
+import org.hl7.fhir.utilities.json.parser.JsonParser;
+
+/**
+ * Records how often, and for how long, each FHIRPath expression (and each node
+ * within it) is evaluated, so that the constraints that dominate validation time
+ * can be found.
+ *
+ * Install it with FHIRPathEngine.setProfiler(). Times for a node include the time
+ * spent in the rest of the path that follows it, and in its parameters.
+ *
+ * Hosts can say where an expression came from (e.g. the profile url and constraint
+ * key) using registerOwner(); the report groups expressions by their text, and lists
+ * all the owners for each.
+ *
+ * Each thread records into its own maps, which are merged when a report is made, so
+ * that threads don't wait for each other. The expressions are held weakly, so the profiler
+ * doesn't keep parse trees alive; an expression that has been dropped by the time the report
+ * is made isn't in the report.
+ */
+public class FHIRPathProfiler {
+
+  public static class Stats {
+    private long count;
+    private long totalTime;
+    private long maxTime;
+    private long totalInput;
+    private long maxInput;
+    private long totalOutput;
+    private long maxOutput;
+
+    private void record(long time, int input, int output) {
+      count++;
+      totalTime += time;
+      maxTime = Math.max(maxTime, time);
+      totalInput += input;
+      maxInput = Math.max(maxInput, input);
+      totalOutput += output;
+      maxOutput = Math.max(maxOutput, output);
+    }
+
+    private void add(Stats other) {
+      count += other.count;
+      totalTime += other.totalTime;
+      maxTime = Math.max(maxTime, other.maxTime);
+      totalInput += other.totalInput;
+      maxInput = Math.max(maxInput, other.maxInput);
+      totalOutput += other.totalOutput;
+      maxOutput = Math.max(maxOutput, other.maxOutput);
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    /**
+     * @return total time in nanoseconds
+     */
+    public long getTotalTime() {
+      return totalTime;
+    }
+
+    /**
+     * @return longest single evaluation in nanoseconds
+     */
+    public long getMaxTime() {
+      return maxTime;
+    }
+
+    public long getTotalInput() {
+      return totalInput;
+    }
+
+    public long getMaxInput() {
+      return maxInput;
+    }
+
+    public long getTotalOutput() {
+      return totalOutput;
+    }
+
+    public long getMaxOutput() {
+      return maxOutput;
+    }
+
+    private JsonObject toJson() {
+      JsonObject json = new JsonObject();
+      json.add("count", count);
+      json.add("totalMicros", totalTime / 1000);
+      json.add("maxMicros", maxTime / 1000);
+      json.add("avgMicros", count == 0 ? 0 : totalTime / count / 1000);
+      json.add("avgInput", count == 0 ? 0 : totalInput / count);
+      json.add("maxInput", maxInput);
+      json.add("avgOutput", count == 0 ? 0 : totalOutput / count);
+      json.add("maxOutput", maxOutput);
+      return json;
+    }
+  }
+
+  /**
+   * the profile of all the expressions that have the same text
+   */
+  public static class ExpressionProfile {
+    private String expression;
+    private Stats stats = new Stats();
+    private Set<String> owners = new TreeSet<>();
+    private List<String> nodes = new ArrayList<>();
+    private List<Stats> nodeStats = new ArrayList<>();
+
+    public String getExpression() {
+      return expression;
+    }
+
+    public Stats getStats() {
+      return stats;
+    }
+
+    public Set<String> getOwners() {
+      return owners;
+    }
+
+    /**
+     * @return the text of each node (in tree order) with it's stats, most expensive first
+     */
+    public Map<String, Stats> getNodes() {
+      List<Integer> order = new ArrayList<>();
+      for (int i = 0; i < nodes.size(); i++) {
+        order.add(i);
+      }
+      Collections.sort(order, (a, b) -> Long.compare(nodeStats.get(b).totalTime, nodeStats.get(a).totalTime));
+      Map<String, Stats> res = new LinkedHashMap<>();
+      for (int i : order) {
+        if (nodeStats.get(i).count > 0) {
+          res.putIfAbsent(nodes.get(i), nodeStats.get(i));
+        }
+      }
+      return res;
+    }
+  }
+
+  /**
+   * what one thread has recorded. Only that thread changes it, but it's read when a report is made
+   */
+  private static class Accumulator {
+    // ExpressionNode doesn't override equals(), so these are keyed by identity
+    private final Map<ExpressionNode, Stats> nodes = new WeakHashMap<>();
+    private final Map<ExpressionNode, Stats> roots = new WeakHashMap<>();
+    private int depth;
+  }
+
+  private final List<Accumulator> accumulators = new ArrayList<>();
+  private final ThreadLocal<Accumulator> accumulator = ThreadLocal.withInitial(this::newAccumulator);
+  private final Map<ExpressionNode, Set<String>> owners = new WeakHashMap<>();
+  private final Map<ExpressionNode, String> texts = new WeakHashMap<>();
+
+  private Accumulator newAccumulator() {
+    Accumulator acc = new Accumulator();
+    synchronized (accumulators) {
+      accumulators.add(acc);
+    }
+    return acc;
+  }
+
+  /**
+   * Note that the expression (as parsed, or compiled) came from the nominated
+   * source - typically profile url#constraint key
+   */
+  public synchronized void registerOwner(ExpressionNode expression, String owner) {
+    Set<String> set = owners.get(expression);
+    if (set == null) {
+      set = new TreeSet<>();
+      owners.put(expression, set);
+    }
+    set.add(owner);
+  }
+
+  /**
+   * As registerOwner(expression, owner), but report the expression with the given text (e.g. the
+   * expression as written, when what's evaluated is an optimised copy of it)
+   */
+  public synchronized void registerOwner(ExpressionNode expression, String text, String owner) {
+    texts.put(expression, text);
+    registerOwner(expression, owner);
+  }
+
+  /**
+   * called by the engine as it starts evaluating a node
+   *
+   * @return the start time to pass to end()
+   */
+  public long start() {
+    accumulator.get().depth++;
+    return System.nanoTime();
+  }
+
+  /**
+   * called by the engine when a node has been evaluated (whether it succeeded or not)
+   */
+  public void end(ExpressionNode node, long start, int input, int output) {
+    long time = System.nanoTime() - start;
+    Accumulator acc = accumulator.get();
+    boolean root = --acc.depth == 0;
+    // only contended while a report is being made
+    synchronized (acc) {
+      record(acc.nodes, node, time, input, output);
+      if (root) {
+        record(acc.roots, node, time, input, output);
+      }
+    }
+  }
+
+  private void record(Map<ExpressionNode, Stats> map, ExpressionNode node, long time, int input, int output) {
+    Stats stats = map.get(node);
+    if (stats == null) {
+      stats = new Stats();
+      map.put(node, stats);
+    }
+    stats.record(time, input, output);
+  }
+
+  public void clear() {
+    synchronized (accumulators) {
+      for (Accumulator acc : accumulators) {
+        synchronized (acc) {
+          acc.nodes.clear();
+          acc.roots.clear();
+        }
+      }
+    }
+    synchronized (this) {
+      owners.clear();
+      texts.clear();
+    }
+  }
+
+  /**
+   * merge what each thread has recorded
+   */
+  private void merge(Map<ExpressionNode, Stats> nodes, Map<ExpressionNode, Stats> roots) {
+    synchronized (accumulators) {
+      for (Accumulator acc : accumulators) {
+        synchronized (acc) {
+          merge(nodes, acc.nodes);
+          merge(roots, acc.roots);
+        }
+      }
+    }
+  }
+
+  private void merge(Map<ExpressionNode, Stats> total, Map<ExpressionNode, Stats> part) {
+    for (Map.Entry<ExpressionNode, Stats> t : part.entrySet()) {
+      Stats stats = total.get(t.getKey());
+      if (stats == null) {
+        stats = new Stats();
+        total.put(t.getKey(), stats);
+      }
+      stats.add(t.getValue());
+    }
+  }
+
+  /**
+   * @return a profile for each distinct expression that has been evaluated, most expensive first
+   */
+  public synchronized List<ExpressionProfile> getProfiles() {
+    Map<ExpressionNode, Stats> nodes = new IdentityHashMap<>();
+    Map<ExpressionNode, Stats> roots = new IdentityHashMap<>();
+    merge(nodes, roots);
+    Map<String, ExpressionProfile> map = new HashMap<>();
+    for (ExpressionNode root : roots.keySet()) {
+      String text = texts.containsKey(root) ? texts.get(root) : root.toString();
+      ExpressionProfile profile = map.get(text);
+      List<ExpressionNode> list = new ArrayList<>();
+      listNodes(root, list);
+      if (profile == null) {
+        profile = new ExpressionProfile();
+        profile.expression = text;
+        for (ExpressionNode node : list) {
+          profile.nodes.add(node.toString());
+          profile.nodeStats.add(new Stats());
+        }
+        map.put(text, profile);
+      }
+      profile.stats.add(roots.get(root));
+      if (owners.containsKey(root)) {
+        profile.owners.addAll(owners.get(root));
+      }
+      // same text, so (almost always) same shape; nodes line up by position
+      for (int i = 0; i < list.size() && i < profile.nodeStats.size(); i++) {
+        Stats stats = nodes.get(list.get(i));
+        if (stats != null) {
+          profile.nodeStats.get(i).add(stats);
+        }
+      }
+    }
+    List<ExpressionProfile> res = new ArrayList<>(map.values());
+    Collections.sort(res, (a, b) -> Long.compare(b.stats.totalTime, a.stats.totalTime));
+    return res;
+  }
+
+  private void listNodes(ExpressionNode node, List<ExpressionNode> list) {
+    if (node == null) {
+      return;
+    }
+    list.add(node);
+    if (node.getKind() == ExpressionNode.Kind.Group) {
+      listNodes(node.getGroup(), list);
+    }
+    if (node.getKind() == ExpressionNode.Kind.Function) {
+      for (ExpressionNode p : node.getParameters()) {
+        listNodes(p, list);
+      }
+    }
+    listNodes(node.getInner(), list);
+    listNodes(node.getOpNext(), list);
+  }
+
+  /**
+   * @return a json report of the expressions, most expensive first
+   */
+  public String reportJson() {
+    JsonObject json = new JsonObject();
+    JsonArray arr = new JsonArray();
+    json.add("expressions", arr);
+    for (ExpressionProfile profile : getProfiles()) {
+      JsonObject e = profile.stats.toJson();
+      e.add("expression", profile.expression);
+      JsonArray o = new JsonArray();
+      for (String s : profile.owners) {
+        o.add(s);
+      }
+      e.add("owners", o);
+      JsonArray n = new JsonArray();
+      for (Map.Entry<String, Stats> t : profile.getNodes().entrySet()) {
+        JsonObject ne = t.getValue().toJson();
+        ne.add("node", t.getKey());
+        n.add(ne);
+      }
+      e.add("nodes", n);
+      arr.add(e);
+    }
+    return JsonParser.compose(json, true);
+  }
+
+  /**
+   * @param limit the maximum number of expressions to report (0 = all)
+   * @return a human readable report of the expressions, most expensive first
+   */
+  public String reportText(int limit) {
+    StringBuilder b = new StringBuilder();
+    b.append("FHIRPath profile (times in ms)\r\n");
+    int i = 0;
+    for (ExpressionProfile profile : getProfiles()) {
+      if (limit > 0 && i == limit) {
+        break;
+      }
+      i++;
+      Stats s = profile.stats;
+      b.append(Utilities.padLeft(Long.toString(s.totalTime / 1000000), ' ', 8));
+      b.append(" ms, ");
+      b.append(s.count);
+      b.append(" evals, max ");
+      b.append(s.maxTime / 1000000);
+      b.append(" ms, max input ");
+      b.append(s.maxInput);
+      b.append(": ");
+      b.append(profile.expression);
+      b.append("\r\n");
+      if (!profile.owners.isEmpty()) {
+        b.append("           from ");
+        int c = 0;
+        for (String o : profile.owners) {
+          if (c == 5) {
+            b.append(", +"+(profile.owners.size() - c)+" more");
+            break;
+          }
+          b.append(c == 0 ? "" : ", ");
+          b.append(o);
+          c++;
+        }
+        b.append("\r\n");
+      }
+      int c = 0;
+      for (Map.Entry<String, Stats> t : profile.getNodes().entrySet()) {
+        // the first node is the whole expression
+        if (c > 0) {
+          b.append("           "+Utilities.padLeft(Long.toString(t.getValue().totalTime / 1000000), ' ', 8)+" ms, "+t.getValue().count+" evals: "+t.getKey()+"\r\n");
+        }
+        if (++c > 3) {
+          break;
+        }
+      }
+    }
+    return b.toString();
+  }
+}
@@ -235,6 +235,7 @@ public class GraphQLEngine implements IGraphQLEngine {
   public GraphQLEngine(IWorkerContext context) {
     super();
     this.context = context;
+    this.fpe = new FHIRPathEngine(context);
   }
 
   /**
@@ -265,7 +266,7 @@ public class GraphQLEngine implements IGraphQLEngine {
   // internal stuff 
   private Map<String, Argument> workingVariables = new HashMap<String, Argument>();
 
-  private FHIRPathEngine fpe;
+  private FHIRPathEngine fpe; // one per engine, so that parsed expressions are reused across executions
 
   private ExpressionNode magicExpression;
 
@@ -273,7 +274,6 @@ public class GraphQLEngine implements IGraphQLEngine {
   public void execute() throws EGraphEngine, EGraphQLException, FHIRException {
     if (graphQL == null)
       throw new EGraphEngine("Unable to process graphql - graphql document missing");
-    fpe = new FHIRPathEngine(this.context);
     magicExpression = new ExpressionNode(0);
 
     output = new GraphQLResponse();
@@ -430,7 +430,7 @@ public class GraphQLEngine implements IGraphQLEngine {
           }
           i++;
         } else {
-          ExpressionNode node = fpe.parse(fp.substring(5));
+          ExpressionNode node = fpe.parseCached(fp.substring(5));
           for (Base v : newValues) {
             if ((i >= offset) && passesExtensionMode(v, extensionMode) && fpe.evaluateToBoolean(null, context, v, node)) {
               result.add(v);
@@ -452,8 +452,7 @@ public class GraphQLEngine implements IGraphQLEngine {
         for (BundleEntryComponent be : bnd.getEntry())
           result.add(be.getResource());
       else {
-        FHIRPathEngine fpe = new FHIRPathEngine(context);
-        ExpressionNode node = fpe.parse(getSingleValue(fhirpath));
+        ExpressionNode node = fpe.parseCached(getSingleValue(fhirpath));
         for (BundleEntryComponent be : bnd.getEntry())
           if (fpe.evaluateToBoolean(null, be.getResource(), be.getResource(), node))
             result.add(be.getResource());
@@ -469,8 +468,7 @@ public class GraphQLEngine implements IGraphQLEngine {
         for (IBaseResource v : list)
           result.add((Resource) v);
       else {
-        FHIRPathEngine fpe = new FHIRPathEngine(context);
-        ExpressionNode node = fpe.parse(getSingleValue(fhirpath));
+        ExpressionNode node = fpe.parseCached(getSingleValue(fhirpath));
         for (IBaseResource v : list)
           if (fpe.evaluateToBoolean(null, (Resource)v, (Base) v, node))
             result.add((Resource) v);
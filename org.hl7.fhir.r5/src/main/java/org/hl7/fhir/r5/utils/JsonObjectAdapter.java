@@ -0,0 +1,388 @@
+package org.hl7.fhir.r5.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r5.context.IWorkerContext;
+import org.hl7.fhir.r5.model.Base;
+import org.hl7.fhir.r5.model.BooleanType;
+import org.hl7.fhir.r5.model.DecimalType;
+import org.hl7.fhir.r5.model.ElementDefinition;
+import org.hl7.fhir.r5.model.ElementDefinition.TypeRefComponent;
+import org.hl7.fhir.r5.model.Integer64Type;
+import org.hl7.fhir.r5.model.IntegerType;
+import org.hl7.fhir.r5.model.Property;
+import org.hl7.fhir.r5.model.ResourceFactory;
+import org.hl7.fhir.r5.model.StringType;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.utilities.FhirPublication;
+import org.hl7.fhir.utilities.Utilities;
+import org.hl7.fhir.utilities.json.model.JsonElement;
+import org.hl7.fhir.utilities.json.model.JsonObject;
+import org.hl7.fhir.utilities.json.model.JsonPrimitive;
+import org.hl7.fhir.utilities.json.parser.JsonParser;
+
+/**
+ * Presents a json object (from the utilities json model) as a Base, so that the
+ * FHIRPathEngine can evaluate expressions directly against the json, without
+ * parsing it into an element model first. This is intended for cheap filtering
+ * and routing (e.g. of ndjson), not for validation.
+ *
+ * Untyped, objects have the type given by resourceType (or Element), primitives are
+ * string, boolean, integer or decimal, and a choice element (value[x]) is found by
+ * the name of the json property (valueQuantity etc).
+ *
+ * If a worker context is provided, the properties are typed using the structure
+ * definitions (snapshots) for the resource and the data types it uses. Anything
+ * that can't be found in the definitions is left untyped.
+ *
+ * Primitive extensions (_name) are ignored. The adapter is read only, and
+ * not thread safe; wrap the json once per thread.
+ */
+public class JsonObjectAdapter extends Base {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final Set<String> CHOICE_TYPE_SUFFIXES = new HashSet<>(Arrays.asList("Base64Binary", "Boolean", "Canonical", "Code", "Date", "DateTime",
+      "Decimal", "Id", "Instant", "Integer", "Integer64", "Markdown", "Oid", "PositiveInt", "String", "Time", "UnsignedInt", "Uri",
+      "Url", "Uuid", "Address", "Age", "Annotation", "Attachment", "CodeableConcept", "CodeableReference", "Coding", "ContactPoint",
+      "Count", "Distance", "Duration", "HumanName", "Identifier", "Money", "Period", "Quantity", "Range", "Ratio", "RatioRange",
+      "Reference", "SampledData", "Signature", "Timing", "ContactDetail", "DataRequirement", "Expression", "ParameterDefinition",
+      "RelatedArtifact", "TriggerDefinition", "UsageContext", "Availability", "ExtendedContactDetail", "Dosage", "Meta"));
+
+  /**
+   * the definitions used for typing, shared by all the adapters for a json tree
+   */
+  private static class Definitions {
+    private IWorkerContext context;
+    private Map<StructureDefinition, Map<String, ElementDefinition>> elements = new IdentityHashMap<>();
+
+    private Definitions(IWorkerContext context) {
+      super();
+      this.context = context;
+    }
+
+    private synchronized ElementDefinition getElement(StructureDefinition sd, String path) {
+      Map<String, ElementDefinition> map = elements.get(sd);
+      if (map == null) {
+        map = new HashMap<>();
+        for (ElementDefinition ed : sd.getSnapshot().getElement()) {
+          map.putIfAbsent(ed.getPath(), ed);
+        }
+        elements.put(sd, map);
+      }
+      return map.get(path);
+    }
+
+    private StructureDefinition getType(String type) {
+      StructureDefinition sd = context.fetchTypeDefinition(type);
+      return sd != null && sd.hasSnapshot() ? sd : null;
+    }
+  }
+
+  private JsonObject json;
+  private String type;
+  private Definitions definitions;
+  private StructureDefinition structure;
+  private String path;
+  private Map<String, Base[]> cache = new HashMap<>();
+  private Map<String, Base[]> keyCache = new HashMap<>();
+
+  /**
+   * An untyped adapter
+   */
+  public JsonObjectAdapter(JsonObject json) {
+    super();
+    this.json = json;
+  }
+
+  /**
+   * An adapter typed using the definition of the json resourceType (if the worker context knows it)
+   */
+  public JsonObjectAdapter(IWorkerContext context, JsonObject json) {
+    super();
+    this.json = json;
+    if (json.has("resourceType")) {
+      Definitions defs = new Definitions(context);
+      StructureDefinition sd = defs.getType(json.asString("resourceType"));
+      if (sd != null) {
+        definitions = defs;
+        structure = sd;
+        path = sd.getType();
+        type = sd.getType();
+      }
+    }
+  }
+
+  /**
+   * An adapter typed using the nominated structure (which must have a snapshot - e.g. a logical model)
+   */
+  public JsonObjectAdapter(IWorkerContext context, StructureDefinition sd, JsonObject json) {
+    super();
+    if (!sd.hasSnapshot()) {
+      throw new FHIRException("The structure "+sd.getVersionedUrl()+" has no snapshot");
+    }
+    this.json = json;
+    this.definitions = new Definitions(context);
+    this.structure = sd;
+    this.path = sd.getType();
+    this.type = sd.getType();
+  }
+
+  private JsonObjectAdapter(JsonObject json, String type, Definitions definitions, StructureDefinition structure, String path) {
+    super();
+    this.json = json;
+    this.type = type;
+    this.definitions = definitions;
+    this.structure = structure;
+    this.path = path;
+  }
+
+  public JsonObject getJson() {
+    return json;
+  }
+
+  /**
+   * @return true if this object was typed using the structure definitions
+   */
+  public boolean isTyped() {
+    return structure != null;
+  }
+
+  @Override
+  public String fhirType() {
+    if (type != null) {
+      return type;
+    } else if (json.has("resourceType")) {
+      return json.asString("resourceType");
+    } else {
+      return "Element";
+    }
+  }
+
+  @Override
+  public boolean isResource() {
+    return json.has("resourceType");
+  }
+
+  @Override
+  public String getIdBase() {
+    return json.asString("id");
+  }
+
+  @Override
+  public void setIdBase(String value) {
+    throw new FHIRException("JsonObjectAdapter is read only");
+  }
+
+  @Override
+  public boolean isEmpty() {
+    for (String key : json.getNames()) {
+      if (isChildKey(key)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public boolean equalsDeep(Base other) {
+    return other instanceof JsonObjectAdapter && JsonParser.compose(json).equals(JsonParser.compose(((JsonObjectAdapter) other).json));
+  }
+
+  @Override
+  public Base copy() {
+    return new JsonObjectAdapter(json.deepCopy(), type, definitions, structure, path);
+  }
+
+  @Override
+  public FhirPublication getFHIRPublicationVersion() {
+    return definitions == null ? FhirPublication.R5 : FhirPublication.fromCode(definitions.context.getVersion());
+  }
+
+  @Override
+  protected void listChildren(List<Property> result) {
+    for (String key : json.getNames()) {
+      if (isChildKey(key)) {
+        Base[] values = valuesForKey(key);
+        result.add(new Property(key, values.length == 0 ? "Base" : values[0].fhirType(), null, 0, json.get(key).isJsonArray() ? Integer.MAX_VALUE : 1, Arrays.asList(values)));
+      }
+    }
+  }
+
+  @Override
+  public Base[] listChildrenByName(String name, boolean checkValid) throws FHIRException {
+    if (name.equals("*")) {
+      List<Base> result = new ArrayList<>();
+      for (String key : json.getNames()) {
+        if (isChildKey(key)) {
+          result.addAll(Arrays.asList(valuesForKey(key)));
+        }
+      }
+      return result.toArray(new Base[result.size()]);
+    }
+    Base[] result = cache.get(name);
+    if (result == null) {
+      result = childrenForName(name);
+      cache.put(name, result);
+    }
+    return result;
+  }
+
+  private boolean isChildKey(String key) {
+    return !key.startsWith("_") && !key.equals("resourceType") && !key.equals("fhir_comments");
+  }
+
+  /**
+   * the children for a FHIRPath name (which might be a choice, without the type suffix)
+   */
+  private Base[] childrenForName(String name) {
+    if (structure != null) {
+      ElementDefinition ed = definitions.getElement(structure, path+"."+name);
+      if (ed != null) {
+        return json.has(name) ? valuesForKey(name) : new Base[0];
+      }
+      ed = definitions.getElement(structure, path+"."+name+"[x]");
+      if (ed != null) {
+        for (TypeRefComponent tr : ed.getType()) {
+          String key = name+Utilities.capitalize(tr.getWorkingCode());
+          if (json.has(key)) {
+            return valuesForKey(key);
+          }
+        }
+        return new Base[0];
+      }
+    }
+    if (json.has(name)) {
+      return valuesForKey(name);
+    }
+    for (String key : json.getNames()) {
+      if (key.startsWith(name) && CHOICE_TYPE_SUFFIXES.contains(key.substring(name.length()))) {
+        return valuesForKey(key);
+      }
+    }
+    return new Base[0];
+  }
+
+  /**
+   * the values are cached so that the same json always gives the same Base (engine functions 
+   * like repeat() and memoised lookups depend on that)
+   */
+  private Base[] valuesForKey(String key) {
+    Base[] result = keyCache.get(key);
+    if (result == null) {
+      result = childrenForKey(key);
+      keyCache.put(key, result);
+    }
+    return result;
+  }
+
+  /**
+   * the children for a json property name (which might be a choice, with the type suffix)
+   */
+  private Base[] childrenForKey(String key) {
+    if (structure != null) {
+      ElementDefinition ed = definitions.getElement(structure, path+"."+key);
+      if (ed != null) {
+        return makeValues(key, ed, typeCode(ed));
+      }
+      for (int i = 1; i < key.length(); i++) {
+        if (Character.isUpperCase(key.charAt(i))) {
+          ed = definitions.getElement(structure, path+"."+key.substring(0, i)+"[x]");
+          if (ed != null) {
+            String suffix = key.substring(i);
+            for (TypeRefComponent tr : ed.getType()) {
+              if (suffix.equals(Utilities.capitalize(tr.getWorkingCode()))) {
+                return makeValues(key, ed, tr.getWorkingCode());
+              }
+            }
+          }
+        }
+      }
+    }
+    return makeValues(key, null, null);
+  }
+
+  private String typeCode(ElementDefinition ed) {
+    return ed.hasType() ? ed.getType().get(0).getWorkingCode() : null;
+  }
+
+  private Base[] makeValues(String key, ElementDefinition ed, String tn) {
+    JsonElement j = json.get(key);
+    List<Base> result = new ArrayList<>();
+    if (j.isJsonArray()) {
+      for (JsonElement v : j.asJsonArray()) {
+        Base b = makeValue(v, ed, tn);
+        if (b != null) {
+          result.add(b);
+        }
+      }
+    } else {
+      Base b = makeValue(j, ed, tn);
+      if (b != null) {
+        result.add(b);
+      }
+    }
+    return result.toArray(new Base[result.size()]);
+  }
+
+  private Base makeValue(JsonElement v, ElementDefinition ed, String tn) {
+    if (v.isJsonObject()) {
+      JsonObject obj = v.asJsonObject();
+      if (ed == null || obj.has("resourceType")) {
+        if (definitions != null && obj.has("resourceType")) {
+          StructureDefinition sd = definitions.getType(obj.asString("resourceType"));
+          if (sd != null) {
+            return new JsonObjectAdapter(obj, sd.getType(), definitions, sd, sd.getType());
+          }
+        }
+        return new JsonObjectAdapter(obj);
+      } else if (ed.hasContentReference()) {
+        String p = ed.getContentReference().substring(ed.getContentReference().indexOf("#")+1);
+        ElementDefinition ted = definitions.getElement(structure, p);
+        return new JsonObjectAdapter(obj, ted == null || !ted.hasType() ? "BackboneElement" : typeCode(ted), definitions, structure, p);
+      } else if (Utilities.existsInList(tn, "Element", "BackboneElement")) {
+        return new JsonObjectAdapter(obj, tn, definitions, structure, ed.getPath());
+      } else {
+        StructureDefinition sd = tn == null ? null : definitions.getType(tn);
+        if (sd != null) {
+          return new JsonObjectAdapter(obj, tn, definitions, sd, sd.getType());
+        } else {
+          return new JsonObjectAdapter(obj, tn, null, null, null);
+        }
+      }
+    } else if (v.isJsonPrimitive() && !v.isJsonNull()) {
+      JsonPrimitive p = (JsonPrimitive) v;
+      if (tn != null && Character.isLowerCase(tn.charAt(0))) {
+        try {
+          return ResourceFactory.createPrimitive(tn, p.getValue());
+        } catch (Exception e) {
+          // fall through to the untyped value
+        }
+      }
+      if (v.isJsonBoolean()) {
+        return new BooleanType(p.asBoolean());
+      } else if (v.isJsonNumber()) {
+        String s = p.getValue();
+        if (s.contains(".") || s.contains("e") || s.contains("E")) {
+          return new DecimalType(s);
+        } else if (Utilities.isInteger(s) && s.length() < 10) {
+          return new IntegerType(s);
+        } else {
+          return new Integer64Type(s);
+        }
+      } else {
+        return new StringType(p.getValue());
+      }
+    } else {
+      return null;
+    }
+  }
+}
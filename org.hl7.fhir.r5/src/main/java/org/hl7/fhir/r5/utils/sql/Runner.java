@@ -2,6 +2,7 @@ package org.hl7.fhir.r5.utils.sql;
 
 import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 import org.apache.commons.net.util.Base64;
@@ -21,6 +22,7 @@ import org.hl7.fhir.r5.model.StringType;
 import org.hl7.fhir.r5.model.TypeDetails;
 import org.hl7.fhir.r5.model.ValueSet;
 import org.hl7.fhir.r5.utils.FHIRPathEngine;
+import org.hl7.fhir.r5.utils.FHIRPathEngine.CompiledExpression;
 import org.hl7.fhir.r5.utils.FHIRPathEngine.IEvaluationContext;
 import org.hl7.fhir.r5.utils.FHIRPathUtilityClasses.FunctionDetails;
 import org.hl7.fhir.utilities.json.model.JsonObject;
@@ -72,9 +74,12 @@ public class Runner implements IEvaluationContext {
     if (context == null) {
       throw new FHIRException("No context provided");
     }
-    fpe = new FHIRPathEngine(context);
-    fpe.setHostServices(this);
-    fpe.setEmitSQLonFHIRWarning(true);
+    if (fpe == null || fpe.getWorker() != context) {
+      // kept for the next view, so that the parsed paths are reused
+      fpe = new FHIRPathEngine(context);
+      fpe.setHostServices(this);
+      fpe.setEmitSQLonFHIRWarning(true);
+    }
     if (viewDefinition == null) {
       throw new FHIRException("No viewDefinition provided");
     }
@@ -98,27 +103,28 @@ public class Runner implements IEvaluationContext {
 
     List<Base> data = provider.fetch(resourceName);
 
-    for (Base b : data) {
-      boolean ok = true;
-      for (JsonObject w : vd.getJsonObjects("where")) {
-        String expr = w.asString("path");
-        ExpressionNode node = fpe.parse(expr);
-        boolean pass = fpe.evaluateToBoolean(null, b, b, b, node);
-        if (!pass) {
-          ok = false;
-          break;
-        }  
+    // each where clause filters what's left from the last one 
+    for (JsonObject w : vd.getJsonObjects("where")) {
+      CompiledExpression ce = fpe.compile(fpe.parseCached(w.asString("path")));
+      List<Base> passed = new ArrayList<>();
+      Iterator<List<Base>> outcomes = fpe.evaluateBatch(null, ce, data).iterator();
+      for (Base b : data) {
+        if (fpe.convertToBoolean(outcomes.next())) {
+          passed.add(b);
+        }
       }
-      if (ok) {
-        List<List<Cell>> rows = new ArrayList<>();
-        rows.add(new ArrayList<Cell>());
+      data = passed;
+    }
+    
+    for (Base b : data) {
+      List<List<Cell>> rows = new ArrayList<>();
+      rows.add(new ArrayList<Cell>());
 
-        for (JsonObject select : vd.getJsonObjects("select")) {
-          executeSelect(select, b, rows);
-        }
-        for (List<Cell> row : rows) {
-          storage.addRow(store, row);
-        }
+      for (JsonObject select : vd.getJsonObjects("select")) {
+        executeSelect(select, b, rows);
+      }
+      for (List<Cell> row : rows) {
+        storage.addRow(store, row);
       }
     }
     storage.finish(store);
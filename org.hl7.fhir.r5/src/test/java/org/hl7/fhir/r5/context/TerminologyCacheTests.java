@@ -11,7 +11,9 @@ import java.io.InputStream;
 import java.net.URISyntaxException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Random;
@@ -31,6 +33,7 @@ import org.hl7.fhir.r5.model.ValueSet;
 import org.hl7.fhir.r5.terminologies.expansion.ValueSetExpansionOutcome;
 import org.hl7.fhir.r5.terminologies.utilities.TerminologyCache;
 import org.hl7.fhir.r5.terminologies.utilities.ValidationResult;
+import org.hl7.fhir.utilities.TextFile;
 import org.hl7.fhir.utilities.tests.ResourceLoaderTests;
 import org.hl7.fhir.utilities.validation.ValidationMessage;
 import org.junit.jupiter.api.Test;
@@ -158,6 +161,188 @@ public class TerminologyCacheTests implements ResourceLoaderTests {
     deleteTempCacheDirectory(tempCacheDirectory);
   }
 
+  @Test
+  public void testCacheFileIsAppendedAndCompacted() throws IOException {
+    Object lock = new Object();
+    Path tempCacheDirectory = createTempCacheDirectory();
+    ValueSet valueSet = new ValueSet();
+    valueSet.setUrl("dummyValueSetURL");
+    Coding coding = new Coding();
+    coding.setCode("dummyCode");
+    File cacheFile = tempCacheDirectory.resolve("all-systems.cache").toFile();
+
+    TerminologyCache terminologyCacheA = new TerminologyCache(lock, tempCacheDirectory.toString());
+    TerminologyCache.CacheToken token = terminologyCacheA.generateValidationToken(CacheTestUtils.validationOptions, coding, valueSet, new Parameters());
+    terminologyCacheA.cacheValidation(token, new ValidationResult(ValidationMessage.IssueSeverity.INFORMATION, "first", null), true);
+    ValidationResult second = new ValidationResult(ValidationMessage.IssueSeverity.WARNING, "second", null);
+    terminologyCacheA.cacheValidation(token, second, true);
+
+    // the replaced entry is still in the file, but the last one is the one that is loaded
+    String src = TextFile.fileToString(cacheFile);
+    assertTrue(src.contains("first") && src.contains("second"));
+    TerminologyCache terminologyCacheB = new TerminologyCache(lock, tempCacheDirectory.toString());
+    assertValidationResultEquals(second, terminologyCacheB.getValidation(token));
+
+    terminologyCacheB.save();
+    src = TextFile.fileToString(cacheFile);
+    assertFalse(src.contains("first"));
+    assertTrue(src.contains("second"));
+
+    // an entry that was only partly written is dropped
+    TextFile.stringToFile(src + "{\"code\" : {\"code\" : \"partial", cacheFile.getAbsolutePath());
+    TerminologyCache terminologyCacheC = new TerminologyCache(lock, tempCacheDirectory.toString());
+    assertValidationResultEquals(second, terminologyCacheC.getValidation(token));
+    assertFalse(TextFile.fileToString(cacheFile).contains("partial"));
+
+    deleteTempCacheDirectory(tempCacheDirectory);
+  }
+
+  @Test
+  public void testCacheIndex() throws IOException {
+    Object lock = new Object();
+    Path tempCacheDirectory = createTempCacheDirectory();
+    ValueSet valueSet = new ValueSet();
+    valueSet.setUrl("dummyValueSetURL");
+    Coding coding1 = new Coding().setCode("dummyCode1");
+    Coding coding2 = new Coding().setCode("dummyCode2");
+
+    TerminologyCache terminologyCacheA = new TerminologyCache(lock, tempCacheDirectory.toString());
+    TerminologyCache.CacheToken token1 = terminologyCacheA.generateValidationToken(CacheTestUtils.validationOptions, coding1, valueSet, new Parameters());
+    TerminologyCache.CacheToken token2 = terminologyCacheA.generateValidationToken(CacheTestUtils.validationOptions, coding2, valueSet, new Parameters());
+    ValidationResult result1 = new ValidationResult(ValidationMessage.IssueSeverity.INFORMATION, "one", null);
+    ValidationResult result2 = new ValidationResult(ValidationMessage.IssueSeverity.WARNING, "two", null);
+    terminologyCacheA.cacheValidation(token1, result1, true);
+    terminologyCacheA.save();
+    assertTrue(tempCacheDirectory.resolve("all-systems.idx").toFile().exists());
+
+    // added after the index was written, so found by scanning the end of the file
+    terminologyCacheA.cacheValidation(token2, result2, true);
+    byte[] index = Files.readAllBytes(tempCacheDirectory.resolve("all-systems.idx"));
+
+    TerminologyCache terminologyCacheB = new TerminologyCache(lock, tempCacheDirectory.toString());
+    assertValidationResultEquals(result1, terminologyCacheB.getValidation(token1));
+    assertValidationResultEquals(result2, terminologyCacheB.getValidation(token2));
+    // reading the cache doesn't rewrite the index
+    terminologyCacheB.save();
+    assertTrue(Arrays.equals(index, Files.readAllBytes(tempCacheDirectory.resolve("all-systems.idx"))));
+
+    // a cache with no index doesn't get one just by being loaded
+    Files.delete(tempCacheDirectory.resolve("all-systems.idx"));
+    TerminologyCache terminologyCacheR = new TerminologyCache(lock, tempCacheDirectory.toString());
+    assertValidationResultEquals(result2, terminologyCacheR.getValidation(token2));
+    terminologyCacheR.save();
+    assertFalse(tempCacheDirectory.resolve("all-systems.idx").toFile().exists());
+
+    // an index that doesn't match the cache file is ignored
+    TextFile.stringToFile(TextFile.fileToString(tempCacheDirectory.resolve("all-systems.cache").toFile()).replace("two", "TWO"), tempCacheDirectory.resolve("all-systems.cache").toString());
+    TerminologyCache terminologyCacheC = new TerminologyCache(lock, tempCacheDirectory.toString());
+    assertEquals("TWO", terminologyCacheC.getValidation(token2).getMessage());
+    assertValidationResultEquals(result1, terminologyCacheC.getValidation(token1));
+
+    deleteTempCacheDirectory(tempCacheDirectory);
+  }
+
+  @Test
+  public void testMemoryBudget() throws IOException {
+    Object lock = new Object();
+    Path tempCacheDirectory = createTempCacheDirectory();
+    ValueSet valueSet = new ValueSet();
+    valueSet.setUrl("dummyValueSetURL");
+
+    TerminologyCache terminologyCache = new TerminologyCache(lock, tempCacheDirectory.toString());
+    terminologyCache.setMemoryBudget(2);
+    TerminologyCache.CacheToken token1 = terminologyCache.generateValidationToken(CacheTestUtils.validationOptions, new Coding().setCode("dummyCode1"), valueSet, new Parameters());
+    TerminologyCache.CacheToken token2 = terminologyCache.generateValidationToken(CacheTestUtils.validationOptions, new Coding().setCode("dummyCode2"), valueSet, new Parameters());
+    TerminologyCache.CacheToken token3 = terminologyCache.generateValidationToken(CacheTestUtils.validationOptions, new Coding().setCode("dummyCode3"), valueSet, new Parameters());
+    ValidationResult result1 = new ValidationResult(ValidationMessage.IssueSeverity.INFORMATION, "one", null);
+    terminologyCache.cacheValidation(token1, result1, true);
+    terminologyCache.cacheValidation(token2, new ValidationResult(ValidationMessage.IssueSeverity.INFORMATION, "two", null), false);
+    terminologyCache.cacheValidation(token3, new ValidationResult(ValidationMessage.IssueSeverity.INFORMATION, "three", null), false);
+    assertEquals(2, terminologyCache.getMemoryWeight());
+    assertEquals(1, terminologyCache.getEvictionCount());
+
+    // the persistent entry was only dropped from memory, and is read back from the cache file
+    assertValidationResultEquals(result1, terminologyCache.getValidation(token1));
+    assertEquals(1, terminologyCache.getReloadCount());
+    // which pushes out the transient entry that was least recently used
+    assertNull(terminologyCache.getValidation(token2));
+    assertEquals("three", terminologyCache.getValidation(token3).getMessage());
+
+    deleteTempCacheDirectory(tempCacheDirectory);
+  }
+
+  @Test
+  public void testTransientTimeToLive() throws IOException, InterruptedException {
+    TerminologyCache terminologyCache = createTerminologyCache();
+    terminologyCache.setTransientTimeToLive(1);
+    ValueSet valueSet = new ValueSet();
+    valueSet.setUrl("dummyValueSetURL");
+    TerminologyCache.CacheToken token = terminologyCache.generateValidationToken(CacheTestUtils.validationOptions, new Coding().setCode("dummyCode"), valueSet, new Parameters());
+    terminologyCache.cacheValidation(token, new ValidationResult(ValidationMessage.IssueSeverity.INFORMATION, "one", null), false);
+    Thread.sleep(10);
+    assertNull(terminologyCache.getValidation(token));
+    assertEquals(1, terminologyCache.getExpiredCount());
+  }
+
+  @Test
+  public void testConcurrentUse() throws IOException, InterruptedException {
+    Object lock = new Object();
+    Path tempCacheDirectory = createTempCacheDirectory();
+    ValueSet valueSet = new ValueSet();
+    valueSet.setUrl("dummyValueSetURL");
+    TerminologyCache terminologyCache = new TerminologyCache(lock, tempCacheDirectory.toString());
+    terminologyCache.setMemoryBudget(50);
+
+    List<Thread> threads = new ArrayList<>();
+    List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+    for (int t = 0; t < 4; t++) {
+      final int thread = t;
+      threads.add(new Thread(() -> {
+        try {
+          for (int i = 0; i < 100; i++) {
+            TerminologyCache.CacheToken token = terminologyCache.generateValidationToken(CacheTestUtils.validationOptions, new Coding().setCode("code"+thread+"-"+i), valueSet, new Parameters());
+            terminologyCache.cacheValidation(token, new ValidationResult(ValidationMessage.IssueSeverity.INFORMATION, "message"+thread+"-"+i, null), i % 2 == 0);
+            ValidationResult res = terminologyCache.getValidation(token);
+            if (res != null) {
+              assertEquals("message"+thread+"-"+i, res.getMessage());
+            }
+          }
+        } catch (Throwable e) {
+          errors.add(e);
+        }
+      }));
+    }
+    synchronized (lock) {
+      // the cache doesn't use the context lock, so holding it doesn't stop the threads
+      for (Thread thread : threads) {
+        thread.start();
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+    }
+    assertTrue(errors.isEmpty(), errors.toString());
+    assertEquals(400, terminologyCache.getRequestCount());
+    assertTrue(terminologyCache.getMemoryWeight() <= 50);
+
+    // all the persistent entries made it to the cache file
+    TerminologyCache terminologyCacheB = new TerminologyCache(lock, tempCacheDirectory.toString());
+    for (int i = 0; i < 100; i += 2) {
+      TerminologyCache.CacheToken token = terminologyCacheB.generateValidationToken(CacheTestUtils.validationOptions, new Coding().setCode("code3-"+i), valueSet, new Parameters());
+      assertEquals("message3-"+i, terminologyCacheB.getValidation(token).getMessage());
+    }
+    deleteTempCacheDirectory(tempCacheDirectory);
+  }
+
+  @Test
+  public void testHashJsonIsDigest() throws IOException {
+    TerminologyCache terminologyCache = createTerminologyCache();
+    String key = terminologyCache.hashJson("{\"code\" : \"a\"}");
+    assertEquals(32, key.length());
+    assertEquals(key, terminologyCache.hashJson("  {\"code\" : \"a\"}\r\n"));
+    assertFalse(key.equals(terminologyCache.hashJson("{\"code\" : \"b\"}")));
+  }
+
   private void assertCanonicalResourceEquals(CanonicalResource a, CanonicalResource b) {
     assertTrue(a.equalsDeep(b));
   }
@@ -0,0 +1,90 @@
+package org.hl7.fhir.r5.terminologies;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.hl7.fhir.r5.model.CodeSystem;
+import org.hl7.fhir.r5.model.CodeSystem.ConceptDefinitionComponent;
+import org.hl7.fhir.r5.model.CodeSystem.PropertyType;
+import org.hl7.fhir.r5.model.CodeType;
+import org.hl7.fhir.r5.model.StringType;
+import org.junit.jupiter.api.Test;
+
+public class CodeSystemIndexTests {
+
+  private CodeSystem makeCodeSystem() {
+    CodeSystem cs = new CodeSystem();
+    cs.setUrl("http://example.org/cs");
+    cs.addProperty().setCode("parent").setUri("http://hl7.org/fhir/concept-properties#parent").setType(PropertyType.CODE);
+    cs.addProperty().setCode("colour").setType(PropertyType.STRING);
+    ConceptDefinitionComponent a = cs.addConcept().setCode("a").setDisplay("Alpha");
+    a.addProperty().setCode("alternateCode").setValue(new CodeType("A1"));
+    ConceptDefinitionComponent b = a.addConcept().setCode("b").setDisplay("Beta");
+    b.addDesignation().setValue("Second");
+    b.addProperty().setCode("colour").setValue(new StringType("blue"));
+    b.addConcept().setCode("c").setDisplay("Gamma");
+    cs.addConcept().setCode("d").setDisplay("Delta").addProperty().setCode("parent").setValue(new CodeType("b"));
+    return cs;
+  }
+
+  @Test
+  public void testFindCode() {
+    CodeSystem cs = makeCodeSystem();
+    assertEquals("c", CodeSystemUtilities.findCode(cs, "c").getCode());
+    assertNull(CodeSystemUtilities.findCode(cs, "A1"));
+    assertEquals("a", CodeSystemUtilities.findCodeOrAltCode(cs, "A1", null).getCode());
+    assertNull(CodeSystemUtilities.findCodeOrAltCode(cs, "A1", "other-use"));
+    assertNull(CodeSystemUtilities.findCode(cs, "x"));
+    assertSame(CodeSystemUtilities.findCode(cs.getConcept(), "c"), CodeSystemUtilities.findCode(cs, "c"));
+  }
+
+  @Test
+  public void testHierarchy() {
+    CodeSystem cs = makeCodeSystem();
+    CodeSystemIndex index = CodeSystemUtilities.getIndex(cs);
+    assertEquals(4, index.getConceptCount());
+    ConceptDefinitionComponent a = index.findCode("a");
+    ConceptDefinitionComponent b = index.findCode("b");
+    ConceptDefinitionComponent c = index.findCode("c");
+    ConceptDefinitionComponent d = index.findCode("d");
+    assertTrue(index.isDescendant(c, a));
+    assertTrue(index.isDescendant(d, a)); // through the parent property
+    assertFalse(index.isDescendant(a, c));
+    assertFalse(index.isDescendant(a, a));
+    assertEquals(2, index.getChildren(b).size());
+    assertSame(b, index.getParents(d).get(0));
+  }
+
+  @Test
+  public void testDisplaysAndProperties() {
+    CodeSystem cs = makeCodeSystem();
+    CodeSystemIndex index = CodeSystemUtilities.getIndex(cs);
+    assertEquals("b", index.findByDisplay("beta").get(0).getCode());
+    assertEquals("b", index.findByDisplay("SECOND").get(0).getCode());
+    assertTrue(index.findByDisplay("Epsilon").isEmpty());
+    assertEquals("blue", index.getProperty("b", "colour").primitiveValue());
+    assertNull(index.getProperty("c", "colour"));
+  }
+
+  @Test
+  public void testIndexIsRebuilt() {
+    CodeSystem cs = makeCodeSystem();
+    CodeSystemIndex index = CodeSystemUtilities.getIndex(cs);
+    assertSame(index, CodeSystemUtilities.getIndex(cs));
+
+    // a copy gets its own index, even if the user data is copied too
+    CodeSystem copy = cs.copy();
+    copy.copyUserData(cs);
+    assertNotSame(index, CodeSystemUtilities.getIndex(copy));
+    assertSame(copy.getConcept().get(0), CodeSystemUtilities.findCode(copy, "a"));
+
+    cs.addConcept().setCode("e");
+    assertNull(CodeSystemUtilities.findCode(cs, "e"));
+    CodeSystemUtilities.clearIndex(cs);
+    assertEquals("e", CodeSystemUtilities.findCode(cs, "e").getCode());
+  }
+}
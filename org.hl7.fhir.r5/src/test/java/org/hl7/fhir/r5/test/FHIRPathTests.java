@@ -3,6 +3,10 @@ package org.hl7.fhir.r5.test;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Stream;
 
 import javax.xml.parsers.ParserConfigurationException;
@@ -10,6 +14,8 @@ import javax.xml.parsers.ParserConfigurationException;
 import org.apache.commons.lang3.NotImplementedException;
 import org.fhir.ucum.UcumException;
 import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.exceptions.PathEngineBudgetException;
+import org.hl7.fhir.exceptions.PathEngineBudgetException.BudgetKind;
 import org.hl7.fhir.exceptions.PathEngineException;
 import org.hl7.fhir.r5.elementmodel.Manager;
 import org.hl7.fhir.r5.elementmodel.Manager.FhirFormat;
@@ -20,6 +26,9 @@ import org.hl7.fhir.r5.model.*;
 import org.hl7.fhir.r5.test.utils.TestingUtilities;
 import org.hl7.fhir.r5.utils.FHIRPathEngine;
 import org.hl7.fhir.r5.utils.FHIRPathEngine.IEvaluationContext;
+import org.hl7.fhir.r5.utils.FHIRPathOptimiser;
+import org.hl7.fhir.r5.utils.FHIRPathProfiler;
+import org.hl7.fhir.r5.utils.JsonObjectAdapter;
 import org.hl7.fhir.r5.utils.FHIRPathUtilityClasses.FunctionDetails;
 import org.hl7.fhir.utilities.Utilities;
 import org.hl7.fhir.utilities.npm.FilesystemPackageCacheManager;
@@ -230,6 +239,15 @@ public class FHIRPathTests {
           outcome = fp.evaluate(e.get(0).getElement(), node);
         } else {
           outcome = fp.evaluate(res, node);
+          Base rr = res != null && res.isResource() ? res : null;
+          List<Base> compiled = fp.evaluate(null, rr, rr, res, fp.compile(node));
+          assertEquals(outcome.size(), compiled.size(), String.format("Compiled expression returned %d objects but interpreted returned %d for expression %s", compiled.size(), outcome.size(), expression));
+          // now() etc are evaluated again, so they don't have to be the same
+          if (!expression.matches(".*(now|today|timeOfDay)\\(\\).*")) {
+            for (int i = 0; i < compiled.size(); i++) {
+              Assertions.assertTrue(outcome.get(i).equalsDeep(compiled.get(i)), String.format("Compiled expression returned %s but interpreted returned %s at %d for expression %s", compiled.get(i), outcome.get(i), i, expression));
+            }
+          }
         }
         Assertions.assertTrue(fail == TestResultType.OK, String.format("Expected exception didn't occur executing %s", expression));
       } catch (Exception e) {
@@ -328,4 +346,304 @@ public class FHIRPathTests {
     assertEquals(1, results.size());
     assertEquals("123", results.get(0).toString());
   }
+
+  @Test
+  @DisplayName("one engine can be shared across threads")
+  public void testConcurrentEvaluation() throws Exception {
+    ExpressionNode expressionNode = fp.parse("Patient.id.trace('id').exists()");
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<String>> futures = new ArrayList<>();
+      for (int i = 0; i < 40; i++) {
+        final String id = "p"+i;
+        futures.add(executor.submit(() -> {
+          Patient input = new Patient();
+          input.setId(id);
+          for (int j = 0; j < 50; j++) {
+            fp.takeLog();
+            if (!fp.evaluateToBoolean(null, input, input, input, expressionNode)) {
+              return "false";
+            }
+          }
+          return fp.takeLog();
+        }));
+      }
+      for (int i = 0; i < futures.size(); i++) {
+        assertEquals("id: p"+i, futures.get(i).get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testExpressionCache() {
+    FHIRPathEngine engine = new FHIRPathEngine(TestingUtilities.getSharedWorkerContext());
+    Patient input = new Patient();
+    input.setActive(true);
+    for (int i = 0; i < 10; i++) {
+      Assertions.assertTrue(engine.evaluateToBoolean(input, input, input, "Patient.active"));
+    }
+    assertEquals(1, engine.getExpressionCache().size());
+    assertEquals(1, engine.getExpressionCache().getMissCount());
+    assertEquals(9, engine.getExpressionCache().getHitCount());
+    Assertions.assertSame(engine.parseCached("Patient.active"), engine.parseCached("Patient.active"));
+
+    // a different host can define different functions, so the expression is parsed again
+    ExpressionNode before = engine.parseCached("Patient.active");
+    engine.setHostServices(new FHIRPathTestEvaluationServices());
+    Assertions.assertNotSame(before, engine.parseCached("Patient.active"));
+    Assertions.assertSame(engine.parseCached("Patient.active"), engine.parseCached("Patient.active"));
+
+    engine.getExpressionCache().setMaxSize(0);
+    Assertions.assertNotSame(engine.parseCached("Patient.active"), engine.parseCached("Patient.active"));
+    assertEquals(0, engine.getExpressionCache().size());
+  }
+
+  @Test
+  public void testOptimiser() {
+    FHIRPathOptimiser opt = new FHIRPathOptimiser(fp);
+    ExpressionNode node = opt.optimise(fp.parse("1 + 2 * 3"));
+    assertEquals("7", node.toString());
+    node = opt.optimise(fp.parse("'abc'.length() = 3"));
+    assertEquals("true", node.toString());
+    
+    node = fp.parse("true and Patient.active");
+    fp.check(null, "Patient", "Patient", node);
+    node = opt.optimise(node);
+    assertEquals("Patient.active", node.toString());
+
+    node = opt.optimise(fp.parse("Patient.name.where(use = 'official').exists() or false"));
+    assertEquals("Patient.name.exists(use = 'official') or false", node.toString());
+    Patient p = new Patient();
+    p.addName().setUse(HumanName.NameUse.OFFICIAL);
+    Assertions.assertTrue(fp.evaluateToBoolean(p, p, p, node));
+
+    node = opt.optimise(fp.parse("Patient.active and false"));
+    assertEquals("false", node.toString());
+    Assertions.assertTrue(opt.getNodesRemoved() > 0);
+
+    // an empty outcome can't be a constant, so it's left as it is
+    node = opt.optimise(fp.parse("'abc'.substring(10)"));
+    Assertions.assertNotEquals(ExpressionNode.Kind.Constant, node.getKind());
+    Assertions.assertTrue(fp.evaluate(p, node).isEmpty());
+    node = opt.optimise(fp.parse("'abc'.substring(10).empty()"));
+    assertEquals("true", node.toString());
+  }
+
+  @Test
+  public void testBatchEvaluation() throws Exception {
+    List<Base> patients = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      Patient p = new Patient();
+      p.addName().addGiven("P"+i);
+      p.setActive(i % 2 == 0);
+      patients.add(p);
+    }
+    FHIRPathEngine.CompiledExpression ce = fp.compile(fp.parse("name.given.first() & '-' & active"));
+    List<String> expected = new ArrayList<>();
+    for (Base p : patients) {
+      expected.add(fp.evaluate(null, p, p, p, ce).toString());
+    }
+    List<String> actual = new ArrayList<>();
+    for (List<Base> outcome : fp.evaluateBatch(null, ce, patients)) {
+      actual.add(outcome.toString());
+    }
+    assertEquals(expected, actual);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      actual.clear();
+      fp.evaluateBatch(null, ce, patients.stream(), executor, 8).forEach(outcome -> actual.add(outcome.toString()));
+      assertEquals(expected, actual);
+    } finally {
+      executor.shutdown();
+    }
+    assertEquals(25, fp.evaluateToBooleanBatch(null, fp.compile(fp.parse("active")), patients.stream()).filter(b -> b).count());
+  }
+
+  @Test
+  public void testMemoisedLookups() {
+    Patient p = new Patient();
+    p.addName().addGiven("Peter");
+    p.addName().addGiven("Jim");
+    p.addName().addGiven("James");
+    FHIRPathEngine engine = new FHIRPathEngine(TestingUtilities.getSharedWorkerContext());
+    engine.setHostServices(new FHIRPathTestEvaluationServices());
+    engine.setMemoiseLookups(true);
+    ExpressionNode node = engine.parse("name.all(%resource.conformsTo('http://hl7.org/fhir/StructureDefinition/Patient'))");
+    Assertions.assertTrue(engine.evaluateToBoolean(p, p, p, p, node));
+    assertEquals(1, engine.getLookupStatistics().getMisses(ExpressionNode.Function.ConformsTo));
+    assertEquals(2, engine.getLookupStatistics().getHits(ExpressionNode.Function.ConformsTo));
+
+    // the memo is kept for the next evaluation on the same root
+    Assertions.assertTrue(engine.evaluateToBoolean(p, p, p, p, node));
+    assertEquals(1, engine.getLookupStatistics().getMisses(ExpressionNode.Function.ConformsTo));
+    Assertions.assertTrue(engine.getLookupStatistics().summary().contains("conformsTo 5/6"));
+
+    // but not for a different root
+    Patient p2 = p.copy();
+    Assertions.assertTrue(engine.evaluateToBoolean(p2, p2, p2, p2, node));
+    assertEquals(2, engine.getLookupStatistics().getMisses(ExpressionNode.Function.ConformsTo));
+  }
+
+  @Test
+  public void testMemoisedResolveAcrossEvaluations() {
+    AtomicInteger calls = new AtomicInteger();
+    FHIRPathEngine engine = new FHIRPathEngine(TestingUtilities.getSharedWorkerContext());
+    engine.setHostServices(new FHIRPathTestEvaluationServices() {
+      @Override
+      public Base resolveReference(FHIRPathEngine engine, Object appContext, String url, Base refContext) throws FHIRException {
+        calls.incrementAndGet();
+        return url.equals("Practitioner/1") ? new Practitioner().setActive(true) : null;
+      }
+    });
+    engine.setMemoiseLookups(true);
+    Patient p = new Patient();
+    p.addGeneralPractitioner().setReference("Practitioner/1");
+    p.addGeneralPractitioner().setReference("Practitioner/1");
+    p.addGeneralPractitioner().setReference("Practitioner/2");
+    ExpressionNode node = engine.parse("generalPractitioner.all(resolve().exists() implies resolve().active)");
+    for (int i = 0; i < 3; i++) {
+      Assertions.assertTrue(engine.evaluateToBoolean(p, p, p, p, node));
+    }
+    // once for each reference string, in all the evaluations on the same root
+    assertEquals(2, calls.get());
+    assertEquals(2, engine.getLookupStatistics().getMisses(ExpressionNode.Function.Resolve));
+
+    // a new root starts again
+    Patient p2 = p.copy();
+    Assertions.assertTrue(engine.evaluateToBoolean(p2, p2, p2, p2, node));
+    assertEquals(4, calls.get());
+
+    // and without memoisation, every resolve() goes to the host
+    engine.setMemoiseLookups(false);
+    calls.set(0);
+    Assertions.assertTrue(engine.evaluateToBoolean(p, p, p, p, node));
+    assertEquals(5, calls.get());
+  }
+
+  @Test
+  public void testJsonObjectAdapter() throws IOException {
+    String src = "{\"resourceType\" : \"Observation\", \"status\" : \"final\", \"code\" : { \"coding\" : [{ \"system\" : \"http://loinc.org\", \"code\" : \"29463-7\" }]}, "+
+        "\"valueQuantity\" : { \"value\" : 185, \"unit\" : \"lbs\" }, \"effectiveDateTime\" : \"2016-03-28\" }";
+    org.hl7.fhir.utilities.json.model.JsonObject json = org.hl7.fhir.utilities.json.parser.JsonParser.parseObject(src);
+
+    Base untyped = new JsonObjectAdapter(json);
+    Assertions.assertTrue(fp.evaluateToBoolean(null, untyped, untyped, untyped, fp.parse("Observation.status = 'final'")));
+    Assertions.assertTrue(fp.evaluateToBoolean(null, untyped, untyped, untyped, fp.parse("code.coding.where(system = 'http://loinc.org').code = '29463-7'")));
+    Assertions.assertTrue(fp.evaluateToBoolean(null, untyped, untyped, untyped, fp.parse("value.value > 180")));
+
+    Base typed = new JsonObjectAdapter(TestingUtilities.getSharedWorkerContext(), json);
+    assertEquals("code", fp.evaluate(typed, fp.parse("status")).get(0).fhirType());
+    assertEquals("Quantity", fp.evaluate(typed, fp.parse("value")).get(0).fhirType());
+    Assertions.assertTrue(fp.evaluateToBoolean(null, typed, typed, typed, fp.parse("effective is dateTime and effective > @2016-01-01")));
+    Assertions.assertTrue(fp.evaluateToBoolean(null, typed, typed, typed, fp.parse("Observation.value.ofType(Quantity).exists()")));
+  }
+
+  @Test
+  public void testEvaluationBudgets() {
+    Patient p = new Patient();
+    p.addName().addGiven("Peter").addGiven("James").addGiven("Chalmers");
+    FHIRPathEngine engine = new FHIRPathEngine(TestingUtilities.getSharedWorkerContext());
+    ExpressionNode node = engine.parse("name.given.count() = 3");
+    Assertions.assertTrue(engine.convertToBoolean(engine.evaluate(p, node)));
+
+    engine.setMaxCollectionSize(2);
+    PathEngineBudgetException e = Assertions.assertThrows(PathEngineBudgetException.class, () -> engine.evaluate(p, node));
+    assertEquals(BudgetKind.COLLECTION_SIZE, e.getKind());
+    assertEquals(1, engine.getBudgetExceededCount(BudgetKind.COLLECTION_SIZE));
+    Assertions.assertThrows(PathEngineBudgetException.class, () -> engine.evaluate(p, engine.parse("descendants().count() > 0")));
+
+    engine.setMaxCollectionSize(0);
+    engine.setMaxNodes(3);
+    e = Assertions.assertThrows(PathEngineBudgetException.class, () -> engine.evaluate(p, node));
+    assertEquals(BudgetKind.NODES, e.getKind());
+    assertEquals(3, e.getLimit());
+    // each evaluation gets it's own budget
+    Assertions.assertTrue(engine.convertToBoolean(engine.evaluate(p, engine.parse("name.exists()"))));
+  }
+
+  @Test
+  public void testProfiler() throws InterruptedException {
+    Patient p = new Patient();
+    p.addName().addGiven("Peter");
+    FHIRPathEngine engine = new FHIRPathEngine(TestingUtilities.getSharedWorkerContext());
+    FHIRPathProfiler profiler = new FHIRPathProfiler();
+    engine.setProfiler(profiler);
+    ExpressionNode node = engine.parse("name.given.exists()");
+    profiler.registerOwner(node, "http://example.org/StructureDefinition/test#test-1");
+    for (int i = 0; i < 3; i++) {
+      engine.evaluate(p, node);
+    }
+    ExpressionNode other = engine.parse("name.exists()");
+    engine.evaluate(p, other);
+    // an optimised copy is reported as written
+    ExpressionNode opt = new FHIRPathOptimiser(engine).optimise(engine.parse("name.where(given = 'Peter').exists()"));
+    profiler.registerOwner(opt, "name.where(given = 'Peter').exists()", "http://example.org/StructureDefinition/test#test-2");
+    engine.evaluate(p, opt);
+    List<FHIRPathProfiler.ExpressionProfile> profiles = profiler.getProfiles();
+    assertEquals(3, profiles.size());
+    Assertions.assertTrue(profiles.stream().anyMatch(t -> t.getExpression().equals("name.where(given = 'Peter').exists()") && t.getOwners().contains("http://example.org/StructureDefinition/test#test-2")));
+    FHIRPathProfiler.ExpressionProfile ep = profiles.stream().filter(t -> t.getExpression().equals("name.given.exists()")).findFirst().get();
+    assertEquals(3, ep.getStats().getCount());
+    Assertions.assertTrue(ep.getOwners().contains("http://example.org/StructureDefinition/test#test-1"));
+    Assertions.assertTrue(ep.getNodes().containsKey("given.exists()"));
+    Assertions.assertTrue(profiler.reportJson().contains("test#test-1"));
+    Assertions.assertTrue(profiler.reportText(0).contains("name.given.exists()"));
+
+    // what other threads record is merged in when the report is made
+    Thread t = new Thread(() -> engine.evaluate(p, node));
+    t.start();
+    t.join();
+    ep = profiler.getProfiles().stream().filter(x -> x.getExpression().equals("name.given.exists()")).findFirst().get();
+    assertEquals(4, ep.getStats().getCount());
+
+    // and clear() forgets everything, including the owners
+    profiler.clear();
+    Assertions.assertTrue(profiler.getProfiles().isEmpty());
+    engine.evaluate(p, node);
+    ep = profiler.getProfiles().get(0);
+    assertEquals(1, ep.getStats().getCount());
+    Assertions.assertTrue(ep.getOwners().isEmpty());
+    // (the expressions are only held weakly by the profiler)
+    Assertions.assertNotNull(other);
+    Assertions.assertNotNull(opt);
+  }
+
+  @Test
+  @DisplayName("Lazy evaluation gives the same answers as eager evaluation")
+  public void testLazyEvaluation() {
+    Patient p = new Patient();
+    p.addName().setFamily("Chalmers").addGiven("Peter").addGiven("James");
+    p.addName().setUse(HumanName.NameUse.USUAL).addGiven("Jim");
+    p.getContactFirstRep().getName().setFamily("Chalmers");
+    FHIRPathEngine lazy = new FHIRPathEngine(TestingUtilities.getSharedWorkerContext());
+    lazy.setLazyEvaluation(true);
+    String[] expressions = { "Patient.name.given.exists()", "name.where(use = 'usual').exists()", "name.exists(given = 'Jim')", 
+        "descendants().where($this is HumanName).exists()", "descendants().first()", "name.select(given).first()", 
+        "children().where(family = 'Wong').empty()", "repeat(name | contact).first().family", "name.given.first() = 'Peter'" };
+    for (String expr : expressions) {
+      ExpressionNode node = fp.parse(expr);
+      assertEquals(fp.evaluate(p, node).toString(), lazy.evaluate(p, node).toString(), expr);
+    }
+  }
+
+  @Test
+  @DisplayName("Compiled expressions are evaluated lazily too")
+  public void testCompiledLazyEvaluation() {
+    Patient p = new Patient();
+    p.addName().addGiven("Peter");
+    p.addName().addGiven("Jim");
+    FHIRPathEngine lazy = new FHIRPathEngine(TestingUtilities.getSharedWorkerContext());
+    lazy.setLazyEvaluation(true);
+    FHIRPathEngine.CompiledExpression ce = lazy.compile(lazy.parse("name.where(given.trace('n').exists()).exists()"));
+    lazy.takeLog();
+    Assertions.assertTrue(lazy.evaluateToBoolean(null, p, p, p, ce));
+    // the second name isn't looked at once the first one matches
+    assertEquals("n: Peter", lazy.takeLog());
+
+    lazy.setLazyEvaluation(false);
+    Assertions.assertTrue(lazy.evaluateToBoolean(null, p, p, p, ce));
+    assertEquals("n: Peter; n: Jim", lazy.takeLog());
+  }
 }
\ No newline at end of file
@@ -0,0 +1,33 @@
+package org.hl7.fhir.exceptions;
+
+/**
+ * Thrown when a FHIRPath evaluation goes over one of the budgets (nodes visited, 
+ * collection size, elapsed time) set on the engine. This is not an error in the 
+ * expression as such; the evaluation was abandoned because it was too costly
+ */
+public class PathEngineBudgetException extends PathEngineException {
+
+  private static final long serialVersionUID = -3452176012931374655L;
+
+  public enum BudgetKind {
+    NODES, COLLECTION_SIZE, TIME
+  }
+
+  private BudgetKind kind;
+  private long limit;
+
+  public PathEngineBudgetException(String message, String id, BudgetKind kind, long limit) {
+    super(message, id);
+    this.kind = kind;
+    this.limit = limit;
+  }
+
+  public BudgetKind getKind() {
+    return kind;
+  }
+
+  public long getLimit() {
+    return limit;
+  }
+
+}
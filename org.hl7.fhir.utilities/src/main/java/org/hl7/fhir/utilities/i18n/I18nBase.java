@@ -2,9 +2,11 @@ package org.hl7.fhir.utilities.i18n;
 
 import java.text.MessageFormat;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
 import java.util.ResourceBundle;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 import javax.annotation.Nonnull;
@@ -24,6 +26,8 @@ public abstract class I18nBase {
   private ResourceBundle i18nMessages;
   private PluralRules pluralRules;
   private boolean warnAboutMissingMessages = true;
+  // compiled message patterns, by key. Reset when the messages are reloaded
+  private Map<String, MessageFormat> formats = new ConcurrentHashMap<>();
 
   public Locale getLocale() {
     if (Objects.nonNull(locale)) {
@@ -77,6 +81,15 @@ public abstract class I18nBase {
     return i18nMessages.containsKey(message);
   }
 
+  /**
+   * @return true if theMessage is the key of a message (rather than the text of a message). The message 
+   * isn't formatted, and no warning is given if it isn't a key
+   */
+  public boolean isMessageKey(String theMessage) {
+    checkResourceBundleIsLoaded();
+    return messageKeyExistsForLocale(theMessage);
+  }
+
 
   /**
    * Formats the given message, if needed, with the passed in message arguments.
@@ -113,7 +126,11 @@ public abstract class I18nBase {
     String message = theMessage;
     if (messageExistsForLocale(theMessage, (theMessageArguments != null && theMessageArguments.length > 0))) {
       if (Objects.nonNull(theMessageArguments) && theMessageArguments.length > 0) {
-        message = MessageFormat.format(i18nMessages.getString(theMessage).trim(), theMessageArguments);
+        MessageFormat fmt = formats.computeIfAbsent(theMessage, k -> new MessageFormat(i18nMessages.getString(k).trim()));
+        // MessageFormat isn't thread safe
+        synchronized (fmt) {
+          message = fmt.format(theMessageArguments);
+        }
       } else {
         message = i18nMessages.getString(theMessage).trim();
       }
@@ -153,6 +170,7 @@ public abstract class I18nBase {
    */
   public void setValidationMessageLanguage(Locale locale) {
     i18nMessages = ResourceBundle.getBundle("Messages", locale);
+    formats.clear();
   }
 
   public void setPluralRules(Locale locale) {
@@ -142,6 +142,7 @@ public class I18nConstants {
   public static final String EXTENSION_PROF_TYPE = "Extension_PROF_Type";
   public static final String FHIRPATH_ALIAS_COLLECTION = "FHIRPATH_ALIAS_COLLECTION";
 //  public static final String FHIRPATH_BAD_DATE = "FHIRPATH_BAD_DATE";
+  public static final String FHIRPATH_BUDGET_EXCEEDED = "FHIRPATH_BUDGET_EXCEEDED";
   public static final String FHIRPATH_CANNOT_USE = "FHIRPATH_CANNOT_USE";
   public static final String FHIRPATH_CANT_COMPARE = "FHIRPATH_CANT_COMPARE";
   public static final String FHIRPATH_CHECK_FAILED = "FHIRPATH_CHECK_FAILED";
@@ -208,6 +209,7 @@ public class I18nConstants {
   public static final String INTERNAL_INT_BAD_TYPE = "Internal_INT_Bad_Type";
 //  public static final String INTERNAL_RECURSION_DETECTION_FIND_LOOP_PATH_RECURSION____CHECK_PATHS_ARE_VALID_FOR_PATH_ = "Internal_recursion_detection_find_loop_path_recursion____check_paths_are_valid_for_path_";
   public static final String INV_FAILED = "INV_FAILED";
+  public static final String INV_NOT_CHECKED_BUDGET = "INV_NOT_CHECKED_BUDGET";
   public static final String INV_FAILED_SOURCE = "INV_FAILED_SOURCE";
   public static final String INVALID_SLICING__THERE_IS_MORE_THAN_ONE_TYPE_SLICE_AT__BUT_ONE_OF_THEM__HAS_MIN__1_SO_THE_OTHER_SLICES_CANNOT_EXIST = "Invalid_slicing__there_is_more_than_one_type_slice_at__but_one_of_them__has_min__1_so_the_other_slices_cannot_exist";
   public static final String LANGUAGE_XHTML_LANG_DIFFERENT1 = "Language_XHTML_Lang_Different1";
@@ -654,6 +656,7 @@ public class I18nConstants {
   public static final String VALIDATION_VAL_PROFILE_WRONGTYPE2 = "Validation_VAL_Profile_WrongType2";
   public static final String VALIDATION_VAL_UNKNOWN_PROFILE = "Validation_VAL_Unknown_Profile";
   public static final String VALIDATION_VAL_PROFILE_DEPENDS_NOT_RESOLVED = "VALIDATION_VAL_PROFILE_DEPENDS_NOT_RESOLVED";
+  public static final String VALIDATION_STOPPED_MAX_ERRORS = "VALIDATION_STOPPED_MAX_ERRORS";
   
   public static final String VALUESET_INCLUDE_INVALID_CONCEPT_CODE = "VALUESET_INCLUDE_INVALID_CONCEPT_CODE";
   public static final String VALUESET_INCLUDE_INVALID_CONCEPT_CODE_VER = "VALUESET_INCLUDE_INVALID_CONCEPT_CODE_VER";
@@ -1026,6 +1029,7 @@ public class I18nConstants {
   public static final String BUNDLE_ENTRY_URL_MATCHES_TYPE_ID = "BUNDLE_ENTRY_URL_MATCHES_TYPE_ID";
   public static final String BUNDLE_ENTRY_URL_MATCHES_NO_ID = "BUNDLE_ENTRY_URL_MATCHES_NO_ID";
   public static final String BUNDLE_ENTRY_URL_ABSOLUTE = "BUNDLE_ENTRY_URL_ABSOLUTE";
+  public static final String BUNDLE_ENTRY_URL_DUPLICATE = "BUNDLE_ENTRY_URL_DUPLICATE";
   public static final String BUNDLE_BUNDLE_ENTRY_FOUND_MULTIPLE = "BUNDLE_BUNDLE_ENTRY_FOUND_MULTIPLE";
   public static final String FHIRPATH_COLLECTION_STATUS_PARAMETER = "FHIRPATH_COLLECTION_STATUS_PARAMETER";
   public static final String FHIRPATH_COLLECTION_STATUS_CONTEXT = "FHIRPATH_COLLECTION_STATUS_CONTEXT";
@@ -65,6 +65,7 @@ import java.text.SimpleDateFormat;
 
 import java.util.Comparator;
 import java.util.Date;
+import java.util.function.Supplier;
 
 import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.apache.commons.lang3.builder.ToStringStyle;
@@ -508,6 +509,7 @@ public class ValidationMessage implements Comparator<ValidationMessage>, Compara
   private int col;
   private String location; // fhirPath
   private String message;
+  private Supplier<String> messageSupplier; // if the message hasn't been formatted yet
   private String messageId; // source, for grouping
   private IssueType type;
   private IssueSeverity level;
@@ -602,6 +604,33 @@ public class ValidationMessage implements Comparator<ValidationMessage>, Compara
       throw new Error("A type must be provided");
   }
 
+  /**
+   * Create a message where the text is only worked out (by calling message) if something 
+   * asks for it. Lots of messages are discarded without ever being seen, and formatting 
+   * messages is expensive. 
+   */
+  public ValidationMessage(Source source, IssueType type, int line, int col, String path, Supplier<String> message, IssueSeverity level) {
+    this(source, type, line, col, path, message, null, level);
+  }
+
+  public ValidationMessage(Source source, IssueType type, int line, int col, String path, Supplier<String> message, String html, IssueSeverity level) {
+    this();
+    this.line = line;
+    this.col = col;
+    this.location = path;
+    if (message == null)
+      throw new Error("message is null");
+    this.messageSupplier = message;
+    this.html = html;
+    this.level = level;
+    this.source = source;
+    this.type = type;
+    if (level == IssueSeverity.NULL)
+      determineLevel(path);
+    if (type == null)
+      throw new Error("A type must be provided");
+  }
+
   private IssueSeverity determineLevel(String path) {
     if (isGrandfathered(path))
       return IssueSeverity.WARNING;
@@ -641,10 +670,16 @@ public class ValidationMessage implements Comparator<ValidationMessage>, Compara
   }
 
   public String getMessage() {
+    Supplier<String> supplier = messageSupplier;
+    if (supplier != null) {
+      message = supplier.get();
+      messageSupplier = null;
+    }
     return message;
   }
   public ValidationMessage setMessage(String message) {
     this.message = message;
+    this.messageSupplier = null;
     return this;
   }
 
@@ -698,20 +733,20 @@ public class ValidationMessage implements Comparator<ValidationMessage>, Compara
   }
 
   public String summary() {
-    return level.toString()+" @ "+location+(line>= 0 && col >= 0 ? " (line "+Integer.toString(line)+", col"+Integer.toString(col)+"): " : ": ") +message +(source != null ? " (src = "+source+")" : "");
+    return level.toString()+" @ "+location+(line>= 0 && col >= 0 ? " (line "+Integer.toString(line)+", col"+Integer.toString(col)+"): " : ": ") +getMessage() +(source != null ? " (src = "+source+")" : "");
   }
 
 
   public String toXML() {
-    return "<message source=\"" + source + "\" line=\"" + line + "\" col=\"" + col + "\" location=\"" + Utilities.escapeXml(location) + "\" type=\"" + type + "\" level=\"" + level + "\" display=\"" + Utilities.escapeXml(getDisplay()) + "\" ><plain>" + Utilities.escapeXml(message) + "</plain><html>" + html + "</html></message>";
+    return "<message source=\"" + source + "\" line=\"" + line + "\" col=\"" + col + "\" location=\"" + Utilities.escapeXml(location) + "\" type=\"" + type + "\" level=\"" + level + "\" display=\"" + Utilities.escapeXml(getDisplay()) + "\" ><plain>" + Utilities.escapeXml(getMessage()) + "</plain><html>" + getHtml() + "</html></message>";
   }
 
   public String getHtml() {
-    return html == null ? Utilities.escapeXml(message) : html;
+    return html == null ? Utilities.escapeXml(getMessage()) : html;
   }
 
   public String getDisplay() {
-    return level + ": " + (location==null || location.isEmpty() ? "" : (location + ": ")) + message;
+    return level + ": " + (location==null || location.isEmpty() ? "" : (location + ": ")) + getMessage();
   }
 
   /**
@@ -725,7 +760,7 @@ public class ValidationMessage implements Comparator<ValidationMessage>, Compara
     b.append("level", level);
     b.append("type", type);
     b.append("location", location);
-    b.append("message", message);
+    b.append("message", getMessage());
     return b.build();
   }
 
@@ -872,11 +907,11 @@ public class ValidationMessage implements Comparator<ValidationMessage>, Compara
         return false;
       }
     }
-    if (message == null) {
-      if (other.message != null) {
+    if (getMessage() == null) {
+      if (other.getMessage() != null) {
         return false;
       }
-    } else if (!message.equals(other.message)) {
+    } else if (!getMessage().equals(other.getMessage())) {
       return false;
     }
     if (messageId == null) {
@@ -0,0 +1,65 @@
+package org.hl7.fhir.utilities.validation;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.hl7.fhir.utilities.i18n.I18nConstants;
+import org.hl7.fhir.utilities.i18n.I18nTestClass;
+import org.hl7.fhir.utilities.validation.ValidationMessage.IssueSeverity;
+import org.hl7.fhir.utilities.validation.ValidationMessage.IssueType;
+import org.hl7.fhir.utilities.validation.ValidationMessage.Source;
+import org.junit.jupiter.api.Test;
+
+public class ValidationMessageTests {
+
+  private I18nTestClass i18n = new I18nTestClass();
+
+  private Supplier<String> counting(AtomicInteger count, String msg, Object... args) {
+    return () -> {
+      count.incrementAndGet();
+      return i18n.formatMessage(msg, args);
+    };
+  }
+
+  @Test
+  public void testDiscardedMessageIsNotFormatted() {
+    AtomicInteger count = new AtomicInteger();
+    List<ValidationMessage> errors = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      ValidationMessage vm = new ValidationMessage(Source.InstanceValidator, IssueType.BUSINESSRULE, 1, i, "Patient.name", counting(count, I18nConstants.DUPLICATE_ID, "id"+i), IssueSeverity.WARNING);
+      if (vm.getLevel() == IssueSeverity.ERROR) {
+        errors.add(vm);
+      }
+    }
+    assertEquals(0, errors.size());
+    assertEquals(0, count.get());
+
+    ValidationMessage vm = new ValidationMessage(Source.InstanceValidator, IssueType.BUSINESSRULE, 1, 1, "Patient.name", counting(count, I18nConstants.DUPLICATE_ID, "id"), IssueSeverity.ERROR);
+    assertEquals(0, count.get());
+    vm.getMessage();
+    vm.getMessage();
+    assertEquals(1, count.get());
+  }
+
+  @Test
+  public void testLazyMatchesEager() {
+    String text = i18n.formatMessage(I18nConstants.DUPLICATE_ID, "id1");
+    ValidationMessage eager = new ValidationMessage(Source.InstanceValidator, IssueType.BUSINESSRULE, 1, 2, "Patient.name", text, IssueSeverity.ERROR);
+    ValidationMessage lazy = new ValidationMessage(Source.InstanceValidator, IssueType.BUSINESSRULE, 1, 2, "Patient.name", () -> i18n.formatMessage(I18nConstants.DUPLICATE_ID, "id1"), IssueSeverity.ERROR);
+    // compare before the lazy message has been read
+    assertEquals(eager, lazy);
+    assertEquals(lazy, eager);
+    assertEquals(eager.getMessage(), lazy.getMessage());
+    assertEquals(eager.toString(), lazy.toString());
+    assertEquals(eager.getDisplay(), lazy.getDisplay());
+
+    // setting the message replaces the one that hasn't been formatted yet
+    ValidationMessage other = new ValidationMessage(Source.InstanceValidator, IssueType.BUSINESSRULE, 1, 2, "Patient.name", () -> "not this", IssueSeverity.ERROR);
+    other.setMessage(text);
+    assertEquals(eager, other);
+  }
+}
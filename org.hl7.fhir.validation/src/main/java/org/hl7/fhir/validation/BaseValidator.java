@@ -6,11 +6,13 @@ import static org.apache.commons.lang3.StringUtils.isBlank;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Supplier;
 
 /*
   Copyright (c) 2011+, HL7, Inc.
@@ -73,12 +75,14 @@ import org.hl7.fhir.utilities.FhirPublication;
 import org.hl7.fhir.utilities.StandardsStatus;
 import org.hl7.fhir.utilities.Utilities;
 import org.hl7.fhir.utilities.VersionUtilities;
+import org.hl7.fhir.utilities.i18n.I18nBase;
 import org.hl7.fhir.utilities.i18n.I18nConstants;
 import org.hl7.fhir.utilities.validation.ValidationMessage;
 import org.hl7.fhir.utilities.validation.ValidationMessage.IssueSeverity;
 import org.hl7.fhir.utilities.validation.ValidationMessage.IssueType;
 import org.hl7.fhir.utilities.validation.ValidationMessage.Source;
 import org.hl7.fhir.validation.cli.utils.ValidationLevel;
+import org.hl7.fhir.validation.instance.utils.BundleIndex;
 import org.hl7.fhir.validation.instance.utils.IndexedElement;
 import org.hl7.fhir.validation.instance.utils.NodeStack;
 
@@ -161,8 +165,8 @@ public class BaseValidator implements IValidationContextResourceLoader {
   protected IWorkerContext context;
   protected ValidationTimeTracker timeTracker = new ValidationTimeTracker();
   protected XVerExtensionManager xverManager;
-  protected List<TrackedLocationRelatedMessage> trackedMessages = new ArrayList<>();
-  protected List<ValidationMessage> messagesToRemove = new ArrayList<>();
+  protected List<TrackedLocationRelatedMessage> trackedMessages = Collections.synchronizedList(new ArrayList<>());
+  protected List<ValidationMessage> messagesToRemove = Collections.synchronizedList(new ArrayList<>());
   protected ValidationLevel level = ValidationLevel.HINTS;
   protected Coding jurisdiction;
   protected boolean allowExamples;
@@ -263,8 +267,7 @@ public class BaseValidator implements IValidationContextResourceLoader {
 
   protected boolean fail(List<ValidationMessage> errors, String ruleDate, IssueType type, int line, int col, String path, boolean thePass, String theMessage, Object... theMessageArguments) {
     if (!thePass && doingErrors()) {
-      String msg = context.formatMessage(theMessage, theMessageArguments);
-      addValidationMessage(errors, ruleDate, type, line, col, path, msg, IssueSeverity.FATAL, theMessage);
+      addValidationMessage(errors, ruleDate, type, line, col, path, lazyFormat(theMessage, theMessageArguments), IssueSeverity.FATAL, theMessage);
     }
     return thePass;
   }
@@ -296,7 +299,7 @@ public class BaseValidator implements IValidationContextResourceLoader {
   protected boolean fail(List<ValidationMessage> errors, String ruleDate, IssueType type, List<String> pathParts, boolean thePass, String theMessage, Object... theMessageArguments) {
     if (!thePass && doingErrors()) {
       String path = toPath(pathParts);
-      addValidationMessage(errors, ruleDate, type, -1, -1, path, context.formatMessage(theMessage, theMessageArguments), IssueSeverity.FATAL, theMessage);
+      addValidationMessage(errors, ruleDate, type, -1, -1, path, lazyFormat(theMessage, theMessageArguments), IssueSeverity.FATAL, theMessage);
     }
     return thePass;
   }
@@ -329,8 +332,7 @@ public class BaseValidator implements IValidationContextResourceLoader {
    */
   protected boolean hint(List<ValidationMessage> errors, String ruleDate, IssueType type, int line, int col, String path, boolean thePass, String msg) {
     if (!thePass && doingHints()) {
-      String message = context.formatMessage(msg);
-      addValidationMessage(errors, ruleDate, type, line, col, path, message, IssueSeverity.INFORMATION, msg);
+      addValidationMessage(errors, ruleDate, type, line, col, path, lazyFormat(msg), IssueSeverity.INFORMATION, msg);
     }
     return thePass;
   }
@@ -344,8 +346,7 @@ public class BaseValidator implements IValidationContextResourceLoader {
    */
   protected boolean hintInv(List<ValidationMessage> errors, String ruleDate, IssueType type, int line, int col, String path, boolean thePass, String msg, String invId) {
     if (!thePass && doingHints()) {
-      String message = context.formatMessage(msg);
-      addValidationMessage(errors, ruleDate, type, line, col, path, message, IssueSeverity.INFORMATION, msg).setInvId(invId);
+      addValidationMessage(errors, ruleDate, type, line, col, path, lazyFormat(msg), IssueSeverity.INFORMATION, msg).setInvId(invId);
     }
     return thePass;
   }
@@ -377,29 +378,25 @@ public class BaseValidator implements IValidationContextResourceLoader {
    */
   protected boolean hint(List<ValidationMessage> errors, String ruleDate, IssueType type, int line, int col, String path, boolean thePass, String theMessage, Object... theMessageArguments) {
     if (!thePass && doingHints()) {
-      String message = context.formatMessage(theMessage, theMessageArguments);
-      addValidationMessage(errors, ruleDate, type, line, col, path, message, IssueSeverity.INFORMATION, theMessage);
+      addValidationMessage(errors, ruleDate, type, line, col, path, lazyFormat(theMessage, theMessageArguments), IssueSeverity.INFORMATION, theMessage);
     }
     return thePass;
   }
 
   protected boolean hintPlural(List<ValidationMessage> errors, String ruleDate, IssueType type, int line, int col, String path, boolean thePass, int num, String theMessage, Object... theMessageArguments) {
     if (!thePass && doingHints()) {
-      String message = context.formatMessagePlural(num, theMessage, theMessageArguments);
-      addValidationMessage(errors, ruleDate, type, line, col, path, message, IssueSeverity.INFORMATION, theMessage);
+      addValidationMessage(errors, ruleDate, type, line, col, path, lazyFormatPlural(num, theMessage, theMessageArguments), IssueSeverity.INFORMATION, theMessage);
     }
     return thePass;
   }
 
   protected ValidationMessage signpost(List<ValidationMessage> errors, String ruleDate, IssueType type, int line, int col, String path, String theMessage, Object... theMessageArguments) {
-    String message = context.formatMessage(theMessage, theMessageArguments);
-    return addValidationMessage(errors, ruleDate, type, line, col, path, message, IssueSeverity.INFORMATION, theMessage).setSignpost(true);
+    return addValidationMessage(errors, ruleDate, type, line, col, path, lazyFormat(theMessage, theMessageArguments), IssueSeverity.INFORMATION, theMessage).setSignpost(true);
   }
 
   protected boolean txHint(List<ValidationMessage> errors, String ruleDate, String txLink, IssueType type, int line, int col, String path, boolean thePass, String theMessage, Object... theMessageArguments) {
     if (!thePass && doingHints()) {
-      String message = context.formatMessage(theMessage, theMessageArguments);
-      addValidationMessage(errors, ruleDate, type, line, col, path, message, IssueSeverity.INFORMATION, Source.TerminologyEngine, theMessage).setTxLink(txLink);
+      addValidationMessage(errors, ruleDate, type, line, col, path, lazyFormat(theMessage, theMessageArguments), IssueSeverity.INFORMATION, Source.TerminologyEngine, theMessage).setTxLink(txLink);
     }
     return thePass;
   }
@@ -414,8 +411,7 @@ public class BaseValidator implements IValidationContextResourceLoader {
   protected boolean hint(List<ValidationMessage> errors, String ruleDate, IssueType type, List<String> pathParts, boolean thePass, String theMessage, Object... theMessageArguments) {
     if (!thePass && doingHints()) {
       String path = toPath(pathParts);
-      String message = context.formatMessage(theMessage, theMessageArguments);
-      addValidationMessage(errors, ruleDate, type, -1, -1, path, message, IssueSeverity.INFORMATION, theMessage);
+      addValidationMessage(errors, ruleDate, type, -1, -1, path, lazyFormat(theMessage, theMessageArguments), IssueSeverity.INFORMATION, theMessage);
     }
     return thePass;
   }
@@ -429,8 +425,7 @@ public class BaseValidator implements IValidationContextResourceLoader {
    */
   protected boolean hint(List<ValidationMessage> errors, String ruleDate, IssueType type, String path, boolean thePass, String theMessage, Object... theMessageArguments) {
     if (!thePass && doingHints()) {
-      String message = context.formatMessage(theMessage, theMessageArguments);
-      addValidationMessage(errors, ruleDate, type, -1, -1, path, message, IssueSeverity.INFORMATION, null);
+      addValidationMessage(errors, ruleDate, type, -1, -1, path, lazyFormat(theMessage, theMessageArguments), IssueSeverity.INFORMATION, null);
     }
     return thePass;
   }
@@ -444,24 +439,21 @@ public class BaseValidator implements IValidationContextResourceLoader {
    */
   protected boolean rule(List<ValidationMessage> errors, String ruleDate, IssueType type, int line, int col, String path, boolean thePass, String theMessage, Object... theMessageArguments) {
     if (!thePass && doingErrors()) {
-      String message = context.formatMessage(theMessage, theMessageArguments);
-      addValidationMessage(errors, ruleDate, type, line, col, path, message, IssueSeverity.ERROR, theMessage);
+      addValidationMessage(errors, ruleDate, type, line, col, path, lazyFormat(theMessage, theMessageArguments), IssueSeverity.ERROR, theMessage);
     }
     return thePass;
   }
 
   protected boolean ruleInv(List<ValidationMessage> errors, String ruleDate, IssueType type, int line, int col, String path, boolean thePass, String theMessage, String invId, Object... theMessageArguments) {
     if (!thePass && doingErrors()) {
-      String message = context.formatMessage(theMessage, theMessageArguments);
-      addValidationMessage(errors, ruleDate, type, line, col, path, message, IssueSeverity.ERROR, invId).setInvId(invId);
+      addValidationMessage(errors, ruleDate, type, line, col, path, lazyFormat(theMessage, theMessageArguments), IssueSeverity.ERROR, invId).setInvId(invId);
     }
     return thePass;
   }
 
   protected boolean rule(List<ValidationMessage> errors, String ruleDate, IssueType type, NodeStack stack, boolean thePass, String theMessage, Object... theMessageArguments) {
     if (!thePass && doingErrors()) {
-      String message = context.formatMessage(theMessage, theMessageArguments);
-      addValidationMessage(errors, ruleDate, type, stack.line(), stack.col(), stack.getLiteralPath(), message, IssueSeverity.ERROR, theMessage);
+      addValidationMessage(errors, ruleDate, type, stack.line(), stack.col(), stack.getLiteralPath(), lazyFormat(theMessage, theMessageArguments), IssueSeverity.ERROR, theMessage);
     }
     return thePass;
   }
@@ -472,16 +464,14 @@ public class BaseValidator implements IValidationContextResourceLoader {
   
   protected boolean rulePlural(List<ValidationMessage> errors, String ruleDate, IssueType type, int line, int col, String path, boolean thePass, int num, String theMessage, Object... theMessageArguments) {
     if (!thePass && doingErrors()) {
-      String message = context.formatMessagePlural(num, theMessage, theMessageArguments);
-      addValidationMessage(errors, ruleDate, type, line, col, path, message, IssueSeverity.ERROR, theMessage);
+      addValidationMessage(errors, ruleDate, type, line, col, path, lazyFormatPlural(num, theMessage, theMessageArguments), IssueSeverity.ERROR, theMessage);
     }
     return thePass;
   }
 
   protected boolean txRule(List<ValidationMessage> errors, String ruleDate, String txLink, IssueType type, int line, int col, String path, boolean thePass, String theMessage, Object... theMessageArguments) {
     if (!thePass && doingErrors()) {
-      String message = context.formatMessage(theMessage, theMessageArguments);
-      ValidationMessage vm = new ValidationMessage(Source.TerminologyEngine, type, line, col, path, message, IssueSeverity.ERROR).setMessageId(idForMessage(theMessage, message));
+      ValidationMessage vm = new ValidationMessage(Source.TerminologyEngine, type, line, col, path, lazyFormat(theMessage, theMessageArguments), IssueSeverity.ERROR).setMessageId(idForMessage(theMessage));
       vm.setRuleDate(ruleDate);
       if (checkMsgId(theMessage, vm)) {
         errors.add(vm.setTxLink(txLink));
@@ -490,8 +480,15 @@ public class BaseValidator implements IValidationContextResourceLoader {
     return thePass;
   }
 
-  private String idForMessage(String theMessage, String message) {
-    return theMessage.equals(message) ? null : theMessage;
+  /**
+   * @return the message key, or null if theMessage isn't a key (it's the message itself). This is 
+   * worked out before it's known whether the message is kept, so it mustn't format the message
+   */
+  private String idForMessage(String theMessage) {
+    if (context instanceof I18nBase) {
+      return ((I18nBase) context).isMessageKey(theMessage) ? theMessage : null;
+    }
+    return theMessage.equals(context.formatMessage(theMessage)) ? null : theMessage;
   }
 
   /**
@@ -519,8 +516,7 @@ public class BaseValidator implements IValidationContextResourceLoader {
   protected boolean rule(List<ValidationMessage> errors, String ruleDate, IssueType type, List<String> pathParts, boolean thePass, String theMessage, Object... theMessageArguments) {
     if (!thePass && doingErrors()) {
       String path = toPath(pathParts);
-      String message = context.formatMessage(theMessage, theMessageArguments);
-      addValidationMessage(errors, ruleDate, type, -1, -1, path, message, IssueSeverity.ERROR, theMessage);
+      addValidationMessage(errors, ruleDate, type, -1, -1, path, lazyFormat(theMessage, theMessageArguments), IssueSeverity.ERROR, theMessage);
     }
     return thePass;
   }
@@ -536,16 +532,14 @@ public class BaseValidator implements IValidationContextResourceLoader {
 
   protected boolean rule(List<ValidationMessage> errors, String ruleDate, IssueType type, String path, boolean thePass, String theMessage, Object... theMessageArguments) {
     if (!thePass && doingErrors()) {
-      String message = context.formatMessage(theMessage, theMessageArguments);
-      addValidationMessage(errors, ruleDate, type, -1, -1, path, message, IssueSeverity.ERROR, theMessage);
+      addValidationMessage(errors, ruleDate, type, -1, -1, path, lazyFormat(theMessage, theMessageArguments), IssueSeverity.ERROR, theMessage);
     }
     return thePass;
   }
 
   protected boolean rulePlural(List<ValidationMessage> errors, String ruleDate, IssueType type, String path, boolean thePass, int num, String theMessage, Object... theMessageArguments) {
     if (!thePass && doingErrors()) {
-      String message = context.formatMessagePlural(num, theMessage, theMessageArguments);
-      addValidationMessage(errors, ruleDate, type, -1, -1, path, message, IssueSeverity.ERROR, theMessage);
+      addValidationMessage(errors, ruleDate, type, -1, -1, path, lazyFormatPlural(num, theMessage, theMessageArguments), IssueSeverity.ERROR, theMessage);
     }
     return thePass;
   }
@@ -610,9 +604,8 @@ public class BaseValidator implements IValidationContextResourceLoader {
    */
   protected boolean warning(List<ValidationMessage> errors, String ruleDate, IssueType type, int line, int col, String path, boolean thePass, String msg, Object... theMessageArguments) {
     if (!thePass && doingWarnings()) {
-      String nmsg = context.formatMessage(msg, theMessageArguments);
       IssueSeverity severity = IssueSeverity.WARNING;
-      addValidationMessage(errors, ruleDate, type, line, col, path, nmsg, severity, msg);
+      addValidationMessage(errors, ruleDate, type, line, col, path, lazyFormat(msg, theMessageArguments), severity, msg);
     }
     return thePass;
 
@@ -620,9 +613,8 @@ public class BaseValidator implements IValidationContextResourceLoader {
   
   protected boolean warning(List<ValidationMessage> errors, String ruleDate, IssueType type, int line, int col, String path, String id, boolean thePass, String msg, Object... theMessageArguments) {
     if (!thePass && doingWarnings()) {
-      String nmsg = context.formatMessage(msg, theMessageArguments);
       IssueSeverity severity = IssueSeverity.WARNING;
-      addValidationMessage(errors, ruleDate, type, line, col, path, nmsg, severity, id);
+      addValidationMessage(errors, ruleDate, type, line, col, path, lazyFormat(msg, theMessageArguments), severity, id);
     }
     return thePass;
 
@@ -630,10 +622,9 @@ public class BaseValidator implements IValidationContextResourceLoader {
   
   protected boolean warningInv(List<ValidationMessage> errors, String ruleDate, IssueType type, int line, int col, String path, boolean thePass, String msg, String invId, Object... theMessageArguments) {
     if (!thePass && doingWarnings()) {
-      String nmsg = context.formatMessage(msg, theMessageArguments);
       IssueSeverity severity = IssueSeverity.WARNING;
-      String id = idForMessage(msg, nmsg);
-      addValidationMessage(errors, ruleDate, type, line, col, path, nmsg, severity, id).setMessageId(id).setInvId(invId);
+      String id = idForMessage(msg);
+      addValidationMessage(errors, ruleDate, type, line, col, path, lazyFormat(msg, theMessageArguments), severity, id).setMessageId(id).setInvId(invId);
     }
     return thePass;
 
@@ -649,14 +640,57 @@ public class BaseValidator implements IValidationContextResourceLoader {
 
   protected boolean warningPlural(List<ValidationMessage> errors, String ruleDate, IssueType type, int line, int col, String path, boolean thePass, int num, String msg, Object... theMessageArguments) {
     if (!thePass && doingWarnings()) {
-      String nmsg = context.formatMessagePlural(num, msg, theMessageArguments);
       IssueSeverity severity = IssueSeverity.WARNING;
-      addValidationMessage(errors, ruleDate, type, line, col, path, nmsg, severity, msg);
+      addValidationMessage(errors, ruleDate, type, line, col, path, lazyFormatPlural(num, msg, theMessageArguments), severity, msg);
     }
     return thePass;
 
   }
 
+  /**
+   * @return the formatted message, but only worked out when something asks for the text. If any 
+   * of the arguments could change before then, the message is formatted now
+   */
+  protected Supplier<String> lazyFormat(String theMessage, Object... theMessageArguments) {
+    if (!isImmutable(theMessageArguments)) {
+      String msg = context.formatMessage(theMessage, theMessageArguments);
+      return () -> msg;
+    }
+    return () -> context.formatMessage(theMessage, theMessageArguments);
+  }
+
+  protected Supplier<String> lazyFormatPlural(Integer num, String theMessage, Object... theMessageArguments) {
+    if (!isImmutable(theMessageArguments)) {
+      String msg = context.formatMessagePlural(num, theMessage, theMessageArguments);
+      return () -> msg;
+    }
+    return () -> context.formatMessagePlural(num, theMessage, theMessageArguments);
+  }
+
+  private boolean isImmutable(Object[] args) {
+    if (args != null) {
+      for (Object o : args) {
+        if (!(o == null || o instanceof String || o instanceof Number || o instanceof Boolean || o instanceof Character || o instanceof Enum)) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  protected ValidationMessage addValidationMessage(List<ValidationMessage> errors, String ruleDate, IssueType type, int line, int col, String path, Supplier<String> msg, IssueSeverity theSeverity, String id) {
+    return addValidationMessage(errors, ruleDate, type, line, col, path, msg, theSeverity, this.source, id);
+  }
+
+  protected ValidationMessage addValidationMessage(List<ValidationMessage> errors, String ruleDate, IssueType type, int line, int col, String path, Supplier<String> msg, IssueSeverity theSeverity, Source theSource, String id) {
+    ValidationMessage validationMessage = new ValidationMessage(theSource, type, line, col, path, msg, theSeverity).setMessageId(id);
+    validationMessage.setRuleDate(ruleDate);
+    if (doingLevel(theSeverity) && checkMsgId(id, validationMessage)) {
+      errors.add(validationMessage);
+    }
+    return validationMessage;
+  }
+
   protected ValidationMessage addValidationMessage(List<ValidationMessage> errors, String ruleDate, IssueType type, int line, int col, String path, String msg, IssueSeverity theSeverity, String id) {
     Source source = this.source;
     return addValidationMessage(errors, ruleDate, type, line, col, path, msg, theSeverity, source, id);
@@ -691,8 +725,7 @@ public class BaseValidator implements IValidationContextResourceLoader {
    */
   protected boolean txWarning(List<ValidationMessage> errors, String ruleDate, String txLink, IssueType type, int line, int col, String path, boolean thePass, String msg, Object... theMessageArguments) {
     if (!thePass && doingWarnings()) {
-      String nmsg = context.formatMessage(msg, theMessageArguments);
-      ValidationMessage vmsg = new ValidationMessage(Source.TerminologyEngine, type, line, col, path, nmsg, IssueSeverity.WARNING).setTxLink(txLink).setMessageId(idForMessage(msg, nmsg));
+      ValidationMessage vmsg = new ValidationMessage(Source.TerminologyEngine, type, line, col, path, lazyFormat(msg, theMessageArguments), IssueSeverity.WARNING).setTxLink(txLink).setMessageId(idForMessage(msg));
       vmsg.setRuleDate(ruleDate);
       if (checkMsgId(msg, vmsg)) {
         errors.add(vmsg);
@@ -730,8 +763,7 @@ public class BaseValidator implements IValidationContextResourceLoader {
    */
   protected boolean txWarningForLaterRemoval(Object location, List<ValidationMessage> errors, String ruleDate, String txLink, IssueType type, int line, int col, String path, boolean thePass, String msg, Object... theMessageArguments) {
     if (!thePass && doingWarnings()) {
-      String nmsg = context.formatMessage(msg, theMessageArguments);
-      ValidationMessage vmsg = new ValidationMessage(Source.TerminologyEngine, type, line, col, path, nmsg, IssueSeverity.WARNING).setTxLink(txLink).setMessageId(msg);
+      ValidationMessage vmsg = new ValidationMessage(Source.TerminologyEngine, type, line, col, path, lazyFormat(msg, theMessageArguments), IssueSeverity.WARNING).setTxLink(txLink).setMessageId(msg);
       vmsg.setRuleDate(ruleDate);
       if (checkMsgId(msg, vmsg)) {
         errors.add(vmsg);
@@ -759,10 +791,9 @@ public class BaseValidator implements IValidationContextResourceLoader {
   
   protected boolean warningOrError(boolean isError, List<ValidationMessage> errors, String ruleDate, IssueType type, int line, int col, String path, boolean thePass, String msg, Object... theMessageArguments) {
     if (!thePass) {
-      String nmsg = context.formatMessage(msg, theMessageArguments);
       IssueSeverity lvl = isError ? IssueSeverity.ERROR : IssueSeverity.WARNING;
       if (doingLevel(lvl)) {
-        addValidationMessage(errors, ruleDate, type, line, col, path, nmsg, lvl, msg);
+        addValidationMessage(errors, ruleDate, type, line, col, path, lazyFormat(msg, theMessageArguments), lvl, msg);
       }
     }
     return thePass;
@@ -775,10 +806,9 @@ public class BaseValidator implements IValidationContextResourceLoader {
   
   protected boolean hintOrError(boolean isError, List<ValidationMessage> errors, String ruleDate, IssueType type, int line, int col, String path, boolean thePass, String msg, Object... theMessageArguments) {
     if (!thePass) {
-      String nmsg = context.formatMessage(msg, theMessageArguments);
       IssueSeverity lvl = isError ? IssueSeverity.ERROR : IssueSeverity.INFORMATION;
       if (doingLevel(lvl)) {
-        addValidationMessage(errors, ruleDate, type, line, col, path, nmsg, lvl, msg);
+        addValidationMessage(errors, ruleDate, type, line, col, path, lazyFormat(msg, theMessageArguments), lvl, msg);
       }
     }
     return thePass;
@@ -795,8 +825,7 @@ public class BaseValidator implements IValidationContextResourceLoader {
   protected boolean warning(List<ValidationMessage> errors, String ruleDate, IssueType type, List<String> pathParts, boolean thePass, String theMessage, Object... theMessageArguments) {
     if (!thePass && doingWarnings()) {
       String path = toPath(pathParts);
-      String message = context.formatMessage(theMessage, theMessageArguments);
-      addValidationMessage(errors, ruleDate, type, -1, -1, path, message, IssueSeverity.WARNING, theMessage);
+      addValidationMessage(errors, ruleDate, type, -1, -1, path, lazyFormat(theMessage, theMessageArguments), IssueSeverity.WARNING, theMessage);
     }
     return thePass;
   }
@@ -810,8 +839,7 @@ public class BaseValidator implements IValidationContextResourceLoader {
    */
   protected boolean warning(List<ValidationMessage> errors, String ruleDate, IssueType type, String path, boolean thePass, String msg, Object... theMessageArguments) {
     if (!thePass && doingWarnings()) {
-      String message = context.formatMessage(msg, theMessageArguments);
-      addValidationMessage(errors, ruleDate, type, -1, -1, path, message, IssueSeverity.WARNING, null);
+      addValidationMessage(errors, ruleDate, type, -1, -1, path, lazyFormat(msg, theMessageArguments), IssueSeverity.WARNING, null);
     }
     return thePass;
   }
@@ -825,10 +853,9 @@ public class BaseValidator implements IValidationContextResourceLoader {
    */
   protected boolean warningOrHint(List<ValidationMessage> errors, String ruleDate, IssueType type, String path, boolean thePass, boolean warning, String msg, Object... theMessageArguments) {
     if (!thePass) {
-      String message = context.formatMessage(msg, theMessageArguments);
       IssueSeverity lvl = warning ? IssueSeverity.WARNING : IssueSeverity.INFORMATION;
       if  (doingLevel(lvl)) {
-        addValidationMessage(errors, ruleDate, type, -1, -1, path, message, lvl, null);
+        addValidationMessage(errors, ruleDate, type, -1, -1, path, lazyFormat(msg, theMessageArguments), lvl, null);
       }
     }
     return thePass;
@@ -857,8 +884,7 @@ public class BaseValidator implements IValidationContextResourceLoader {
    */
   protected boolean warningHtml(List<ValidationMessage> errors, String ruleDate, IssueType type, String path, boolean thePass, String msg, String html, Object... theMessageArguments) {
     if (!thePass && doingWarnings()) {
-      String nmsg = context.formatMessage(msg, theMessageArguments);
-      addValidationMessage(errors, ruleDate, type, path, nmsg, html, IssueSeverity.WARNING, msg);
+      addValidationMessage(errors, ruleDate, type, path, lazyFormat(msg, theMessageArguments), html, IssueSeverity.WARNING, msg);
     }
     return thePass;
   }
@@ -873,8 +899,7 @@ public class BaseValidator implements IValidationContextResourceLoader {
    */
   protected boolean suppressedwarning(List<ValidationMessage> errors, String ruleDate, IssueType type, int line, int col, String path, boolean thePass, String msg, Object... theMessageArguments) {
     if (!thePass && doingWarnings()) { 
-      String nmsg = context.formatMessage(msg, theMessageArguments);
-      addValidationMessage(errors, ruleDate, type, line, col, path, nmsg, IssueSeverity.INFORMATION, msg);
+      addValidationMessage(errors, ruleDate, type, line, col, path, lazyFormat(msg, theMessageArguments), IssueSeverity.INFORMATION, msg);
     }
     return thePass;
 
@@ -890,8 +915,7 @@ public class BaseValidator implements IValidationContextResourceLoader {
   protected boolean suppressedwarning(List<ValidationMessage> errors, String ruleDate, IssueType type, List<String> pathParts, boolean thePass, String theMessage, Object... theMessageArguments) {
     if (!thePass && doingWarnings()) {
       String path = toPath(pathParts);
-      String message = context.formatMessage(theMessage, theMessageArguments);
-      addValidationMessage(errors, ruleDate, type, -1, -1, path, message, IssueSeverity.INFORMATION, theMessage);
+      addValidationMessage(errors, ruleDate, type, -1, -1, path, lazyFormat(theMessage, theMessageArguments), IssueSeverity.INFORMATION, theMessage);
     }
     return thePass;
   }
@@ -925,6 +949,16 @@ public class BaseValidator implements IValidationContextResourceLoader {
     return thePass;
   }
 
+  protected void addValidationMessage(List<ValidationMessage> errors, String ruleDate, IssueType type, String path, Supplier<String> msg, String html, IssueSeverity theSeverity, String id) {
+    ValidationMessage vm = new ValidationMessage(source, type, -1, -1, path, msg, html, theSeverity);
+    vm.setRuleDate(ruleDate);
+    if (checkMsgId(id, vm)) {
+      if (doingLevel(theSeverity)) {
+        errors.add(vm.setMessageId(id));
+      }
+    }
+  }
+
   protected void addValidationMessage(List<ValidationMessage> errors, String ruleDate, IssueType type, String path, String msg, String html, IssueSeverity theSeverity, String id) {
     ValidationMessage vm = new ValidationMessage(source, type, -1, -1, path, msg, html, theSeverity);
     vm.setRuleDate(ruleDate);
@@ -944,8 +978,7 @@ public class BaseValidator implements IValidationContextResourceLoader {
    */
   protected boolean suppressedwarning(List<ValidationMessage> errors, String ruleDate, IssueType type, String path, boolean thePass, String msg, String html, Object... theMessageArguments) {
     if (!thePass && doingWarnings()) {
-      String nmsg = context.formatMessage(msg, theMessageArguments);
-      addValidationMessage(errors, ruleDate, type, path, nmsg, html, IssueSeverity.INFORMATION, msg);
+      addValidationMessage(errors, ruleDate, type, path, lazyFormat(msg, theMessageArguments), html, IssueSeverity.INFORMATION, msg);
     }
     return thePass;
   }
@@ -1011,18 +1044,24 @@ public class BaseValidator implements IValidationContextResourceLoader {
     if (bnd == null)
       return null;
     if (bnd.fhirType().equals(BUNDLE)) {
-      for (Element be : bnd.getChildrenByName(ENTRY)) {
-        Element res = be.getNamedChild(RESOURCE, false);
-        if (res != null) {
-          String fullUrl = be.getChildValue(FULL_URL);
-          String rt = res.fhirType();
-          String id = res.getChildValue(ID);
-          if (url.equals(fullUrl))
-            return res;
-          if (url.equals(rt + "/" + id))
-            return res;
+      BundleIndex index = BundleIndex.forBundle(bnd);
+      // the first entry that matches, by either fullUrl or type/id
+      Element match = null;
+      List<Element> el = index.getByFullUrl(url);
+      if (el != null) {
+        for (Element be : el) {
+          if (be.hasChild(RESOURCE, false)) {
+            match = be;
+            break;
+          }
         }
       }
+      String[] parts = url.split("\\/");
+      el = parts.length == 2 ? index.getByTypeAndId(parts[0], parts[1]) : null;
+      if (el != null && (match == null || index.indexOf(el.get(0)) < index.indexOf(match))) {
+        match = el.get(0);
+      }
+      return match == null ? null : match.getNamedChild(RESOURCE, false);
     }
     return null;
   }
@@ -1031,46 +1070,11 @@ public class BaseValidator implements IValidationContextResourceLoader {
     if ("MedicationStatement/d41ac499-c7e8-45fa-9246-69028bae178f".equals(ref)) {
       System.out.println("!");
     }
-    @SuppressWarnings("unchecked")
-    Map<String, List<Element>> map = (Map<String, List<Element>>) bundle.getUserData("validator.entrymap");
-    @SuppressWarnings("unchecked")
-    Map<String, List<Element>> relMap = (Map<String, List<Element>>) bundle.getUserData("validator.entrymapR");
-    List<Element> list = null;
-
-    if (map == null) {
-      map = new HashMap<>();
-      bundle.setUserData("validator.entrymap", map);
-      relMap = new HashMap<>();
-      bundle.setUserData("validator.entrymapR", relMap);
-      for (Element entry : entries) {
-        String fu = entry.getNamedChildValue(FULL_URL, false);
-        list = map.get(fu);
-        if (list == null) {
-          list = new ArrayList<Element>();
-          map.put(fu, list);
-        }
-        list.add(entry);
-        
-        Element resource = entry.getNamedChild(RESOURCE, false);
-        if (resource != null) {
-          String et = resource.getType();
-          String eid = resource.getNamedChildValue(ID, false);
-          if (eid != null) {
-            String rl = et+"/"+eid;
-            list = relMap.get(rl);
-            if (list == null) {
-              list = new ArrayList<Element>();
-              relMap.put(rl, list);
-            }
-            list.add(entry);
-          }
-        }
-      }      
-    }
+    BundleIndex index = BundleIndex.forBundle(bundle);
     
     if (Utilities.isAbsoluteUrl(ref)) {
       // if the reference is absolute, then you resolve by fullUrl. No other thinking is required.
-      List<Element> el = map.get(ref);
+      List<Element> el = index.getByFullUrl(ref);
       if (el == null) {
         // if this something we complain about? 
         // not if it's in a package, or it looks like a restful URL and it's one of the canonical resource types
@@ -1099,7 +1103,7 @@ public class BaseValidator implements IValidationContextResourceLoader {
       if (fullUrl != null && fullUrl.matches(urlRegex) && fullUrl.endsWith(type + "/" + id)) {
         u = fullUrl.substring(0, fullUrl.length() - (type + "/" + id).length()) + ref;
       }
-      List<Element> el = map.get(u);
+      List<Element> el = u == null ? null : index.getByFullUrl(u);
       if (el != null && el.size() > 0) {
         if (el.size() == 1) {
           return el.get(0);
@@ -1116,7 +1120,7 @@ public class BaseValidator implements IValidationContextResourceLoader {
           String t = parts[0];
           if (context.getResourceNamesAsSet().contains(t)) {
             String i = parts[1];
-            el = relMap.get(t+"/"+i);
+            el = index.getByTypeAndId(t, i);
             if (el != null) {
               Set<String> tl = new HashSet<>();
               for (Element e : el) {
@@ -1209,13 +1213,14 @@ public class BaseValidator implements IValidationContextResourceLoader {
       targetUrl = base + id;
     }
 
-    List<Element> entries = new ArrayList<Element>();
-    bundle.getNamedChildren(ENTRY, entries);
+    BundleIndex index = BundleIndex.forBundle(bundle);
+    List<Element> entries = index.getEntries();
+    List<Element> candidates = index.getByFullUrl(targetUrl);
     Element match = null;
     int matchIndex = -1;
-    for (int i = 0; i < entries.size(); i++) {
-      Element we = entries.get(i);
-      if (targetUrl.equals(we.getChildValue(FULL_URL))) {
+    if (candidates != null) {
+      for (Element we : candidates) {
+        int i = index.indexOf(we);
         Element r = we.getNamedChild(RESOURCE, false);
         if (version.isEmpty()) {
           rule(errors, NO_RULE_DATE, IssueType.FORBIDDEN, -1, -1, path, match == null, I18nConstants.BUNDLE_BUNDLE_MULTIPLEMATCHES, ref);
@@ -1244,20 +1249,17 @@ public class BaseValidator implements IValidationContextResourceLoader {
         String[] p = ref.split("\\/");
         List<Element> ml = new ArrayList<>();
         if (p.length >= 2 && context.getResourceNamesAsSet().contains(p[0]) && Utilities.isValidId(p[1])) {
-          for (int i = 0; i < entries.size(); i++) {
-            Element we = entries.get(i);
-            Element r = we.getNamedChild(RESOURCE, false);
-            if (r != null && p[0].equals(r.fhirType()) && p[1].equals(r.getNamedChildValue("id", false)) ) {
-              ml.add(we);
-            }
-          }          
+          List<Element> el = index.getByTypeAndId(p[0], p[1]);
+          if (el != null) {
+            ml.addAll(el);
+          }
         }
         if (ml.size() > 1) {
           warning(errors, NO_RULE_DATE, IssueType.REQUIRED, -1, -1, path, false, I18nConstants.BUNDLE_POSSSIBLE_MATCHES, ref, targetUrl);          
         }
         for (Element e : ml) {
           String fu = e.getChildValue(FULL_URL);
-          int i = entries.indexOf(e);
+          int i = index.indexOf(e);
           if (fu == null) {
             warning(errors, NO_RULE_DATE, IssueType.REQUIRED, -1, -1, path, false, I18nConstants.BUNDLE_BUNDLE_POSSIBLE_MATCH_NO_FU, i, ref, targetUrl);
           } else {
@@ -0,0 +1,493 @@
+package org.hl7.fhir.validation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.hl7.fhir.exceptions.FHIRFormatError;
+import org.hl7.fhir.r5.context.IWorkerContext;
+import org.hl7.fhir.r5.elementmodel.Manager.FhirFormat;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.utilities.Utilities;
+import org.hl7.fhir.utilities.i18n.I18nConstants;
+import org.hl7.fhir.utilities.json.model.JsonElement;
+import org.hl7.fhir.utilities.json.model.JsonObject;
+import org.hl7.fhir.utilities.json.model.JsonProperty;
+import org.hl7.fhir.utilities.json.parser.JsonParser;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
+import org.hl7.fhir.utilities.validation.ValidationMessage.IssueSeverity;
+import org.hl7.fhir.utilities.validation.ValidationMessage.IssueType;
+import org.hl7.fhir.utilities.validation.ValidationMessage.Source;
+import org.hl7.fhir.validation.instance.InstanceValidator;
+
+/**
+ * Validates a (very large) JSON Bundle without building the Element tree for the whole Bundle.
+ *
+ * The file is read twice. The first pass scans the text of the Bundle, and indexes the fullUrls
+ * of the entries (one entry is parsed at a time). The second pass validates the Bundle one entry
+ * at a time: each entry is wrapped in a Bundle of its own, validated, and then thrown away. The
+ * rest of the Bundle (everything except the entries) is validated once at the end. Only the index,
+ * and the text of the entry being validated, are kept in memory.
+ *
+ * The messages are reported against the paths and lines of the original Bundle. References to
+ * other entries are checked against the index, so the validator does not complain about them, but
+ * the content of the target resources isn't checked (e.g. against target profiles).
+ *
+ * This only applies to collection, transaction and batch bundles (and the responses); other kinds
+ * of Bundle (documents, messages etc) have rules that span the entries, and any other content, are
+ * validated in the normal way. The profiles are applied to each entry, but the rest of the Bundle is
+ * only checked against the base definition, so rules in the profiles that count the entries are
+ * not checked.
+ */
+public class BundleStreamValidator {
+
+  private static final Set<String> STREAMED_TYPES = new HashSet<>(List.of("collection", "transaction", "transaction-response", "batch", "batch-response"));
+  private static final String ENTRY_PATH = "Bundle.entry[0]";
+
+  // the messages the validator produces when a reference isn't in the (single entry) bundle
+  private static final Set<String> LOCAL_REFERENCE_MESSAGES = new HashSet<>(List.of(I18nConstants.BUNDLE_BUNDLE_NOT_LOCAL,
+      I18nConstants.REFERENCE_REF_NOTFOUND_BUNDLE, I18nConstants.REFERENCE_REF_CANTRESOLVE));
+  private static final Pattern PATH_COMMENT = Pattern.compile("/\\*.*?\\*/");
+  private static final Pattern PATH_CHOICE = Pattern.compile("\\.ofType\\((\\w)(\\w*)\\)");
+
+  private interface ScanHandler {
+    // line and col are where the name of the member starts
+    void member(String name, String value, int line, int col) throws IOException;
+    void entry(int index, String value, int line, int col) throws IOException;
+  }
+
+  /**
+   * Just enough of a JSON reader to find the top level properties of an object, and the
+   * items in the entry array, and get their text (and where they start).
+   */
+  private static class Scanner {
+    private final Reader reader;
+    private int line = 1;
+    private int col = 0;
+    private int next = -2;
+
+    private Scanner(Reader reader) {
+      this.reader = reader;
+    }
+
+    private void scan(ScanHandler handler) throws IOException {
+      expect('{');
+      skipWhitespace();
+      if (peek() == '}') {
+        return;
+      }
+      do {
+        skipWhitespace();
+        int l = line;
+        int c = col + 1;
+        String name = readName();
+        expect(':');
+        skipWhitespace();
+        if ("entry".equals(name) && peek() == '[') {
+          read();
+          skipWhitespace();
+          int index = 0;
+          if (peek() != ']') {
+            do {
+              skipWhitespace();
+              int el = line;
+              int ec = col + 1;
+              handler.entry(index++, readValue(), el, ec);
+            } while (more(']'));
+          } else {
+            read();
+          }
+        } else {
+          handler.member(name, readValue(), l, c);
+        }
+      } while (more('}'));
+    }
+
+    private boolean more(char close) throws IOException {
+      skipWhitespace();
+      int c = read();
+      if (c == ',') {
+        skipWhitespace();
+        return true;
+      } else if (c == close) {
+        return false;
+      } else {
+        throw error("Expected ',' or '"+close+"'");
+      }
+    }
+
+    private int peek() throws IOException {
+      if (next == -2) {
+        next = reader.read();
+      }
+      return next;
+    }
+
+    private int read() throws IOException {
+      int c = peek();
+      next = -2;
+      if (c == '\n') {
+        line++;
+        col = 0;
+      } else if (c != -1) {
+        col++;
+      }
+      return c;
+    }
+
+    private void skipWhitespace() throws IOException {
+      while (peek() == ' ' || peek() == '\t' || peek() == '\r' || peek() == '\n') {
+        read();
+      }
+    }
+
+    private void expect(char ch) throws IOException {
+      skipWhitespace();
+      if (read() != ch) {
+        throw error("Expected '"+ch+"'");
+      }
+    }
+
+    private String readName() throws IOException {
+      expect('"');
+      StringBuilder b = new StringBuilder();
+      readStringRest(b);
+      return b.substring(0, b.length() - 1);
+    }
+
+    private String readValue() throws IOException {
+      StringBuilder b = new StringBuilder();
+      int c = peek();
+      if (c == '{' || c == '[') {
+        int depth = 0;
+        do {
+          c = read();
+          if (c == -1) {
+            throw error("Unexpected end of content");
+          }
+          b.append((char) c);
+          if (c == '"') {
+            readStringRest(b);
+          } else if (c == '{' || c == '[') {
+            depth++;
+          } else if (c == '}' || c == ']') {
+            depth--;
+          }
+        } while (depth > 0);
+      } else if (c == '"') {
+        b.append((char) read());
+        readStringRest(b);
+      } else {
+        while (peek() != -1 && ",}] \t\r\n".indexOf(peek()) == -1) {
+          b.append((char) read());
+        }
+        if (b.length() == 0) {
+          throw error("Expected a value");
+        }
+      }
+      return b.toString();
+    }
+
+    private void readStringRest(StringBuilder b) throws IOException {
+      int c;
+      do {
+        c = read();
+        if (c == -1) {
+          throw error("Unexpected end of content in a string");
+        }
+        b.append((char) c);
+        if (c == '\\') {
+          b.append((char) read());
+        }
+      } while (c != '"');
+    }
+
+    private FHIRFormatError error(String msg) {
+      return new FHIRFormatError(msg+" at line "+line+" col "+col);
+    }
+  }
+
+  private final InstanceValidator validator;
+  private final IWorkerContext context;
+  private final List<StructureDefinition> profiles;
+
+  // what the first pass finds
+  private String resourceType;
+  private String type;
+  private String typeJson;
+  private final Set<String> fullUrls = new HashSet<>();
+
+  public BundleStreamValidator(InstanceValidator validator, IWorkerContext context, List<StructureDefinition> profiles) {
+    super();
+    this.validator = validator;
+    this.context = context;
+    this.profiles = profiles;
+  }
+
+  public List<ValidationMessage> validate(File file) throws IOException {
+    List<ValidationMessage> messages = new ArrayList<>();
+    boolean streamed;
+    try {
+      index(file, messages);
+      streamed = "Bundle".equals(resourceType) && STREAMED_TYPES.contains(type);
+    } catch (FHIRFormatError e) {
+      // the parser will explain what's wrong with it
+      streamed = false;
+    }
+    if (!streamed) {
+      messages.clear();
+      try (InputStream stream = new BufferedInputStream(new FileInputStream(file))) {
+        validator.validate(null, messages, stream, FhirFormat.JSON, new ArrayList<>(profiles));
+      }
+      return messages;
+    }
+    // progress is meaningless for a single entry
+    validator.setLogProgress(false);
+    int maxErrors = validator.getMaxErrors();
+    try {
+      validateEntries(file, messages, maxErrors);
+    } finally {
+      validator.setMaxErrors(maxErrors);
+    }
+    return messages;
+  }
+
+  private void index(File file, List<ValidationMessage> messages) throws IOException {
+    // fullUrl|versionId -> the first entry that has it
+    Map<String, Integer> seen = new HashMap<>();
+    try (Reader reader = open(file)) {
+      new Scanner(reader).scan(new ScanHandler() {
+        @Override
+        public void member(String name, String value, int line, int col) {
+          if ("resourceType".equals(name)) {
+            resourceType = unquote(value);
+          } else if ("type".equals(name)) {
+            type = unquote(value);
+            typeJson = value;
+          }
+        }
+
+        @Override
+        public void entry(int index, String value, int line, int col) throws IOException {
+          JsonObject entry;
+          try {
+            entry = JsonParser.parseObject(value);
+          } catch (Exception e) {
+            // this is reported when the entry is validated
+            return;
+          }
+          String fullUrl = entry.asString("fullUrl");
+          if (fullUrl != null) {
+            fullUrls.add(fullUrl);
+            JsonObject res = entry.getJsonObject("resource");
+            JsonObject meta = res == null ? null : res.getJsonObject("meta");
+            String key = fullUrl+"|"+(meta == null ? "" : meta.asString("versionId"));
+            if (seen.containsKey(key)) {
+              messages.add(new ValidationMessage(Source.InstanceValidator, IssueType.INVALID, line, col, "Bundle.entry["+index+"]",
+                  context.formatMessage(I18nConstants.BUNDLE_ENTRY_URL_DUPLICATE, fullUrl, seen.get(key)), IssueSeverity.ERROR).setMessageId(I18nConstants.BUNDLE_ENTRY_URL_DUPLICATE));
+            } else {
+              seen.put(key, index);
+            }
+          }
+        }
+      });
+    }
+  }
+
+  private void validateEntries(File file, List<ValidationMessage> messages, int maxErrors) throws IOException {
+    StringBuilder shell = new StringBuilder();
+    int[] pos = {1, 0};
+    int[] errors = {0};
+    boolean[] stopped = {false};
+    try (Reader reader = open(file)) {
+      new Scanner(reader).scan(new ScanHandler() {
+        @Override
+        public void member(String name, String value, int line, int col) {
+          // keep the members at the same place, so that the line numbers are right
+          append(shell, pos, shell.length() == 0 ? "{" : ",");
+          while (pos[0] < line) {
+            append(shell, pos, "\n");
+          }
+          append(shell, pos, Utilities.padLeft("", ' ', col - pos[1] - 1)+"\""+name+"\":");
+          append(shell, pos, value);
+        }
+
+        @Override
+        public void entry(int index, String value, int line, int col) throws IOException {
+          if (!stopped[0]) {
+            stopped[0] = validateEntry(messages, index, value, line, col, maxErrors, errors);
+          }
+        }
+      });
+    }
+    append(shell, pos, shell.length() == 0 ? "{}" : "}");
+    List<ValidationMessage> list = new ArrayList<>();
+    validator.setMaxErrors(maxErrors);
+    validator.validate(null, list, new ByteArrayInputStream(shell.toString().getBytes(StandardCharsets.UTF_8)), FhirFormat.JSON);
+    messages.addAll(0, list);
+  }
+
+  /**
+   * @return true if validation should stop (the error budget is used up)
+   */
+  private boolean validateEntry(List<ValidationMessage> messages, int index, String value, int line, int col, int maxErrors, int[] errors) {
+    // the entry is on the second line, in the same column as it is in the file
+    String wrapped = "{\"resourceType\":\"Bundle\",\"type\":"+typeJson+",\"entry\":[\n"+Utilities.padLeft("", ' ', col - 1)+value+"]}";
+    List<ValidationMessage> list = new ArrayList<>();
+    if (maxErrors > 0) {
+      validator.setMaxErrors(maxErrors - errors[0]);
+    }
+    validator.validate(null, list, new ByteArrayInputStream(wrapped.getBytes(StandardCharsets.UTF_8)), FhirFormat.JSON, new ArrayList<>(profiles));
+    Set<String> resolved = resolvedReferences(value, index);
+    boolean stop = false;
+    for (ValidationMessage vm : list) {
+      if (I18nConstants.VALIDATION_STOPPED_MAX_ERRORS.equals(vm.getMessageId())) {
+        stop = true;
+        messages.add(vm);
+      } else if (vm.getLocation() != null && vm.getLocation().startsWith(ENTRY_PATH)) {
+        // anything else is about the wrapper, and is reported when the rest of the bundle is validated
+        vm.setLocation("Bundle.entry["+index+"]"+vm.getLocation().substring(ENTRY_PATH.length()));
+        if (isResolved(vm, resolved)) {
+          continue;
+        }
+        if (vm.getLine() > 1) {
+          vm.setLine(vm.getLine() + line - 2);
+        } else if (vm.getLine() == 1) {
+          vm.setLine(line);
+          vm.setCol(col);
+        }
+        messages.add(vm);
+        if (vm.isError()) {
+          errors[0]++;
+        }
+      }
+    }
+    return stop || (maxErrors > 0 && errors[0] >= maxErrors);
+  }
+
+  /**
+   * @return true if the message is about a reference that isn't in the single entry bundle, but is in the real one. 
+   * The message is matched to the reference by where it is, so it doesn't need to be formatted
+   */
+  private boolean isResolved(ValidationMessage vm, Set<String> resolved) {
+    if (!LOCAL_REFERENCE_MESSAGES.contains(vm.getMessageId())) {
+      return false;
+    }
+    String path = normalisePath(vm.getLocation());
+    return resolved.contains(path) || (path.endsWith(".reference") && resolved.contains(path.substring(0, path.length() - 10)));
+  }
+
+  /**
+   * the validator's paths have the resource ids in comments, and choice elements as value.ofType(Reference). 
+   * Take them back to the names in the json
+   */
+  private String normalisePath(String path) {
+    path = PATH_COMMENT.matcher(path).replaceAll("");
+    Matcher m = PATH_CHOICE.matcher(path);
+    StringBuffer b = new StringBuffer();
+    while (m.find()) {
+      m.appendReplacement(b, m.group(1).toUpperCase()+m.group(2));
+    }
+    m.appendTail(b);
+    return b.toString();
+  }
+
+  /**
+   * @return the paths of the references in the entry that point to another entry in the bundle
+   */
+  private Set<String> resolvedReferences(String value, int index) {
+    Set<String> res = new HashSet<>();
+    try {
+      JsonObject entry = JsonParser.parseObject(value);
+      if (entry.has("resource")) {
+        collectReferences(entry.get("resource"), "Bundle.entry["+index+"].resource", entry.asString("fullUrl"), res);
+      }
+    } catch (Exception e) {
+      // the validator has reported this
+    }
+    return res;
+  }
+
+  private void collectReferences(JsonElement e, String path, String fullUrl, Set<String> res) {
+    if (e.isJsonObject()) {
+      for (JsonProperty p : e.asJsonObject().getProperties()) {
+        if ("reference".equals(p.getName()) && p.getValue().isJsonString()) {
+          String target = targetUrl(p.getValue().asString(), fullUrl);
+          if (target != null && fullUrls.contains(target)) {
+            res.add(path);
+          }
+        } else if (p.getValue().isJsonArray()) {
+          int i = 0;
+          for (JsonElement item : p.getValue().asJsonArray()) {
+            collectReferences(item, path+"."+p.getName()+"["+i+"]", fullUrl, res);
+            i++;
+          }
+        } else {
+          collectReferences(p.getValue(), path+"."+p.getName(), fullUrl, res);
+        }
+      }
+    }
+  }
+
+  /**
+   * the fullUrl a reference would resolve to in the bundle (see BaseValidator.getFromBundle)
+   */
+  private String targetUrl(String ref, String fullUrl) {
+    if (ref.contains("/_history/")) {
+      ref = ref.substring(0, ref.indexOf("/_history/"));
+    }
+    if (ref.startsWith("urn:") || Utilities.isAbsoluteUrl(ref)) {
+      return ref;
+    }
+    String[] parts = ref.split("/");
+    if (fullUrl == null || parts.length != 2) {
+      return null;
+    }
+    if (fullUrl.startsWith("urn")) {
+      return fullUrl.substring(0, fullUrl.lastIndexOf(":") + 1)+parts[1];
+    } else {
+      String[] fparts = fullUrl.split("/");
+      StringBuilder b = new StringBuilder();
+      for (int i = 0; i < fparts.length - 2; i++) {
+        b.append(fparts[i]);
+        b.append("/");
+      }
+      return b.toString()+ref;
+    }
+  }
+
+  private void append(StringBuilder b, int[] pos, String s) {
+    b.append(s);
+    for (char ch : s.toCharArray()) {
+      if (ch == '\n') {
+        pos[0]++;
+        pos[1] = 0;
+      } else {
+        pos[1]++;
+      }
+    }
+  }
+
+  private String unquote(String value) {
+    return value.length() > 1 && value.startsWith("\"") && value.endsWith("\"") ? value.substring(1, value.length() - 1) : value;
+  }
+
+  private Reader open(File file) throws IOException {
+    return new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,88 @@
+package org.hl7.fhir.validation;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r5.elementmodel.Manager.FhirFormat;
+import org.hl7.fhir.validation.instance.InstanceValidator;
+import org.hl7.fhir.validation.instance.utils.ValidatorDefinitionCache;
+
+/**
+ * Hands out InstanceValidators to threads that want to validate at the same time.
+ *
+ * An InstanceValidator keeps state while it validates, so it can only be used by one
+ * thread at a time, but it is cheap to reuse once it's done. All the validators in the
+ * pool share the engine's context (which is only read), and a single cache of the
+ * parsed expressions from the definitions.
+ *
+ * Validators are configured from the engine's settings when they are created, so change
+ * the settings on the engine before creating the pool.
+ *
+ * Usage:
+ *
+ *   InstanceValidator validator = pool.acquire();
+ *   try {
+ *     validator.validate(...);
+ *   } finally {
+ *     pool.release(validator);
+ *   }
+ */
+public class InstanceValidatorPool {
+
+  private final ValidationEngine engine;
+  private final FhirFormat format;
+  private final int maxIdle;
+  private final ValidatorDefinitionCache definitionCache = new ValidatorDefinitionCache();
+  private final Deque<InstanceValidator> idle = new ArrayDeque<>();
+  private int created;
+
+  /**
+   * @param maxIdle the most validators to keep for reuse; validators released when there's already this many are dropped
+   */
+  public InstanceValidatorPool(ValidationEngine engine, FhirFormat format, int maxIdle) {
+    super();
+    this.engine = engine;
+    this.format = format;
+    this.maxIdle = maxIdle;
+  }
+
+  /**
+   * @return a validator that belongs to the calling thread until it is released
+   */
+  public InstanceValidator acquire() throws FHIRException, IOException {
+    synchronized (idle) {
+      InstanceValidator validator = idle.poll();
+      if (validator != null) {
+        return validator;
+      }
+      // making a validator updates the engine's loader (for SHC), so keep that to one thread at a time
+      validator = engine.getValidator(format);
+      validator.setDefinitionCache(definitionCache);
+      created++;
+      return validator;
+    }
+  }
+
+  public void release(InstanceValidator validator) {
+    synchronized (idle) {
+      if (idle.size() < maxIdle) {
+        idle.push(validator);
+      }
+    }
+  }
+
+  /**
+   * @return how many validators the pool has created
+   */
+  public int getCreated() {
+    synchronized (idle) {
+      return created;
+    }
+  }
+
+  public ValidatorDefinitionCache getDefinitionCache() {
+    return definitionCache;
+  }
+}
@@ -0,0 +1,185 @@
+package org.hl7.fhir.validation;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r5.elementmodel.Manager.FhirFormat;
+import org.hl7.fhir.r5.formats.JsonParser;
+import org.hl7.fhir.r5.model.OperationOutcome;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.r5.utils.OperationOutcomeUtilities;
+import org.hl7.fhir.r5.utils.ToolingExtensions;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
+import org.hl7.fhir.validation.instance.InstanceValidator;
+
+/**
+ * Validates NDJSON content (e.g. a Bulk Data export) one resource (line) at a time, without
+ * reading the whole source into memory.
+ *
+ * For each resource that has any issues, an OperationOutcome is written to the output (also
+ * as NDJSON) as soon as the resource has been validated. The outcome identifies the source and
+ * the line the resource was on. Resources with no issues produce no output.
+ *
+ * Resources can be validated on several threads at once; they are still written in the order
+ * of the source. No more than a few resources per thread are held in memory at any time.
+ */
+public class NdjsonValidator {
+
+  public static class Summary {
+    private long resources;
+    private long resourcesWithErrors;
+    private long errors;
+
+    public long getResources() {
+      return resources;
+    }
+
+    public long getResourcesWithErrors() {
+      return resourcesWithErrors;
+    }
+
+    public long getErrors() {
+      return errors;
+    }
+  }
+
+  private static class LineOutcome {
+    private OperationOutcome outcome;
+    private int errors;
+  }
+
+  private final ValidationEngine engine;
+  private final List<StructureDefinition> profiles;
+  private final int threads;
+
+  public NdjsonValidator(ValidationEngine engine, List<String> profiles, int threads) {
+    super();
+    this.engine = engine;
+    this.profiles = engine.asSdList(profiles);
+    this.threads = Math.max(threads, 1);
+  }
+
+  /**
+   * @param name the name of the source, for the outcomes
+   */
+  public Summary validate(String name, InputStream source, OutputStream output) throws IOException, InterruptedException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(source, StandardCharsets.UTF_8));
+    Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+    InstanceValidatorPool pool = engine.newValidatorPool(FhirFormat.JSON, threads);
+    Summary summary = new Summary();
+    if (threads == 1) {
+      InstanceValidator validator = acquire(pool);
+      try {
+        String line;
+        int lineNo = 0;
+        while ((line = reader.readLine()) != null) {
+          lineNo++;
+          if (!line.trim().isEmpty()) {
+            write(writer, summary, check(validator, name, line, lineNo));
+          }
+        }
+      } finally {
+        pool.release(validator);
+      }
+    } else {
+      ExecutorService executor = Executors.newFixedThreadPool(threads);
+      // the resources that are being validated (or waiting to be written), in source order
+      Deque<Future<LineOutcome>> pending = new ArrayDeque<>();
+      int window = threads * 4;
+      try {
+        String line;
+        int lineNo = 0;
+        while ((line = reader.readLine()) != null) {
+          lineNo++;
+          if (!line.trim().isEmpty()) {
+            String content = line;
+            int n = lineNo;
+            pending.add(executor.submit(() -> {
+              InstanceValidator validator = acquire(pool);
+              try {
+                return check(validator, name, content, n);
+              } finally {
+                pool.release(validator);
+              }
+            }));
+            while (pending.size() >= window) {
+              write(writer, summary, get(pending.poll()));
+            }
+          }
+        }
+        while (!pending.isEmpty()) {
+          write(writer, summary, get(pending.poll()));
+        }
+      } finally {
+        executor.shutdownNow();
+      }
+    }
+    writer.flush();
+    return summary;
+  }
+
+  private InstanceValidator acquire(InstanceValidatorPool pool) throws IOException {
+    InstanceValidator validator = pool.acquire();
+    // progress is reported per source; it's meaningless for each line
+    validator.setLogProgress(false);
+    return validator;
+  }
+
+  private LineOutcome get(Future<LineOutcome> future) throws InterruptedException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new FHIRException(e.getCause());
+    }
+  }
+
+  private LineOutcome check(InstanceValidator validator, String name, String line, int lineNo) {
+    List<ValidationMessage> messages = new ArrayList<>();
+    // the validator adds to the list of profiles, so it gets a copy
+    validator.validate(null, messages, new ByteArrayInputStream(line.getBytes(StandardCharsets.UTF_8)), FhirFormat.JSON, new ArrayList<>(profiles));
+    LineOutcome res = new LineOutcome();
+    if (!messages.isEmpty()) {
+      res.outcome = new OperationOutcome();
+      for (ValidationMessage vm : ValidatorUtils.filterMessages(messages)) {
+        res.outcome.getIssue().add(OperationOutcomeUtilities.convertToIssue(vm, res.outcome));
+        if (vm.isError()) {
+          res.errors++;
+        }
+      }
+      ToolingExtensions.addStringExtension(res.outcome, ToolingExtensions.EXT_OO_FILE, name+":"+lineNo);
+    }
+    return res;
+  }
+
+  private void write(Writer writer, Summary summary, LineOutcome lo) throws IOException {
+    summary.resources++;
+    if (lo.errors > 0) {
+      summary.resourcesWithErrors++;
+      summary.errors += lo.errors;
+    }
+    if (lo.outcome != null) {
+      writer.write(new JsonParser().composeString(lo.outcome));
+      writer.write("\n");
+    }
+  }
+}
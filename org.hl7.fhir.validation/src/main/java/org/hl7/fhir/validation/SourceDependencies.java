@@ -0,0 +1,144 @@
+package org.hl7.fhir.validation;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.hl7.fhir.r5.context.IWorkerContext;
+import org.hl7.fhir.r5.elementmodel.Element;
+import org.hl7.fhir.r5.elementmodel.Manager;
+import org.hl7.fhir.validation.ValidatorUtils.SourceFile;
+
+/**
+ * Tracks which of the sources being validated depend on each other, so that when a
+ * source changes in watch mode, the sources that depend on it can be validated again too.
+ *
+ * A source depends on another source if it refers to one of the resources in it, either by
+ * reference (type/id) or by canonical url (profiles, value sets etc). The dependencies are
+ * worked out by parsing the source each time it changes.
+ */
+public class SourceDependencies {
+
+  private static final Pattern REF_TAIL = Pattern.compile("([A-Za-z]+/[A-Za-z0-9\\-\\.]{1,64})(/_history/.*)?$");
+
+  // source -> the keys of the resources it contains
+  private final Map<String, Set<String>> provides = new HashMap<>();
+  // source -> the keys of the resources it refers to
+  private final Map<String, Set<String>> uses = new HashMap<>();
+
+  /**
+   * Work out the dependencies of the source again (it's changed).
+   *
+   * @return the keys the source provided before, and provides now
+   */
+  public Set<String> update(IWorkerContext context, SourceFile ref) {
+    Set<String> keys = new HashSet<>();
+    if (provides.containsKey(ref.getRef())) {
+      keys.addAll(provides.get(ref.getRef()));
+    }
+    Set<String> p = new HashSet<>();
+    Set<String> u = new HashSet<>();
+    try {
+      Element e = Manager.parseSingle(context, new ByteArrayInputStream(ref.getCnt().getFocus().getBytes()), ref.getCnt().getCntType());
+      scan(e, p, u);
+    } catch (Exception e) {
+      // if it can't be parsed, it doesn't provide anything (and there'll be errors about that when it's validated)
+    }
+    provides.put(ref.getRef(), p);
+    uses.put(ref.getRef(), u);
+    keys.addAll(p);
+    return keys;
+  }
+
+  /**
+   * The source has gone.
+   *
+   * @return the keys the source used to provide
+   */
+  public Set<String> remove(String ref) {
+    uses.remove(ref);
+    Set<String> keys = provides.remove(ref);
+    return keys == null ? new HashSet<>() : keys;
+  }
+
+  /**
+   * @return the keys of the resources in the source when it was last parsed
+   */
+  public Set<String> getProvides(String ref) {
+    Set<String> keys = provides.get(ref);
+    return keys == null ? new HashSet<>() : keys;
+  }
+
+  /**
+   * @return the sources (other than the ones that provide them) that refer to any of the keys
+   */
+  public List<String> dependents(Set<String> keys) {
+    List<String> res = new ArrayList<>();
+    if (!keys.isEmpty()) {
+      for (Map.Entry<String, Set<String>> t : uses.entrySet()) {
+        for (String k : t.getValue()) {
+          if (keys.contains(k) && !provides.get(t.getKey()).contains(k)) {
+            res.add(t.getKey());
+            break;
+          }
+        }
+      }
+    }
+    return res;
+  }
+
+  /**
+   * @return the sources that the source refers to, directly or through other sources (not including the source itself)
+   */
+  public Set<String> dependencies(String ref) {
+    Set<String> res = new HashSet<>();
+    List<String> todo = new ArrayList<>();
+    todo.add(ref);
+    while (!todo.isEmpty()) {
+      Set<String> u = uses.get(todo.remove(0));
+      if (u != null && !u.isEmpty()) {
+        for (Map.Entry<String, Set<String>> t : provides.entrySet()) {
+          if (!t.getKey().equals(ref) && !res.contains(t.getKey()) && !Collections.disjoint(u, t.getValue())) {
+            res.add(t.getKey());
+            todo.add(t.getKey());
+          }
+        }
+      }
+    }
+    return res;
+  }
+
+  private void scan(Element e, Set<String> p, Set<String> u) {
+    if (e.isResource()) {
+      if (e.getIdBase() != null) {
+        p.add(e.fhirType()+"/"+e.getIdBase());
+      }
+      String url = e.getNamedChildValue("url", false);
+      if (url != null) {
+        p.add(url);
+      }
+    }
+    if ("Reference".equals(e.fhirType())) {
+      String r = e.getNamedChildValue("reference", false);
+      if (r != null) {
+        Matcher m = REF_TAIL.matcher(r);
+        u.add(m.find() ? m.group(1) : r);
+      }
+    } else if ("canonical".equals(e.fhirType()) && e.hasPrimitiveValue()) {
+      String c = e.primitiveValue();
+      u.add(c.contains("|") ? c.substring(0, c.indexOf("|")) : c);
+    }
+    if (e.hasChildren()) {
+      for (Element c : e.getChildren()) {
+        scan(c, p, u);
+      }
+    }
+  }
+}
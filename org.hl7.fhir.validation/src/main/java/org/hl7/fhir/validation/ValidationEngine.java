@@ -2,6 +2,7 @@ package org.hl7.fhir.validation;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -11,12 +12,23 @@ import java.io.PrintWriter;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.fhir.ucum.UcumEssenceService;
 import org.hl7.fhir.convertors.factory.VersionConvertorFactory_10_50;
@@ -61,6 +73,7 @@ import org.hl7.fhir.r5.renderers.utils.RenderingContext.GenerationRules;
 import org.hl7.fhir.r5.renderers.utils.RenderingContext.ResourceRendererMode;
 import org.hl7.fhir.r5.utils.EOperationOutcome;
 import org.hl7.fhir.r5.utils.FHIRPathEngine;
+import org.hl7.fhir.r5.utils.FHIRPathProfiler;
 import org.hl7.fhir.r5.utils.ToolingExtensions;
 import org.hl7.fhir.r5.utils.structuremap.StructureMapUtilities;
 import org.hl7.fhir.r5.utils.validation.BundleValidationRule;
@@ -74,6 +87,7 @@ import org.hl7.fhir.r5.utils.validation.constants.CodedContentValidationPolicy;
 import org.hl7.fhir.r5.utils.validation.constants.ContainedReferenceValidationPolicy;
 import org.hl7.fhir.r5.utils.validation.constants.IdStatus;
 import org.hl7.fhir.r5.utils.validation.constants.ReferenceValidationPolicy;
+import org.hl7.fhir.utilities.DurationUtil;
 import org.hl7.fhir.utilities.FhirPublication;
 import org.hl7.fhir.utilities.IniFile;
 import org.hl7.fhir.utilities.SIDUtilities;
@@ -82,7 +96,9 @@ import org.hl7.fhir.utilities.SimpleHTTPClient.HTTPResult;
 import org.hl7.fhir.utilities.TextFile;
 import org.hl7.fhir.utilities.TimeTracker;
 import org.hl7.fhir.utilities.Utilities;
+import org.hl7.fhir.utilities.VersionUtil;
 import org.hl7.fhir.utilities.VersionUtilities;
+import org.hl7.fhir.utilities.i18n.I18nConstants;
 import org.hl7.fhir.utilities.npm.CommonPackages;
 import org.hl7.fhir.utilities.npm.FilesystemPackageCacheManager;
 import org.hl7.fhir.utilities.npm.NpmPackage;
@@ -226,6 +242,46 @@ public class ValidationEngine implements IValidatorResourceFetcher, IValidationP
   @Getter @Setter private QuestionnaireMode questionnaireMode;
   @Getter @Setter private ValidationLevel level = ValidationLevel.HINTS;
   @Getter @Setter private FHIRPathEngine fhirPathEngine;
+  @Getter @Setter private FHIRPathProfiler fhirPathProfiler;
+  @Getter @Setter private int fhirPathMaxNodes;
+  @Getter @Setter private int fhirPathMaxCollectionSize;
+  @Getter @Setter private long fhirPathMaxTime;
+
+  /**
+   * whether invariants are evaluated lazily, and whether memberOf(), resolve() and conformsTo() 
+   * are remembered for the resource being validated (see FHIRPathEngine). Both are off by default
+   */
+  @Getter @Setter private boolean fhirPathLazyEvaluation;
+  @Getter @Setter private boolean fhirPathMemoiseLookups;
+
+  /**
+   * how many sources to validate at once in validate(List<String> sources, ...). Each source gets
+   * its own InstanceValidator, but they all share the one context
+   */
+  @Getter @Setter private int threads = 1;
+
+  /**
+   * how many entries of a bundle to validate at once (see InstanceValidator.setBundleEntryThreads)
+   */
+  @Getter @Setter private int bundleEntryThreads = 1;
+
+  /**
+   * stop validating a resource once this many errors have been found (0 = no limit; see InstanceValidator.setMaxErrors)
+   */
+  @Getter @Setter private int maxErrors;
+
+  /**
+   * if this is set, the outcome of validating a source is kept, and reused when the same content is validated with the same settings
+   */
+  @Getter @Setter private ValidationResultCache resultCache;
+  private final Map<CanonicalResource, String> localDigests = Collections.synchronizedMap(new WeakHashMap<>());
+
+  /**
+   * if this is set, validate(List<String> sources, ...) keeps track of which sources depend on each other, and when 
+   * sources change, the sources that depend on them are validated again too (for watch mode)
+   */
+  @Getter @Setter private SourceDependencies sourceDependencies;
+  private String txServer;
   @Getter @Setter private IgLoader igLoader;
   @Getter @Setter private Coding jurisdiction;
 
@@ -278,6 +334,17 @@ public class ValidationEngine implements IValidatorResourceFetcher, IValidationP
     questionnaireMode = other.questionnaireMode;
     level = other.level;
     fhirPathEngine = other.fhirPathEngine;
+    fhirPathProfiler = other.fhirPathProfiler;
+    fhirPathMaxNodes = other.fhirPathMaxNodes;
+    fhirPathMaxCollectionSize = other.fhirPathMaxCollectionSize;
+    fhirPathMaxTime = other.fhirPathMaxTime;
+    fhirPathLazyEvaluation = other.fhirPathLazyEvaluation;
+    fhirPathMemoiseLookups = other.fhirPathMemoiseLookups;
+    threads = other.threads;
+    bundleEntryThreads = other.bundleEntryThreads;
+    maxErrors = other.maxErrors;
+    resultCache = other.resultCache;
+    txServer = other.txServer;
     igLoader = other.igLoader;
     jurisdiction = other.jurisdiction;
   }
@@ -515,6 +582,7 @@ public class ValidationEngine implements IValidatorResourceFetcher, IValidationP
 
   public String connectToTSServer(String url, String log, String txCachePath, FhirPublication version) throws URISyntaxException, IOException, FHIRException {
     context.setTlogging(false);
+    txServer = url;
     if (url == null) {
       context.setCanRunWithoutTerminology(true);
       context.setNoTerminologyServer(true);
@@ -576,6 +644,18 @@ public class ValidationEngine implements IValidatorResourceFetcher, IValidationP
     boolean asBundle = ValidatorUtils.parseSources(sources, refs, context);
     Bundle results = new Bundle();
     results.setType(Bundle.BundleType.COLLECTION);
+    if (sourceDependencies != null && !first && !all) {
+      // the sources that depend on the ones that have changed (or gone) as they were before
+      Set<String> keys = new HashSet<>();
+      for (SourceFile ref : refs) {
+        if (ref.isKnownToBeMissing()) {
+          keys.addAll(sourceDependencies.remove(ref.getRef()));
+        } else if (ref.isProcess()) {
+          keys.addAll(sourceDependencies.getProvides(ref.getRef()));
+        }
+      }
+      markDependents(refs, keys);
+    }
     boolean found = false;
     
     for (SourceFile ref : refs) {
@@ -595,27 +675,41 @@ public class ValidationEngine implements IValidatorResourceFetcher, IValidationP
     // something that should've been loaded
     for (SourceFile ref : refs) {
       if ((ref.isProcess() || all) && !ref.isKnownToBeMissing()) {
-        ref.setCnt(igLoader.loadContent(ref.getRef(), "validate", false, first));
-        if (loader != null && ref.getCnt() != null) {
-          try {
-            loader.load(ref.getCnt());
-          } catch (Throwable t) {
-            if (debug) {
-               System.out.println("Error during round 1 scanning: "+t.getMessage());
-            }
-          }
+        loadSource(ref, loader, first);
+      }
+    }
+    if (sourceDependencies != null) {
+      // and the sources that depend on them as they are now
+      Set<String> keys = new HashSet<>();
+      for (SourceFile ref : refs) {
+        if (ref.isProcess() && ref.getCnt() != null) {
+          keys.addAll(sourceDependencies.update(context, ref));
+        }
+      }
+      if (!first && !all) {
+        for (SourceFile ref : markDependents(refs, keys)) {
+          loadSource(ref, loader, first);
         }
       }
     }
     
+    List<SourceFile> todo = new ArrayList<>();
     for (SourceFile ref : refs) {
       if ((ref.isProcess() || all) && ref.getCnt() != null) {
+        todo.add(ref);
+      }
+    }
+    Map<SourceFile, String> fingerprints = resultCacheFingerprints(todo, refs);
+    if (threads > 1 && todo.size() > 1) {
+      validateInParallel(todo, profiles, record, results, fingerprints);
+    } else {
+      for (SourceFile ref : todo) {
         TimeTracker.Session tts = context.clock().start("validation");
         context.clock().milestone();
         System.out.println("  Validate " + ref.getRef());
-        
+
         try {
-          OperationOutcome outcome = validate(ref.getRef(), ref.getCnt().getFocus(), ref.getCnt().getCntType(), profiles, record);
+          OperationOutcome outcome = validate(ref.getRef(), ref.getCnt().getFocus(), ref.getCnt().getCntType(), profiles, record, fingerprints == null ? null : fingerprints.get(ref));
           ToolingExtensions.addStringExtension(outcome, ToolingExtensions.EXT_OO_FILE, ref.getRef());
           System.out.println(" " + context.clock().milestone());
           results.addEntry().setResource(outcome);
@@ -635,6 +729,135 @@ public class ValidationEngine implements IValidatorResourceFetcher, IValidationP
   }
 
 
+  /**
+   * Validate NDJSON content (e.g. from a Bulk Data export) a line at a time, using this engine's
+   * threads, and write an OperationOutcome (as NDJSON) to output for each resource that has issues.
+   * See NdjsonValidator
+   */
+  public NdjsonValidator.Summary validateNdjson(String name, InputStream source, OutputStream output, List<String> profiles) throws IOException, InterruptedException {
+    return new NdjsonValidator(this, profiles, threads).validate(name, source, output);
+  }
+
+  /**
+   * Validate a JSON Bundle that is too big to load, one entry at a time (see BundleStreamValidator).
+   * Bundles that can't be validated like this are validated in the normal way
+   */
+  public OperationOutcome validateLargeBundle(String location, File file, List<String> profiles, List<ValidationRecord> record) throws FHIRException, IOException, EOperationOutcome {
+    List<ValidationMessage> messages = new BundleStreamValidator(getValidator(FhirFormat.JSON), context, asSdList(profiles)).validate(file);
+    if (record != null) {
+      recordMessages(record, location, messages);
+    }
+    return ValidatorUtils.messagesToOutcome(messages, context, fhirPathEngine);
+  }
+
+  private void loadSource(SourceFile ref, IValidationEngineLoader loader, boolean first) throws FHIRException, IOException {
+    ref.setCnt(igLoader.loadContent(ref.getRef(), "validate", false, first));
+    if (loader != null && ref.getCnt() != null) {
+      try {
+        loader.load(ref.getCnt());
+      } catch (Throwable t) {
+        if (debug) {
+           System.out.println("Error during round 1 scanning: "+t.getMessage());
+        }
+      }
+    }
+  }
+
+  /**
+   * mark the sources that depend on the keys (directly or through other sources) to be processed
+   *
+   * @return the sources that weren't going to be processed before
+   */
+  private List<SourceFile> markDependents(List<SourceFile> refs, Set<String> keys) {
+    List<SourceFile> res = new ArrayList<>();
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (String name : sourceDependencies.dependents(keys)) {
+        for (SourceFile ref : refs) {
+          if (ref.getRef().equals(name) && !ref.isProcess() && !ref.isKnownToBeMissing()) {
+            ref.setProcess(true);
+            res.add(ref);
+            changed = keys.addAll(sourceDependencies.getProvides(name)) || changed;
+          }
+        }
+      }
+    }
+    return res;
+  }
+
+  private static class ParallelOutcome {
+    private OperationOutcome outcome;
+    private List<ValidationRecord> record;
+    private long time;
+    private String times; // if showTimes, printed in order with the rest of the output
+  }
+
+  /**
+   * Validate the sources using a pool of threads. The sources are validated in any order, but 
+   * the progress output, the entries in the results bundle, and the validation records are all
+   * produced in the order of the sources, so the outcome is the same as validating them one at a time
+   */
+  private void validateInParallel(List<SourceFile> refs, List<String> profiles, List<ValidationRecord> record, Bundle results, Map<SourceFile, String> fingerprints) throws InterruptedException {
+    TimeTracker.Session tts = context.clock().start("validation");
+    int count = Math.min(threads, refs.size());
+    ExecutorService executor = Executors.newFixedThreadPool(count);
+    Map<FhirFormat, InstanceValidatorPool> pools = new ConcurrentHashMap<>();
+    try {
+      List<Future<ParallelOutcome>> futures = new ArrayList<>();
+      for (SourceFile ref : refs) {
+        String fingerprint = fingerprints == null ? null : fingerprints.get(ref);
+        futures.add(executor.submit(() -> {
+          ParallelOutcome po = new ParallelOutcome();
+          long start = System.nanoTime();
+          po.record = record == null ? null : new ArrayList<>();
+          String key = resultCacheKey(ref.getCnt().getFocus(), ref.getCnt().getCntType(), profiles, fingerprint);
+          po.outcome = validateFromCache(key, ref.getRef(), po.record);
+          if (po.outcome == null) {
+            InstanceValidatorPool pool = pools.computeIfAbsent(ref.getCnt().getCntType(), f -> newValidatorPool(f, count));
+            InstanceValidator validator = pool.acquire();
+            try {
+              po.outcome = validate(validator, key, ref.getRef(), ref.getCnt().getFocus(), ref.getCnt().getCntType(), profiles, po.record);
+              if (showTimes) {
+                po.times = validator.reportTimes();
+              }
+            } finally {
+              pool.release(validator);
+            }
+          }
+          ToolingExtensions.addStringExtension(po.outcome, ToolingExtensions.EXT_OO_FILE, ref.getRef());
+          po.time = System.nanoTime() - start;
+          return po;
+        }));
+      }
+      for (int i = 0; i < refs.size(); i++) {
+        SourceFile ref = refs.get(i);
+        System.out.println("  Validate " + ref.getRef());
+        ParallelOutcome po;
+        try {
+          po = futures.get(i).get();
+        } catch (ExecutionException e) {
+          System.out.println("Validation Infrastructure fail validating " + ref + ": " + e.getCause().getMessage());
+          throw new FHIRException(e.getCause());
+        }
+        if (po.times != null) {
+          System.out.println(ref.getRef() + ": " + po.times);
+        }
+        System.out.println(" " + DurationUtil.presentDuration(po.time));
+        results.addEntry().setResource(po.outcome);
+        if (record != null) {
+          for (ValidationRecord vr : po.record) {
+            recordMessages(record, vr.getLocation(), vr.getMessages());
+          }
+        }
+        ref.setProcess(false);
+      }
+    } finally {
+      executor.shutdownNow();
+      tts.end();
+    }
+  }
+
   public ValidatedFragments validateAsFragments(byte[] source, FhirFormat cntType, List<String> profiles, List<ValidationMessage> messages) throws FHIRException, IOException, EOperationOutcome {
     InstanceValidator validator = getValidator(cntType);
     validator.validate(null, messages, new ByteArrayInputStream(source), cntType, asSdList(profiles));
@@ -650,30 +873,189 @@ public class ValidationEngine implements IValidatorResourceFetcher, IValidationP
   }
 
   public OperationOutcome validate(String location, ByteProvider source, FhirFormat cntType, List<String> profiles, List<ValidationRecord> record) throws FHIRException, IOException, EOperationOutcome, SAXException {
+    return validate(location, source, cntType, profiles, record, resultCache == null ? null : getResultCacheFingerprint());
+  }
+
+  /**
+   * @param fingerprint the fingerprint for the result cache (or null, if there's no cache)
+   */
+  private OperationOutcome validate(String location, ByteProvider source, FhirFormat cntType, List<String> profiles, List<ValidationRecord> record, String fingerprint) throws FHIRException, IOException, EOperationOutcome, SAXException {
+    String key = resultCacheKey(source, cntType, profiles, fingerprint);
+    OperationOutcome outcome = validateFromCache(key, location, record);
+    if (outcome != null) {
+      return outcome;
+    }
+    InstanceValidator validator = getValidator(cntType);
+    outcome = validate(validator, key, location, source, cntType, profiles, record);
+    if (showTimes) {
+      System.out.println(location + ": " + validator.reportTimes());
+    }
+    return outcome;
+  }
+
+  /**
+   * @param key the key for the outcome in the result cache (or null, if there's no cache)
+   */
+  private OperationOutcome validate(InstanceValidator validator, String key, String location, ByteProvider source, FhirFormat cntType, List<String> profiles, List<ValidationRecord> record) throws FHIRException, IOException, EOperationOutcome, SAXException {
     List<ValidationMessage> messages = new ArrayList<ValidationMessage>();
     if (doNative) {
       SchemaValidator.validateSchema(location, cntType, messages);
     }
-    InstanceValidator validator = getValidator(cntType);
     validator.validate(null, messages, new ByteArrayInputStream(source.getBytes()), cntType, asSdList(profiles));
-    if (showTimes) {
-      System.out.println(location + ": " + validator.reportTimes());
+    if (key != null && !ranOutOfBudget(messages)) {
+      resultCache.put(key, messages);
     }
     if (record != null) {
-      boolean found = false;
-      for (ValidationRecord t : record) {
-        if (t.getLocation().equals(location)) {
-          found = true;
-          t.setMessages(messages);
+      recordMessages(record, location, messages);
+    }
+    return ValidatorUtils.messagesToOutcome(messages, context, fhirPathEngine);
+  }
+
+  private String resultCacheKey(ByteProvider source, FhirFormat cntType, List<String> profiles, String fingerprint) throws IOException {
+    return resultCache == null || fingerprint == null ? null : resultCache.key(source.getBytes(), cntType, profiles, fingerprint);
+  }
+
+  /**
+   * The settings part of the fingerprint is only worked out once for the run. Each source adds the 
+   * content of the other sources that it refers to (directly or through other sources), so that when 
+   * a referenced instance changes, the outcome isn't taken from the cache
+   * 
+   * @return the fingerprint for each of the sources to be validated, or null if there's no result cache
+   */
+  private Map<SourceFile, String> resultCacheFingerprints(List<SourceFile> todo, List<SourceFile> refs) throws IOException {
+    if (resultCache == null) {
+      return null;
+    }
+    String fingerprint = getResultCacheFingerprint();
+    SourceDependencies deps = sourceDependencies;
+    if (deps == null) {
+      // not watching, so the dependencies haven't been worked out yet 
+      deps = new SourceDependencies();
+      for (SourceFile ref : refs) {
+        if (ref.getCnt() != null) {
+          deps.update(context, ref);
         }
       }
-      if (!found) {
-        record.add(new ValidationRecord(location, messages));
+    }
+    Map<String, String> digests = new HashMap<>();
+    Map<SourceFile, String> res = new IdentityHashMap<>();
+    for (SourceFile ref : todo) {
+      StringBuilder b = new StringBuilder(fingerprint);
+      for (String name : new TreeSet<>(deps.dependencies(ref.getRef()))) {
+        if (!digests.containsKey(name)) {
+          digests.put(name, sourceDigest(refs, name));
+        }
+        b.append("|").append(name).append("=").append(digests.get(name));
       }
+      res.put(ref, b.toString());
+    }
+    return res;
+  }
+
+  /**
+   * @return true if any invariants weren't checked because they ran out of budget. These outcomes depend on 
+   * how long the evaluation took, so they aren't kept in the result cache
+   */
+  private boolean ranOutOfBudget(List<ValidationMessage> messages) {
+    for (ValidationMessage vm : messages) {
+      if (I18nConstants.INV_NOT_CHECKED_BUDGET.equals(vm.getMessageId())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private String sourceDigest(List<SourceFile> refs, String name) throws IOException {
+    for (SourceFile ref : refs) {
+      if (ref.getRef().equals(name) && ref.getCnt() != null) {
+        return ValidationResultCache.digest(ref.getCnt().getFocus().getBytes());
+      }
+    }
+    return "-";
+  }
+
+  /**
+   * @return the outcome from the result cache, or null if it's not there (and the source has to be validated)
+   */
+  private OperationOutcome validateFromCache(String key, String location, List<ValidationRecord> record) {
+    List<ValidationMessage> messages = key == null ? null : resultCache.get(key);
+    if (messages == null) {
+      return null;
+    }
+    if (record != null) {
+      recordMessages(record, location, messages);
     }
     return ValidatorUtils.messagesToOutcome(messages, context, fhirPathEngine);
   }
 
+  /**
+   * @return a summary of everything (apart from the content and the profiles) that makes a difference to
+   * the outcome of validation, for keying the result cache
+   */
+  public String getResultCacheFingerprint() {
+    StringBuilder b = new StringBuilder();
+    b.append(VersionUtil.getVersion()).append("|").append(version).append("|").append(txServer).append("|").append(language).append("|").append(locale).append("|");
+    b.append(doNative).append(noInvariantChecks).append(displayWarnings).append(wantInvariantInMessage).append(hintAboutNonMustSupport).append(anyExtensionsAllowed);
+    b.append(assumeValidRestReferences).append(noExtensibleBindingMessages).append(noUnicodeBiDiControlChars).append(securityChecks).append(crumbTrails).append(forPublication);
+    b.append(allowExampleUrls).append(showMessagesFromReferences).append(doImplicitFHIRPathStringConversion).append(allowDoubleQuotesInFHIRPath).append(checkIPSCodes).append("|");
+    b.append(htmlInMarkdownCheck).append("|").append(bestPracticeLevel).append("|").append(questionnaireMode).append("|").append(level).append("|");
+    // not fhirPathMaxTime, since how long an evaluation takes varies from run to run. Outcomes where an invariant ran out of budget aren't cached
+    b.append(fhirPathMaxNodes).append("|").append(fhirPathMaxCollectionSize).append("|").append(maxErrors).append("|");
+    b.append(jurisdiction == null ? null : jurisdiction.getSystem()+"#"+jurisdiction.getCode()).append("|").append(extensionDomains).append("|");
+    for (BundleValidationRule br : bundleValidationRules) {
+      b.append(br.getRule()).append("=").append(br.getProfile()).append(",");
+    }
+    b.append("|");
+    for (String id : new TreeSet<>(validationControl.keySet())) {
+      b.append(id).append("=").append(validationControl.get(id).isAllowed()).append(validationControl.get(id).getLevel()).append(",");
+    }
+    b.append("|");
+    for (ImplementationGuide ig : igs) {
+      b.append(ig.getVersionedUrl()).append(",");
+    }
+    b.append("|");
+    b.append(new TreeSet<>(context.getLoadedPackages()));
+    b.append("|");
+    Set<String> local = new TreeSet<>();
+    for (CanonicalResource cr : context.fetchLocalResources()) {
+      local.add(cr.fhirType()+"/"+cr.getId()+"|"+cr.getVersionedUrl()+"="+localDigest(cr));
+    }
+    b.append(local);
+    return b.toString();
+  }
+
+  /**
+   * @return a digest of a conformance resource that didn't come from a package. Resources are replaced, 
+   * not changed, when they are loaded again, so the digest is only worked out once for each resource
+   */
+  private String localDigest(CanonicalResource cr) {
+    return localDigests.computeIfAbsent(cr, r -> {
+      if (r instanceof StructureDefinition && ((StructureDefinition) r).hasSnapshot()) {
+        // the snapshot may or may not have been generated yet, and it follows from the rest anyway 
+        r = r.copy();
+        ((StructureDefinition) r).setSnapshot(null);
+      }
+      try {
+        return ValidationResultCache.digest(new JsonParser().composeBytes(r));
+      } catch (IOException e) {
+        throw new FHIRException(e);
+      }
+    });
+  }
+
+  private void recordMessages(List<ValidationRecord> record, String location, List<ValidationMessage> messages) {
+    boolean found = false;
+    for (ValidationRecord t : record) {
+      if (t.getLocation().equals(location)) {
+        found = true;
+        t.setMessages(messages);
+      }
+    }
+    if (!found) {
+      record.add(new ValidationRecord(location, messages));
+    }
+  }
+
   public OperationOutcome validate(String location, byte[] source, FhirFormat cntType, List<String> profiles, IdStatus resourceIdRule, boolean anyExtensionsAllowed, BestPracticeWarningLevel bpWarnings, CheckDisplayOption displayOption) throws FHIRException, IOException, EOperationOutcome, SAXException {
     List<ValidationMessage> messages = new ArrayList<ValidationMessage>();
     if (doNative) {
@@ -869,6 +1251,14 @@ public class ValidationEngine implements IValidatorResourceFetcher, IValidationP
     validator.setNoUnicodeBiDiControlChars(noUnicodeBiDiControlChars);
     validator.setDoImplicitFHIRPathStringConversion(doImplicitFHIRPathStringConversion);
     validator.setCheckIPSCodes(checkIPSCodes);
+    validator.getFHIRPathEngine().setProfiler(fhirPathProfiler);
+    validator.getFHIRPathEngine().setMaxNodes(fhirPathMaxNodes);
+    validator.getFHIRPathEngine().setMaxCollectionSize(fhirPathMaxCollectionSize);
+    validator.getFHIRPathEngine().setMaxTime(fhirPathMaxTime);
+    validator.getFHIRPathEngine().setLazyEvaluation(fhirPathLazyEvaluation);
+    validator.getFHIRPathEngine().setMemoiseLookups(fhirPathMemoiseLookups);
+    validator.setBundleEntryThreads(bundleEntryThreads);
+    validator.setMaxErrors(maxErrors);
     if (format == FhirFormat.SHC) {
       igLoader.loadIg(getIgs(), getBinaries(), SHCParser.CURRENT_PACKAGE, true);      
     }
@@ -877,6 +1267,17 @@ public class ValidationEngine implements IValidatorResourceFetcher, IValidationP
     return validator;
   }
 
+  /**
+   * Create a pool of validators for applications that validate on several threads at once. 
+   * The validators share this engine's context, and are configured with this engine's 
+   * settings as they are at the time each validator is created
+   * 
+   * @param maxIdle the most validators the pool keeps for reuse (usually, the number of threads)
+   */
+  public InstanceValidatorPool newValidatorPool(FhirFormat format, int maxIdle) {
+    return new InstanceValidatorPool(this, format, maxIdle);
+  }
+
   public void prepare() {
     for (StructureDefinition sd : new ContextUtilities(context).allStructures()) {
       try {
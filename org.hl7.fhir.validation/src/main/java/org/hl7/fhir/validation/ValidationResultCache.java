@@ -0,0 +1,251 @@
+package org.hl7.fhir.validation;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r5.elementmodel.Manager.FhirFormat;
+import org.hl7.fhir.utilities.TextFile;
+import org.hl7.fhir.utilities.Utilities;
+import org.hl7.fhir.utilities.json.model.JsonArray;
+import org.hl7.fhir.utilities.json.model.JsonObject;
+import org.hl7.fhir.utilities.json.parser.JsonParser;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
+import org.hl7.fhir.utilities.validation.ValidationMessage.IssueSeverity;
+import org.hl7.fhir.utilities.validation.ValidationMessage.IssueType;
+import org.hl7.fhir.utilities.validation.ValidationMessage.Source;
+
+/**
+ * Keeps the messages produced by validating content in a folder, so that content that
+ * hasn't changed doesn't need to be validated again (e.g. in the next CI run, or the next
+ * watch cycle).
+ *
+ * Entries are keyed by a digest of the content, the profiles, and a fingerprint of everything
+ * else that affects the outcome (the validator settings and version, the packages that are
+ * loaded, and the content of any other conformance resources that are loaded, e.g. from an -ig
+ * folder or from the sources themselves - see ValidationEngine.getResultCacheFingerprint()), and
+ * the content of the other sources that the content refers to. When any of those change, the old 
+ * entries are never found again, and they are removed as the cache fills up. So when a profile or 
+ * a referenced instance changes in watch mode, the sources that depend on it are validated again, 
+ * rather than found in the cache.
+ *
+ * The content is digested exactly as it is, not canonicalised, since the messages refer to
+ * line and column positions in it.
+ *
+ * The cache has a maximum size; when it is full, the entries that were least recently used
+ * (going by the date of the files) are deleted.
+ */
+public class ValidationResultCache {
+
+  private static final String CACHE_VERSION = "1";
+  private static final String EXT = ".json";
+  public static final long DEFAULT_MAX_SIZE = 100 * 1024 * 1024;
+
+  private final File folder;
+  private final long maxSize;
+  private long size;
+  private int hits;
+  private int misses;
+  // key -> file size, least recently used first
+  private final Map<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  /**
+   * @param maxSize the most bytes the cache is allowed to use on disk
+   */
+  public ValidationResultCache(String folder, long maxSize) throws IOException {
+    super();
+    this.folder = new File(folder);
+    this.maxSize = maxSize;
+    Utilities.createDirectory(folder);
+    File[] files = this.folder.listFiles((dir, name) -> name.endsWith(EXT));
+    if (files != null) {
+      Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+      for (File f : files) {
+        entries.put(f.getName().substring(0, f.getName().length() - EXT.length()), f.length());
+        size += f.length();
+      }
+    }
+  }
+
+  /**
+   * @return the key for the cached outcome of validating the content against the profiles
+   */
+  public String key(byte[] content, FhirFormat format, List<String> profiles, String fingerprint) {
+    MessageDigest md = newDigest();
+    md.update((CACHE_VERSION+"|"+format+"|"+profiles+"|"+fingerprint+"|").getBytes(StandardCharsets.UTF_8));
+    md.update(content);
+    return hex(md.digest());
+  }
+
+  /**
+   * @return a digest of the content, for use in a fingerprint
+   */
+  public static String digest(byte[] content) {
+    return hex(newDigest().digest(content));
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new FHIRException(e);
+    }
+  }
+
+  private static String hex(byte[] digest) {
+    StringBuilder b = new StringBuilder();
+    for (byte v : digest) {
+      b.append(Character.forDigit((v >> 4) & 0xF, 16));
+      b.append(Character.forDigit(v & 0xF, 16));
+    }
+    return b.toString();
+  }
+
+  /**
+   * @return the messages for the key, or null if they aren't in the cache
+   */
+  public synchronized List<ValidationMessage> get(String key) {
+    if (!entries.containsKey(key)) {
+      misses++;
+      return null;
+    }
+    File f = new File(folder, key+EXT);
+    try {
+      JsonObject json = JsonParser.parseObject(f);
+      List<ValidationMessage> messages = new ArrayList<>();
+      for (JsonObject m : json.getJsonObjects("messages")) {
+        messages.add(fromJson(m));
+      }
+      f.setLastModified(System.currentTimeMillis());
+      hits++;
+      return messages;
+    } catch (Exception e) {
+      // if the entry can't be read, it's treated as missing, and replaced when the content is validated
+      remove(key);
+      misses++;
+      return null;
+    }
+  }
+
+  public synchronized void put(String key, List<ValidationMessage> messages) throws IOException {
+    JsonObject json = new JsonObject();
+    JsonArray arr = new JsonArray();
+    json.add("messages", arr);
+    for (ValidationMessage vm : messages) {
+      arr.add(toJson(vm));
+    }
+    byte[] bytes = JsonParser.composeBytes(json);
+    if (bytes.length > maxSize) {
+      return;
+    }
+    if (entries.containsKey(key)) {
+      remove(key);
+    }
+    // write and rename, so that a run that is interrupted doesn't leave a broken entry
+    File tmp = new File(folder, key+".tmp");
+    TextFile.bytesToFile(bytes, tmp);
+    File f = new File(folder, key+EXT);
+    if (!tmp.renameTo(f)) {
+      tmp.delete();
+      return;
+    }
+    entries.put(key, (long) bytes.length);
+    size += bytes.length;
+    while (size > maxSize && !entries.isEmpty()) {
+      remove(entries.keySet().iterator().next());
+    }
+  }
+
+  private void remove(String key) {
+    Long l = entries.remove(key);
+    if (l != null) {
+      size -= l;
+    }
+    new File(folder, key+EXT).delete();
+  }
+
+  public synchronized void clear() {
+    for (String key : new ArrayList<>(entries.keySet())) {
+      remove(key);
+    }
+  }
+
+  public synchronized int getHits() {
+    return hits;
+  }
+
+  public synchronized int getMisses() {
+    return misses;
+  }
+
+  /**
+   * @return the number of bytes the cache is using on disk
+   */
+  public synchronized long getSize() {
+    return size;
+  }
+
+  private JsonObject toJson(ValidationMessage vm) {
+    JsonObject json = new JsonObject();
+    if (vm.getSource() != null) {
+      json.add("source", vm.getSource().name());
+    }
+    json.add("type", vm.getType().name());
+    json.add("level", vm.getLevel().name());
+    json.add("line", vm.getLine());
+    json.add("col", vm.getCol());
+    json.addIfNotNull("location", vm.getLocation());
+    json.addIfNotNull("message", vm.getMessage());
+    json.addIfNotNull("html", vm.getHtml());
+    json.addIfNotNull("messageId", vm.getMessageId());
+    json.addIfNotNull("locationLink", vm.getLocationLink());
+    json.addIfNotNull("txLink", vm.getTxLink());
+    json.addIfNotNull("sliceHtml", vm.getSliceHtml());
+    if (vm.sliceText != null) {
+      JsonArray arr = new JsonArray();
+      for (String s : vm.sliceText) {
+        arr.add(s);
+      }
+      json.add("sliceText", arr);
+    }
+    json.addIfNotNull("invId", vm.getInvId());
+    if (vm.getRuleDate() != null) {
+      json.add("ruleDate", vm.getRuleDate().getTime());
+    }
+    json.add("slicingHint", vm.isSlicingHint());
+    json.add("signpost", vm.isSignpost());
+    json.add("criticalSignpost", vm.isCriticalSignpost());
+    json.add("ignorableError", vm.isIgnorableError());
+    return json;
+  }
+
+  private ValidationMessage fromJson(JsonObject json) {
+    ValidationMessage vm = new ValidationMessage(json.has("source") ? Source.valueOf(json.asString("source")) : null, IssueType.valueOf(json.asString("type")),
+        json.asInteger("line"), json.asInteger("col"), json.asString("location"), json.asString("message"), IssueSeverity.valueOf(json.asString("level")));
+    vm.setHtml(json.asString("html"));
+    vm.setMessageId(json.asString("messageId"));
+    vm.setLocationLink(json.asString("locationLink"));
+    vm.setTxLink(json.asString("txLink"));
+    if (json.has("sliceHtml")) {
+      vm.setSliceHtml(json.asString("sliceHtml"), json.has("sliceText") ? json.getStrings("sliceText").toArray(new String[0]) : null);
+    }
+    vm.setInvId(json.asString("invId"));
+    if (json.has("ruleDate")) {
+      vm.setRuleDate(new Date(Long.parseLong(json.asString("ruleDate"))));
+    }
+    vm.setSlicingHint(json.asBoolean("slicingHint"));
+    vm.setSignpost(json.asBoolean("signpost"));
+    vm.setCriticalSignpost(json.asBoolean("criticalSignpost"));
+    vm.setIgnorableError(json.asBoolean("ignorableError"));
+    return vm;
+  }
+}
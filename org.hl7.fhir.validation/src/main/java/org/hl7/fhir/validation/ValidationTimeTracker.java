@@ -1,5 +1,9 @@
 package org.hl7.fhir.validation;
 
+/**
+ * The times are added to from all the threads that are validating the entries of a bundle, 
+ * so the methods that add to them are synchronized
+ */
 public class ValidationTimeTracker {
   private long overall = 0;
   private long txTime = 0;
@@ -28,33 +32,33 @@ public class ValidationTimeTracker {
     return specTime;
   }
   
-  public void load(long start) {
+  public synchronized void load(long start) {
     loadTime = loadTime + (System.nanoTime() - start);
   }
   
-  public void overall(long start) {  
+  public synchronized void overall(long start) {  
     overall = overall + (System.nanoTime() - start);
   }
   
-  public void tx(long start, String s) {
+  public synchronized void tx(long start, String s) {
     long ms = (System.nanoTime() - start) / 1000000;
 //    System.out.println("tx: "+ms+" "+s);
     txTime = txTime + (System.nanoTime() - start);
   }
   
-  public void sd(long start) {
+  public synchronized void sd(long start) {
     sdTime = sdTime + (System.nanoTime() - start);
   }
   
-  public void fpe(long start) {
+  public synchronized void fpe(long start) {
     fpeTime = fpeTime + (System.nanoTime() - start);
   }
   
-  public void spec(long start) {
+  public synchronized void spec(long start) {
     specTime = specTime + (System.nanoTime() - start);
   }
   
-  public void reset() {
+  public synchronized void reset() {
     overall = 0;
     txTime = 0;
     sdTime = 0;
@@ -3,6 +3,8 @@ package org.hl7.fhir.validation;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -46,6 +48,7 @@ public class ValidatorUtils {
   public static class SourceFile {
     private String ref;
     private long date;
+    private String digest; // of the content, when it was last seen
     private boolean process;
     private Content cnt;
     
@@ -199,12 +202,30 @@ public class ValidatorUtils {
     SourceFile src = addSourceFile(refs, file.getPath());
     long l = file.lastModified();  // returns 0 if the file is missing
     if (src.date != l) {
-      src.setProcess(l != 0);  // process only if not missing
+      // if the file has been touched, but the content is the same, there's no need to process it again
+      String digest = l == 0 ? null : digest(file);
+      src.setProcess(l != 0 && (digest == null || !digest.equals(src.digest)));  // process only if not missing
+      src.digest = digest;
     }
     src.date = l;
     return src;
   }
 
+  private static String digest(File file) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      byte[] d = md.digest(Files.readAllBytes(file.toPath()));
+      StringBuilder b = new StringBuilder();
+      for (byte v : d) {
+        b.append(Character.forDigit((v >> 4) & 0xF, 16));
+        b.append(Character.forDigit(v & 0xF, 16));
+      }
+      return b.toString();
+    } catch (Exception e) {
+      return null; // can't tell, so it'll be processed
+    }
+  }
+
   private static SourceFile addSourceFile(List<SourceFile> refs, String path) {
     for (SourceFile t : refs) {
       if (t.ref.equals(path)) {
@@ -68,6 +68,12 @@ public class CliContext {
   private String outputSuffix;
   @JsonProperty("htmlOutput")
   private String htmlOutput = null;
+  @JsonProperty("fhirpathProfile")
+  private String fhirpathProfile = null;
+  @JsonProperty("fhirpathLazy")
+  private boolean fhirpathLazy = false;
+  @JsonProperty("fhirpathMemoise")
+  private boolean fhirpathMemoise = false;
   @JsonProperty("txServer")
   private String txServer = FhirSettings.getTxFhirProduction();
   @JsonProperty("sv")
@@ -153,6 +159,18 @@ public class CliContext {
   
   @JsonProperty("watchSettleTime")
   private int watchSettleTime = 100;
+
+  @JsonProperty("threads")
+  private int threads = 1;
+
+  @JsonProperty("maxErrors")
+  private int maxErrors = 0;
+
+  @JsonProperty("resultCache")
+  private String resultCache = null;
+
+  @JsonProperty("streamBundles")
+  private boolean streamBundles = false;
   
   @JsonProperty("bestPracticeLevel")
   private BestPracticeWarningLevel bestPracticeLevel = BestPracticeWarningLevel.Warning;
@@ -423,6 +441,39 @@ public class CliContext {
     return this;
   }
 
+  @JsonProperty("fhirpathProfile")
+  public String getFhirpathProfile() {
+    return fhirpathProfile;
+  }
+
+  @JsonProperty("fhirpathProfile")
+  public CliContext setFhirpathProfile(String fhirpathProfile) {
+    this.fhirpathProfile = fhirpathProfile;
+    return this;
+  }
+
+  @JsonProperty("fhirpathLazy")
+  public boolean isFhirpathLazy() {
+    return fhirpathLazy;
+  }
+
+  @JsonProperty("fhirpathLazy")
+  public CliContext setFhirpathLazy(boolean fhirpathLazy) {
+    this.fhirpathLazy = fhirpathLazy;
+    return this;
+  }
+
+  @JsonProperty("fhirpathMemoise")
+  public boolean isFhirpathMemoise() {
+    return fhirpathMemoise;
+  }
+
+  @JsonProperty("fhirpathMemoise")
+  public CliContext setFhirpathMemoise(boolean fhirpathMemoise) {
+    this.fhirpathMemoise = fhirpathMemoise;
+    return this;
+  }
+
   @JsonProperty("canDoNative")
   public boolean getCanDoNative() {
     return canDoNative;
@@ -765,6 +816,9 @@ public class CliContext {
       Objects.equals(output, that.output) &&
       Objects.equals(outputSuffix, that.outputSuffix) &&
       Objects.equals(htmlOutput, that.htmlOutput) &&
+      Objects.equals(fhirpathProfile, that.fhirpathProfile) &&
+      fhirpathLazy == that.fhirpathLazy &&
+      fhirpathMemoise == that.fhirpathMemoise &&
       Objects.equals(txServer, that.txServer) &&
       Objects.equals(sv, that.sv) &&
       Objects.equals(txLog, that.txLog) &&
@@ -793,14 +847,18 @@ public class CliContext {
       Objects.equals(watchMode, that.watchMode) &&
       Objects.equals(bestPracticeLevel, that.bestPracticeLevel) &&
       Objects.equals(watchScanDelay, that.watchScanDelay) &&
-      Objects.equals(watchSettleTime, that.watchSettleTime) ;
+      Objects.equals(watchSettleTime, that.watchSettleTime) &&
+      threads == that.threads &&
+      maxErrors == that.maxErrors &&
+      Objects.equals(resultCache, that.resultCache) &&
+      streamBundles == that.streamBundles;
   }
 
   @Override
   public int hashCode() {
     return Objects.hash(doNative, extensions, hintAboutNonMustSupport, recursive, doDebug, assumeValidRestReferences, canDoNative, noInternalCaching, 
-            noExtensibleBindingMessages, noInvariants, displayWarnings, wantInvariantsInMessages, map, output, outputSuffix, htmlOutput, txServer, sv, txLog, txCache, mapLog, lang, srcLang, tgtLang, fhirpath, snomedCT,
-            targetVer, igs, questionnaireMode, level, profiles, sources, inputs, mode, locale, locations, crumbTrails, forPublication, showTimes, allowExampleUrls, outputStyle, jurisdiction, noUnicodeBiDiControlChars, watchMode, watchScanDelay, watchSettleTime, bestPracticeLevel,
+            noExtensibleBindingMessages, noInvariants, displayWarnings, wantInvariantsInMessages, map, output, outputSuffix, htmlOutput, fhirpathProfile, fhirpathLazy, fhirpathMemoise, txServer, sv, txLog, txCache, mapLog, lang, srcLang, tgtLang, fhirpath, snomedCT,
+            targetVer, igs, questionnaireMode, level, profiles, sources, inputs, mode, locale, locations, crumbTrails, forPublication, showTimes, allowExampleUrls, outputStyle, jurisdiction, noUnicodeBiDiControlChars, watchMode, watchScanDelay, watchSettleTime, threads, maxErrors, resultCache, streamBundles, bestPracticeLevel,
             htmlInMarkdownCheck, allowDoubleQuotesInFHIRPath, checkIPSCodes);
   }
 
@@ -824,6 +882,9 @@ public class CliContext {
       ", output='" + output + '\'' +
       ", outputSuffix='" + output + '\'' +
       ", htmlOutput='" + htmlOutput + '\'' +
+      ", fhirpathProfile='" + fhirpathProfile + '\'' +
+      ", fhirpathLazy=" + fhirpathLazy +
+      ", fhirpathMemoise=" + fhirpathMemoise +
       ", txServer='" + txServer + '\'' +
       ", sv='" + sv + '\'' +
       ", txLog='" + txLog + '\'' +
@@ -858,6 +919,10 @@ public class CliContext {
       ", watchMode=" + watchMode +
       ", bestPracticeLevel=" + bestPracticeLevel +
       ", watchSettleTime=" + watchSettleTime +
+      ", threads=" + threads +
+      ", maxErrors=" + maxErrors +
+      ", resultCache=" + resultCache +
+      ", streamBundles=" + streamBundles +
       ", watchScanDelay=" + watchScanDelay +
       '}';
   }
@@ -903,6 +968,50 @@ public class CliContext {
   public void setWatchSettleTime(int watchSettleTime) {
     this.watchSettleTime = watchSettleTime;
   }
+
+  @JsonProperty("threads")
+  public int getThreads() {
+    return threads;
+  }
+
+  @JsonProperty("threads")
+  public CliContext setThreads(int threads) {
+    this.threads = threads;
+    return this;
+  }
+
+  @JsonProperty("maxErrors")
+  public int getMaxErrors() {
+    return maxErrors;
+  }
+
+  @JsonProperty("maxErrors")
+  public CliContext setMaxErrors(int maxErrors) {
+    this.maxErrors = maxErrors;
+    return this;
+  }
+
+  @JsonProperty("resultCache")
+  public String getResultCache() {
+    return resultCache;
+  }
+
+  @JsonProperty("resultCache")
+  public CliContext setResultCache(String resultCache) {
+    this.resultCache = resultCache;
+    return this;
+  }
+
+  @JsonProperty("streamBundles")
+  public boolean isStreamBundles() {
+    return streamBundles;
+  }
+
+  @JsonProperty("streamBundles")
+  public CliContext setStreamBundles(boolean streamBundles) {
+    this.streamBundles = streamBundles;
+    return this;
+  }
   
 
   @JsonProperty("bestPracticeLevel")
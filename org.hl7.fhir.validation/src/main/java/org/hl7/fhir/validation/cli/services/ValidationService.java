@@ -5,12 +5,21 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryMXBean;
 import java.net.URISyntaxException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nonnull;
 
@@ -26,6 +35,7 @@ import org.hl7.fhir.r5.elementmodel.Manager.FhirFormat;
 import org.hl7.fhir.r5.elementmodel.ValidatedFragment;
 import org.hl7.fhir.r5.formats.IParser;
 import org.hl7.fhir.r5.formats.IParser.OutputStyle;
+import org.hl7.fhir.r5.formats.JsonParser;
 import org.hl7.fhir.r5.model.Bundle;
 import org.hl7.fhir.r5.model.CanonicalResource;
 import org.hl7.fhir.r5.model.CodeSystem;
@@ -42,6 +52,10 @@ import org.hl7.fhir.r5.renderers.spreadsheets.StructureDefinitionSpreadsheetGene
 import org.hl7.fhir.r5.renderers.spreadsheets.ValueSetSpreadsheetGenerator;
 import org.hl7.fhir.r5.terminologies.CodeSystemUtilities;
 import org.hl7.fhir.r5.terminologies.utilities.TerminologyCache;
+import org.hl7.fhir.r5.utils.EOperationOutcome;
+import org.hl7.fhir.r5.utils.FHIRPathProfiler;
+import org.hl7.fhir.r5.utils.ToolingExtensions;
+import org.hl7.fhir.utilities.DurationUtil;
 import org.hl7.fhir.utilities.FhirPublication;
 import org.hl7.fhir.utilities.SystemExitManager;
 import org.hl7.fhir.utilities.TextFile;
@@ -66,6 +80,7 @@ import org.hl7.fhir.validation.cli.renderers.DefaultRenderer;
 import org.hl7.fhir.validation.cli.renderers.ESLintCompactRenderer;
 import org.hl7.fhir.validation.cli.renderers.NativeRenderer;
 import org.hl7.fhir.validation.cli.renderers.ValidationOutputRenderer;
+import org.hl7.fhir.validation.cli.utils.AsteriskFilter;
 import org.hl7.fhir.validation.cli.utils.Common;
 import org.hl7.fhir.validation.cli.utils.EngineMode;
 import org.hl7.fhir.validation.cli.utils.VersionSourceInformation;
@@ -164,6 +179,155 @@ public class ValidationService {
     return versions;
   }
 
+  /**
+   * Validate the NDJSON sources a resource at a time. The outcomes are written as NDJSON to the 
+   * output file, if there is one (and there's no other output), or otherwise to the console
+   * 
+   * @return the number of errors found
+   */
+  private int validateNdjsonSources(CliContext cliContext, ValidationEngine validator, List<String> sources, boolean ownOutput) throws IOException, InterruptedException {
+    int ec = 0;
+    OutputStream dst = ownOutput && cliContext.getOutput() != null ? new FileOutputStream(cliContext.getOutput()) : System.out;
+    try {
+      for (String src : sources) {
+        System.out.println("  Validate " + src);
+        long start = System.currentTimeMillis();
+        NdjsonValidator.Summary summary;
+        try (InputStream stream = new FileInputStream(src)) {
+          summary = validator.validateNdjson(src, stream, dst, cliContext.getProfiles());
+        }
+        System.out.println("  "+summary.getResources()+" resources, "+summary.getResourcesWithErrors()+" with errors ("+summary.getErrors()+" errors) in "+DurationUtil.presentDuration((System.currentTimeMillis() - start) * 1000000));
+        ec += summary.getErrors();
+      }
+    } finally {
+      dst.flush();
+      if (dst != System.out) {
+        dst.close();
+      }
+    }
+    return ec;
+  }
+
+  /**
+   * Validate JSON bundles an entry at a time (see ValidationEngine.validateLargeBundle). The outcomes 
+   * (in a Bundle, if there's more than one) are written as JSON to the output file, if there is one 
+   * (and there's no other output), or otherwise to the console
+   * 
+   * @return the number of errors found
+   */
+  private int validateStreamedBundles(CliContext cliContext, ValidationEngine validator, List<String> sources, boolean ownOutput) throws IOException, FHIRException, EOperationOutcome {
+    int ec = 0;
+    Bundle results = new Bundle();
+    results.setType(Bundle.BundleType.COLLECTION);
+    for (String src : sources) {
+      System.out.println("  Validate " + src);
+      long start = System.currentTimeMillis();
+      OperationOutcome outcome = validator.validateLargeBundle(src, new File(src), cliContext.getProfiles(), null);
+      ToolingExtensions.addStringExtension(outcome, ToolingExtensions.EXT_OO_FILE, src);
+      int errors = countErrors(outcome);
+      System.out.println("  "+errors+" errors in "+DurationUtil.presentDuration((System.currentTimeMillis() - start) * 1000000));
+      ec += errors;
+      results.addEntry().setResource(outcome);
+    }
+    Resource r = results.getEntry().size() == 1 ? results.getEntryFirstRep().getResource() : results;
+    OutputStream dst = ownOutput && cliContext.getOutput() != null ? new FileOutputStream(cliContext.getOutput()) : System.out;
+    try {
+      new JsonParser().setOutputStyle(OutputStyle.PRETTY).compose(dst, r);
+    } finally {
+      dst.flush();
+      if (dst != System.out) {
+        dst.close();
+      }
+    }
+    return ec;
+  }
+
+  /**
+   * Watch the folders the sources are in (and the folders in them, if recursive), so that changes 
+   * are noticed as they happen. Sources that can't be watched (e.g. urls) are still checked every 
+   * watchScanDelay. The caller closes the watcher
+   * 
+   * @return null if the file system can't be watched
+   */
+  private WatchService makeWatcher(List<String> sources, boolean recursive) {
+    WatchService watcher = null;
+    try {
+      watcher = FileSystems.getDefault().newWatchService();
+      Set<Path> folders = new HashSet<>();
+      for (String src : sources) {
+        if (!Common.isNetworkPath(src)) {
+          File f = new File(Common.isWildcardPath(src) ? new AsteriskFilter(src).getDir() : src);
+          if (f.isFile()) {
+            f = f.getAbsoluteFile().getParentFile();
+          }
+          if (f != null && f.isDirectory()) {
+            watchFolder(watcher, f.toPath(), recursive, folders);
+          }
+        }
+      }
+      return watcher;
+    } catch (Exception e) {
+      System.out.println("Unable to watch the sources for changes ("+e.getMessage()+"); checking every cycle instead");
+      closeWatcher(watcher);
+      return null;
+    }
+  }
+
+  private void watchFolder(WatchService watcher, Path folder, boolean recursive, Set<Path> folders) throws IOException {
+    if (folders.add(folder)) {
+      folder.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+      if (recursive) {
+        File[] list = folder.toFile().listFiles();
+        if (list != null) {
+          for (File f : list) {
+            if (f.isDirectory()) {
+              watchFolder(watcher, f.toPath(), recursive, folders);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  private void closeWatcher(WatchService watcher) {
+    if (watcher != null) {
+      try {
+        watcher.close();
+      } catch (IOException e) {
+        // nothing to do
+      }
+    }
+  }
+
+  /**
+   * wait until something changes, or the scan delay has passed (which ever comes first)
+   */
+  private void waitForChanges(WatchService watcher, int watchScanDelay, boolean recursive) throws InterruptedException {
+    if (watcher == null) {
+      Thread.sleep(watchScanDelay);
+    } else {
+      WatchKey key = watcher.poll(watchScanDelay, TimeUnit.MILLISECONDS);
+      while (key != null) {
+        // the events themselves don't matter (the sources are checked for changes by the validator), 
+        // except that new folders are watched too, if recursive
+        for (WatchEvent<?> event : key.pollEvents()) {
+          if (recursive && event.kind() == StandardWatchEventKinds.ENTRY_CREATE && key.watchable() instanceof Path) {
+            Path path = ((Path) key.watchable()).resolve((Path) event.context());
+            if (path.toFile().isDirectory()) {
+              try {
+                watchFolder(watcher, path, recursive, new HashSet<>());
+              } catch (IOException e) {
+                System.out.println("Unable to watch "+path+" for changes ("+e.getMessage()+")");
+              }
+            }
+          }
+        }
+        key.reset();
+        key = watcher.poll();
+      }
+    }
+  }
+
   public void validateSources(CliContext cliContext, ValidationEngine validator, ValidatorWatchMode watch, int watchScanDelay, int watchSettleTime) throws Exception {
     if (cliContext.getProfiles().size() > 0) {
       System.out.println("  Profiles: " + cliContext.getProfiles());
@@ -176,76 +340,119 @@ public class ValidationService {
     int ec = 0;
     boolean first = true;
 
-    do {
-      long start = System.currentTimeMillis();
-      Resource r = validator.validate(cliContext.getSources(), cliContext.getProfiles(), refs, records, igLoader, watch == ValidatorWatchMode.ALL, watchSettleTime, first);
-      first = false;
-      boolean statusNeeded = false;
-      if (r != null) {
-        statusNeeded = true;
-        MemoryMXBean mbean = ManagementFactory.getMemoryMXBean();
-        System.out.println("Done. " + validator.getContext().clock().report()+". Memory = "+Utilities.describeSize(mbean.getHeapMemoryUsage().getUsed()+mbean.getNonHeapMemoryUsage().getUsed()));
-        System.out.println();
-
-        PrintStream dst = null;
-        ValidationOutputRenderer renderer = makeValidationOutputRenderer(cliContext);
-        renderer.setCrumbTrails(validator.isCrumbTrails());
-        renderer.setRunDate(runDate);
-        if (renderer.isSingleFile()) {
-          if (cliContext.getOutput() == null) {
-            dst = System.out;
-          } else {
-            dst = new PrintStream(new FileOutputStream(cliContext.getOutput()));
-          }
-          renderer.setOutput(dst);
-        } else {
-          File dir = new File(cliContext.getOutput());
-          if (!dir.isDirectory()) {
-            throw new Error("The output location "+dir.getAbsolutePath()+" must be an existing directory for the output style "+renderer.getStyleCode());
-          }
-          renderer.setFolder(dir);
+    // NDJSON sources (and JSON bundles, if asked) are streamed, and aren't watched 
+    List<String> sources = new ArrayList<>();
+    List<String> ndjson = new ArrayList<>();
+    List<String> bundles = new ArrayList<>();
+    for (String src : cliContext.getSources()) {
+      if (src.endsWith(".ndjson") && !Common.isNetworkPath(src) && new File(src).isFile()) {
+        ndjson.add(src);
+      } else if (cliContext.isStreamBundles() && src.endsWith(".json") && !Common.isNetworkPath(src) && new File(src).isFile()) {
+        bundles.add(src);
+      } else {
+        sources.add(src);
+      }
+    }
+    if (!ndjson.isEmpty() || !bundles.isEmpty()) {
+      if (!ndjson.isEmpty()) {
+        ec = validateNdjsonSources(cliContext, validator, ndjson, sources.isEmpty() && bundles.isEmpty());
+      }
+      if (!bundles.isEmpty()) {
+        ec += validateStreamedBundles(cliContext, validator, bundles, sources.isEmpty() && ndjson.isEmpty());
+      }
+      if (sources.isEmpty()) {
+        if (ec > 0) {
+          SystemExitManager.setError(1);
         }
+        return;
+      }
+    }
+
+    if (watch == ValidatorWatchMode.SINGLE) {
+      validator.setSourceDependencies(new SourceDependencies());
+    }
+    WatchService watcher = watch == ValidatorWatchMode.NONE ? null : makeWatcher(sources, cliContext.isRecursive());
+    try {
 
-        if (r instanceof Bundle) {
-          if (renderer.handlesBundleDirectly()) {
-            renderer.render((Bundle) r);
+      do {
+        long start = System.currentTimeMillis();
+        Resource r = validator.validate(sources, cliContext.getProfiles(), refs, records, igLoader, watch == ValidatorWatchMode.ALL, watchSettleTime, first);
+        first = false;
+        boolean statusNeeded = false;
+        if (r != null) {
+          statusNeeded = true;
+          MemoryMXBean mbean = ManagementFactory.getMemoryMXBean();
+          System.out.println("Done. " + validator.getContext().clock().report()+". Memory = "+Utilities.describeSize(mbean.getHeapMemoryUsage().getUsed()+mbean.getNonHeapMemoryUsage().getUsed()));
+          System.out.println();
+
+          PrintStream dst = null;
+          ValidationOutputRenderer renderer = makeValidationOutputRenderer(cliContext);
+          renderer.setCrumbTrails(validator.isCrumbTrails());
+          renderer.setRunDate(runDate);
+          if (renderer.isSingleFile()) {
+            if (cliContext.getOutput() == null) {
+              dst = System.out;
+            } else {
+              dst = new PrintStream(new FileOutputStream(cliContext.getOutput()));
+            }
+            renderer.setOutput(dst);
           } else {
-            renderer.start(((Bundle) r).getEntry().size() > 1);
-            for (Bundle.BundleEntryComponent e : ((Bundle) r).getEntry()) {
-              OperationOutcome op = (OperationOutcome) e.getResource();
-              ec = ec + countErrors(op);
-              renderer.render(op);
+            File dir = new File(cliContext.getOutput());
+            if (!dir.isDirectory()) {
+              throw new Error("The output location "+dir.getAbsolutePath()+" must be an existing directory for the output style "+renderer.getStyleCode());
+            }
+            renderer.setFolder(dir);
+          }
+
+          if (r instanceof Bundle) {
+            if (renderer.handlesBundleDirectly()) {
+              renderer.render((Bundle) r);
+            } else {
+              renderer.start(((Bundle) r).getEntry().size() > 1);
+              for (Bundle.BundleEntryComponent e : ((Bundle) r).getEntry()) {
+                OperationOutcome op = (OperationOutcome) e.getResource();
+                ec = ec + countErrors(op);
+                renderer.render(op);
+              }
+              renderer.finish();
             }
+          } else if (r == null) {
+            ec = ec + 1;
+            System.out.println("No output from validation - nothing to validate");
+          } else {
+            renderer.start(false);
+            OperationOutcome op = (OperationOutcome) r;
+            ec = countErrors(op);
+            renderer.render((OperationOutcome) r);
             renderer.finish();
           }
-        } else if (r == null) {
-          ec = ec + 1;
-          System.out.println("No output from validation - nothing to validate");
-        } else {
-          renderer.start(false);
-          OperationOutcome op = (OperationOutcome) r;
-          ec = countErrors(op);
-          renderer.render((OperationOutcome) r);
-          renderer.finish();
-        }
 
-        if (cliContext.getOutput() != null && dst != null) {
-          dst.close();
-        }
+          if (cliContext.getOutput() != null && dst != null) {
+            dst.close();
+          }
 
-        if (cliContext.getHtmlOutput() != null) {
-          String html = new HTMLOutputGenerator(records).generate(System.currentTimeMillis() - start);
-          TextFile.stringToFile(html, cliContext.getHtmlOutput());
-          System.out.println("HTML Summary in " + cliContext.getHtmlOutput());
+          if (cliContext.getHtmlOutput() != null) {
+            String html = new HTMLOutputGenerator(records).generate(System.currentTimeMillis() - start);
+            TextFile.stringToFile(html, cliContext.getHtmlOutput());
+            System.out.println("HTML Summary in " + cliContext.getHtmlOutput());
+          }
+          if (cliContext.getFhirpathProfile() != null && validator.getFhirPathProfiler() != null) {
+            FHIRPathProfiler profiler = validator.getFhirPathProfiler();
+            TextFile.stringToFile(cliContext.getFhirpathProfile().endsWith(".json") ? profiler.reportJson() : profiler.reportText(0), cliContext.getFhirpathProfile());
+            System.out.println("FHIRPath profile in " + cliContext.getFhirpathProfile());
+            System.out.println(profiler.reportText(10));
+          }
         }
-      }
-      if (watch != ValidatorWatchMode.NONE) {
-        if (statusNeeded) {
-          System.out.println("Watching for changes ("+Integer.toString(watchScanDelay)+"ms cycle)");
+        if (watch != ValidatorWatchMode.NONE) {
+          if (statusNeeded) {
+            System.out.println("Watching for changes ("+Integer.toString(watchScanDelay)+"ms cycle)");
+          }
+          waitForChanges(watcher, watchScanDelay, cliContext.isRecursive());
         }
-        Thread.sleep(watchScanDelay);
-      }
-    } while (watch != ValidatorWatchMode.NONE);
+      } while (watch != ValidatorWatchMode.NONE);
+    } finally {
+      closeWatcher(watcher);
+    }
     if (ec > 0) {
       SystemExitManager.setError(1);
     }
@@ -495,6 +702,16 @@ public class ValidationService {
     validationEngine.setCrumbTrails(cliContext.isCrumbTrails());
     validationEngine.setForPublication(cliContext.isForPublication());
     validationEngine.setShowTimes(cliContext.isShowTimes());
+    validationEngine.setThreads(cliContext.getThreads());
+    validationEngine.setMaxErrors(cliContext.getMaxErrors());
+    if (cliContext.getResultCache() != null) {
+      validationEngine.setResultCache(new ValidationResultCache(cliContext.getResultCache(), ValidationResultCache.DEFAULT_MAX_SIZE));
+    }
+    if (cliContext.getFhirpathProfile() != null) {
+      validationEngine.setFhirPathProfiler(new FHIRPathProfiler());
+    }
+    validationEngine.setFhirPathLazyEvaluation(cliContext.isFhirpathLazy());
+    validationEngine.setFhirPathMemoiseLookups(cliContext.isFhirpathMemoise());
     validationEngine.setAllowExampleUrls(cliContext.isAllowExampleUrls());
     StandAloneValidatorFetcher fetcher = new StandAloneValidatorFetcher(validationEngine.getPcm(), validationEngine.getContext(), validationEngine);
     validationEngine.setFetcher(fetcher);
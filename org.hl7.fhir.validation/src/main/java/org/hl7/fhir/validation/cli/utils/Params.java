@@ -23,6 +23,9 @@ public class Params {
   public static final String OUTPUT_SUFFIX = "-outputSuffix";
   public static final String LEVEL = "-level";
   public static final String HTML_OUTPUT = "-html-output";
+  public static final String FHIRPATH_PROFILE = "-fhirpath-profile";
+  public static final String FHIRPATH_LAZY = "-fhirpath-lazy";
+  public static final String FHIRPATH_MEMOISE = "-fhirpath-memoise";
   public static final String PROXY = "-proxy";
 
   public static final String HTTPS_PROXY = "-https-proxy";
@@ -108,6 +111,11 @@ public class Params {
   private static final String WATCH_MODE_PARAM = "-watch-mode";
   private static final String WATCH_SCAN_DELAY = "-watch-scan-delay";
   private static final String WATCH_SETTLE_TIME = "-watch-settle-time";
+  public static final String THREADS = "-threads";
+  public static final String MAX_ERRORS = "-max-errors";
+  public static final String FAIL_FAST = "-fail-fast";
+  public static final String RESULT_CACHE = "-result-cache";
+  public static final String STREAM_BUNDLES = "-stream-bundles";
 
   /**
    * Checks the list of passed in params to see if it contains the passed in param.
@@ -166,6 +174,37 @@ public class Params {
           throw new Error("Specified -html-output without indicating output file");
         else
           cliContext.setHtmlOutput(args[++i]);
+      } else if (args[i].equals(THREADS)) {
+        if (i + 1 == args.length) {
+          throw new Error("Specified -threads without indicating the number of threads");
+        } else {
+          cliContext.setThreads(readInteger(THREADS, args[++i]));
+        }
+      } else if (args[i].equals(MAX_ERRORS)) {
+        if (i + 1 == args.length) {
+          throw new Error("Specified -max-errors without indicating the number of errors");
+        } else {
+          cliContext.setMaxErrors(readInteger(MAX_ERRORS, args[++i]));
+        }
+      } else if (args[i].equals(FAIL_FAST)) {
+        cliContext.setMaxErrors(1);
+      } else if (args[i].equals(RESULT_CACHE)) {
+        if (i + 1 == args.length) {
+          throw new Error("Specified -result-cache without indicating the folder");
+        } else {
+          cliContext.setResultCache(args[++i]);
+        }
+      } else if (args[i].equals(STREAM_BUNDLES)) {
+        cliContext.setStreamBundles(true);
+      } else if (args[i].equals(FHIRPATH_PROFILE)) {
+        if (i + 1 == args.length)
+          throw new Error("Specified -fhirpath-profile without indicating output file");
+        else
+          cliContext.setFhirpathProfile(args[++i]);
+      } else if (args[i].equals(FHIRPATH_LAZY)) {
+        cliContext.setFhirpathLazy(true);
+      } else if (args[i].equals(FHIRPATH_MEMOISE)) {
+        cliContext.setFhirpathMemoise(true);
       } else if (args[i].equals(PROXY)) {
         i++; // ignore next parameter
       } else if (args[i].equals(PROXY_AUTH)) {
@@ -61,7 +61,7 @@ public class CodingsObserver extends BaseValidator {
     }
   }
 
-  public void seeCode(NodeStack stack, Coding c) {
+  public synchronized void seeCode(NodeStack stack, Coding c) {
     list.add(new CodingUsage(stack, c));
     
   }
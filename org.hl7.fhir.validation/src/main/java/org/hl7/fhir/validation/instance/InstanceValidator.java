@@ -48,11 +48,19 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Stack;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nonnull;
 
@@ -62,10 +70,12 @@ import org.apache.commons.lang3.StringUtils;
 import org.fhir.ucum.Decimal;
 import org.hl7.fhir.exceptions.DefinitionException;
 import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.exceptions.PathEngineBudgetException;
 import org.hl7.fhir.exceptions.PathEngineException;
 import org.hl7.fhir.exceptions.TerminologyServiceException;
 import org.hl7.fhir.r5.conformance.profile.ProfileUtilities;
 import org.hl7.fhir.r5.conformance.profile.ProfileUtilities.SourcedChildDefinitions;
+import org.hl7.fhir.r5.context.BaseWorkerContext;
 import org.hl7.fhir.r5.context.ContextUtilities;
 import org.hl7.fhir.r5.context.IWorkerContext;
 import org.hl7.fhir.r5.elementmodel.Element;
@@ -155,7 +165,9 @@ import org.hl7.fhir.r5.terminologies.utilities.ValidationResult;
 import org.hl7.fhir.r5.utils.BuildExtensions;
 import org.hl7.fhir.r5.utils.FHIRLexer.FHIRLexerException;
 import org.hl7.fhir.r5.utils.FHIRPathEngine;
+import org.hl7.fhir.r5.utils.FHIRPathEngine.CompiledExpression;
 import org.hl7.fhir.r5.utils.FHIRPathEngine.IEvaluationContext;
+import org.hl7.fhir.r5.utils.FHIRPathOptimiser;
 import org.hl7.fhir.r5.utils.FHIRPathUtilityClasses.FunctionDetails;
 import org.hl7.fhir.r5.utils.FHIRPathUtilityClasses.TypedElementDefinition;
 import org.hl7.fhir.r5.utils.ResourceUtilities;
@@ -225,8 +237,13 @@ import org.hl7.fhir.validation.instance.utils.ResolvedReference;
 import org.hl7.fhir.validation.instance.utils.ResourceValidationTracker;
 import org.hl7.fhir.validation.instance.utils.StructureDefinitionSorterByUrl;
 import org.hl7.fhir.validation.instance.utils.ValidationContext;
+import org.hl7.fhir.validation.instance.utils.ErrorBudget;
+import org.hl7.fhir.validation.instance.utils.ErrorBudget.ErrorBudgetExhaustedException;
+import org.hl7.fhir.validation.instance.utils.ValidatorDefinitionCache;
 import org.w3c.dom.Document;
 
+import com.google.common.collect.MapMaker;
+
 /**
  * Thinking of using this in a java program? Don't!
  * You should use one of the wrappers instead. Either in HAPI, or use ValidationEngine
@@ -541,11 +558,16 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
 
   }
   private FHIRPathEngine fpe;
+  private FHIRPathOptimiser fpo;
 
   public FHIRPathEngine getFHIRPathEngine() {
     return fpe;
   }
 
+  public FHIRPathOptimiser getFHIRPathOptimiser() {
+    return fpo;
+  }
+
   // configuration items
   private CheckDisplayOption checkDisplay;
   private boolean anyExtensionsAllowed;
@@ -575,8 +597,9 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
 
   // time tracking
   private boolean noBindingMsgSuppressed;
-  private Map<String, Element> fetchCache = new HashMap<>();
-  private HashMap<Element, ResourceValidationTracker> resourceTracker = new HashMap<>();
+  // these are synchronized because bundle entries may be validated in parallel (see bundleEntryThreads) 
+  private Map<String, Element> fetchCache = Collections.synchronizedMap(new HashMap<>());
+  private Map<Element, ResourceValidationTracker> resourceTracker = Collections.synchronizedMap(new HashMap<>());
   private IValidatorResourceFetcher fetcher;
   private IValidationPolicyAdvisor policyAdvisor;
   long time = 0;
@@ -598,7 +621,16 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
   private boolean validateValueSetCodesOnTxServer = true;
   private QuestionnaireMode questionnaireMode;
   private ValidationOptions baseOptions = new ValidationOptions(FhirPublication.R5);
-  private Map<String, CanonicalResourceLookupResult> crLookups = new HashMap<>();
+  private Map<String, CanonicalResourceLookupResult> crLookups = Collections.synchronizedMap(new HashMap<>());
+  private ValidatorDefinitionCache definitionCache = new ValidatorDefinitionCache();
+  // compiled expressions belong to this validator's FHIRPathEngine, so these can't be shared.
+  // The keys are weak (and compared by identity), so invariants the context drops go too
+  private Map<ElementDefinitionConstraintComponent, CompiledExpression> compiledInvariants = new MapMaker().weakKeys().makeMap();
+  private int bundleEntryThreads = 1;
+  private ExecutorService bundleEntryExecutor; // created when first needed, and kept for the next bundle
+  private ThreadLocal<Boolean> checkingBundleEntry = ThreadLocal.withInitial(() -> false);
+  private int maxErrors; // 0 = no limit
+  private ErrorBudget errorBudget; // for the current validation, if there's a limit
   private boolean logProgress;
   private CodingsObserver codingObserver;
   public List<ValidatedFragment> validatedContent;
@@ -614,6 +646,7 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
     this.profileUtilities = new ProfileUtilities(theContext, null, null);
     cu = new ContextUtilities(theContext);
     fpe = new FHIRPathEngine(context);
+    fpo = new FHIRPathOptimiser(fpe);
     validatorServices = new ValidatorHostServices();
     fpe.setHostServices(validatorServices);
     if (theContext.getVersion().startsWith("3.0") || theContext.getVersion().startsWith("1.0"))
@@ -995,6 +1028,27 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
 
     long t = System.nanoTime();
     NodeStack stack = new NodeStack(context, path, element, validationLanguage);
+    errorBudget = maxErrors > 0 ? new ErrorBudget(maxErrors) : null;
+    if (errorBudget != null) {
+      errorBudget.watch(errors);
+    }
+    try {
+      validateAgainstProfiles(appContext, errors, element, profiles, stack);
+    } catch (ErrorBudgetExhaustedException e) {
+      warning(errors, NO_RULE_DATE, IssueType.INCOMPLETE, element.line(), element.col(), stack.getLiteralPath(), false, I18nConstants.VALIDATION_STOPPED_MAX_ERRORS, maxErrors);
+    } finally {
+      if (errorBudget != null) {
+        errorBudget.unwatch();
+      }
+    }
+    errors.removeAll(messagesToRemove);
+    timeTracker.overall(t);
+    if (DEBUG_ELEMENT) {
+      element.printToOutput();
+    }
+  }
+
+  private void validateAgainstProfiles(Object appContext, List<ValidationMessage> errors, Element element, List<StructureDefinition> profiles, NodeStack stack) {
     if (profiles == null || profiles.isEmpty()) {
       validateResource(new ValidationContext(appContext, element), errors, element, element, null, resourceIdRule, stack.resetIds(), null, new ValidationMode(ValidationReason.Validation, ProfileSource.BaseDefinition));
     } else {
@@ -1021,10 +1075,15 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
       checkElementUsage(errors, element, stack);
     }
     codingObserver.finish(errors, stack);
-    errors.removeAll(messagesToRemove);
-    timeTracker.overall(t);
-    if (DEBUG_ELEMENT) {
-      element.printToOutput();
+  }
+
+  /**
+   * if there's a limit on the number of errors, and it's been reached, this stops the validation
+   * (see validate(), where this is caught)
+   */
+  private void checkErrorBudget() {
+    if (errorBudget != null) {
+      errorBudget.check();
     }
   }
 
@@ -1347,6 +1406,7 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
   private boolean checkCodeableConcept(List<ValidationMessage> errors, String path, Element element, StructureDefinition profile, ElementDefinition theElementCntext, NodeStack stack, BooleanHolder bh) {
     boolean checkDisp = true;
     if (!noTerminologyChecks && theElementCntext != null && theElementCntext.hasBinding()) {
+      checkErrorBudget();
       ElementDefinitionBindingComponent binding = theElementCntext.getBinding();
       if (warning(errors, NO_RULE_DATE, IssueType.CODEINVALID, element.line(), element.col(), path, binding != null, I18nConstants.TERMINOLOGY_TX_BINDING_MISSING, path)) {
         if (binding.hasValueSet()) {
@@ -1633,6 +1693,7 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
 
   private boolean checkTerminologyCoding(List<ValidationMessage> errors, String path, Element element, StructureDefinition profile, ElementDefinition theElementCntext, boolean inCodeableConcept, boolean checkDisplay, NodeStack stack, StructureDefinition logical) {
     boolean ok = false;
+    checkErrorBudget();
     Coding c = convertToCoding(element, logical);
     String code = c.getCode();
     String system = c.getSystem();
@@ -1929,6 +1990,7 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
   }
 
   private boolean checkCoding(List<ValidationMessage> errors, String path, Element element, StructureDefinition profile, ElementDefinition theElementCntext, boolean inCodeableConcept, boolean checkDisplay, NodeStack stack) {
+    checkErrorBudget();
     String code = element.getNamedChildValue("code", false);
     String system = element.getNamedChildValue("system", false);
     if (code != null && system == null) {
@@ -3337,6 +3399,7 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
     }
     if (noTerminologyChecks)
       return true;
+    checkErrorBudget();
     
     boolean ok = true;
     String value = element.primitiveValue();
@@ -4720,7 +4783,7 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
     if (!slicer.getSlicing().hasDiscriminator())
       return false; // cannot validate in this case
 
-    ExpressionNode n = (ExpressionNode) ed.getUserData("slice.expression.cache");
+    ExpressionNode n = definitionCache.getSliceExpression(ed);
     if (n == null) {
       long t = System.nanoTime();
       // GG: this approach is flawed because it treats discriminators individually rather than collectively
@@ -4816,7 +4879,7 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
         throw new FHIRException(context.formatMessage(I18nConstants.PROBLEM_PROCESSING_EXPRESSION__IN_PROFILE__PATH__, expression, profile.getVersionedUrl(), path, e.getMessage()));
       }
       timeTracker.fpe(t);
-      ed.setUserData("slice.expression.cache", n);
+      definitionCache.putSliceExpression(ed, n);
     } else {
     }
 
@@ -5561,12 +5624,7 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
   }
 
   private ResourceValidationTracker getResourceTracker(Element element) {
-    ResourceValidationTracker res = resourceTracker.get(element);
-    if (res == null) {
-      res = new ResourceValidationTracker();
-      resourceTracker.put(element, res);
-    }
-    return res;
+    return resourceTracker.computeIfAbsent(element, e -> new ResourceValidationTracker());
   }
 
   private void checkLang(Element resource, NodeStack stack) {
@@ -5841,9 +5899,104 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
   }
 
 
+  /**
+   * Once the references between the entries have been resolved (in start()), the entries in a bundle 
+   * can be validated independently, so they're checked on a pool of threads. Each entry gets its own 
+   * list of messages, and these are added to errors in entry order, so the outcome is the same as 
+   * checking them one at a time
+   */
+  private boolean checkBundleChildrenInParallel(ValidationContext valContext, List<ValidationMessage> errors, StructureDefinition profile, ElementDefinition definition, Element resource, Element element,
+      String actualType, NodeStack stack, boolean inCodeableConcept, boolean checkDisplayInContext, List<ElementInfo> children, String extensionUrl, PercentageTracker pct, ValidationMode mode) {
+    boolean ok = true;
+    stack.synchronizeIds();
+    Map<ElementInfo, Future<Boolean>> entries = new IdentityHashMap<>();
+    Map<ElementInfo, List<ValidationMessage>> entryErrors = new IdentityHashMap<>();
+    ExecutorService executor = getBundleEntryExecutor();
+    try {
+      for (ElementInfo ei : children) {
+        if (ENTRY.equals(ei.getName())) {
+          List<ValidationMessage> list = new ArrayList<>();
+          entryErrors.put(ei, list);
+          // the invariants set the profile on the context, so each entry gets its own 
+          ValidationContext entryContext = valContext.forParallelEntry();
+          entries.put(ei, executor.submit(() -> checkEntryInParallel(entryContext, list, profile, definition, resource, element, actualType, stack, inCodeableConcept, checkDisplayInContext, ei, extensionUrl, pct, mode)));
+        }
+      }
+      for (ElementInfo ei : children) {
+        if (entries.containsKey(ei)) {
+          try {
+            ok = entries.get(ei).get() && ok;
+          } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+              throw (RuntimeException) e.getCause();
+            }
+            throw new FHIRException(e.getCause());
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FHIRException(e);
+          }
+          if (errorBudget != null) {
+            // the errors in the entry were counted on the thread that checked it 
+            errorBudget.count();
+            errors.addAll(entryErrors.get(ei));
+            errorBudget.skip();
+          } else {
+            errors.addAll(entryErrors.get(ei));
+          }
+        } else {
+          ok = checkChild(valContext, errors, profile, definition, resource, element, actualType, stack, inCodeableConcept, checkDisplayInContext, ei, extensionUrl, pct, mode) && ok;
+        }
+      }
+    } finally {
+      for (Future<Boolean> f : entries.values()) {
+        f.cancel(true);
+      }
+    }
+    checkErrorBudget();
+    return ok;
+  }
+
+  private synchronized ExecutorService getBundleEntryExecutor() {
+    if (bundleEntryExecutor == null) {
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(bundleEntryThreads, bundleEntryThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+        Thread t = Executors.defaultThreadFactory().newThread(r);
+        t.setDaemon(true);
+        return t;
+      });
+      // don't keep threads around for a validator that isn't validating bundles any more
+      executor.allowCoreThreadTimeOut(true);
+      bundleEntryExecutor = executor;
+    }
+    return bundleEntryExecutor;
+  }
+
+  private boolean checkEntryInParallel(ValidationContext valContext, List<ValidationMessage> errors, StructureDefinition profile, ElementDefinition definition, Element resource, Element element,
+      String actualType, NodeStack stack, boolean inCodeableConcept, boolean checkDisplayInContext, ElementInfo ei, String extensionUrl, PercentageTracker pct, ValidationMode mode) {
+    // a bundle inside this entry is checked on this thread - waiting on the pool from one of its own threads could deadlock
+    checkingBundleEntry.set(true);
+    try {
+      if (errorBudget == null) {
+        return checkChild(valContext, errors, profile, definition, resource, element, actualType, stack, inCodeableConcept, checkDisplayInContext, ei, extensionUrl, pct, mode);
+      }
+      errorBudget.watch(errors);
+      try {
+        return checkChild(valContext, errors, profile, definition, resource, element, actualType, stack, inCodeableConcept, checkDisplayInContext, ei, extensionUrl, pct, mode);
+      } catch (ErrorBudgetExhaustedException e) {
+        // keep what this entry found; the main thread stops once the entries are merged
+        return false;
+      } finally {
+        errorBudget.count();
+        errorBudget.unwatch();
+      }
+    } finally {
+      checkingBundleEntry.set(false);
+    }
+  }
+
   private boolean validateElement(ValidationContext valContext, List<ValidationMessage> errors, StructureDefinition profile, ElementDefinition definition, StructureDefinition cprofile, ElementDefinition context,
     Element resource, Element element, String actualType, NodeStack stack, boolean inCodeableConcept, boolean checkDisplayInContext, String extensionUrl, PercentageTracker pct, ValidationMode mode) throws FHIRException {
     boolean ok = true;
+    checkErrorBudget();
     
     pct.seeElement(element);
     
@@ -5900,8 +6053,12 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
     // 4. check order if any slices are ordered. (todo)
         
     // 5. inspect each child for validity
-    for (ElementInfo ei : children) {
-      ok = checkChild(valContext, errors, profile, definition, resource, element, actualType, stack, inCodeableConcept, checkDisplayInContext, ei, extensionUrl, pct, mode) && ok;
+    if (bundleEntryThreads > 1 && BUNDLE.equals(element.fhirType()) && element == valContext.getRootResource() && !checkingBundleEntry.get()) {
+      ok = checkBundleChildrenInParallel(valContext, errors, profile, definition, resource, element, actualType, stack, inCodeableConcept, checkDisplayInContext, children, extensionUrl, pct, mode) && ok;
+    } else {
+      for (ElementInfo ei : children) {
+        ok = checkChild(valContext, errors, profile, definition, resource, element, actualType, stack, inCodeableConcept, checkDisplayInContext, ei, extensionUrl, pct, mode) && ok;
+      }
     }
 
     // check type invariants (after we've sliced the children)
@@ -6408,18 +6565,7 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
   }
 
   public void checkMustSupport(StructureDefinition profile, ElementInfo ei) {
-    String usesMustSupport = profile.getUserString("usesMustSupport");
-    if (usesMustSupport == null) {
-      usesMustSupport = "N";
-      for (ElementDefinition pe : profile.getSnapshot().getElement()) {
-        if (pe.getMustSupport()) {
-          usesMustSupport = "Y";
-          break;
-        }
-      }
-      profile.setUserData("usesMustSupport", usesMustSupport);
-    }
-    if (usesMustSupport.equals("Y")) {
+    if (definitionCache.usesMustSupport(profile)) {
       String elementSupported = ei.getElement().getUserString("elementSupported");
       if (elementSupported == null || ei.definition.getMustSupport())
         if (ei.definition.getMustSupport()) {
@@ -6723,6 +6869,7 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
     
     boolean ok = true;
     for (ElementDefinitionConstraintComponent inv : ed.getConstraint()) {
+      checkErrorBudget();
       if (inv.hasExpression() && (!onlyNonInherited || !inv.hasSource() || (!isInheritedProfile(profile, inv.getSource()) && !isInheritedProfile(ed.getType(), inv.getSource())) )) {
         @SuppressWarnings("unchecked")
         Map<String, List<ValidationMessage>> invMap = executionId.equals(element.getUserString(EXECUTION_ID)) ? (Map<String, List<ValidationMessage>>) element.getUserData(EXECUTED_CONSTRAINT_LIST) : null;
@@ -6737,7 +6884,7 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
         if (!invMap.keySet().contains(key)) {
           invErrors = new ArrayList<ValidationMessage>();
           invMap.put(key, invErrors);
-          ok = checkInvariant(valContext, invErrors, path, profile, resource, element, inv) && ok;
+          ok = checkInvariant(valContext, invErrors, path, profile, ed, resource, element, inv) && ok;
         } else {
           invErrors = (ArrayList<ValidationMessage>)invMap.get(key);
         }
@@ -6779,7 +6926,7 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
     return false;
   }
 
-  public boolean checkInvariant(ValidationContext valContext, List<ValidationMessage> errors, String path, StructureDefinition profile, Element resource, Element element, ElementDefinitionConstraintComponent inv) throws FHIRException {
+  public boolean checkInvariant(ValidationContext valContext, List<ValidationMessage> errors, String path, StructureDefinition profile, ElementDefinition ed, Element resource, Element element, ElementDefinitionConstraintComponent inv) throws FHIRException {
     if (IsExemptInvariant(path, element, inv)) {
       return true;
     }
@@ -6787,18 +6934,40 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
     if (debug) {
       System.out.println("inv "+inv.getKey()+" on "+path+" in "+resource.fhirType()+" {{ "+inv.getExpression()+" }}"+time());
     }
-    ExpressionNode n = (ExpressionNode) inv.getUserData("validator.expression.cache");
+    ExpressionNode n = definitionCache.getInvariant(inv);
+    String expr = null;
     if (n == null) {
       long t = System.nanoTime();
       try {
-        String expr = FHIRPathExpressionFixer.fixExpr(inv.getExpression(), inv.getKey(), context.getVersion());
+        expr = FHIRPathExpressionFixer.fixExpr(inv.getExpression(), inv.getKey(), context.getVersion());
         n = fpe.parse(expr);
       } catch (FHIRException e) {
         ok = rule(errors, NO_RULE_DATE, IssueType.INVARIANT, element.line(), element.col(), path, false, I18nConstants.PROBLEM_PROCESSING_EXPRESSION__IN_PROFILE__PATH__, inv.getExpression(), profile.getVersionedUrl(), path, e.getMessage()) && ok;
         return false;
       }
       timeTracker.fpe(t);
-      inv.setUserData("validator.expression.cache", n);
+      definitionCache.putInvariant(inv, n);
+    }
+    CompiledExpression ce = compiledInvariants.get(inv);
+    if (ce == null) {
+      // optimise a separate copy, so that messages still report the invariant as written
+      if (expr == null) {
+        expr = FHIRPathExpressionFixer.fixExpr(inv.getExpression(), inv.getKey(), context.getVersion());
+      }
+      ExpressionNode on = fpe.parse(expr);
+      try {
+        // the optimiser depends on the types that check() works out
+        fpe.check(null, profile.getKind() == StructureDefinitionKind.RESOURCE ? profile.getType() : "DomainResource", ed.getPath(), on);
+        on = fpo.optimise(on);
+      } catch (Exception e) {
+        // can't be checked here, so it's evaluated as written. Any real problem is reported when it's evaluated
+        on = n;
+      }
+      ce = fpe.compile(on);
+      compiledInvariants.put(inv, ce);
+    }
+    if (fpe.getProfiler() != null) {
+      fpe.getProfiler().registerOwner(ce.getExpression(), inv.getExpression(), (inv.hasSource() ? inv.getSource() : profile.getVersionedUrl())+"#"+inv.getKey());
     }
     
     valContext.setProfile(profile);
@@ -6807,9 +6976,13 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
     String msg;
     try {
       long t = System.nanoTime();
-      invOK = fpe.evaluateToBoolean(valContext, resource, valContext.getRootResource(), element, n);
+      invOK = fpe.evaluateToBoolean(valContext, resource, valContext.getRootResource(), element, ce);
       timeTracker.fpe(t);
       msg = fpe.forLog();
+    } catch (PathEngineBudgetException ex) {
+      // too costly to evaluate - that's not a failure of the constraint
+      warning(errors, NO_RULE_DATE, IssueType.TOOCOSTLY, element.line(), element.col(), path, false, I18nConstants.INV_NOT_CHECKED_BUDGET, inv.getKey(), ex.getMessage());
+      return ok;
     } catch (Exception ex) {
       invOK = false;
       msg = ex.getClass().getName()+": "+ex.getMessage();
@@ -7007,7 +7180,12 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
 
   public String reportTimes() {
     String s = String.format("Times (ms): overall = %d:4, tx = %d, sd = %d, load = %d, fpe = %d, spec = %d", timeTracker.getOverall() / 1000000, timeTracker.getTxTime() / 1000000, timeTracker.getSdTime() / 1000000, timeTracker.getLoadTime() / 1000000, timeTracker.getFpeTime() / 1000000, timeTracker.getSpecTime() / 1000000);
+    s = s + ". "+fpe.getLookupStatistics().summary();
+    if (context instanceof BaseWorkerContext && ((BaseWorkerContext) context).getTxCache() != null) {
+      s = s + ". "+((BaseWorkerContext) context).getTxCache().statsSummary();
+    }
     timeTracker.reset();
+    fpe.getLookupStatistics().reset();
     return s;
   }
 
@@ -7037,10 +7215,10 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
           for (ElementDefinitionConstraintComponent inv : ed.getConstraint()) {
             if (inv.hasExpression()) {
               try {
-                ExpressionNode n = (ExpressionNode) inv.getUserData("validator.expression.cache");
+                ExpressionNode n = definitionCache.getInvariant(inv);
                 if (n == null) {
                   n = fpe.parse(FHIRPathExpressionFixer.fixExpr(inv.getExpression(), inv.getKey(), context.getVersion()));
-                  inv.setUserData("validator.expression.cache", n);
+                  definitionCache.putInvariant(inv, n);
                 }
                 fpe.check(null, sd.getKind() == StructureDefinitionKind.RESOURCE ? sd.getType() : "DomainResource", ed.getPath(), n);
               } catch (Exception e) {
@@ -7281,6 +7459,47 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
     baseOptions.setDisplayWarningMode(displayWarnings);
   }
 
+  public int getBundleEntryThreads() {
+    return bundleEntryThreads;
+  }
+
+  /**
+   * validate the entries of a bundle on this many threads at once (default 1). Only applies to the 
+   * bundle that is being validated, not bundles inside it
+   */
+  public synchronized void setBundleEntryThreads(int bundleEntryThreads) {
+    if (bundleEntryExecutor != null && bundleEntryThreads != this.bundleEntryThreads) {
+      bundleEntryExecutor.shutdown();
+      bundleEntryExecutor = null;
+    }
+    this.bundleEntryThreads = bundleEntryThreads;
+  }
+
+  public int getMaxErrors() {
+    return maxErrors;
+  }
+
+  /**
+   * stop validating once this many errors have been found (0, the default, means no limit). When
+   * validation stops, the remaining element, invariant and terminology checks are skipped, and a
+   * warning says that the content was not completely checked
+   */
+  public void setMaxErrors(int maxErrors) {
+    this.maxErrors = maxErrors;
+  }
+
+  public ValidatorDefinitionCache getDefinitionCache() {
+    return definitionCache;
+  }
+
+  /**
+   * share the cache of what's been worked out about the definitions with other validators 
+   * that use the same context (see InstanceValidatorPool)
+   */
+  public void setDefinitionCache(ValidatorDefinitionCache definitionCache) {
+    this.definitionCache = definitionCache;
+  }
+
   public boolean isCheckIPSCodes() {
     return codingObserver.isCheckIPSCodes();
   }
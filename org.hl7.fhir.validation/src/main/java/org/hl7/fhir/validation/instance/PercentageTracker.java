@@ -33,7 +33,7 @@ public class PercentageTracker {
     return url;
   }
 
-  public void seeElement(Element e) {
+  public synchronized void seeElement(Element e) {
     if (e.getInstanceId() != instance) {
       e.setInstanceId(instance);
       current++;
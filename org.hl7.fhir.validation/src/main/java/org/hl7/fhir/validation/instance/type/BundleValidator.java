@@ -3,6 +3,7 @@ package org.hl7.fhir.validation.instance.type;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -620,12 +621,14 @@ public class BundleValidator extends BaseValidator {
   private boolean checkAllInterlinked(List<ValidationMessage> errors, List<Element> entries, NodeStack stack, Element bundle, boolean isMessage) {
     boolean ok = true;
     List<EntrySummary> entryList = new ArrayList<>();
+    Map<Element, EntrySummary> entryMap = new IdentityHashMap<>();
     int i = 0;
     for (Element entry : entries) {
       Element r = entry.getNamedChild(RESOURCE, false);
       if (r != null) {
         EntrySummary e = new EntrySummary(i, entry, r);
         entryList.add(e);
+        entryMap.put(entry, e);
       }
       i++;
     }
@@ -635,7 +638,7 @@ public class BundleValidator extends BaseValidator {
       for (StringWithSource ref : references) {
         Element tgt = resolveInBundle(bundle, entries, ref.getReference(), e.getEntry().getChildValue(FULL_URL), e.getResource().fhirType(), e.getResource().getIdBase(), stack, errors, ref.getSource().getPath(), ref.getSource(), ref.isWarning() || true);
         if (tgt != null) { 
-          EntrySummary t = entryForTarget(entryList, tgt); 
+          EntrySummary t = entryMap.get(tgt); 
           if (t != null ) { 
             if (t != e) { 
               e.getTargets().add(t); 
@@ -776,15 +779,6 @@ public class BundleValidator extends BaseValidator {
     }
   }
 
-  private EntrySummary entryForTarget(List<EntrySummary> entryList, Element tgt) {
-    for (EntrySummary e : entryList) {
-      if (e.getEntry() == tgt) {
-        return e;
-      }
-    }
-    return null;
-  }
-
   private void visitLinked(Set<EntrySummary> visited, EntrySummary t) {
     if (!visited.contains(t)) {
       visited.add(t);
@@ -273,7 +273,7 @@ public class ConceptMapValidator  extends BaseValidator {
       NodeStack cstack = stack.push(code, -1, null, null);
       if (ctxt.hasSourceCS()) {
         String c = code.getValue();
-        ConceptDefinitionComponent cd = CodeSystemUtilities.getCode(ctxt.source.cs, c);
+        ConceptDefinitionComponent cd = CodeSystemUtilities.findCode(ctxt.source.cs, c);
         if (warningOrError(ctxt.source.cs.getContent() == CodeSystemContentMode.COMPLETE, errors, "2023-03-05", IssueType.REQUIRED, code.line(), code.col(), cstack.getLiteralPath(), cd != null, I18nConstants.CONCEPTMAP_GROUP_SOURCE_CODE_INVALID, c, ctxt.source.cs.getVersionedUrl())) {
           Element display = src.getNamedChild("display", false);
           if (display != null) {
@@ -310,7 +310,7 @@ public class ConceptMapValidator  extends BaseValidator {
       NodeStack cstack = stack.push(code, -1, null, null);
       if (ctxt.hasTargetCS()) {
         String c = code.getValue();
-        ConceptDefinitionComponent cd = CodeSystemUtilities.getCode(ctxt.target.cs, c);
+        ConceptDefinitionComponent cd = CodeSystemUtilities.findCode(ctxt.target.cs, c);
         if (warningOrError(ctxt.target.cs.getContent() == CodeSystemContentMode.COMPLETE, errors, "2023-03-05", IssueType.REQUIRED, code.line(), code.col(), cstack.getLiteralPath(), cd != null, I18nConstants.CONCEPTMAP_GROUP_TARGET_CODE_INVALID, c, ctxt.target.cs.getVersionedUrl())) {
           Element display = tgt.getNamedChild("display", false);
           if (display != null) {          
@@ -366,7 +366,7 @@ public class ConceptMapValidator  extends BaseValidator {
         if (valueE.fhirType().equals("code")) {
           if (defn.getCs() != null) {
             ok = rule(errors, "2023-03-05", IssueType.REQUIRED, codeE.line(), codeE.col(), stackV.getLiteralPath(), 
-                CodeSystemUtilities.findCode(defn.getCs().getConcept(), valueE.getValue()) != null, I18nConstants.CONCEPTMAP_GROUP_TARGET_PROPERTY_CODE_INVALID, valueE.getValue(), defn.getCs().getVersionedUrl()) && ok;
+                CodeSystemUtilities.findCode(defn.getCs(), valueE.getValue()) != null, I18nConstants.CONCEPTMAP_GROUP_TARGET_PROPERTY_CODE_INVALID, valueE.getValue(), defn.getCs().getVersionedUrl()) && ok;
           } else {
             ok = false;
           }
@@ -0,0 +1,102 @@
+package org.hl7.fhir.validation.instance.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.r5.elementmodel.Element;
+
+/**
+ * An index of the entries in a bundle, by fullUrl and by type/id, so that references
+ * between entries can be resolved without scanning the entries each time.
+ *
+ * The index is built once for each bundle (the first time it's asked for) and kept in
+ * the bundle's user data. The validator doesn't change the entries of the bundles it
+ * validates, so the index doesn't need to be maintained
+ */
+public class BundleIndex {
+
+  private static final String USER_DATA_KEY = "validator.bundle.index";
+
+  private final List<Element> entries = new ArrayList<>();
+  private final Map<Element, Integer> positions = new IdentityHashMap<>();
+  private final Map<Element, Element> entryForResource = new IdentityHashMap<>();
+  private final Map<String, List<Element>> byFullUrl = new HashMap<>();
+  private final Map<String, List<Element>> byTypeAndId = new HashMap<>();
+
+  private BundleIndex(Element bundle) {
+    bundle.getNamedChildren("entry", entries);
+    for (int i = 0; i < entries.size(); i++) {
+      Element entry = entries.get(i);
+      positions.put(entry, i);
+      // entries with no fullUrl are indexed under null
+      add(byFullUrl, entry.getNamedChildValue("fullUrl", false), entry);
+      Element resource = entry.getNamedChild("resource", false);
+      if (resource != null) {
+        entryForResource.put(resource, entry);
+        String id = resource.getNamedChildValue("id", false);
+        if (id != null) {
+          add(byTypeAndId, resource.fhirType()+"/"+id, entry);
+        }
+      }
+    }
+  }
+
+  private void add(Map<String, List<Element>> map, String key, Element entry) {
+    List<Element> list = map.get(key);
+    if (list == null) {
+      list = new ArrayList<>();
+      map.put(key, list);
+    }
+    list.add(entry);
+  }
+
+  /**
+   * @return the index for the bundle, building it if this is the first time it's been asked for
+   */
+  public static BundleIndex forBundle(Element bundle) {
+    synchronized (bundle) {
+      BundleIndex index = (BundleIndex) bundle.getUserData(USER_DATA_KEY);
+      if (index == null) {
+        index = new BundleIndex(bundle);
+        bundle.setUserData(USER_DATA_KEY, index);
+      }
+      return index;
+    }
+  }
+
+  public List<Element> getEntries() {
+    return entries;
+  }
+
+  /**
+   * @return the entries with the given fullUrl, or null if there aren't any
+   */
+  public List<Element> getByFullUrl(String fullUrl) {
+    return byFullUrl.get(fullUrl);
+  }
+
+  /**
+   * @return the entries with a resource with the given type and id, or null if there aren't any
+   */
+  public List<Element> getByTypeAndId(String type, String id) {
+    return byTypeAndId.get(type+"/"+id);
+  }
+
+  /**
+   * @return the entry that contains the resource, or null if the resource isn't directly in an entry
+   */
+  public Element getEntryForResource(Element resource) {
+    return entryForResource.get(resource);
+  }
+
+  /**
+   * @return the position of the entry in the bundle, or -1 if it's not an entry in this bundle
+   */
+  public int indexOf(Element entry) {
+    Integer i = positions.get(entry);
+    return i == null ? -1 : i;
+  }
+}
@@ -0,0 +1,115 @@
+package org.hl7.fhir.validation.instance.utils;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hl7.fhir.utilities.validation.ValidationMessage;
+
+/**
+ * Counts the errors that have been raised while validating a resource, so that the
+ * validator can stop once there's enough of them to know that the resource is not
+ * acceptable.
+ *
+ * The validator puts lots of messages in working lists that are thrown away (e.g. when
+ * working out which slice an element belongs to) so only the errors in the lists that
+ * are being watched are counted. Each thread watches its own list (bundle entries may
+ * be validated in parallel), and the count is shared between them.
+ *
+ * The lists are scanned from where the last count left off, so counting is cheap
+ * enough to do at every element
+ */
+public class ErrorBudget {
+
+  /**
+   * Thrown at the next check point once the budget is used up. This unwinds the
+   * validator back to the entry point, where the messages found so far are reported
+   */
+  public static class ErrorBudgetExhaustedException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ErrorBudgetExhaustedException(int limit) {
+      super("Validation stopped after "+limit+" error(s)");
+    }
+  }
+
+  private static class Watch {
+    private final List<ValidationMessage> list;
+    private int scanned;
+
+    private Watch(List<ValidationMessage> list) {
+      this.list = list;
+    }
+  }
+
+  private final int limit;
+  private final AtomicInteger count = new AtomicInteger();
+  private final ThreadLocal<Watch> watch = new ThreadLocal<>();
+
+  /**
+   * @param limit the number of errors after which validation stops (must be at least 1)
+   */
+  public ErrorBudget(int limit) {
+    super();
+    this.limit = limit;
+  }
+
+  public int getLimit() {
+    return limit;
+  }
+
+  /**
+   * count the errors in the list (including any that are already there) for the rest of the validation on this thread
+   */
+  public void watch(List<ValidationMessage> list) {
+    watch.set(new Watch(list));
+  }
+
+  public void unwatch() {
+    watch.remove();
+  }
+
+  /**
+   * note that everything currently in this thread's list has already been counted
+   * (e.g. because it was merged in from a list that was watched by another thread)
+   */
+  public void skip() {
+    Watch w = watch.get();
+    if (w != null) {
+      w.scanned = w.list.size();
+    }
+  }
+
+  /**
+   * @return the number of errors counted so far, on all threads
+   */
+  public int count() {
+    Watch w = watch.get();
+    if (w != null) {
+      int n = 0;
+      while (w.scanned < w.list.size()) {
+        if (w.list.get(w.scanned).isError()) {
+          n++;
+        }
+        w.scanned++;
+      }
+      if (n > 0) {
+        return count.addAndGet(n);
+      }
+    }
+    return count.get();
+  }
+
+  public boolean isExhausted() {
+    return count() >= limit;
+  }
+
+  /**
+   * @throws ErrorBudgetExhaustedException if the limit has been reached
+   */
+  public void check() {
+    if (isExhausted()) {
+      throw new ErrorBudgetExhaustedException(limit);
+    }
+  }
+}
@@ -1,6 +1,7 @@
 package org.hl7.fhir.validation.instance.utils;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -187,6 +188,13 @@ public class NodeStack {
     resetPoint  = true;
     return this;
   }
+  /**
+   * make the ids safe to update from several threads, for when the children of this node are validated in parallel
+   */
+  public void synchronizeIds() {
+    ids = Collections.synchronizedMap(ids);
+  }
+
   public Map<String, Element> getIds() {
     return ids;
   }
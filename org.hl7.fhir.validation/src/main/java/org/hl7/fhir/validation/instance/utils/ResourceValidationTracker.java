@@ -1,6 +1,7 @@
 package org.hl7.fhir.validation.instance.utils;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -28,7 +29,8 @@ import org.hl7.fhir.utilities.validation.ValidationMessage;
  * @author graha
  */
 public class ResourceValidationTracker {
-    private Map<String, List<ValidationMessage>> validations = new HashMap<>();
+    // synchronized because the entries of a bundle may be validated in parallel
+    private Map<String, List<ValidationMessage>> validations = Collections.synchronizedMap(new HashMap<>());
 
     public void startValidating(StructureDefinition sd) {
         validations.put(sd.getUrl(), new ArrayList<ValidationMessage>());
@@ -126,7 +126,9 @@ public class ValidationContext {
 
     public void sliceNotes(String url, List<ValidationMessage> record) {
       if (sliceRecords != null) {  
-        sliceRecords.put(url, record);
+        synchronized (sliceRecords) {
+          sliceRecords.put(url, record);
+        }
       }
     }
 
@@ -152,6 +154,22 @@ public class ValidationContext {
         return res;
     }
 
+    /**
+     * a copy for checking one of the entries of a bundle on another thread. Slice notes still go to the same records
+     */
+    public ValidationContext forParallelEntry() {
+        ValidationContext res = new ValidationContext(appContext);
+        res.resource = resource;
+        res.rootResource = rootResource;
+        res.groupingResource = groupingResource;
+        res.profile = profile;
+        res.checkSpecials = checkSpecials;
+        res.version = version;
+        res.sliceRecords = sliceRecords;
+        res.dump("forParallelEntry");
+        return res;
+    }
+
     public ValidationContext forProfile(StructureDefinition profile) {
         ValidationContext res = new ValidationContext(appContext);
         res.resource = resource;
@@ -0,0 +1,75 @@
+package org.hl7.fhir.validation.instance.utils;
+
+import java.util.Map;
+
+import org.hl7.fhir.r5.model.ElementDefinition;
+import org.hl7.fhir.r5.model.ElementDefinition.ElementDefinitionConstraintComponent;
+import org.hl7.fhir.r5.model.ExpressionNode;
+import org.hl7.fhir.r5.model.StructureDefinition;
+
+import com.google.common.collect.MapMaker;
+
+/**
+ * What the validator works out about the definitions it uses (the parsed invariants and
+ * slicing expressions, whether a profile uses must-support) that is worth keeping from one
+ * validation to the next.
+ *
+ * These used to be kept in the user data of the definitions, but the definitions belong
+ * to the context, and the user data isn't safe to update from more than one thread. One
+ * of these can be shared by any number of InstanceValidators that are using the same
+ * context at the same time.
+ *
+ * The definitions are keyed by identity, so when a definition is replaced in the context,
+ * the new one gets new entries. The keys are weak, so the entries for definitions that the
+ * context has dropped go too. The maps are concurrent, so the validators don't wait for
+ * each other to read them
+ */
+public class ValidatorDefinitionCache {
+
+  // weak keys from MapMaker are compared by identity
+  private final Map<ElementDefinitionConstraintComponent, ExpressionNode> invariants = new MapMaker().weakKeys().makeMap();
+  private final Map<ElementDefinition, ExpressionNode> slices = new MapMaker().weakKeys().makeMap();
+  private final Map<StructureDefinition, Boolean> mustSupport = new MapMaker().weakKeys().makeMap();
+
+  /**
+   * @return the parsed expression for the invariant, or null if it hasn't been parsed yet
+   */
+  public ExpressionNode getInvariant(ElementDefinitionConstraintComponent inv) {
+    return invariants.get(inv);
+  }
+
+  public void putInvariant(ElementDefinitionConstraintComponent inv, ExpressionNode n) {
+    invariants.put(inv, n);
+  }
+
+  /**
+   * @return the parsed expression that decides whether an element matches the slice, or null if it hasn't been worked out yet
+   */
+  public ExpressionNode getSliceExpression(ElementDefinition ed) {
+    return slices.get(ed);
+  }
+
+  public void putSliceExpression(ElementDefinition ed, ExpressionNode n) {
+    slices.put(ed, n);
+  }
+
+  /**
+   * @return true if any element in the snapshot of the profile is marked as must-support
+   */
+  public boolean usesMustSupport(StructureDefinition profile) {
+    return mustSupport.computeIfAbsent(profile, sd -> {
+      for (ElementDefinition pe : sd.getSnapshot().getElement()) {
+        if (pe.getMustSupport()) {
+          return true;
+        }
+      }
+      return false;
+    });
+  }
+
+  public void clear() {
+    invariants.clear();
+    slices.clear();
+    mustSupport.clear();
+  }
+}
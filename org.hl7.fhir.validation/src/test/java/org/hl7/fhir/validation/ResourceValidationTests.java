@@ -4,14 +4,31 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 import org.hl7.fhir.r5.context.IWorkerContext;
+import org.hl7.fhir.r5.elementmodel.Manager.FhirFormat;
 import org.hl7.fhir.r5.formats.XmlParser;
+import org.hl7.fhir.r5.model.Bundle;
+import org.hl7.fhir.r5.model.Bundle.BundleType;
+import org.hl7.fhir.r5.model.Condition;
+import org.hl7.fhir.r5.model.Encounter;
+import org.hl7.fhir.r5.model.Enumerations.EncounterStatus;
+import org.hl7.fhir.r5.model.Enumerations.ObservationStatus;
+import org.hl7.fhir.r5.model.Observation;
+import org.hl7.fhir.r5.model.Patient;
+import org.hl7.fhir.r5.model.Reference;
 import org.hl7.fhir.r5.model.Resource;
 import org.hl7.fhir.r5.test.utils.TestingUtilities;
 import org.hl7.fhir.utilities.FhirPublication;
+import org.hl7.fhir.utilities.Utilities;
+import org.hl7.fhir.utilities.i18n.I18nConstants;
 import org.hl7.fhir.utilities.settings.FhirSettings;
 import org.hl7.fhir.utilities.validation.ValidationMessage;
+import org.hl7.fhir.utilities.validation.ValidationMessage.IssueSeverity;
+import org.hl7.fhir.utilities.validation.ValidationMessage.IssueType;
+import org.hl7.fhir.utilities.validation.ValidationMessage.Source;
 import org.hl7.fhir.validation.instance.InstanceValidator;
 import org.hl7.fhir.validation.tests.utilities.TestUtilities;
 import org.junit.jupiter.api.Assertions;
@@ -25,7 +42,7 @@ public class ResourceValidationTests {
   private static InstanceValidator val;
 
 
-  private void runTest(String filename) throws IOException, FileNotFoundException, Exception {
+  private void init() throws Exception {
     TestingUtilities.injectCorePackageLoader();
     if (val == null) {
       ctxt = TestingUtilities.getSharedWorkerContext();
@@ -33,6 +50,10 @@ public class ResourceValidationTests {
       val = engine.getValidator(null);
       val.setDebug(false);
     }
+  }
+
+  private void runTest(String filename) throws IOException, FileNotFoundException, Exception {
+    init();
     List<ValidationMessage> errors = new ArrayList<>();
     Resource res = (Resource) new XmlParser().parse(TestingUtilities.loadTestResourceStream("r5", filename));
     val.validate(val, errors, res);
@@ -122,5 +143,188 @@ public class ResourceValidationTests {
     runTest("codesystem-example.xml");
   }
 
+  @Test
+  public void testValidatorPool() throws Exception {
+    init();
+    InstanceValidatorPool pool = new InstanceValidatorPool(engine, FhirFormat.JSON, 1);
+    InstanceValidator v1 = pool.acquire();
+    InstanceValidator v2 = pool.acquire();
+    Assertions.assertNotSame(v1, v2);
+    Assertions.assertEquals(2, pool.getCreated());
+    Assertions.assertSame(pool.getDefinitionCache(), v1.getDefinitionCache());
+    Assertions.assertSame(pool.getDefinitionCache(), v2.getDefinitionCache());
+
+    // only one is kept for reuse
+    pool.release(v1);
+    pool.release(v2);
+    Assertions.assertSame(v1, pool.acquire());
+    InstanceValidator v3 = pool.acquire();
+    Assertions.assertNotSame(v1, v3);
+    Assertions.assertNotSame(v2, v3);
+    Assertions.assertEquals(3, pool.getCreated());
+    pool.release(v3);
+    Assertions.assertSame(v3, pool.acquire());
+  }
+
+  @Test
+  public void testLazyMessages() throws Exception {
+    init();
+    List<ValidationMessage> errors = new ArrayList<>();
+    val.warning(errors, BaseValidator.NO_RULE_DATE, IssueType.BUSINESSRULE, 1, 2, "Patient.id", false, I18nConstants.DUPLICATE_ID, "p1");
+    val.warningOrError(true, errors, BaseValidator.NO_RULE_DATE, IssueType.BUSINESSRULE, 1, 2, "Patient.id", false, I18nConstants.DUPLICATE_ID, "p1");
+    val.hintOrError(false, errors, BaseValidator.NO_RULE_DATE, IssueType.BUSINESSRULE, 1, 2, "Patient.id", false, I18nConstants.DUPLICATE_ID, "p1");
+    val.txWarning(errors, BaseValidator.NO_RULE_DATE, null, IssueType.BUSINESSRULE, 1, 2, "Patient.id", false, I18nConstants.DUPLICATE_ID, "p1");
+    Assertions.assertEquals(4, errors.size());
+    String text = val.getContext().formatMessage(I18nConstants.DUPLICATE_ID, "p1");
+    ValidationMessage eager = new ValidationMessage(Source.InstanceValidator, IssueType.BUSINESSRULE, 1, 2, "Patient.id", text, IssueSeverity.WARNING);
+    for (ValidationMessage vm : errors) {
+      Assertions.assertEquals(eager, vm);
+      Assertions.assertEquals(text, vm.getMessage());
+    }
+    Assertions.assertEquals(I18nConstants.DUPLICATE_ID, errors.get(3).getMessageId());
+  }
+
+  @Test
+  public void testSuppressedMessageIsNotFormatted() throws Exception {
+    init();
+    AtomicInteger formatted = new AtomicInteger();
+    InstanceValidator v = new InstanceValidator(val.getContext(), null, null) {
+      @Override
+      protected Supplier<String> lazyFormat(String theMessage, Object... theMessageArguments) {
+        return counting(formatted, theMessage, super.lazyFormat(theMessage, theMessageArguments));
+      }
+
+      @Override
+      protected Supplier<String> lazyFormatPlural(Integer num, String theMessage, Object... theMessageArguments) {
+        return counting(formatted, theMessage, super.lazyFormatPlural(num, theMessage, theMessageArguments));
+      }
+    };
+    v.getValidationControl().put(I18nConstants.VALIDATION_VAL_PROFILE_MINIMUM, v.new ValidationControl(false, null));
+    v.getValidationControl().put(I18nConstants.DUPLICATE_ID, v.new ValidationControl(false, null));
+
+    // the missing status is reported through rulePlural, and switched off
+    Observation obs = new Observation();
+    obs.getCode().setText("test");
+    List<ValidationMessage> errors = new ArrayList<>();
+    v.validate(v, errors, obs);
+    for (ValidationMessage vm : errors) {
+      Assertions.assertNotEquals(I18nConstants.VALIDATION_VAL_PROFILE_MINIMUM, vm.getMessageId());
+    }
+    v.warning(errors, BaseValidator.NO_RULE_DATE, IssueType.BUSINESSRULE, 1, 2, "Patient.id", false, I18nConstants.DUPLICATE_ID, "p1");
+    v.txWarning(errors, BaseValidator.NO_RULE_DATE, null, IssueType.BUSINESSRULE, 1, 2, "Patient.id", false, I18nConstants.DUPLICATE_ID, "p1");
+    Assertions.assertEquals(0, formatted.get());
+
+    // once it's switched back on, it's formatted when it's read
+    v.getValidationControl().remove(I18nConstants.DUPLICATE_ID);
+    errors.clear();
+    v.warning(errors, BaseValidator.NO_RULE_DATE, IssueType.BUSINESSRULE, 1, 2, "Patient.id", false, I18nConstants.DUPLICATE_ID, "p1");
+    Assertions.assertEquals(1, errors.size());
+    Assertions.assertEquals(0, formatted.get());
+    errors.get(0).getMessage();
+    Assertions.assertEquals(1, formatted.get());
+  }
+
+  /**
+   * counts how often the suppressed messages are formatted
+   */
+  private Supplier<String> counting(AtomicInteger formatted, String theMessage, Supplier<String> s) {
+    if (!Utilities.existsInList(theMessage, I18nConstants.VALIDATION_VAL_PROFILE_MINIMUM, I18nConstants.DUPLICATE_ID)) {
+      return s;
+    }
+    return () -> {
+      formatted.incrementAndGet();
+      return s.get();
+    };
+  }
+
+  @Test
+  public void testBundleEntriesInParallel() throws Exception {
+    init();
+    Bundle bnd = new Bundle();
+    bnd.setType(BundleType.COLLECTION);
+    for (int i = 0; i < 20; i++) {
+      Patient pat = new Patient();
+      pat.setId("p"+i);
+      pat.addName().setFamily("Family"+i);
+      bnd.addEntry().setFullUrl("http://example.org/fhir/Patient/p"+i).setResource(pat);
+      Observation obs = new Observation();
+      obs.setId("o"+i);
+      obs.getCode().setText("test");
+      if (i % 3 != 0) {
+        obs.setStatus(ObservationStatus.FINAL); // otherwise, an error for the missing status
+      }
+      obs.setSubject(new Reference(i % 4 == 0 ? "Patient/missing"+i : "Patient/p"+i));
+      bnd.addEntry().setFullUrl("http://example.org/fhir/Observation/o"+i).setResource(obs);
+    }
+    List<String> sequential = validateBundle(bnd, 1);
+    List<String> parallel = validateBundle(bnd, 4);
+    Assertions.assertFalse(sequential.isEmpty());
+    Assertions.assertEquals(sequential, parallel);
+    // and again, on the same threads
+    Assertions.assertEquals(sequential, validateBundle(bnd, 4));
+  }
+
+  @Test
+  public void testLargeBundleInParallel() throws Exception {
+    init();
+    Bundle bnd = new Bundle();
+    bnd.setType(BundleType.COLLECTION);
+    for (int i = 0; i < 50; i++) {
+      Patient pat = new Patient();
+      pat.setId("p"+i);
+      pat.addName().setFamily("Family"+i);
+      bnd.addEntry().setFullUrl("http://example.org/fhir/Patient/p"+i).setResource(pat);
+      Observation obs = new Observation();
+      obs.setId("o"+i);
+      obs.getCode().setText("test");
+      if (i % 3 != 0) {
+        obs.setStatus(ObservationStatus.FINAL);
+      }
+      obs.setSubject(new Reference("Patient/p"+i));
+      bnd.addEntry().setFullUrl("http://example.org/fhir/Observation/o"+i).setResource(obs);
+      Condition cond = new Condition();
+      cond.setId("c"+i);
+      cond.getCode().setText("test");
+      if (i % 5 != 0) {
+        cond.setSubject(new Reference("Patient/p"+i)); // otherwise, an error for the missing subject
+      }
+      bnd.addEntry().setFullUrl("http://example.org/fhir/Condition/c"+i).setResource(cond);
+      Encounter enc = new Encounter();
+      enc.setId("e"+i);
+      if (i % 2 == 0) {
+        enc.setStatus(EncounterStatus.COMPLETED);
+      }
+      enc.setSubject(new Reference(i % 7 == 0 ? "Patient/missing"+i : "Patient/p"+i));
+      bnd.addEntry().setFullUrl("http://example.org/fhir/Encounter/e"+i).setResource(enc);
+    }
+    // a new validator, so the entry threads start with cold child map and expression caches
+    InstanceValidator fresh = engine.getValidator(null);
+    fresh.setDebug(false);
+    List<String> parallel = validateBundle(fresh, bnd, 8);
+    List<String> sequential = validateBundle(fresh, bnd, 1);
+    Assertions.assertFalse(sequential.isEmpty());
+    Assertions.assertEquals(sequential, parallel);
+  }
+
+  private List<String> validateBundle(Bundle bnd, int threads) throws Exception {
+    return validateBundle(val, bnd, threads);
+  }
+
+  private List<String> validateBundle(InstanceValidator val, Bundle bnd, int threads) throws Exception {
+    int t = val.getBundleEntryThreads();
+    val.setBundleEntryThreads(threads);
+    try {
+      List<ValidationMessage> errors = new ArrayList<>();
+      val.validate(val, errors, bnd);
+      List<String> res = new ArrayList<>();
+      for (ValidationMessage vm : errors) {
+        res.add(vm.getLevel()+" "+vm.getLocation()+": "+vm.getMessage());
+      }
+      return res;
+    } finally {
+      val.setBundleEntryThreads(t);
+    }
+  }
+
   
 }
@@ -19,6 +19,16 @@ public class ParamsTests {
     assertEquals(Locale.GERMAN, cliContext.getLocale());
   }
 
+  @Test
+  void testFhirPathOptions() throws Exception {
+    CliContext cliContext = Params.loadCliContext(new String[]{});
+    Assertions.assertFalse(cliContext.isFhirpathLazy());
+    Assertions.assertFalse(cliContext.isFhirpathMemoise());
+    cliContext = Params.loadCliContext(new String[]{"-fhirpath-lazy", "-fhirpath-memoise"});
+    Assertions.assertTrue(cliContext.isFhirpathLazy());
+    Assertions.assertTrue(cliContext.isFhirpathMemoise());
+  }
+
   @Test
   void testFhirSettingsFile() throws Exception {
     File tempFile = Files.createTempFile("fhir-settings", "json").toFile();
@@ -0,0 +1,120 @@
+package org.hl7.fhir.validation.instance.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.r5.model.Bundle;
+import org.hl7.fhir.r5.model.Bundle.BundleType;
+import org.hl7.fhir.r5.model.Observation;
+import org.hl7.fhir.r5.test.utils.TestingUtilities;
+import org.hl7.fhir.utilities.FhirPublication;
+import org.hl7.fhir.utilities.i18n.I18nConstants;
+import org.hl7.fhir.utilities.settings.FhirSettings;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
+import org.hl7.fhir.utilities.validation.ValidationMessage.IssueSeverity;
+import org.hl7.fhir.utilities.validation.ValidationMessage.IssueType;
+import org.hl7.fhir.utilities.validation.ValidationMessage.Source;
+import org.hl7.fhir.validation.ValidationEngine;
+import org.hl7.fhir.validation.instance.InstanceValidator;
+import org.hl7.fhir.validation.instance.utils.ErrorBudget.ErrorBudgetExhaustedException;
+import org.hl7.fhir.validation.tests.utilities.TestUtilities;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class ErrorBudgetTests {
+
+  private static InstanceValidator val;
+
+  private void init() throws Exception {
+    TestingUtilities.injectCorePackageLoader();
+    if (val == null) {
+      ValidationEngine engine = TestUtilities.getValidationEngine("hl7.fhir.r5.core#5.0.0", FhirSettings.getTxFhirDevelopment(), null, FhirPublication.R5, true, "5.0.0");
+      val = engine.getValidator(null);
+      val.setDebug(false);
+    }
+  }
+
+  @Test
+  public void testMaxErrors() throws Exception {
+    init();
+    Bundle bnd = new Bundle();
+    bnd.setType(BundleType.COLLECTION);
+    for (int i = 0; i < 20; i++) {
+      Observation obs = new Observation();
+      obs.setId("o"+i);
+      obs.getCode().setText("test"); // and no status, which is an error
+      bnd.addEntry().setFullUrl("http://example.org/fhir/Observation/o"+i).setResource(obs);
+    }
+    Assertions.assertEquals(20, countErrors(validateWithMaxErrors(bnd, 0, 1)));
+
+    // stops at the first error
+    List<ValidationMessage> errors = validateWithMaxErrors(bnd, 1, 1);
+    Assertions.assertEquals(1, countErrors(errors));
+    Assertions.assertEquals(I18nConstants.VALIDATION_STOPPED_MAX_ERRORS, errors.get(errors.size() - 1).getMessageId());
+
+    // the entries share the count when they are checked in parallel, so only the entries that are 
+    // already being checked when the limit is reached can add more
+    errors = validateWithMaxErrors(bnd, 2, 4);
+    Assertions.assertTrue(countErrors(errors) >= 2);
+    Assertions.assertTrue(countErrors(errors) <= 2 + 4 - 1, "errors: "+countErrors(errors));
+    Assertions.assertEquals(I18nConstants.VALIDATION_STOPPED_MAX_ERRORS, errors.get(errors.size() - 1).getMessageId());
+  }
+
+  @Test
+  public void testOnlyCountsWatchedList() {
+    ErrorBudget budget = new ErrorBudget(2);
+    List<ValidationMessage> errors = new ArrayList<>();
+    // e.g. the messages from checking an element against a slice it turns out not to be in
+    List<ValidationMessage> scratch = new ArrayList<>();
+    budget.watch(errors);
+    try {
+      scratch.add(makeMessage(IssueSeverity.ERROR));
+      scratch.add(makeMessage(IssueSeverity.ERROR));
+      errors.add(makeMessage(IssueSeverity.WARNING));
+      Assertions.assertEquals(0, budget.count());
+      errors.add(makeMessage(IssueSeverity.ERROR));
+      budget.check();
+      Assertions.assertEquals(1, budget.count());
+      // merged in from a list that was counted on another thread
+      errors.addAll(scratch);
+      budget.skip();
+      Assertions.assertEquals(1, budget.count());
+      errors.add(makeMessage(IssueSeverity.ERROR));
+      Assertions.assertThrows(ErrorBudgetExhaustedException.class, () -> budget.check());
+    } finally {
+      budget.unwatch();
+    }
+    // nothing is watched on this thread now
+    errors.add(makeMessage(IssueSeverity.ERROR));
+    Assertions.assertEquals(2, budget.count());
+  }
+
+  private ValidationMessage makeMessage(IssueSeverity level) {
+    return new ValidationMessage(Source.InstanceValidator, IssueType.INVALID, "Patient", "test", level);
+  }
+
+  private List<ValidationMessage> validateWithMaxErrors(Bundle bnd, int maxErrors, int threads) throws Exception {
+    int t = val.getBundleEntryThreads();
+    int m = val.getMaxErrors();
+    val.setBundleEntryThreads(threads);
+    val.setMaxErrors(maxErrors);
+    try {
+      List<ValidationMessage> errors = new ArrayList<>();
+      val.validate(val, errors, bnd);
+      return errors;
+    } finally {
+      val.setBundleEntryThreads(t);
+      val.setMaxErrors(m);
+    }
+  }
+
+  private int countErrors(List<ValidationMessage> list) {
+    int i = 0;
+    for (ValidationMessage vm : list) {
+      if (vm.isError()) {
+        i++;
+      }
+    }
+    return i;
+  }
+}
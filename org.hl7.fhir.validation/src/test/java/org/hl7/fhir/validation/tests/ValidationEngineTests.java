@@ -2,19 +2,51 @@ package org.hl7.fhir.validation.tests;
 
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.hl7.fhir.r5.elementmodel.Manager.FhirFormat;
+import org.hl7.fhir.r5.formats.JsonParser;
+import org.hl7.fhir.r5.model.Bundle;
+import org.hl7.fhir.r5.model.Enumerations.PublicationStatus;
 import org.hl7.fhir.r5.model.OperationOutcome;
 import org.hl7.fhir.r5.model.OperationOutcome.IssueSeverity;
 import org.hl7.fhir.r5.model.OperationOutcome.OperationOutcomeIssueComponent;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.r5.model.StructureDefinition.StructureDefinitionKind;
+import org.hl7.fhir.r5.model.StructureDefinition.TypeDerivationRule;
 import org.hl7.fhir.r5.test.utils.TestingUtilities;
+import org.hl7.fhir.r5.utils.ToolingExtensions;
+import org.hl7.fhir.utilities.ByteProvider;
 import org.hl7.fhir.utilities.FhirPublication;
+import org.hl7.fhir.utilities.i18n.I18nConstants;
 import org.hl7.fhir.utilities.settings.FhirSettings;
 import org.hl7.fhir.utilities.tests.CacheVerificationLogger;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
+import org.hl7.fhir.utilities.validation.ValidationMessage.IssueType;
+import org.hl7.fhir.utilities.validation.ValidationMessage.Source;
+import org.hl7.fhir.validation.BundleStreamValidator;
+import org.hl7.fhir.validation.Content;
 import org.hl7.fhir.validation.IgLoader;
+import org.hl7.fhir.validation.NdjsonValidator;
+import org.hl7.fhir.validation.SourceDependencies;
 import org.hl7.fhir.validation.ValidationEngine;
+import org.hl7.fhir.validation.ValidationRecord;
+import org.hl7.fhir.validation.ValidationResultCache;
+import org.hl7.fhir.validation.ValidatorUtils;
+import org.hl7.fhir.validation.ValidatorUtils.SourceFile;
 import org.hl7.fhir.validation.tests.utilities.TestUtilities;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
@@ -278,6 +310,399 @@ public class ValidationEngineTests {
   }
 
   
+  @Test
+  public void testValidateInParallel() throws Exception {
+    ValidationEngine ve = TestUtilities.getValidationEngine("hl7.fhir.r4.core#4.0.1", DEF_TX, FhirPublication.R4, "4.0.1");
+    Path dir = Files.createTempDirectory("parallel");
+    List<String> sources = new ArrayList<>();
+    for (int i = 0; i < 6; i++) {
+      Path file = dir.resolve("patient"+i+".json");
+      String gender = i % 2 == 0 ? "male" : "not-a-gender";
+      Files.write(file, ("{\"resourceType\" : \"Patient\", \"id\" : \"p"+i+"\", \"gender\" : \""+gender+"\"}").getBytes(StandardCharsets.UTF_8));
+      sources.add(file.toString());
+    }
+
+    List<ValidationRecord> seqRecord = new ArrayList<>();
+    Bundle seq = (Bundle) ve.validate(sources, null, new ArrayList<>(), seqRecord, null, false, 0, true);
+
+    ve.setThreads(3);
+    ve.setShowTimes(true);
+    List<ValidationRecord> parRecord = new ArrayList<>();
+    PrintStream out = System.out;
+    ByteArrayOutputStream bs = new ByteArrayOutputStream();
+    Bundle par;
+    System.setOut(new PrintStream(bs, true, "UTF-8"));
+    try {
+      par = (Bundle) ve.validate(sources, null, new ArrayList<>(), parRecord, null, false, 0, true);
+    } finally {
+      System.setOut(out);
+      ve.setThreads(1);
+      ve.setShowTimes(false);
+    }
+
+    // same outcomes, in the same order
+    Assertions.assertEquals(seq.getEntry().size(), par.getEntry().size());
+    for (int i = 0; i < seq.getEntry().size(); i++) {
+      OperationOutcome s = (OperationOutcome) seq.getEntry().get(i).getResource();
+      OperationOutcome p = (OperationOutcome) par.getEntry().get(i).getResource();
+      Assertions.assertEquals(errors(s), errors(p));
+      Assertions.assertEquals(i % 2 == 1, errors(p) > 0);
+      Assertions.assertEquals(s.getIssue().size(), p.getIssue().size());
+    }
+    Assertions.assertEquals(seqRecord.size(), parRecord.size());
+    for (int i = 0; i < seqRecord.size(); i++) {
+      Assertions.assertEquals(seqRecord.get(i).getLocation(), parRecord.get(i).getLocation());
+      Assertions.assertEquals(seqRecord.get(i).getMessages().size(), parRecord.get(i).getMessages().size());
+    }
+
+    // the times for each source are printed straight after the source's progress line
+    String[] lines = bs.toString("UTF-8").split("\\r?\\n");
+    int found = 0;
+    for (int i = 0; i < lines.length; i++) {
+      if (lines[i].startsWith("  Validate ")) {
+        String source = lines[i].substring(11);
+        Assertions.assertEquals(sources.get(found), source);
+        Assertions.assertTrue(lines[i+1].startsWith(source + ": "), lines[i+1]);
+        found++;
+      }
+    }
+    Assertions.assertEquals(sources.size(), found);
+  }
+
+  @Test
+  public void testValidateNdjson() throws Exception {
+    ValidationEngine ve = TestUtilities.getValidationEngine("hl7.fhir.r4.core#4.0.1", DEF_TX, FhirPublication.R4, "4.0.1");
+    StringBuilder b = new StringBuilder();
+    List<Integer> lines = new ArrayList<>();
+    int lineNo = 0;
+    for (int i = 0; i < 12; i++) {
+      if (i % 5 == 2) {
+        // blank lines are skipped, but still counted
+        b.append(i % 2 == 0 ? "" : "   ").append("\n");
+        lineNo++;
+      }
+      String gender = i % 3 == 0 ? "not-a-gender" : "female";
+      b.append("{\"resourceType\" : \"Patient\", \"id\" : \"p"+i+"\", \"gender\" : \""+gender+"\"}\n");
+      lineNo++;
+      lines.add(lineNo);
+    }
+    byte[] src = b.toString().getBytes(StandardCharsets.UTF_8);
+
+    for (int threads : new int[] { 1, 3 }) {
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      NdjsonValidator.Summary summary = new NdjsonValidator(ve, null, threads).validate("test.ndjson", new ByteArrayInputStream(src), output);
+      Assertions.assertEquals(12, summary.getResources());
+      Assertions.assertEquals(4, summary.getResourcesWithErrors());
+
+      // an outcome for each resource with issues, in source order, with the line it was on
+      List<String> found = new ArrayList<>();
+      int errors = 0;
+      for (String line : output.toString("UTF-8").split("\n")) {
+        if (!line.isEmpty()) {
+          OperationOutcome oo = (OperationOutcome) new JsonParser().parse(line);
+          found.add(ToolingExtensions.readStringExtension(oo, ToolingExtensions.EXT_OO_FILE));
+          errors = errors + errors(oo);
+        }
+      }
+      Assertions.assertEquals(summary.getErrors(), errors);
+      // resources with no issues have no outcome, but the valid ones may still have warnings
+      List<String> expected = new ArrayList<>();
+      for (int i = 0; i < lines.size(); i++) {
+        if (found.size() == lines.size() || i % 3 == 0) {
+          expected.add("test.ndjson:"+lines.get(i));
+        }
+      }
+      Assertions.assertEquals(expected, found, "threads = "+threads);
+    }
+  }
+
+  private static final String STREAMED_BUNDLE = "{\n"+
+      "  \"resourceType\" : \"Bundle\",\n"+
+      "  \"type\" : \"$type$\",\n"+
+      "  \"entry\" : [ {\n"+
+      "    \"fullUrl\" : \"http://example.org/fhir/Patient/1\",\n"+
+      "    \"resource\" : {\n"+
+      "      \"resourceType\" : \"Patient\",\n"+
+      "      \"id\" : \"1\",\n"+
+      "      \"name\" : [ { \"text\" : \"braces } and \\\"quotes\\\" { in a string\" } ]\n"+
+      "    }\n"+
+      "  }, {\n"+
+      "    \"fullUrl\" : \"http://example.org/fhir/Observation/o1\",\n"+
+      "    \"resource\" : {\n"+
+      "      \"resourceType\" : \"Observation\",\n"+
+      "      \"id\" : \"o1\",\n"+
+      "      \"status\" : \"bogus\",\n"+
+      "      \"code\" : { \"text\" : \"test\" },\n"+
+      "      \"subject\" : { \"reference\" : \"Patient/1\" },\n"+
+      "      \"performer\" : [ { \"reference\" : \"Patient/12\" } ]\n"+
+      "    }\n"+
+      "  } ]\n"+
+      "}\n";
+
+  @Test
+  public void testValidateLargeBundle() throws Exception {
+    ValidationEngine ve = TestUtilities.getValidationEngine("hl7.fhir.r4.core#4.0.1", DEF_TX, FhirPublication.R4, "4.0.1");
+    File file = tempFile(STREAMED_BUNDLE.replace("$type$", "collection"));
+    List<ValidationMessage> streamed = new BundleStreamValidator(ve.getValidator(FhirFormat.JSON), ve.getContext(), new ArrayList<>()).validate(file);
+    List<ValidationMessage> normal = validateNormally(ve, file);
+
+    // the messages about the entries are at the same paths, lines and columns as when the bundle is validated in one go
+    int count = 0;
+    for (ValidationMessage vm : normal) {
+      if (vm.getLocation().startsWith("Bundle.entry[1].resource.status")) {
+        count++;
+        ValidationMessage match = find(streamed, vm.getLocation(), vm.getMessageId());
+        Assertions.assertNotNull(match, "no message at "+vm.getLocation());
+        Assertions.assertEquals(vm.getLine(), match.getLine());
+        Assertions.assertEquals(vm.getCol(), match.getCol());
+      }
+    }
+    Assertions.assertTrue(count > 0);
+
+    // Patient/1 is in the bundle, but Patient/12 isn't, and isn't hidden by Patient/1
+    for (ValidationMessage vm : streamed) {
+      if (isLocalReferenceMessage(vm)) {
+        Assertions.assertFalse(vm.getLocation().contains(".subject"), vm.getLocation());
+      }
+    }
+    Assertions.assertEquals(localReferenceLocations(normal), localReferenceLocations(streamed));
+  }
+
+  @Test
+  public void testValidateLargeBundleFallback() throws Exception {
+    ValidationEngine ve = TestUtilities.getValidationEngine("hl7.fhir.r4.core#4.0.1", DEF_TX, FhirPublication.R4, "4.0.1");
+    // documents aren't streamed, and neither is anything the scanner can't read
+    for (String src : new String[] { STREAMED_BUNDLE.replace("$type$", "document"), STREAMED_BUNDLE.replace("$type$", "collection").replace("\"id\" : \"o1\",", "\"id\" : \"o1\"") }) {
+      File file = tempFile(src);
+      List<ValidationMessage> streamed = new BundleStreamValidator(ve.getValidator(FhirFormat.JSON), ve.getContext(), new ArrayList<>()).validate(file);
+      Assertions.assertEquals(summarise(validateNormally(ve, file)), summarise(streamed));
+    }
+  }
+
+  private File tempFile(String src) throws IOException {
+    Path path = Files.createTempFile("bundle", ".json");
+    path.toFile().deleteOnExit();
+    Files.write(path, src.getBytes(StandardCharsets.UTF_8));
+    return path.toFile();
+  }
+
+  private List<ValidationMessage> validateNormally(ValidationEngine ve, File file) throws Exception {
+    List<ValidationMessage> messages = new ArrayList<>();
+    try (InputStream stream = new FileInputStream(file)) {
+      ve.getValidator(FhirFormat.JSON).validate(null, messages, stream, FhirFormat.JSON);
+    }
+    return messages;
+  }
+
+  private ValidationMessage find(List<ValidationMessage> list, String location, String id) {
+    for (ValidationMessage vm : list) {
+      if (location.equals(vm.getLocation()) && (id == null ? vm.getMessageId() == null : id.equals(vm.getMessageId()))) {
+        return vm;
+      }
+    }
+    return null;
+  }
+
+  private boolean isLocalReferenceMessage(ValidationMessage vm) {
+    return I18nConstants.BUNDLE_BUNDLE_NOT_LOCAL.equals(vm.getMessageId()) || I18nConstants.REFERENCE_REF_NOTFOUND_BUNDLE.equals(vm.getMessageId())
+        || I18nConstants.REFERENCE_REF_CANTRESOLVE.equals(vm.getMessageId());
+  }
+
+  private Set<String> localReferenceLocations(List<ValidationMessage> list) {
+    Set<String> res = new HashSet<>();
+    for (ValidationMessage vm : list) {
+      if (isLocalReferenceMessage(vm)) {
+        res.add(vm.getLocation());
+      }
+    }
+    return res;
+  }
+
+  private List<String> summarise(List<ValidationMessage> list) {
+    List<String> res = new ArrayList<>();
+    for (ValidationMessage vm : list) {
+      res.add(vm.getLevel()+" "+vm.getLocation()+" "+vm.getLine()+":"+vm.getCol()+" "+vm.getMessage());
+    }
+    return res;
+  }
+
+  @Test
+  public void testResultCache() throws Exception {
+    ValidationEngine ve = TestUtilities.getValidationEngine("hl7.fhir.r4.core#4.0.1", DEF_TX, FhirPublication.R4, "4.0.1");
+    ValidationResultCache cache = new ValidationResultCache(Files.createTempDirectory("results").toString(), ValidationResultCache.DEFAULT_MAX_SIZE);
+    ve.setResultCache(cache);
+    ByteProvider src = ByteProvider.forBytes("{\"resourceType\" : \"Patient\", \"id\" : \"p1\", \"gender\" : \"not-a-gender\"}".getBytes(StandardCharsets.UTF_8));
+
+    int errors = errors(ve.validate("p1.json", src, FhirFormat.JSON, new ArrayList<>(), null));
+    Assertions.assertTrue(errors > 0);
+    Assertions.assertEquals(0, cache.getHits());
+    Assertions.assertEquals(1, cache.getMisses());
+    Assertions.assertEquals(errors, errors(ve.validate("p1.json", src, FhirFormat.JSON, new ArrayList<>(), null)));
+    Assertions.assertEquals(1, cache.getHits());
+
+    // a profile that isn't from a package (e.g. from an -ig folder) is loaded, and then changes
+    ve.getContext().cacheResource(makeProfile("first"));
+    ve.validate("p1.json", src, FhirFormat.JSON, new ArrayList<>(), null);
+    Assertions.assertEquals(2, cache.getMisses());
+    ve.validate("p1.json", src, FhirFormat.JSON, new ArrayList<>(), null);
+    Assertions.assertEquals(2, cache.getHits());
+    ve.getContext().cacheResource(makeProfile("second"));
+    Assertions.assertEquals(errors, errors(ve.validate("p1.json", src, FhirFormat.JSON, new ArrayList<>(), null)));
+    Assertions.assertEquals(2, cache.getHits());
+    Assertions.assertEquals(3, cache.getMisses());
+  }
+
+  @Test
+  public void testResultCacheDependencies() throws Exception {
+    ValidationEngine ve = TestUtilities.getValidationEngine("hl7.fhir.r4.core#4.0.1", DEF_TX, FhirPublication.R4, "4.0.1");
+    ValidationResultCache cache = new ValidationResultCache(Files.createTempDirectory("results").toString(), ValidationResultCache.DEFAULT_MAX_SIZE);
+    ve.setResultCache(cache);
+    List<String> sources = writeSources(Files.createTempDirectory("sources"));
+    ve.validate(sources, new ArrayList<>(), new ArrayList<>(), null, null, false, 0, true);
+    Assertions.assertEquals(4, cache.getMisses());
+    ve.validate(sources, new ArrayList<>(), new ArrayList<>(), null, null, false, 0, true);
+    Assertions.assertEquals(4, cache.getHits());
+
+    // a changes, so b (which refers to a) and c (which refers to b) aren't taken from the cache, but d is
+    Files.write(Path.of(sources.get(0)), "{\"resourceType\" : \"Patient\", \"id\" : \"a\", \"gender\" : \"male\"}".getBytes(StandardCharsets.UTF_8));
+    ve.validate(sources, new ArrayList<>(), new ArrayList<>(), null, null, false, 0, true);
+    Assertions.assertEquals(5, cache.getHits());
+    Assertions.assertEquals(7, cache.getMisses());
+  }
+
+  private StructureDefinition makeProfile(String description) {
+    StructureDefinition sd = new StructureDefinition();
+    sd.setId("test-patient");
+    sd.setUrl("http://example.org/fhir/StructureDefinition/test-patient");
+    sd.setVersion("1.0.0");
+    sd.setName("TestPatient");
+    sd.setStatus(PublicationStatus.DRAFT);
+    sd.setDescription(description);
+    sd.setKind(StructureDefinitionKind.RESOURCE);
+    sd.setAbstract(false);
+    sd.setType("Patient");
+    sd.setBaseDefinition("http://hl7.org/fhir/StructureDefinition/Patient");
+    sd.setDerivation(TypeDerivationRule.CONSTRAINT);
+    sd.getDifferential().addElement().setPath("Patient.gender").setMin(1);
+    return sd;
+  }
+
+  @Test
+  public void testResultCacheEviction() throws Exception {
+    List<ValidationMessage> messages = new ArrayList<>();
+    messages.add(new ValidationMessage(Source.InstanceValidator, IssueType.INVALID, 1, 2, "Patient.gender", "bad gender", ValidationMessage.IssueSeverity.ERROR));
+
+    ValidationResultCache measure = new ValidationResultCache(Files.createTempDirectory("results").toString(), ValidationResultCache.DEFAULT_MAX_SIZE);
+    measure.put("k", messages);
+    long size = measure.getSize();
+
+    String folder = Files.createTempDirectory("results").toString();
+    ValidationResultCache cache = new ValidationResultCache(folder, size * 2 + 1);
+    cache.put("k1", messages);
+    cache.put("k2", messages);
+    Assertions.assertNotNull(cache.get("k1"));
+    // k2 is the least recently used, so it goes to make room for k3
+    cache.put("k3", messages);
+    Assertions.assertEquals(size * 2, cache.getSize());
+    Assertions.assertNull(cache.get("k2"));
+    List<ValidationMessage> found = cache.get("k1");
+    Assertions.assertEquals(1, found.size());
+    Assertions.assertEquals("Patient.gender", found.get(0).getLocation());
+    Assertions.assertEquals("bad gender", found.get(0).getMessage());
+    Assertions.assertEquals(2, found.get(0).getCol());
+
+    // and the entries are still there in the next run
+    ValidationResultCache next = new ValidationResultCache(folder, size * 2 + 1);
+    Assertions.assertEquals(size * 2, next.getSize());
+    Assertions.assertNotNull(next.get("k3"));
+    Assertions.assertNull(next.get("k2"));
+  }
+
+  @Test
+  public void testSourceDependencies() throws Exception {
+    ValidationEngine ve = TestUtilities.getValidationEngine("hl7.fhir.r4.core#4.0.1", DEF_TX, FhirPublication.R4, "4.0.1");
+    List<String> sources = writeSources(Files.createTempDirectory("sources"));
+    String a = sources.get(0);
+    String b = sources.get(1);
+    String c = sources.get(2);
+    String d = sources.get(3);
+    List<SourceFile> refs = new ArrayList<>();
+    ValidatorUtils.parseSources(sources, refs, ve.getContext());
+    SourceDependencies deps = new SourceDependencies();
+    for (SourceFile ref : refs) {
+      ref.setCnt(jsonContent(ref.getRef()));
+      deps.update(ve.getContext(), ref);
+    }
+    Assertions.assertEquals(Set.of("Patient/a"), deps.getProvides(a));
+    Assertions.assertEquals(List.of(b), deps.dependents(Set.of("Patient/a")));
+    Assertions.assertEquals(List.of(c), deps.dependents(Set.of("Observation/b")));
+    Assertions.assertEquals(List.of(d), deps.dependents(Set.of("http://example.org/fhir/StructureDefinition/test-patient")));
+    Assertions.assertTrue(deps.dependents(Set.of("Patient/d")).isEmpty());
+
+    // b doesn't refer to a any more
+    Files.write(Path.of(b), "{\"resourceType\" : \"Observation\", \"id\" : \"b\", \"status\" : \"final\", \"code\" : {\"text\" : \"test\"}}".getBytes(StandardCharsets.UTF_8));
+    SourceFile rb = refs.get(1);
+    rb.setCnt(jsonContent(b));
+    Assertions.assertEquals(Set.of("Observation/b"), deps.update(ve.getContext(), rb));
+    Assertions.assertTrue(deps.dependents(Set.of("Patient/a")).isEmpty());
+    Assertions.assertEquals(List.of(c), deps.dependents(Set.of("Observation/b")));
+
+    // and c has gone
+    Assertions.assertEquals(Set.of("Observation/c"), deps.remove(c));
+    Assertions.assertTrue(deps.dependents(Set.of("Observation/b")).isEmpty());
+    Assertions.assertTrue(deps.getProvides(c).isEmpty());
+  }
+
+  @Test
+  public void testValidateDependents() throws Exception {
+    ValidationEngine ve = TestUtilities.getValidationEngine("hl7.fhir.r4.core#4.0.1", DEF_TX, FhirPublication.R4, "4.0.1");
+    ve.setSourceDependencies(new SourceDependencies());
+    List<String> sources = writeSources(Files.createTempDirectory("sources"));
+    List<SourceFile> refs = new ArrayList<>();
+    Bundle results = (Bundle) ve.validate(sources, new ArrayList<>(), refs, null, null, false, 0, true);
+    Assertions.assertEquals(4, results.getEntry().size());
+
+    // a changes: b refers to a, and c refers to b, so they are validated again, but d isn't
+    File a = new File(sources.get(0));
+    Files.write(a.toPath(), "{\"resourceType\" : \"Patient\", \"id\" : \"a\", \"gender\" : \"male\"}".getBytes(StandardCharsets.UTF_8));
+    a.setLastModified(System.currentTimeMillis() + 5000);
+    results = (Bundle) ve.validate(sources, new ArrayList<>(), refs, null, null, false, 0, false);
+    Set<String> validated = new HashSet<>();
+    for (Bundle.BundleEntryComponent be : results.getEntry()) {
+      validated.add(ToolingExtensions.readStringExtension((OperationOutcome) be.getResource(), ToolingExtensions.EXT_OO_FILE));
+    }
+    Assertions.assertEquals(Set.of(sources.get(0), sources.get(1), sources.get(2)), validated);
+
+    // nothing has changed since
+    Assertions.assertNull(ve.validate(sources, new ArrayList<>(), refs, null, null, false, 0, false));
+  }
+
+  /**
+   * a, b (which refers to a), c (which refers to b), and d, which uses a profile
+   */
+  private List<String> writeSources(Path dir) throws IOException {
+    String[][] content = {
+        { "a.json", "{\"resourceType\" : \"Patient\", \"id\" : \"a\"}" },
+        { "b.json", "{\"resourceType\" : \"Observation\", \"id\" : \"b\", \"status\" : \"final\", \"code\" : {\"text\" : \"test\"}, \"subject\" : {\"reference\" : \"Patient/a\"}}" },
+        { "c.json", "{\"resourceType\" : \"Observation\", \"id\" : \"c\", \"status\" : \"final\", \"code\" : {\"text\" : \"test\"}, \"hasMember\" : [{\"reference\" : \"Observation/b\"}]}" },
+        { "d.json", "{\"resourceType\" : \"Patient\", \"id\" : \"d\", \"meta\" : {\"profile\" : [\"http://example.org/fhir/StructureDefinition/test-patient|1.0.0\"]}}" } };
+    List<String> res = new ArrayList<>();
+    for (String[] t : content) {
+      Path path = dir.resolve(t[0]);
+      Files.write(path, t[1].getBytes(StandardCharsets.UTF_8));
+      path.toFile().deleteOnExit();
+      res.add(path.toString());
+    }
+    return res;
+  }
+
+  private Content jsonContent(String path) {
+    Content cnt = new Content();
+    cnt.setFocus(ByteProvider.forFile(path));
+    cnt.setCntType(FhirFormat.JSON);
+    return cnt;
+  }
+
   private int errors(OperationOutcome op) {
     int i = 0;
     for (OperationOutcomeIssueComponent vm : op.getIssue()) {